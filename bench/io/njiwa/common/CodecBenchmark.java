@@ -0,0 +1,105 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief Hex, BER-TLV and GSM 7-bit coding, as used on every OTA packet, log line and SMS
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CodecBenchmark {
+    // A GET STATUS response for eight ISD-Ps: E3 {4F AID, 9F70 life cycle state, C5 privileges} each
+    public static final byte[] GET_STATUS_RESPONSE;
+    // A full SMS worth of text, with a few characters from the GSM 7-bit extension table
+    public static final String SMS_TEXT = "Your eSIM profile [Njiwa-Telecom] has been enabled. Dial *100# for " +
+            "your balance, or visit {http://njiwa.io/help} for help. Reply STOP to opt out of these messages~^";
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 8; i++)
+            sb.append("E31B4F10A0000005591010FFFFFFFF89").append(String.format("%02X", 0x10 + i))
+                    .append("0000009F700107C5039E0000");
+        GET_STATUS_RESPONSE = Utils.HEX.h2b(sb.toString());
+    }
+
+    private byte[] packet;
+    private String packetHex;
+    private byte[] septets;
+    private byte[] packed;
+    private ByteBuffer out;
+
+    @Setup
+    public void setup() throws Exception {
+        packet = new byte[140]; // One SMS
+        for (int i = 0; i < packet.length; i++)
+            packet[i] = (byte) (i * 31);
+        packetHex = Utils.HEX.b2H(packet);
+        septets = Charset.translateToGsm0338(SMS_TEXT);
+        out = ByteBuffer.allocate(2 * septets.length);
+        Charset.pack7Bit(septets, 0, septets.length, 0, out);
+        packed = Arrays.copyOf(out.array(), out.position());
+    }
+
+    @Benchmark
+    public String hexEncode() {
+        return Utils.HEX.b2H(packet);
+    }
+
+    @Benchmark
+    public byte[] hexDecode() {
+        return Utils.HEX.h2b(packetHex);
+    }
+
+    @Benchmark
+    public List<Utils.Pair<Integer, byte[]>> tlvDecode() throws Exception {
+        return Utils.BER.decodeTLVs(GET_STATUS_RESPONSE);
+    }
+
+    @Benchmark
+    public void tlvWalk(Blackhole bh) {
+        Utils.BER.TLVReader r = new Utils.BER.TLVReader(GET_STATUS_RESPONSE);
+        while (r.hasNext()) {
+            Utils.BER.TLVReader c = r.next(false).children();
+            while (c.hasNext()) {
+                c.next((GET_STATUS_RESPONSE[c.position()] & 0x1F) == 0x1F); // e.g. 9F70
+                bh.consume(c.valueLength);
+            }
+        }
+    }
+
+    @Benchmark
+    public int gsm7Encode() throws Exception {
+        byte[] s = Charset.translateToGsm0338(SMS_TEXT);
+        out.clear();
+        return Charset.pack7Bit(s, 0, s.length, 0, out);
+    }
+
+    @Benchmark
+    public String gsm7Decode() {
+        out.clear();
+        Charset.unpack7Bit(packed, 0, packed.length, 0, septets.length, out);
+        return Charset.translateToIso(Arrays.copyOf(out.array(), out.position()));
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import io.njiwa.dp.Scp03;
+import io.njiwa.dp.Scp03Benchmark;
+import io.njiwa.sr.ota.Scp80Benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+
+/**
+ * @brief Performance regression gate for the hot paths: a short timing run of each operation, compared to a
+ * baseline. Exits with a non-zero status if allocation per operation grows, or (if asked) throughput drops, by more
+ * than the given thresholds.
+ * @details Allocation per operation does not depend on the machine, so its baseline is kept with the sources.
+ * Throughput does, so it is only compared when asked, against a baseline recorded on the same machine.
+ * Arguments are of the form name=value:
+ * - baseline: The allocation baseline file (JSON)
+ * - report: Where to write the JSON report
+ * - growth: Allowed growth in bytes allocated per operation, as a fraction of the baseline. Default 0.10
+ * - throughput: If true, also compare throughput. Default false
+ * - throughputbaseline: The throughput baseline file (JSON), local to the machine
+ * - drop: Allowed drop in throughput, as a fraction of the baseline. Default 0.25
+ * - warmup, rounds, round: Warmup time (ms), number of timed rounds, and length of each (ms)
+ * - ops: Comma-separated list of operations to run. Default all
+ * - fork: If true (the default), time each operation in a JVM of its own, so that they do not skew each other's
+ * JIT profile
+ * - update: If true, write the results to the baseline file(s) instead of comparing them
+ *
+ * The fixtures are those of the JMH benchmarks, so results here and there are comparable.
+ */
+public class PerfGate {
+    private static final double ALLOC_SLACK = 16; //!< Bytes per op. Allow for measurement noise on small numbers
+    private static final String CHILD_RESULT = "perf-gate-result: ";
+    private static volatile Object sink; //!< Results go here, so the JIT cannot drop the work
+
+    private final Map<String, String> args;
+    private final com.sun.management.ThreadMXBean threads;
+
+    private PerfGate(Map<String, String> args) {
+        this.args = args;
+        java.lang.management.ThreadMXBean t = ManagementFactory.getThreadMXBean();
+        threads = t instanceof com.sun.management.ThreadMXBean && ((com.sun.management.ThreadMXBean) t)
+                .isThreadAllocatedMemorySupported() ? (com.sun.management.ThreadMXBean) t : null;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = new HashMap<>();
+        for (String a : argv) {
+            int i = a.indexOf('=');
+            if (i > 0)
+                args.put(a.substring(0, i).trim().toLowerCase(), a.substring(i + 1).trim());
+        }
+        PerfGate g = new PerfGate(args);
+        if (args.containsKey("child")) { // Forked: Time one operation and report to the parent
+            Result r = g.measure(ops().get(args.get("child")));
+            System.out.println(CHILD_RESULT + r.opsPerSec + " " + r.bytesPerOp);
+            System.exit(0);
+        }
+        System.exit(g.run() ? 0 : 1);
+    }
+
+    private String arg(String name, String def) {
+        String v = args.get(name);
+        return v == null || v.isEmpty() ? def : v;
+    }
+
+    /**
+     * @return the operations to time, by name
+     */
+    private static Map<String, Op> ops() throws Exception {
+        Map<String, Op> ops = new LinkedHashMap<>();
+
+        Scp80Benchmark scp80 = new Scp80Benchmark();
+        scp80.setup();
+        ops.put("scp80Pack", scp80::pack);
+
+        Scp03Benchmark scp03 = new Scp03Benchmark();
+        scp03.mode = Scp03.Session.Mode.CAPDU;
+        scp03.setup();
+        ops.put("scp03Wrap", scp03::wrap);
+
+        CodecBenchmark codec = new CodecBenchmark();
+        codec.setup();
+        ops.put("tlvParse", codec::tlvDecode);
+        return ops;
+    }
+
+    private boolean run() throws Exception {
+        File baselineFile = new File(arg("baseline", "perf-baseline.json"));
+        File reportFile = new File(arg("report", "perf-report.json"));
+        File throughputFile = new File(arg("throughputbaseline", "perf-throughput-baseline.json"));
+        double drop = Double.parseDouble(arg("drop", "0.25"));
+        double growth = Double.parseDouble(arg("growth", "0.10"));
+        boolean throughput = Boolean.parseBoolean(arg("throughput", "false"));
+        boolean update = Boolean.parseBoolean(arg("update", "false"));
+        boolean fork = Boolean.parseBoolean(arg("fork", "true"));
+        Set<String> only = args.containsKey("ops") ? new HashSet<>(Arrays.asList(arg("ops", "").split(","))) : null;
+
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode baseline = !update && baselineFile.exists() ? mapper.readTree(baselineFile) : null;
+        JsonNode throughputBaseline = throughput && !update && throughputFile.exists() ?
+                mapper.readTree(throughputFile) : null;
+        Map<String, Object> results = new LinkedHashMap<>();
+        Map<String, Object> newBaseline = new LinkedHashMap<>();
+        Map<String, Object> newThroughputBaseline = new LinkedHashMap<>();
+        boolean passed = true;
+
+        System.out.printf("%-12s %14s %14s %12s %12s  %s%n", "operation", "ops/s", "baseline", "bytes/op",
+                "baseline", "status");
+        for (Map.Entry<String, Op> e : ops().entrySet()) {
+            String name = e.getKey();
+            if (only != null && !only.contains(name))
+                continue;
+            Result r = fork ? fork(name) : measure(e.getValue());
+            JsonNode b = baseline != null ? baseline.get(name) : null;
+            JsonNode tb = throughputBaseline != null ? throughputBaseline.get(name) : null;
+            Map<String, Object> res = new LinkedHashMap<>();
+            res.put("opsPerSec", Math.round(r.opsPerSec));
+            res.put("bytesPerOp", Math.round(r.bytesPerOp));
+            boolean allocatesMore = false, slower = false;
+            if (b != null) {
+                double bBytes = b.path("bytesPerOp").asDouble(-1);
+                res.put("baselineBytesPerOp", bBytes);
+                allocatesMore = r.bytesPerOp >= 0 && bBytes >= 0 &&
+                        r.bytesPerOp > bBytes * (1 + growth) + ALLOC_SLACK;
+            }
+            if (tb != null) {
+                double bOps = tb.path("opsPerSec").asDouble();
+                res.put("baselineOpsPerSec", bOps);
+                res.put("throughputRatio", bOps > 0 ? r.opsPerSec / bOps : null);
+                slower = r.opsPerSec < bOps * (1 - drop);
+            }
+            String status;
+            if (update)
+                status = "UPDATED";
+            else if (allocatesMore)
+                status = "ALLOCATES_MORE";
+            else if (slower)
+                status = "SLOWER";
+            else if (b == null || (throughput && tb == null))
+                status = "NO_BASELINE";
+            else
+                status = "OK";
+            res.put("status", status);
+            passed &= status.equals("OK") || status.equals("NO_BASELINE") || status.equals("UPDATED");
+            results.put(name, res);
+
+            newBaseline.put(name, Collections.singletonMap("bytesPerOp", Math.round(r.bytesPerOp)));
+            newThroughputBaseline.put(name, Collections.singletonMap("opsPerSec", Math.round(r.opsPerSec)));
+            System.out.printf("%-12s %14.0f %14s %12.0f %12s  %s%n", name, r.opsPerSec,
+                    tb != null ? String.format("%.0f", tb.path("opsPerSec").asDouble()) : "-", r.bytesPerOp,
+                    b != null ? String.valueOf(b.path("bytesPerOp").asLong()) : "-", status);
+        }
+
+        Map<String, Object> report = new LinkedHashMap<>();
+        report.put("date", new Date().toString());
+        report.put("java", System.getProperty("java.version"));
+        report.put("allocationGrowth", growth);
+        report.put("throughputDrop", throughput ? drop : null);
+        report.put("passed", passed);
+        report.put("results", results);
+        write(mapper, reportFile, report);
+        if (update) {
+            write(mapper, baselineFile, newBaseline);
+            System.out.println("Baseline written to " + baselineFile);
+            if (throughput) {
+                write(mapper, throughputFile, newThroughputBaseline);
+                System.out.println("Throughput baseline written to " + throughputFile);
+            }
+        }
+        if (!passed)
+            System.out.printf("Performance regression: allocation up more than %.0f%%%s. See %s%n", growth * 100,
+                    throughput ? String.format(" or throughput down more than %.0f%%", drop * 100) : "", reportFile);
+        return passed;
+    }
+
+    private static void write(ObjectMapper mapper, File f, Object value) throws Exception {
+        File dir = f.getAbsoluteFile().getParentFile();
+        if (dir != null)
+            dir.mkdirs();
+        mapper.writerWithDefaultPrettyPrinter().writeValue(f, value);
+    }
+
+    /**
+     * @brief Time an operation in a new JVM, with the same JVM options, class path and arguments as this one
+     */
+    private Result fork(String name) throws Exception {
+        List<String> cmd = new ArrayList<>();
+        cmd.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        cmd.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        cmd.add("-cp");
+        cmd.add(System.getProperty("java.class.path"));
+        cmd.add(PerfGate.class.getName());
+        for (Map.Entry<String, String> e : args.entrySet())
+            cmd.add(e.getKey() + "=" + e.getValue());
+        cmd.add("child=" + name);
+
+        Process p = new ProcessBuilder(cmd).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Result r = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(p.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                if (line.startsWith(CHILD_RESULT)) {
+                    String[] x = line.substring(CHILD_RESULT.length()).split(" ");
+                    r = new Result(Double.parseDouble(x[0]), Double.parseDouble(x[1]));
+                }
+        }
+        if (p.waitFor() != 0 || r == null)
+            throw new Exception(String.format("Timing of %s failed, exit status %d", name, p.exitValue()));
+        return r;
+    }
+
+    /**
+     * @brief Warm the operation up, then time it over a number of rounds. Noise can only make a round slower, so
+     * the fastest round is used for throughput, and the median one for allocation.
+     */
+    private Result measure(Op op) throws Exception {
+        long warmup = Long.parseLong(arg("warmup", "2000")) * 1000000L;
+        int rounds = Math.max(1, Integer.parseInt(arg("rounds", "5")));
+        long round = Long.parseLong(arg("round", "300")) * 1000000L;
+        long tid = Thread.currentThread().getId();
+
+        for (long tend = System.nanoTime() + warmup; System.nanoTime() < tend; )
+            for (int i = 0; i < 64; i++)
+                sink = op.run();
+
+        double[] opsPerSec = new double[rounds];
+        double[] bytesPerOp = new double[rounds];
+        for (int r = 0; r < rounds; r++) {
+            long n = 0;
+            long bytes = threads != null ? threads.getThreadAllocatedBytes(tid) : 0;
+            long t0 = System.nanoTime(), t;
+            do {
+                for (int i = 0; i < 64; i++)
+                    sink = op.run();
+                n += 64;
+            } while ((t = System.nanoTime()) - t0 < round);
+            bytesPerOp[r] = threads != null ? (threads.getThreadAllocatedBytes(tid) - bytes) / (double) n : -1;
+            opsPerSec[r] = n * 1e9 / (t - t0);
+        }
+        Arrays.sort(opsPerSec);
+        Arrays.sort(bytesPerOp);
+        return new Result(opsPerSec[rounds - 1], bytesPerOp[rounds / 2]);
+    }
+
+    private interface Op {
+        Object run() throws Exception;
+    }
+
+    private static class Result {
+        final double opsPerSec;
+        final double bytesPerOp; //!< Or -1 if the JVM cannot tell
+
+        Result(double opsPerSec, double bytesPerOp) {
+            this.opsPerSec = opsPerSec;
+            this.bytesPerOp = bytesPerOp;
+        }
+    }
+}
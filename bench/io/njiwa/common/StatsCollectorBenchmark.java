@@ -0,0 +1,48 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import io.njiwa.common.model.RpaEntity;
+import io.njiwa.sr.transports.Transport;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief Recording of packet and transaction events, which is done once per OTA packet/transaction. The threaded
+ * variant shows contention between transport threads, which all record into the same counters.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StatsCollectorBenchmark {
+
+    @Benchmark
+    public void recordTransportEvent() {
+        StatsCollector.recordTransportEvent(Transport.TransportType.SMS, Transport.PacketType.MT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public void recordTransportEventContended() {
+        StatsCollector.recordTransportEvent(Transport.TransportType.SMS, Transport.PacketType.MT);
+    }
+
+    @Benchmark
+    public void recordTransaction() {
+        StatsCollector.recordTransaction(RpaEntity.Type.SMSR);
+    }
+}
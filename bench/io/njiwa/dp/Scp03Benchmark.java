@@ -0,0 +1,77 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.dp;
+
+import io.njiwa.common.SDCommand;
+import io.njiwa.common.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief SCP03 wrapping (C-DECRYPTION and C-MAC) of profile download commands, in an authenticated session
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Scp03Benchmark {
+    public static final byte[] S_ENC = Utils.HEX.h2b("2B7E151628AED2A6ABF7158809CF4F3C");
+    public static final byte[] S_MAC = Utils.HEX.h2b("6B3F5E2A9C0D47E18A2B6C3D4E5F6071");
+    public static final byte[] S_RMAC = Utils.HEX.h2b("0F1E2D3C4B5A69788796A5B4C3D2E1F0");
+    public static final int SEGMENT_SIZE = 200; // Typical size of a STORE DATA/profile element segment
+
+    @Param({"CAPDU", "TLV"})
+    public Scp03.Session.Mode mode;
+
+    private Scp03.Session session;
+    private byte[] segment;
+
+    @Setup
+    public void setup() {
+        session = authenticatedSession(mode);
+        segment = new byte[SEGMENT_SIZE];
+        for (int i = 0; i < segment.length; i++)
+            segment[i] = (byte) (i * 7);
+    }
+
+    @Benchmark
+    public SDCommand wrap() throws Exception {
+        return session.scp03Command(mkCommand(mode, segment));
+    }
+
+    /**
+     * @brief Make a session that has completed mutual authentication, with fixed session keys
+     */
+    public static Scp03.Session authenticatedSession(Scp03.Session.Mode mode) {
+        Scp03.Session session = new Scp03.Session(mode);
+        session.senc = S_ENC;
+        session.smac = S_MAC;
+        session.srmac = S_RMAC;
+        session.encCounter = Arrays.copyOf(Scp03.null16b, Scp03.null16b.length);
+        session.macChainingValue = Arrays.copyOf(Scp03.null16b, Scp03.null16b.length);
+        session.state = Scp03.Session.State.AUTHENTICATED;
+        return session;
+    }
+
+    /**
+     * @return a fresh command, since wrapping replaces its data
+     */
+    public static SDCommand mkCommand(Scp03.Session.Mode mode, byte[] segment) {
+        return mode == Scp03.Session.Mode.TLV ? SDCommand.SCP03tCommand.ProfileElement(segment) :
+                new SDCommand.APDU(0x80, SDCommand.APDU.STORE_COMMAND, 0x11, 0x00, segment);
+    }
+}
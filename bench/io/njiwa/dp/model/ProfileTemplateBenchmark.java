@@ -0,0 +1,110 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.dp.model;
+
+import io.njiwa.common.Utils;
+import io.njiwa.dp.pedefinitions.*;
+import org.openjdk.jmh.annotations.*;
+import org.openmuc.jasn1.ber.types.BerInteger;
+import org.openmuc.jasn1.ber.types.BerOctetString;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * @brief Profile data preparation: decoding the template, patching in the subscriber's data and re-encoding it
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfileTemplateBenchmark {
+    // EF.ICCID, EF.IMSI, EF.AD, EF.SPN, EF.ACC and EF.LOCI, the first two with a placeholder for the subscriber's data
+    private static final String[][] FILES = {
+            {"3F002FE2", "%ICCID%"},
+            {"3F007FF06F07", "%IMSI%"},
+            {"3F007FF06FAD", "00000002"},
+            {"3F007FF06F46", "014E6A697761FFFFFFFFFFFFFFFFFFFF"},
+            {"3F007FF06F78", "0001"},
+            {"3F007FF06F7E", "FFFFFFFFFFFFFF0000FF01"},
+    };
+
+    private byte[] template;
+    private Map<String, byte[]> data;
+    private Map<String, ProfileTemplate.ParamTarget> ptypes;
+
+    @Setup
+    public void setup() throws Exception {
+        template = ProfileTemplate.toBytes(mkProfile());
+        data = new HashMap<>();
+        data.put("%ICCID%", Utils.HEX.h2b("98940000000000000021"));
+        data.put("%IMSI%", Utils.HEX.h2b("082906100000000021"));
+        data.put("%KI%", Utils.HEX.h2b("000102030405060708090A0B0C0D0E0F"));
+        data.put("%OPC%", Utils.HEX.h2b("F0E0D0C0B0A090807060504030201000"));
+        ptypes = new HashMap<>();
+        ptypes.put("%ICCID%", ProfileTemplate.ParamTarget.FILEDATA);
+        ptypes.put("%IMSI%", ProfileTemplate.ParamTarget.FILEDATA);
+        ptypes.put("%KI%", ProfileTemplate.ParamTarget.NAA);
+        ptypes.put("%OPC%", ProfileTemplate.ParamTarget.NAA);
+    }
+
+    @Benchmark
+    public byte[] prepare() throws Exception {
+        return ProfileTemplate.performDataPreparation(ProfileTemplate.fromBytes(template), data, ptypes);
+    }
+
+    /**
+     * @brief A profile template with the files above and Milenage parameters
+     */
+    public static List<ProfileElement> mkProfile() {
+        PEGenericFileManagement gfm = new PEGenericFileManagement();
+        PEHeader h = new PEHeader();
+        h.setIdentification(new UInt15(1));
+        gfm.setGfmHeader(h);
+        PEGenericFileManagement.FileManagementCMD cmd = new PEGenericFileManagement.FileManagementCMD();
+        for (String[] f : FILES) {
+            FileManagement fm = new FileManagement();
+            FileManagement.CHOICE path = new FileManagement.CHOICE();
+            path.setFilePath(new BerOctetString(Utils.HEX.h2b(f[0])));
+            FileManagement.CHOICE content = new FileManagement.CHOICE();
+            content.setFillFileContent(new BerOctetString(f[1].startsWith("%") ?
+                    f[1].getBytes(StandardCharsets.UTF_8) : Utils.HEX.h2b(f[1])));
+            fm.getCHOICE().add(path);
+            fm.getCHOICE().add(content);
+            cmd.getFileManagement().add(fm);
+        }
+        gfm.setFileManagementCMD(cmd);
+        ProfileElement files = new ProfileElement();
+        files.setGenericFileManagement(gfm);
+
+        AlgoParameter algo = new AlgoParameter();
+        algo.setAlgorithmID(new BerInteger(1)); // Milenage
+        algo.setAlgorithmOptions(new BerOctetString(new byte[]{0x00}));
+        algo.setKey(new BerOctetString("%KI%".getBytes(StandardCharsets.UTF_8)));
+        algo.setOpc(new BerOctetString("%OPC%".getBytes(StandardCharsets.UTF_8)));
+        PEAKAParameter.AlgoConfiguration conf = new PEAKAParameter.AlgoConfiguration();
+        conf.setAlgoParameter(algo);
+        PEAKAParameter aka = new PEAKAParameter();
+        h = new PEHeader();
+        h.setIdentification(new UInt15(2));
+        aka.setAkaHeader(h);
+        aka.setAlgoConfiguration(conf);
+        ProfileElement naa = new ProfileElement();
+        naa.setAkaParameter(aka);
+
+        return Arrays.asList(files, naa);
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.ota;
+
+import io.njiwa.common.Utils;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+
+/**
+ * @brief SCP80 (GSM 03.48/ETSI TS 102 225) packing of an RFM script and unpacking of its PoR.
+ * @details Unpacking is the part of Ota.unpackSCP80() that comes after the keys have been found in the database:
+ * decryption, checking the CC and parsing the response script.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Scp80Benchmark {
+    // SELECT MF, DF.TELECOM, EF.SMSP, then UPDATE RECORD #1 with a full SMSP record, as sent by the RFM code
+    public static final byte[] RFM_SCRIPT = Utils.HEX.h2b("00A40004023F00" + "00A40004027F10" + "00A40004026F42" +
+            "00DC010428" + "FFFFFFFFFFFFFFFFFFFFFFFFE1" + "FFFFFFFFFFFFFFFFFFFFFFFF079197620000F0" +
+            "FFFFFFFFFF0000A7");
+    // PoR additional data: 4 C-APDUs executed, READ BINARY of EF.ICCID then three 9000s
+    public static final byte[] POR_DATA = Utils.HEX.h2b("AB1D800104230C989400000000000000F19000" +
+            "230290002302900023029000");
+    public static final byte[] KIC = Utils.HEX.h2b("4D0E2A1A2E8E3A4C25F0BB2E8F3E1A6D");
+    public static final byte[] KID = Utils.HEX.h2b("8B3F6A0B2E4D1C5F7A9E0D3B6C2F1E4A");
+    public static final byte[] TAR = Utils.HEX.h2b("B00001");
+    public static final byte[] COUNTER = Utils.HEX.h2b("0000000021");
+    public static final int SPI1 = 0x16; // CC, encryption, counter must be higher
+    public static final int SPI2 = 0x39; // Encrypted PoR with CC, sent using SMS-SUBMIT
+
+    public static final int KEY_BYTE = 0x10 | Ota.Crypt.AES_CBC; // Key set #1, AES as per SGP.02 Annex D
+
+    private byte[] por;
+
+    @Setup
+    public void setup() throws Exception {
+        Utils.lg.setLevel(Level.WARNING); // The response parser logs each PoR at INFO level
+        por = mkPoR(POR_DATA, KEY_BYTE);
+    }
+
+    @Benchmark
+    public byte[] pack() throws Exception {
+        return Ota.createSCP80Pkg(RFM_SCRIPT, -1, COUNTER, KEY_BYTE, KEY_BYTE, SPI1, SPI2, KIC, KID, TAR);
+    }
+
+    @Benchmark
+    public Ota.ResponseHandler.RemoteAPDUStructure unpack() throws Exception {
+        return unpackPoR(por, KEY_BYTE);
+    }
+
+    /**
+     * @param data     The PoR additional data
+     * @param keyByte  The KIc/KID byte. Must be for AES
+     * @return an SMS PoR, ciphered and with a CC, as a card would send it
+     * @brief Make an SCP80 PoR with implicit security, as per ETSI TS 102 225 Sec 5.1.2
+     */
+    public static byte[] mkPoR(byte[] data, int keyByte) throws Exception {
+        int spi1 = 0x06;
+        int crcLen = Ota.Checksum.length(spi1, keyByte);
+        int secured = 5 + 1 + 1 + crcLen + data.length;
+        int pcntr = (16 - secured % 16) % 16; // To the AES block size
+        int rhl = 3 + 5 + 1 + 1 + crcLen;
+        int rpl = 1 + rhl + data.length + pcntr;
+        byte status = 0x00; // PoR OK
+
+        byte[] plain = Arrays.copyOf(data, data.length + pcntr);
+        byte[] cheader = ByteBuffer.allocate(3 + 2 + 1 + 3).put(Ota.SMS_STATIC_RPH).putShort((short) rpl)
+                .put((byte) rhl).put(TAR).array();
+        byte[] crc = Ota.Checksum.get(spi1, keyByte, KID, cheader, COUNTER, pcntr, status, plain);
+
+        byte[] enc = ByteBuffer.allocate(secured + pcntr).put(COUNTER).put((byte) pcntr).put(status).put(crc)
+                .put(plain).array();
+        enc = Ota.Crypt.encrypt(enc, KIC, keyByte & 0x0F);
+        return ByteBuffer.allocate(2 + 1 + 3 + enc.length).putShort((short) rpl).put((byte) rhl).put(TAR).put(enc)
+                .array();
+    }
+
+    /**
+     * @brief Undo mkPoR() the way Ota.unpackSCP80() does, once it has the keys
+     */
+    public static Ota.ResponseHandler.RemoteAPDUStructure unpackPoR(byte[] in, int keyByte) throws Exception {
+        int spi1 = 0x06;
+        int rpl = ((in[0] & 0xFF) << 8) | (in[1] & 0xFF);
+        int rhl = in[2] & 0xFF;
+        byte[] dec = Ota.Crypt.decrypt(Arrays.copyOfRange(in, 6, in.length), KIC, keyByte & 0x0F);
+
+        byte[] counter = Arrays.copyOf(dec, 5);
+        int pcntr = dec[5] & 0xFF;
+        byte status = dec[6];
+        int crcLen = rhl - 3 - 5 - 1 - 1;
+        byte[] crc = Arrays.copyOfRange(dec, 7, 7 + crcLen);
+        byte[] plain = Arrays.copyOfRange(dec, 7 + crcLen, dec.length);
+
+        byte[] cheader = ByteBuffer.allocate(3 + 2 + 1 + 3).put(Ota.SMS_STATIC_RPH).putShort((short) rpl)
+                .put((byte) rhl).put(in, 3, 3).array();
+        byte[] xCrc = Ota.Checksum.get(spi1, keyByte, KID, cheader, counter, pcntr, status, plain);
+        if (!Arrays.equals(xCrc, crc)) throw new Exception("CRC mismatch in OTA packet");
+        return Ota.ResponseHandler.RemoteAPDUStructure.parse(Arrays.copyOf(plain, plain.length - pcntr));
+    }
+}
@@ -0,0 +1,693 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.Utils;
+
+import java.io.ByteArrayOutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+
+/**
+ * @addtogroup g_transports
+ * @{
+ */
+
+/**
+ * @brief A standalone CAT_TP card simulator, for load testing the BIP transport without real cards.
+ * @details Each virtual card opens its own UDP socket (the server identifies connections by source address), sends a
+ * SYN carrying the usual identification (transaction ID and MSISDN, as the push SMS would have given it), then ACKs
+ * and EACKs what the server sends. Each complete SDU received is answered with the next scripted response. Loss, delay
+ * and reordering are applied to packets in both directions.
+ * <p>
+ * Run it with key=value arguments, e.g.
+ * <pre>
+ *   gradle catTPSim -PsimArgs="server=10.0.0.1:2345 cards=5000 msisdn=256772100000 loss=0.01 delay=150 jitter=100"
+ * </pre>
+ * Arguments (defaults in brackets):
+ * - server: host:port of the CAT_TP port [127.0.0.1:2345]
+ * - cards: Number of virtual cards [100]
+ * - msisdn: First MSISDN. Card n uses msisdn+n. For the server to accept the connection these must be known eUICCs.
+ * [256770000000]
+ * - tid: Transaction ID put in the identification [0]
+ * - threads: Selector threads [1]
+ * - ramp: New connections per second [100]
+ * - duration: Seconds to run for [60]
+ * - sessions: Sessions per card, 0 to reconnect until the end [1]
+ * - idle: Seconds without data after which a card closes its session [10]
+ * - loss: Probability of dropping a packet [0]
+ * - delay: One-way delay in milliseconds [0]
+ * - jitter: Random extra delay, up to this many milliseconds [0]
+ * - reorder: Probability of holding a packet back by another delay+jitter, so it arrives out of order [0]
+ * - maxpdu, maxsdu, window: Our CAT_TP parameters [1024, 65535, 10]
+ * - responses: File with one hex-coded response per line, used in turn. Default is a bare 9000 status word.
+ * - report: Seconds between progress reports [10]
+ * <p>
+ * At the end it prints connection counts and the latency distribution for connection set-up (SYN to SYN+ACK),
+ * first data (connection open to first SDU) and our data PDUs (sent to acknowledged, excluding retransmissions).
+ * For memory per connection, compare the server's /operations/reports/cattp-connection-stats as the cards ramp up.
+ */
+public class CatTPCardSimulator {
+    // Descriptor flags, as in BipCatTP.CatTP.Packet
+    private static final int SEG = 1 << 2, NUL = 1 << 3, RST = 1 << 4, EACK = 1 << 5, ACK = 1 << 6, SYN = 1 << 7;
+    private static final int VERSION = 0x01;
+    private static final int HEADER_LEN = 0x12;
+    private static final int CARD_PORT = 0x0400; //!< Our CAT_TP port, in the header
+    private static final long RTO_NANOS = 2000000000L; //!< Our retransmission timeout
+    private static final int MAX_RETRIES = 5;
+
+    private static final int IDLE = 0, SYN_SENT = 1, OPEN = 2, CLOSED = 3;
+
+    private final Map<String, String> args;
+    private final InetSocketAddress server;
+    private final List<byte[]> responses = new ArrayList<>();
+    private final double loss, reorder;
+    private final long delayNanos, jitterNanos;
+    private final int maxPdu, maxSdu, window, sessions;
+    private final long idleNanos;
+    private volatile boolean stop = false;
+
+    private CatTPCardSimulator(Map<String, String> args) throws Exception {
+        this.args = args;
+        String[] hp = arg("server", "127.0.0.1:2345").split(":");
+        server = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        loss = Double.parseDouble(arg("loss", "0"));
+        reorder = Double.parseDouble(arg("reorder", "0"));
+        delayNanos = Long.parseLong(arg("delay", "0")) * 1000000L;
+        jitterNanos = Long.parseLong(arg("jitter", "0")) * 1000000L;
+        maxPdu = Integer.parseInt(arg("maxpdu", "1024"));
+        maxSdu = Integer.parseInt(arg("maxsdu", "65535"));
+        window = Integer.parseInt(arg("window", "10"));
+        sessions = Integer.parseInt(arg("sessions", "1"));
+        idleNanos = Long.parseLong(arg("idle", "10")) * 1000000000L;
+        String rfile = args.get("responses");
+        if (rfile != null)
+            for (String l : Files.readAllLines(Paths.get(rfile), StandardCharsets.UTF_8))
+                if (!(l = l.trim()).isEmpty() && !l.startsWith("#"))
+                    responses.add(Utils.HEX.h2b(l));
+        if (responses.isEmpty())
+            responses.add(new byte[]{(byte) 0x90, 0x00});
+    }
+
+    private String arg(String key, String def) {
+        String v = args.get(key);
+        return v != null ? v : def;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = new HashMap<>();
+        for (String a : argv) {
+            int i = a.indexOf('=');
+            if (i > 0)
+                args.put(a.substring(0, i).trim().toLowerCase(), a.substring(i + 1).trim());
+        }
+        new CatTPCardSimulator(args).run();
+    }
+
+    private void run() throws Exception {
+        int ncards = Integer.parseInt(arg("cards", "100"));
+        int nthreads = Math.max(1, Integer.parseInt(arg("threads", "1")));
+        long msisdn = Long.parseLong(arg("msisdn", "256770000000"));
+        long tid = Long.parseLong(arg("tid", "0"));
+        double ramp = Math.max(0.001, Double.parseDouble(arg("ramp", "100")));
+        long duration = Long.parseLong(arg("duration", "60")) * 1000;
+        long reportEvery = Math.max(1, Long.parseLong(arg("report", "10"))) * 1000;
+
+        Shard[] shards = new Shard[nthreads];
+        for (int i = 0; i < nthreads; i++)
+            shards[i] = new Shard(i);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ncards; i++) {
+            long startAt = t0 + (long) (i * 1e9 / ramp);
+            shards[i % nthreads].cards.add(new Card(shards[i % nthreads], String.valueOf(msisdn + i), tid, startAt));
+        }
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            threads[i] = new Thread(shards[i], "cattp-sim-" + i);
+            threads[i].start();
+        }
+        System.out.printf("CAT_TP simulator: %d cards on %d threads against %s, loss %.3f, delay %dms+%dms, reorder %.3f%n",
+                ncards, nthreads, server, loss, delayNanos / 1000000, jitterNanos / 1000000, reorder);
+
+        long tend = System.currentTimeMillis() + duration;
+        long tnow;
+        while ((tnow = System.currentTimeMillis()) < tend) {
+            Thread.sleep(Math.min(reportEvery, tend - tnow));
+            System.out.println(Stats.merge(shards).progress());
+        }
+        stop = true;
+        for (Thread t : threads)
+            t.join(5000);
+        System.out.println(Stats.merge(shards).summary());
+    }
+
+    /**
+     * @brief A thread's worth of cards, all on one selector. Packets being delayed wait in a queue ordered by due time.
+     */
+    private class Shard implements Runnable {
+        final List<Card> cards = new ArrayList<>();
+        final Stats stats = new Stats();
+        final Random rnd = new Random();
+        final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+        final ByteBuffer buf = ByteBuffer.allocateDirect(65536);
+        Selector selector;
+        long seq = 0; //!< Tie breaker for the delay queue, so equal due times keep their order
+
+        Shard(int n) {
+            rnd.setSeed(System.nanoTime() + n);
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                int next = 0; // Cards are in start order
+                long lastScan = 0;
+                while (!stop) {
+                    long tnow = System.nanoTime();
+                    while (next < cards.size() && cards.get(next).startAt <= tnow)
+                        cards.get(next++).open();
+                    long wait = 50;
+                    Delayed d = delayed.peek();
+                    if (d != null)
+                        wait = Math.max(1, Math.min(wait, (d.due - tnow) / 1000000));
+                    selector.select(wait);
+                    for (SelectionKey k : selector.selectedKeys())
+                        if (k.isValid() && k.isReadable())
+                            receive((Card) k.attachment());
+                    selector.selectedKeys().clear();
+
+                    tnow = System.nanoTime();
+                    while ((d = delayed.peek()) != null && d.due <= tnow) {
+                        delayed.poll();
+                        deliver(d.card, d.data, d.outbound);
+                    }
+                    if (tnow - lastScan > 100000000L) { // Timers, every 100ms
+                        lastScan = tnow;
+                        for (int i = 0; i < next; i++)
+                            cards.get(i).tick(tnow);
+                    }
+                }
+                for (Card c : cards)
+                    c.close(false);
+                selector.close();
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("CAT_TP simulator: Shard failed: %s", ex));
+            }
+        }
+
+        private void receive(Card c) {
+            try {
+                while (true) {
+                    buf.clear();
+                    if (c.ch.receive(buf) == null)
+                        break;
+                    buf.flip();
+                    byte[] data = new byte[buf.remaining()];
+                    buf.get(data);
+                    impair(c, data, false);
+                }
+            } catch (Exception ex) {
+                c.close(false);
+            }
+        }
+
+        /**
+         * @brief Drop, delay or pass on a packet, in either direction
+         */
+        void impair(Card c, byte[] data, boolean outbound) {
+            if (loss > 0 && rnd.nextDouble() < loss) {
+                stats.dropped++;
+                return;
+            }
+            long d = delayNanos + (jitterNanos > 0 ? (long) (rnd.nextDouble() * jitterNanos) : 0);
+            if (reorder > 0 && rnd.nextDouble() < reorder) {
+                d += delayNanos + jitterNanos + 1000000L;
+                stats.reordered++;
+            }
+            if (d <= 0)
+                deliver(c, data, outbound);
+            else
+                delayed.add(new Delayed(System.nanoTime() + d, seq++, c, data, outbound));
+        }
+
+        private void deliver(Card c, byte[] data, boolean outbound) {
+            try {
+                if (outbound) {
+                    if (c.ch != null && c.ch.isOpen())
+                        c.ch.write(ByteBuffer.wrap(data));
+                } else
+                    c.onPacket(Pdu.decode(data), System.nanoTime());
+            } catch (Exception ex) {
+                stats.errors++;
+            }
+        }
+    }
+
+    private static class Delayed implements Comparable<Delayed> {
+        final long due, seq;
+        final Card card;
+        final byte[] data;
+        final boolean outbound;
+
+        Delayed(long due, long seq, Card card, byte[] data, boolean outbound) {
+            this.due = due;
+            this.seq = seq;
+            this.card = card;
+            this.data = data;
+            this.outbound = outbound;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return due != o.due ? Long.compare(due, o.due) : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * @brief One virtual card: The client side of a CAT_TP connection
+     */
+    private class Card {
+        final Shard shard;
+        final long startAt;
+        final byte[] ident;
+        DatagramChannel ch;
+        int state = IDLE;
+        int sessionsDone = 0;
+
+        // Sending
+        int sndNxt, sndUna, peerWin = 1, peerMaxPdu;
+        final TreeMap<Integer, Sent> unacked = new TreeMap<>();
+        final ArrayDeque<byte[]> toSend = new ArrayDeque<>(); //!< Segments waiting for window space, SEG flag in [0]
+
+        // Receiving
+        int rcvCur;
+        final TreeMap<Integer, Pdu> outOfOrder = new TreeMap<>();
+        final ByteArrayOutputStream sdu = new ByteArrayOutputStream();
+
+        long synSent, openedAt, lastData;
+        boolean gotData;
+        int nextResponse = 0;
+
+        Card(Shard shard, String msisdn, long tid, long startAt) throws Exception {
+            this.shard = shard;
+            this.startAt = startAt;
+            Utils.Pair<byte[], Integer> p = Utils.makePhoneNumber(msisdn.getBytes(StandardCharsets.UTF_8));
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            Utils.writeLE(os, tid, 8);
+            os.write(p.l);
+            os.write(p.k);
+            ident = os.toByteArray();
+        }
+
+        void open() {
+            try {
+                ch = DatagramChannel.open();
+                ch.configureBlocking(false);
+                ch.connect(server);
+                ch.register(shard.selector, SelectionKey.OP_READ, this);
+            } catch (Exception ex) {
+                shard.stats.errors++;
+                state = CLOSED;
+                return;
+            }
+            int isn = 1 + shard.rnd.nextInt(30000);
+            sndNxt = isn + 1;
+            sndUna = sndNxt;
+            unacked.clear();
+            toSend.clear();
+            outOfOrder.clear();
+            sdu.reset();
+            gotData = false;
+            state = SYN_SENT;
+            synSent = lastData = System.nanoTime();
+            ByteBuffer x = ByteBuffer.allocate(5 + ident.length);
+            x.putShort((short) maxPdu).putShort((short) maxSdu).put((byte) ident.length).put(ident);
+            send(new Pdu(SYN, isn, 0, x.array(), null), true, isn);
+            shard.stats.started++;
+        }
+
+        void close(boolean reset) {
+            if (reset && state == OPEN)
+                send(new Pdu(RST, sndNxt, rcvCur, new byte[]{0}, null), false, 0);
+            if (state == OPEN)
+                shard.stats.closed++;
+            state = CLOSED;
+            try {
+                if (ch != null)
+                    ch.close();
+            } catch (Exception ex) {
+            }
+            ch = null;
+            unacked.clear();
+        }
+
+        /**
+         * @brief Send a PDU. If it needs acknowledging, keep it for retransmission
+         */
+        void send(Pdu pdu, boolean reliable, int seq) {
+            pdu.dstPort = server.getPort();
+            pdu.win = window;
+            byte[] raw = pdu.encode();
+            if (reliable)
+                unacked.put(seq, new Sent(raw, System.nanoTime()));
+            shard.stats.pdusSent++;
+            shard.impair(this, raw, true);
+        }
+
+        void onPacket(Pdu pdu, long tnow) {
+            if (pdu == null || state == CLOSED || state == IDLE) {
+                shard.stats.badPdus++;
+                return;
+            }
+            shard.stats.pdusRecvd++;
+            if ((pdu.flags & RST) != 0) {
+                shard.stats.resets++;
+                if (state == SYN_SENT)
+                    shard.stats.refused++;
+                close(false);
+                return;
+            }
+            if (state == SYN_SENT) {
+                if ((pdu.flags & (SYN | ACK)) != (SYN | ACK))
+                    return;
+                shard.stats.connectLatency.add(tnow - synSent);
+                shard.stats.opened++;
+                unacked.clear(); // The SYN
+                peerMaxPdu = pdu.extra != null && pdu.extra.length >= 2 ?
+                        ((pdu.extra[0] & 0xFF) << 8) | (pdu.extra[1] & 0xFF) : maxPdu;
+                peerMaxPdu = Math.max(HEADER_LEN + 1, Math.min(peerMaxPdu, maxPdu));
+                peerWin = Math.max(1, pdu.win);
+                rcvCur = pdu.seq;
+                state = OPEN;
+                openedAt = lastData = tnow;
+                sendAck();
+                return;
+            }
+            // Acknowledgements of what we sent
+            if ((pdu.flags & (ACK | EACK)) != 0) {
+                peerWin = Math.max(1, pdu.win);
+                for (Iterator<Map.Entry<Integer, Sent>> it = unacked.headMap(pdu.ack, true).entrySet().iterator(); it.hasNext(); ) {
+                    acked(it.next().getValue(), tnow);
+                    it.remove();
+                }
+                if (pdu.ack + 1 > sndUna)
+                    sndUna = pdu.ack + 1;
+                if ((pdu.flags & EACK) != 0 && pdu.extra != null)
+                    for (int i = 0; i + 1 < pdu.extra.length; i += 2) {
+                        Sent s = unacked.remove(((pdu.extra[i] & 0xFF) << 8) | (pdu.extra[i + 1] & 0xFF));
+                        if (s != null)
+                            acked(s, tnow);
+                    }
+            }
+            boolean hasData = pdu.data != null && pdu.data.length > 0;
+            if (hasData || (pdu.flags & NUL) != 0) {
+                if (pdu.seq > rcvCur && pdu.seq <= rcvCur + window)
+                    outOfOrder.put(pdu.seq, pdu);
+                Pdu p;
+                while ((p = outOfOrder.remove(rcvCur + 1)) != null) {
+                    rcvCur++;
+                    if (p.data != null && p.data.length > 0) {
+                        sdu.write(p.data, 0, p.data.length);
+                        if ((p.flags & SEG) == 0)
+                            sduReceived(tnow);
+                    }
+                }
+                sendAck();
+            }
+            pump();
+        }
+
+        private void acked(Sent s, long tnow) {
+            if (s.retries == 0)
+                shard.stats.ackLatency.add(tnow - s.firstSent);
+        }
+
+        private void sduReceived(long tnow) {
+            shard.stats.sdusRecvd++;
+            if (!gotData) {
+                gotData = true;
+                shard.stats.firstDataLatency.add(tnow - openedAt);
+            }
+            lastData = tnow;
+            sdu.reset();
+            // Answer with the next scripted response, segmented to fit the server's PDU size
+            byte[] resp = responses.get(nextResponse++ % responses.size());
+            int room = peerMaxPdu - HEADER_LEN;
+            for (int i = 0; i < resp.length; i += room) {
+                int n = Math.min(room, resp.length - i);
+                byte[] seg = new byte[n + 1];
+                seg[0] = (byte) (i + n < resp.length ? SEG : 0);
+                System.arraycopy(resp, i, seg, 1, n);
+                toSend.add(seg);
+            }
+        }
+
+        /**
+         * @brief Send queued segments while the server's window allows
+         */
+        private void pump() {
+            byte[] seg;
+            while (state == OPEN && sndNxt < sndUna + peerWin && (seg = toSend.poll()) != null) {
+                int seq = sndNxt++;
+                send(new Pdu(ACK | seg[0], seq, rcvCur, null, Arrays.copyOfRange(seg, 1, seg.length)), true, seq);
+                shard.stats.sdusSent += seg[0] == 0 ? 1 : 0;
+            }
+        }
+
+        /**
+         * @brief ACK what we have, or EACK if we are holding PDUs out of order
+         */
+        private void sendAck() {
+            byte[] eack = null;
+            if (!outOfOrder.isEmpty()) {
+                int n = Math.min(outOfOrder.size(), (peerMaxPdu - HEADER_LEN) / 2);
+                ByteBuffer b = ByteBuffer.allocate(2 * n);
+                for (Integer s : outOfOrder.keySet())
+                    if (b.hasRemaining())
+                        b.putShort((short) (int) s);
+                eack = b.array();
+            }
+            if (toSend.isEmpty() || sndNxt >= sndUna + peerWin || eack != null)
+                send(new Pdu(eack != null ? EACK : ACK, sndNxt, rcvCur, eack, null), false, 0);
+        }
+
+        void tick(long tnow) {
+            if (state == CLOSED) {
+                if ((sessions <= 0 || ++sessionsDone < sessions) && !stop) {
+                    state = IDLE;
+                    open(); // Again
+                } else
+                    state = -1; // Done
+                return;
+            }
+            if (state != OPEN && state != SYN_SENT)
+                return;
+            for (Map.Entry<Integer, Sent> e : unacked.entrySet()) {
+                Sent s = e.getValue();
+                if (tnow - s.lastSent < RTO_NANOS << Math.min(s.retries, 4))
+                    continue;
+                if (++s.retries > MAX_RETRIES) {
+                    shard.stats.timeouts++;
+                    if (state == SYN_SENT)
+                        shard.stats.refused++;
+                    close(true);
+                    return;
+                }
+                s.lastSent = tnow;
+                shard.stats.retransmits++;
+                shard.impair(this, s.raw, true);
+            }
+            if (state == OPEN && unacked.isEmpty() && toSend.isEmpty() && tnow - lastData > idleNanos)
+                close(true);
+        }
+    }
+
+    private static class Sent {
+        final byte[] raw;
+        final long firstSent;
+        long lastSent;
+        int retries = 0;
+
+        Sent(byte[] raw, long t) {
+            this.raw = raw;
+            firstSent = lastSent = t;
+        }
+    }
+
+    /**
+     * @brief A CAT_TP PDU, as in Sec. 5.6.2 of ETSI TS 102 127
+     */
+    private static class Pdu {
+        int flags, srcPort = CARD_PORT, dstPort, seq, ack, win;
+        byte[] extra, data;
+
+        Pdu() {
+        }
+
+        Pdu(int flags, int seq, int ack, byte[] extra, byte[] data) {
+            this.flags = flags;
+            this.seq = seq;
+            this.ack = ack;
+            this.extra = extra;
+            this.data = data;
+        }
+
+        byte[] encode() {
+            int elen = extra != null ? extra.length : 0, dlen = data != null ? data.length : 0;
+            ByteBuffer b = ByteBuffer.allocate(HEADER_LEN + elen + dlen);
+            b.put((byte) (flags | VERSION)).putShort((short) 0).put((byte) (HEADER_LEN + elen))
+                    .putShort((short) srcPort).putShort((short) dstPort).putShort((short) dlen)
+                    .putShort((short) seq).putShort((short) ack).putShort((short) win)
+                    .putShort((short) 0);
+            if (elen > 0)
+                b.put(extra);
+            if (dlen > 0)
+                b.put(data);
+            byte[] out = b.array();
+            int cksum = checksum(out);
+            out[16] = (byte) cksum;
+            out[17] = (byte) (cksum >> 8);
+            return out;
+        }
+
+        static Pdu decode(byte[] in) {
+            if (in.length < HEADER_LEN || checksum(in) != 0)
+                return null;
+            ByteBuffer b = ByteBuffer.wrap(in);
+            Pdu p = new Pdu();
+            p.flags = b.get(0) & 0xFC;
+            int hlen = b.get(3) & 0xFF;
+            p.srcPort = b.getShort(4) & 0xFFFF;
+            p.dstPort = b.getShort(6) & 0xFFFF;
+            int dlen = b.getShort(8) & 0xFFFF;
+            p.seq = b.getShort(10) & 0xFFFF;
+            p.ack = b.getShort(12) & 0xFFFF;
+            p.win = b.getShort(14) & 0xFFFF;
+            if (hlen < HEADER_LEN || hlen + dlen > in.length)
+                return null;
+            p.extra = Arrays.copyOfRange(in, HEADER_LEN, hlen);
+            p.data = Arrays.copyOfRange(in, hlen, hlen + dlen);
+            return p;
+        }
+
+        static int checksum(byte[] in) {
+            long sum = 0;
+            int i = 0;
+            for (; i + 1 < in.length; i += 2) {
+                sum += (in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8);
+                sum = (sum & 0xFFFF) + (sum >> 16);
+            }
+            if (i < in.length) {
+                sum += in[i] & 0xFF;
+                sum = (sum & 0xFFFF) + (sum >> 16);
+            }
+            return (int) (~sum & 0xFFFF);
+        }
+    }
+
+    /**
+     * @brief Counters and latency samples. Each shard has its own; they are merged for reporting.
+     */
+    private static class Stats {
+        long started, opened, closed, refused, resets, timeouts, retransmits, dropped, reordered, errors, badPdus;
+        long pdusSent, pdusRecvd, sdusRecvd, sdusSent;
+        Samples connectLatency = new Samples(), firstDataLatency = new Samples(), ackLatency = new Samples();
+
+        static Stats merge(Shard[] shards) {
+            Stats t = new Stats();
+            for (Shard s : shards) {
+                Stats x = s.stats; // Read racily: These are progress figures
+                t.started += x.started;
+                t.opened += x.opened;
+                t.closed += x.closed;
+                t.refused += x.refused;
+                t.resets += x.resets;
+                t.timeouts += x.timeouts;
+                t.retransmits += x.retransmits;
+                t.dropped += x.dropped;
+                t.reordered += x.reordered;
+                t.errors += x.errors;
+                t.badPdus += x.badPdus;
+                t.pdusSent += x.pdusSent;
+                t.pdusRecvd += x.pdusRecvd;
+                t.sdusRecvd += x.sdusRecvd;
+                t.sdusSent += x.sdusSent;
+                t.connectLatency.addAll(x.connectLatency);
+                t.firstDataLatency.addAll(x.firstDataLatency);
+                t.ackLatency.addAll(x.ackLatency);
+            }
+            return t;
+        }
+
+        String progress() {
+            return String.format("started=%d open=%d closed=%d refused=%d resets=%d timeouts=%d pdus(tx/rx)=%d/%d " +
+                            "sdus(rx/tx)=%d/%d retx=%d dropped=%d",
+                    started, opened - closed, closed, refused, resets, timeouts, pdusSent, pdusRecvd,
+                    sdusRecvd, sdusSent, retransmits, dropped);
+        }
+
+        String summary() {
+            return progress() + String.format("%nreordered=%d errors=%d bad_pdus=%d%n", reordered, errors, badPdus) +
+                    connectLatency.describe("connect (SYN to SYN+ACK)") +
+                    firstDataLatency.describe("first SDU after open") +
+                    ackLatency.describe("data PDU acknowledged");
+        }
+    }
+
+    /**
+     * @brief Latency samples in nanoseconds
+     */
+    static class Samples {
+        long[] v = new long[64];
+        int n = 0;
+
+        void add(long x) {
+            if (n == v.length)
+                v = Arrays.copyOf(v, n * 2);
+            v[n++] = x;
+        }
+
+        void addAll(Samples s) {
+            long[] x = s.v;
+            int m = Math.min(s.n, x.length);
+            for (int i = 0; i < m; i++)
+                add(x[i]);
+        }
+
+        String describe(String what) {
+            if (n == 0)
+                return String.format("%-28s: no samples%n", what);
+            long[] x = Arrays.copyOf(v, n);
+            Arrays.sort(x);
+            return String.format("%-28s: n=%d p50=%.1fms p90=%.1fms p99=%.1fms p99.9=%.1fms max=%.1fms%n", what, n,
+                    pct(x, 50), pct(x, 90), pct(x, 99), pct(x, 99.9), x[n - 1] / 1e6);
+        }
+
+        private static double pct(long[] x, double p) {
+            int i = (int) Math.ceil(p / 100.0 * x.length) - 1;
+            return x[Math.max(0, Math.min(x.length - 1, i))] / 1e6;
+        }
+    }
+}
+
+/**
+ * @}
+ */
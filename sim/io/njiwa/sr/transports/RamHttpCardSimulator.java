@@ -0,0 +1,858 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.Utils;
+import io.njiwa.sr.ota.Ota;
+import org.bouncycastle.tls.*;
+import org.bouncycastle.tls.crypto.TlsCrypto;
+import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.net.InetSocketAddress;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.SecureRandom;
+import java.util.*;
+import java.util.logging.Level;
+
+/**
+ * @addtogroup g_transports
+ * @{
+ */
+
+/**
+ * @brief A standalone SCP81 (RAM over HTTP) card simulator, for load testing the RAM HTTP transport without real cards.
+ * @details Each virtual card connects to the admin port, runs the PSK-TLS handshake with an SGP.02 style PSK identity,
+ * then speaks the GPC Amd B admin protocol: It POSTs to the polling URI, executes each command script it is sent by
+ * answering its C-APDUs with scripted R-APDUs, and POSTs the results to the X-Admin-Next-URI it was given, until the
+ * server answers 204 (No Content). Delay is applied to the byte stream in both directions, to mimic the bearer.
+ * Cards are driven from a few selector threads, so thousands of sessions can be run from one process.
+ * <p>
+ * Run it with key=value arguments, e.g.
+ * <pre>
+ *   gradle ramHttpSim -PsimArgs="server=10.0.0.1:5443 cards=5000 eid=89001012012341234012345678901224 delay=300"
+ * </pre>
+ * Arguments (defaults in brackets):
+ * - server: host:port of the RAM HTTP admin port [127.0.0.1:5443]
+ * - cards: Number of virtual cards [100]
+ * - eid: First EID. Card n uses eid+n. For the server to accept the handshake these must be known eUICCs.
+ * [89001012012341234012345678901224]
+ * - aid: ISD-R AID, put in the PSK identity and X-Admin-From [A0000005591010FFFFFFFF8900000100]
+ * - key: PSK, hex coded, used by all cards [00112233445566778899AABBCCDDEEFF]
+ * - keys: File with "eid key" per line, for cards whose PSK differs from the above
+ * - keyversion, keyindex: SCP81 key version and index, put in the PSK identity [0x40, 1]
+ * - uri: The polling URI [/polling]
+ * - threads: Selector threads [1]
+ * - ramp: New sessions per second [100]
+ * - duration: Seconds to run for [60]
+ * - sessions: Sessions per card, 0 to reconnect until the end [1]
+ * - pause: Seconds between a card's sessions [0]
+ * - timeout: Seconds without progress after which a session is abandoned [60]
+ * - delay: One-way bearer delay in milliseconds [0]
+ * - jitter: Random extra delay, up to this many milliseconds [0]
+ * - exec: Milliseconds the card takes to execute each C-APDU [0]
+ * - responses: File with one hex-coded R-APDU per line, used in turn. Default is a bare 9000 status word.
+ * - serverpid: PID of the server JVM. If given (and on the same host), its CPU, memory, threads and open files
+ * are sampled from /proc with each report.
+ * - report: Seconds between progress reports [10]
+ * - log: Level for the shared logger [WARNING]
+ * <p>
+ * At the end it prints session counts, the handshake rate and the latency distribution for TCP connect, the TLS
+ * handshake, each HTTP exchange (request sent to response received, which includes the bearer delay) and whole
+ * sessions, followed by the server resource usage, if sampled.
+ */
+public class RamHttpCardSimulator {
+    private static final int C_APDU_TAG = 0x22;
+    private static final int MAX_HTTP_RESPONSE_LEN = 1024 * 1024;
+    private static final String RESPONSE_CONTENT_TYPE =
+            "application/vnd.globalplatform.card-content-mgt-response;version=1.0";
+    private static final int[] CIPHER_SUITES = {CipherSuite.TLS_PSK_WITH_AES_128_GCM_SHA256,
+            CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA256, CipherSuite.TLS_PSK_WITH_AES_128_CBC_SHA};
+
+    private static final int IDLE = 0, CONNECTING = 1, HANDSHAKE = 2, OPEN = 3, CLOSING = 4, CLOSED = 5, DONE = 6;
+
+    private final Map<String, String> args;
+    private final InetSocketAddress server;
+    private final List<byte[]> responses = new ArrayList<>();
+    private final Map<String, byte[]> keys = new HashMap<>();
+    private final byte[] defaultKey;
+    private final String aid, uri;
+    private final int keyVersion, keyIndex, sessions;
+    private final long delayNanos, jitterNanos, execNanos, pauseNanos, timeoutNanos;
+    private volatile boolean stop = false;
+
+    private RamHttpCardSimulator(Map<String, String> args) throws Exception {
+        this.args = args;
+        String[] hp = arg("server", "127.0.0.1:5443").split(":");
+        server = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+        aid = arg("aid", "A0000005591010FFFFFFFF8900000100").toUpperCase();
+        uri = arg("uri", "/polling");
+        defaultKey = Utils.HEX.h2b(arg("key", "00112233445566778899AABBCCDDEEFF"));
+        keyVersion = Integer.decode(arg("keyversion", "0x40"));
+        keyIndex = Integer.decode(arg("keyindex", "1"));
+        sessions = Integer.parseInt(arg("sessions", "1"));
+        delayNanos = Long.parseLong(arg("delay", "0")) * 1000000L;
+        jitterNanos = Long.parseLong(arg("jitter", "0")) * 1000000L;
+        execNanos = Long.parseLong(arg("exec", "0")) * 1000000L;
+        pauseNanos = Long.parseLong(arg("pause", "0")) * 1000000000L;
+        timeoutNanos = Long.parseLong(arg("timeout", "60")) * 1000000000L;
+        String rfile = args.get("responses");
+        if (rfile != null)
+            for (String l : Files.readAllLines(Paths.get(rfile), StandardCharsets.UTF_8))
+                if (!(l = l.trim()).isEmpty() && !l.startsWith("#"))
+                    responses.add(Utils.HEX.h2b(l));
+        if (responses.isEmpty())
+            responses.add(new byte[]{(byte) 0x90, 0x00});
+        String kfile = args.get("keys");
+        if (kfile != null)
+            for (String l : Files.readAllLines(Paths.get(kfile), StandardCharsets.UTF_8)) {
+                String[] xl = l.trim().split("\\s+");
+                if (xl.length == 2 && !xl[0].startsWith("#"))
+                    keys.put(xl[0].toUpperCase(), Utils.HEX.h2b(xl[1]));
+            }
+    }
+
+    private String arg(String key, String def) {
+        String v = args.get(key);
+        return v != null ? v : def;
+    }
+
+    public static void main(String[] argv) throws Exception {
+        Map<String, String> args = new HashMap<>();
+        for (String a : argv) {
+            int i = a.indexOf('=');
+            if (i > 0)
+                args.put(a.substring(0, i).trim().toLowerCase(), a.substring(i + 1).trim());
+        }
+        new RamHttpCardSimulator(args).run();
+    }
+
+    private void run() throws Exception {
+        Utils.lg.setLevel(Level.parse(arg("log", "WARNING").toUpperCase())); // Every HTTP message is logged at INFO
+        int ncards = Integer.parseInt(arg("cards", "100"));
+        int nthreads = Math.max(1, Integer.parseInt(arg("threads", "1")));
+        BigInteger eid = new BigInteger(arg("eid", "89001012012341234012345678901224"), 16);
+        double ramp = Math.max(0.001, Double.parseDouble(arg("ramp", "100")));
+        long duration = Long.parseLong(arg("duration", "60")) * 1000;
+        long reportEvery = Math.max(1, Long.parseLong(arg("report", "10"))) * 1000;
+        String pid = args.get("serverpid");
+        ServerProbe probe = pid != null ? new ServerProbe(pid) : null;
+
+        Shard[] shards = new Shard[nthreads];
+        for (int i = 0; i < nthreads; i++)
+            shards[i] = new Shard(i);
+        long t0 = System.nanoTime();
+        for (int i = 0; i < ncards; i++) {
+            long startAt = t0 + (long) (i * 1e9 / ramp);
+            String xeid = String.format("%032X", eid.add(BigInteger.valueOf(i)));
+            shards[i % nthreads].cards.add(new Card(shards[i % nthreads], xeid, startAt));
+        }
+        Thread[] threads = new Thread[nthreads];
+        for (int i = 0; i < nthreads; i++) {
+            threads[i] = new Thread(shards[i], "ramhttp-sim-" + i);
+            threads[i].start();
+        }
+        System.out.printf("RAM HTTP simulator: %d cards on %d threads against %s, delay %dms+%dms, exec %dms/APDU%n",
+                ncards, nthreads, server, delayNanos / 1000000, jitterNanos / 1000000, execNanos / 1000000);
+
+        long tend = System.currentTimeMillis() + duration;
+        long tnow, lastReport = System.currentTimeMillis(), lastHandshakes = 0;
+        if (probe != null)
+            probe.sample();
+        while ((tnow = System.currentTimeMillis()) < tend) {
+            Thread.sleep(Math.min(reportEvery, tend - tnow));
+            Stats s = Stats.merge(shards);
+            long t = System.currentTimeMillis();
+            double rate = (s.handshakes - lastHandshakes) * 1000.0 / Math.max(1, t - lastReport);
+            lastReport = t;
+            lastHandshakes = s.handshakes;
+            System.out.println(s.progress() + String.format(" handshakes/s=%.1f", rate) +
+                    (probe != null ? " | server " + probe.sample() : ""));
+        }
+        stop = true;
+        for (Thread t : threads)
+            t.join(5000);
+        Stats s = Stats.merge(shards);
+        System.out.println(s.summary(duration));
+        if (probe != null)
+            System.out.println(probe.summary());
+    }
+
+    /**
+     * @brief A thread's worth of cards, all on one selector. Stream data being delayed waits in a queue ordered by due
+     * time.
+     */
+    private class Shard implements Runnable {
+        final List<Card> cards = new ArrayList<>();
+        final Stats stats = new Stats();
+        final Random rnd = new Random();
+        final PriorityQueue<Delayed> delayed = new PriorityQueue<>();
+        final ByteBuffer buf = ByteBuffer.allocate(16 * 1024);
+        final TlsCrypto crypto = new BcTlsCrypto(new SecureRandom());
+        Selector selector;
+        long seq = 0; //!< Tie breaker for the delay queue, so equal due times keep their order
+
+        Shard(int n) {
+            rnd.setSeed(System.nanoTime() + n);
+        }
+
+        @Override
+        public void run() {
+            try {
+                selector = Selector.open();
+                int next = 0; // Cards are in start order
+                long lastScan = 0;
+                while (!stop) {
+                    long tnow = System.nanoTime();
+                    while (next < cards.size() && cards.get(next).startAt <= tnow)
+                        cards.get(next++).open();
+                    long wait = 50;
+                    Delayed d = delayed.peek();
+                    if (d != null)
+                        wait = Math.max(1, Math.min(wait, (d.due - tnow) / 1000000));
+                    selector.select(wait);
+                    for (SelectionKey k : selector.selectedKeys()) {
+                        Card c = (Card) k.attachment();
+                        if (!k.isValid())
+                            continue;
+                        if (k.isConnectable())
+                            c.connected();
+                        else if (k.isReadable())
+                            receive(c);
+                        if (k.isValid() && k.isWritable())
+                            c.writePending();
+                    }
+                    selector.selectedKeys().clear();
+
+                    tnow = System.nanoTime();
+                    while ((d = delayed.peek()) != null && d.due <= tnow) {
+                        delayed.poll();
+                        deliver(d);
+                    }
+                    if (tnow - lastScan > 100000000L) { // Timers, every 100ms
+                        lastScan = tnow;
+                        for (int i = 0; i < next; i++)
+                            cards.get(i).tick(tnow);
+                    }
+                }
+                for (Card c : cards)
+                    c.close();
+                selector.close();
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("RAM HTTP simulator: Shard failed: %s", ex));
+            }
+        }
+
+        private void receive(Card c) {
+            try {
+                int n;
+                // clear() through Buffer: Built on JDK 9+, buf.clear() would link to ByteBuffer.clear(), which Java 8
+                // does not have
+                ((Buffer) buf).clear();
+                while ((n = c.ch.read(buf)) > 0) {
+                    delay(c, Arrays.copyOf(buf.array(), n), false, false);
+                    ((Buffer) buf).clear();
+                }
+                if (n < 0) {
+                    c.key.interestOps(0);
+                    delay(c, null, false, true); // EOF, after whatever is still on its way
+                }
+            } catch (Exception ex) {
+                c.fail();
+            }
+        }
+
+        /**
+         * @brief Pass on stream data (or a close), in either direction, after the bearer delay. A card's data keeps
+         * its order in each direction, as over TCP.
+         */
+        void delay(Card c, byte[] data, boolean outbound, boolean eof) {
+            long d = delayNanos + (jitterNanos > 0 ? (long) (rnd.nextDouble() * jitterNanos) : 0);
+            if (d <= 0 && (outbound ? c.outDue : c.inDue) == 0) {
+                deliver(new Delayed(0, 0, c, c.session, data, outbound, eof));
+                return;
+            }
+            long due = System.nanoTime() + d;
+            if (outbound)
+                due = c.outDue = Math.max(due, c.outDue);
+            else
+                due = c.inDue = Math.max(due, c.inDue);
+            delayed.add(new Delayed(due, seq++, c, c.session, data, outbound, eof));
+        }
+
+        /**
+         * @brief Have a card do something after a while, e.g. answer once it has executed a script
+         */
+        void later(Card c, long nanos, Action action) {
+            delayed.add(new Delayed(System.nanoTime() + nanos, seq++, c, c.session, action));
+        }
+
+        private void deliver(Delayed d) {
+            Card c = d.card;
+            if (d.session != c.session)
+                return; // Left over from an earlier session
+            if (d.action != null) {
+                try {
+                    if (c.state == OPEN)
+                        d.action.run();
+                } catch (Exception ex) {
+                    c.fail();
+                }
+                return;
+            }
+            if (d.outbound ? d.due == c.outDue : d.due == c.inDue) {
+                if (d.outbound)
+                    c.outDue = 0;
+                else
+                    c.inDue = 0;
+            }
+            try {
+                if (d.outbound) {
+                    if (d.eof)
+                        c.close();
+                    else
+                        c.write(d.data);
+                } else if (d.eof)
+                    c.peerClosed();
+                else
+                    c.onInput(d.data, System.nanoTime());
+            } catch (Exception ex) {
+                c.fail();
+            }
+        }
+    }
+
+    private interface Action {
+        void run() throws Exception;
+    }
+
+    private static class Delayed implements Comparable<Delayed> {
+        final long due, seq;
+        final Card card;
+        final int session;
+        final byte[] data;
+        final boolean outbound, eof;
+        final Action action; //!< Or, something the card does later
+
+        Delayed(long due, long seq, Card card, int session, byte[] data, boolean outbound, boolean eof) {
+            this.due = due;
+            this.seq = seq;
+            this.card = card;
+            this.session = session;
+            this.data = data;
+            this.outbound = outbound;
+            this.eof = eof;
+            this.action = null;
+        }
+
+        Delayed(long due, long seq, Card card, int session, Action action) {
+            this.due = due;
+            this.seq = seq;
+            this.card = card;
+            this.session = session;
+            this.data = null;
+            this.outbound = this.eof = false;
+            this.action = action;
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            return due != o.due ? Long.compare(due, o.due) : Long.compare(seq, o.seq);
+        }
+    }
+
+    /**
+     * @brief One virtual card: The client side of an SCP81 admin session
+     */
+    private class Card {
+        final Shard shard;
+        final String eid;
+        final byte[] pskId, psk;
+        final String xAdminFrom;
+        long startAt;
+        SocketChannel ch;
+        SelectionKey key;
+        TlsClientProtocol tls;
+        Utils.Http.Parser<Utils.Http.Response> parser;
+        final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>();
+        int state = IDLE;
+        int session = 0; //!< Bumped with each session, so data delayed from an earlier one is dropped
+        int sessionsDone = 0;
+        int nextResponse = 0;
+        boolean handshakeDone;
+        long outDue, inDue; //!< Due time of the last data queued in each direction
+        long sessionStart, connectedAt, requestSent, lastProgress;
+
+        Card(Shard shard, String eid, long startAt) throws Exception {
+            this.shard = shard;
+            this.eid = eid;
+            this.startAt = startAt;
+            byte[] xaid = Utils.HEX.h2b(aid);
+            ByteArrayOutputStream os = new ByteArrayOutputStream(); // See Table 4 of SGP.02 v4.1, and RamHttp
+            Utils.BER.appendTLV(os, (short) 0x80, new byte[]{0x02});
+            Utils.BER.appendTLV(os, (short) 0x81, Utils.HEX.h2b(eid));
+            Utils.BER.appendTLV(os, (short) 0x4F, xaid);
+            Utils.BER.appendTLV(os, (short) 0x82, new byte[]{(byte) keyIndex});
+            Utils.BER.appendTLV(os, (short) 0x83, new byte[]{(byte) keyVersion});
+            pskId = Utils.HEX.b2H(os.toByteArray()).getBytes(StandardCharsets.UTF_8);
+            byte[] k = keys.get(eid);
+            psk = k != null ? k : defaultKey;
+            xAdminFrom = String.format("//se-id/eid/%s;//aa-id/aid/%s", eid, Utils.ramHTTPPartIDfromAID(aid));
+        }
+
+        void open() {
+            session++;
+            outDue = inDue = 0;
+            pendingOutput.clear();
+            handshakeDone = false;
+            parser = Utils.Http.Parser.forResponses(MAX_HTTP_RESPONSE_LEN);
+            sessionStart = lastProgress = System.nanoTime();
+            shard.stats.started++;
+            state = CONNECTING;
+            try {
+                ch = SocketChannel.open();
+                ch.configureBlocking(false);
+                if (ch.connect(server)) {
+                    key = ch.register(shard.selector, 0, this);
+                    connected();
+                } else
+                    key = ch.register(shard.selector, SelectionKey.OP_CONNECT, this);
+            } catch (Exception ex) {
+                shard.stats.connectFailures++;
+                fail();
+            }
+        }
+
+        void connected() {
+            try {
+                if (!ch.finishConnect())
+                    return;
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (Exception ex) {
+                shard.stats.connectFailures++;
+                fail();
+                return;
+            }
+            long tnow = System.nanoTime();
+            shard.stats.connectLatency.add(tnow - sessionStart);
+            connectedAt = lastProgress = tnow;
+            state = HANDSHAKE;
+            try {
+                tls = new TlsClientProtocol(); // Non-blocking
+                tls.connect(new PSKTlsClient(shard.crypto, new BasicTlsPSKIdentity(pskId, psk.clone())) {
+                    @Override
+                    protected int[] getSupportedCipherSuites() {
+                        return CIPHER_SUITES;
+                    }
+
+                    @Override
+                    protected ProtocolVersion[] getSupportedVersions() {
+                        return ProtocolVersion.TLSv12.only();
+                    }
+
+                    @Override
+                    public void notifyHandshakeComplete() throws IOException {
+                        super.notifyHandshakeComplete();
+                        handshakeDone = true;
+                    }
+                });
+                flushTls();
+            } catch (Exception ex) {
+                shard.stats.handshakeFailures++;
+                fail();
+            }
+        }
+
+        /**
+         * @brief Input from the server, after the bearer delay
+         */
+        void onInput(byte[] data, long tnow) throws Exception {
+            if (state != HANDSHAKE && state != OPEN)
+                return;
+            try {
+                tls.offerInput(data);
+            } catch (IOException ex) {
+                if (state == HANDSHAKE)
+                    shard.stats.handshakeFailures++;
+                throw ex;
+            }
+            flushTls();
+            lastProgress = tnow;
+            if (state == HANDSHAKE && handshakeDone) {
+                state = OPEN;
+                shard.stats.handshakes++;
+                shard.stats.handshakeLatency.add(tnow - connectedAt);
+                sendRequest(uri, null, null); // Sec 3.2 of GPC Amd B: Open the session by asking for work
+            }
+            int avail;
+            byte[] buf = shard.buf.array();
+            while ((avail = tls.getAvailableInputBytes()) > 0) {
+                int n = tls.readInput(buf, 0, Math.min(avail, buf.length));
+                parser.feed(buf, 0, n);
+            }
+            Utils.Http.Response resp;
+            while (state == OPEN && (resp = parser.next()) != null)
+                onResponse(resp, tnow);
+            if (tls.isClosed() && state == OPEN)
+                endSession(true);
+        }
+
+        private void onResponse(Utils.Http.Response resp, long tnow) throws Exception {
+            shard.stats.exchangeLatency.add(tnow - requestSent);
+            int code = resp.status != null ? resp.status.getStatusCode() : 0;
+            if (code != 200 || resp.body == null || resp.body.length == 0) {
+                if (code != 204)
+                    shard.stats.httpErrors++;
+                endSession(code == 204); // Nothing more for us
+                return;
+            }
+            shard.stats.scripts++;
+            Utils.Pair<byte[], Integer> res = execute(resp.body);
+            String next = resp.headers.get(Utils.Http.X_ADMIN_NEXT_URI);
+            if (next == null)
+                next = uri;
+            if (res == null) {
+                shard.stats.badScripts++;
+                sendRequest(next, "unknown-application", null); // As good a status as any for a script we can't read
+            } else if (execNanos > 0) { // Reply once the card has had time to run the commands
+                final String xnext = next;
+                shard.later(this, execNanos * Math.max(1, res.l), () -> sendRequest(xnext, "ok", res.k));
+            } else
+                sendRequest(next, "ok", res.k);
+        }
+
+        /**
+         * @param script
+         * @return the response scripting template and the number of C-APDUs, or null if the script is malformed
+         * @brief Run a command script (Sec 5.2 of ETSI TS 102 226, expanded format): Answer each C-APDU with the next
+         * scripted R-APDU, stopping at the first that reports an error, as a card would.
+         */
+        private Utils.Pair<byte[], Integer> execute(byte[] script) {
+            try {
+                int i = 0, end = script.length;
+                int tag = script[i++] & 0xFF;
+                if (tag == Ota.Command_Scripting_Template_for_Indefinite_Length_Tag) {
+                    if ((script[i++] & 0xFF) != 0x80)
+                        return null;
+                    end -= 2; // Ends with 00 00
+                } else if (tag == Ota.Command_Scripting_Template_Tag) {
+                    int[] l = berLength(script, i);
+                    i = l[1];
+                    end = Math.min(end, i + l[0]);
+                } else
+                    return null;
+                ByteArrayOutputStream rapdus = new ByteArrayOutputStream();
+                int executed = 0, capdus = 0;
+                boolean failed = false;
+                while (i < end) {
+                    tag = script[i++] & 0xFF;
+                    int[] l = berLength(script, i);
+                    i = l[1] + l[0];
+                    if (tag != C_APDU_TAG)
+                        continue; // Script chaining, immediate action, error action: Nothing to do here.
+                    capdus++;
+                    if (failed)
+                        continue;
+                    byte[] r = responses.get(nextResponse++ % responses.size());
+                    Utils.BER.appendTLV(rapdus, Ota.R_APDU_TAG, r);
+                    executed++;
+                    int sw1 = r.length >= 2 ? r[r.length - 2] & 0xFF : 0;
+                    failed = sw1 != 0x90 && sw1 != 0x91 && sw1 != 0x61;
+                }
+                if (i > end)
+                    return null;
+                shard.stats.apdus += executed;
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                Utils.BER.appendTLV(os, Ota.Number_of_Executed_C_APDUS_Tag, new byte[]{(byte) executed});
+                rapdus.writeTo(os);
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                Utils.BER.appendTLV(out, Ota.Response_Scripting_Template_Definite_Length_Tag,
+                        os.toByteArray());
+                return new Utils.Pair<>(out.toByteArray(), capdus);
+            } catch (Exception ex) {
+                return null;
+            }
+        }
+
+        /**
+         * @return {length, offset of the value}
+         */
+        private int[] berLength(byte[] in, int i) {
+            int b = in[i++] & 0xFF;
+            if (b < 0x80)
+                return new int[]{b, i};
+            int n = b & 0x7F, len = 0;
+            if (n > 3)
+                throw new IllegalArgumentException("BER length too long");
+            while (n-- > 0)
+                len = (len << 8) | (in[i++] & 0xFF);
+            return new int[]{len, i};
+        }
+
+        /**
+         * @brief POST to the server: Either to ask for work, or with the result of a script
+         */
+        private void sendRequest(String to, String scriptStatus, byte[] body) throws Exception {
+            Map<String, String> hdrs = new HashMap<>();
+            hdrs.put("Host", server.getHostString());
+            hdrs.put(Utils.Http.X_ADMIN_PROTOCOL, "globalplatform-remote-admin/1.0");
+            hdrs.put(Utils.Http.X_ADMIN_FROM, xAdminFrom);
+            if (scriptStatus != null)
+                hdrs.put(Utils.Http.X_ADMIN_SCRIPT_STATUS, scriptStatus);
+            Utils.Http.Request req = new Utils.Http.Request(Utils.Http.Method.POST, to, hdrs,
+                    body != null ? body : new byte[0], false, body != null ? RESPONSE_CONTENT_TYPE : null);
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            req.outputMessage(os);
+            byte[] xout = os.toByteArray();
+            tls.writeApplicationData(xout, 0, xout.length);
+            flushTls();
+            requestSent = System.nanoTime();
+            shard.stats.requests++;
+        }
+
+        private void flushTls() {
+            int avail = tls.getAvailableOutputBytes();
+            if (avail <= 0)
+                return;
+            byte[] out = new byte[avail];
+            tls.readOutput(out, 0, avail);
+            shard.delay(this, out, true, false);
+        }
+
+        /**
+         * @brief Output to the server, after the bearer delay
+         */
+        void write(byte[] data) throws IOException {
+            if (ch == null || !ch.isOpen())
+                return;
+            ByteBuffer bb = ByteBuffer.wrap(data);
+            if (pendingOutput.isEmpty())
+                ch.write(bb);
+            if (bb.hasRemaining()) {
+                pendingOutput.add(bb);
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+
+        void writePending() {
+            try {
+                ByteBuffer bb;
+                while ((bb = pendingOutput.peek()) != null) {
+                    ch.write(bb);
+                    if (bb.hasRemaining())
+                        return;
+                    pendingOutput.poll();
+                }
+                key.interestOps(SelectionKey.OP_READ);
+            } catch (Exception ex) {
+                fail();
+            }
+        }
+
+        void peerClosed() {
+            if (state == OPEN || state == HANDSHAKE) {
+                if (state == HANDSHAKE)
+                    shard.stats.handshakeFailures++;
+                endSession(false);
+            }
+        }
+
+        /**
+         * @brief The session is over: Say goodbye (close_notify), then close the socket once that has gone out.
+         */
+        void endSession(boolean ok) {
+            if (state != OPEN && state != HANDSHAKE)
+                return;
+            long tnow = System.nanoTime();
+            if (ok) {
+                shard.stats.sessionsOk++;
+                shard.stats.sessionLatency.add(tnow - sessionStart);
+            } else
+                shard.stats.sessionsFailed++;
+            state = CLOSING;
+            try {
+                tls.close();
+                flushTls();
+            } catch (Exception ex) {
+            }
+            shard.delay(this, null, true, true);
+        }
+
+        void fail() {
+            if (state == CONNECTING || state == HANDSHAKE || state == OPEN)
+                shard.stats.sessionsFailed++;
+            close();
+        }
+
+        void close() {
+            if (state == IDLE || state == DONE)
+                return;
+            state = CLOSED;
+            try {
+                if (ch != null)
+                    ch.close();
+            } catch (Exception ex) {
+            }
+            ch = null;
+            key = null;
+            pendingOutput.clear();
+            startAt = System.nanoTime() + pauseNanos; // For the next session, if any
+        }
+
+        void tick(long tnow) {
+            if (state == CLOSED) {
+                if (stop || (sessions > 0 && ++sessionsDone >= sessions)) {
+                    state = DONE;
+                    return;
+                }
+                state = IDLE;
+            }
+            if (state == IDLE) {
+                if (startAt <= tnow)
+                    open(); // Again
+                return;
+            }
+            if ((state == CONNECTING || state == HANDSHAKE || state == OPEN) && tnow - lastProgress > timeoutNanos) {
+                shard.stats.timeouts++;
+                if (state == CONNECTING)
+                    shard.stats.connectFailures++;
+                else if (state == HANDSHAKE)
+                    shard.stats.handshakeFailures++;
+                fail();
+            }
+        }
+    }
+
+    /**
+     * @brief Samples the server JVM's resource usage from /proc (Linux only)
+     */
+    private static class ServerProbe {
+        private static final double CLOCK_TICKS = 100.0; //!< USER_HZ, which is 100 on Linux
+        final Path proc;
+        long lastCpu = -1, lastT;
+        long peakRss = 0, peakThreads = 0, peakFds = 0;
+        long firstCpu = -1, firstT;
+
+        ServerProbe(String pid) {
+            proc = Paths.get("/proc", pid);
+        }
+
+        String sample() {
+            try {
+                String stat = new String(Files.readAllBytes(proc.resolve("stat")), StandardCharsets.US_ASCII);
+                String[] f = stat.substring(stat.lastIndexOf(')') + 2).split(" "); // Skip pid and (comm)
+                long cpu = Long.parseLong(f[11]) + Long.parseLong(f[12]); // utime + stime
+                long t = System.nanoTime();
+                long rss = 0, threads = 0;
+                for (String l : Files.readAllLines(proc.resolve("status"), StandardCharsets.US_ASCII))
+                    if (l.startsWith("VmRSS:"))
+                        rss = Long.parseLong(l.replaceAll("[^0-9]", ""));
+                    else if (l.startsWith("Threads:"))
+                        threads = Long.parseLong(l.replaceAll("[^0-9]", ""));
+                long fds;
+                try (java.util.stream.Stream<Path> s = Files.list(proc.resolve("fd"))) {
+                    fds = s.count();
+                } catch (Exception ex) {
+                    fds = -1; // Not ours to look at
+                }
+                double pct = lastCpu < 0 ? 0 : (cpu - lastCpu) / CLOCK_TICKS * 1e11 / Math.max(1, t - lastT);
+                if (firstCpu < 0) {
+                    firstCpu = cpu;
+                    firstT = t;
+                }
+                lastCpu = cpu;
+                lastT = t;
+                peakRss = Math.max(peakRss, rss);
+                peakThreads = Math.max(peakThreads, threads);
+                peakFds = Math.max(peakFds, fds);
+                return String.format("cpu=%.0f%% rss=%dMB threads=%d fds=%d", pct, rss / 1024, threads, fds);
+            } catch (Exception ex) {
+                return "unavailable (" + ex.getMessage() + ")";
+            }
+        }
+
+        String summary() {
+            sample();
+            double avg = firstCpu < 0 ? 0 : (lastCpu - firstCpu) / CLOCK_TICKS * 1e11 / Math.max(1, lastT - firstT);
+            return String.format("server: avg cpu=%.0f%% (of one core) peak rss=%dMB peak threads=%d peak fds=%d",
+                    avg, peakRss / 1024, peakThreads, peakFds);
+        }
+    }
+
+    /**
+     * @brief Counters and latency samples. Each shard has its own; they are merged for reporting.
+     */
+    private static class Stats {
+        long started, handshakes, sessionsOk, sessionsFailed, connectFailures, handshakeFailures, timeouts;
+        long requests, scripts, apdus, badScripts, httpErrors;
+        CatTPCardSimulator.Samples connectLatency = new CatTPCardSimulator.Samples(),
+                handshakeLatency = new CatTPCardSimulator.Samples(),
+                exchangeLatency = new CatTPCardSimulator.Samples(),
+                sessionLatency = new CatTPCardSimulator.Samples();
+
+        static Stats merge(Shard[] shards) {
+            Stats t = new Stats();
+            for (Shard s : shards) {
+                Stats x = s.stats; // Read racily: These are progress figures
+                t.started += x.started;
+                t.handshakes += x.handshakes;
+                t.sessionsOk += x.sessionsOk;
+                t.sessionsFailed += x.sessionsFailed;
+                t.connectFailures += x.connectFailures;
+                t.handshakeFailures += x.handshakeFailures;
+                t.timeouts += x.timeouts;
+                t.requests += x.requests;
+                t.scripts += x.scripts;
+                t.apdus += x.apdus;
+                t.badScripts += x.badScripts;
+                t.httpErrors += x.httpErrors;
+                t.connectLatency.addAll(x.connectLatency);
+                t.handshakeLatency.addAll(x.handshakeLatency);
+                t.exchangeLatency.addAll(x.exchangeLatency);
+                t.sessionLatency.addAll(x.sessionLatency);
+            }
+            return t;
+        }
+
+        String progress() {
+            return String.format("started=%d active=%d ok=%d failed=%d (connect=%d handshake=%d timeout=%d) " +
+                            "requests=%d scripts=%d apdus=%d",
+                    started, started - sessionsOk - sessionsFailed, sessionsOk, sessionsFailed, connectFailures,
+                    handshakeFailures, timeouts, requests, scripts, apdus);
+        }
+
+        String summary(long durationMillis) {
+            return progress() + String.format("%nbad_scripts=%d http_errors=%d handshakes/s=%.1f sessions/s=%.1f%n",
+                    badScripts, httpErrors, handshakes * 1000.0 / durationMillis,
+                    sessionsOk * 1000.0 / durationMillis) +
+                    connectLatency.describe("TCP connect") +
+                    handshakeLatency.describe("TLS handshake") +
+                    exchangeLatency.describe("HTTP exchange") +
+                    sessionLatency.describe("session (connect to 204)");
+        }
+    }
+}
+
+/**
+ * @}
+ */
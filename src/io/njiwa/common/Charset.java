@@ -13,8 +13,9 @@
 package io.njiwa.common;
 
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.util.Arrays;
 
 /*
 * Copyright (c) 2008, Daniel Widyanto <kunilkuda at gmail.com>
@@ -59,7 +60,12 @@ public class Charset {
     /**
      * \brief Escape byte for the extended ISO
      */
-    private static final Short ESC_BYTE = new Short((short) 27);
+    private static final byte ESC_BYTE = 27;
+
+    /**
+     * \brief Set in isoToGsm entries for characters that need the escape byte
+     */
+    private static final int EXT_FLAG = 0x100;
 
     /**
      * \brief ISO-8859-1 - GSM 03.38 character map
@@ -92,6 +98,29 @@ public class Charset {
             {60, 91}, {61, 126}, {62, 93}, {64, 124}, {101, 164}
     };
 
+    /**
+     * \brief The maps above as lookup tables, indexed by (unsigned) byte value. Entries are -1 where there is no
+     * mapping. isoToGsm entries have EXT_FLAG set where an escape is needed.
+     */
+    private static final int[] isoToGsm = new int[256];
+    private static final int[] gsmToIso = new int[256];
+    private static final int[] extGsmToIso = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            byte b = (byte) i;
+            int gsm = findGsmChar(b);
+            if (gsm < 0) {
+                gsm = findExtGsmChar(b);
+                if (gsm >= 0)
+                    gsm |= EXT_FLAG;
+            }
+            isoToGsm[i] = gsm;
+            gsmToIso[i] = i < isoGsmMap.length ? isoGsmMap[i] : -1;
+            extGsmToIso[i] = findExtIsoChar((short) i);
+        }
+    }
+
     /**
      * \brief Translate ISO-8859-1 character set into GSM 03.38 character set
      * \param dataIso Data in ISO-8859-1 charset
@@ -99,32 +128,21 @@ public class Charset {
      */
     public static byte[] translateToGsm0338(String dataIso) throws Exception {
         byte[] dataIsoBytes = dataIso.getBytes();
-        ArrayList<Short> dataGsm = new ArrayList<Short>();
+        byte[] dataGsm = new byte[2 * dataIsoBytes.length]; // Worst case: Everything escaped
+        int n = 0;
 
         for (int dataIndex = 0; dataIndex < dataIsoBytes.length; dataIndex++) {
-            byte currentDataIso = dataIsoBytes[dataIndex];
-
-            // Search currentDataGsm in the isoGsmMap
-            short currentDataGsm = findGsmChar(currentDataIso);
-
-            // If the data is not available in the isoGsmMap, search in the extended
-            // ISO-GSM map (extIsoGsmMap)
-            if (currentDataGsm == -1) {
-                currentDataGsm = findExtGsmChar(currentDataIso);
-
-                // If the character is found inside the extended map, add escape byte in
-                // the return byte[]
-                if (currentDataGsm != -1) {
-                    dataGsm.add(ESC_BYTE);
-                } else
-                    throw new Exception("Cannot convert string to GSM alphabet");
-            }
-
-            dataGsm.add(new Short(currentDataGsm));
+            int currentDataGsm = isoToGsm[dataIsoBytes[dataIndex] & 0xFF];
+
+            if (currentDataGsm < 0)
+                throw new Exception("Cannot convert string to GSM alphabet");
+            // If the character is in the extended map, add escape byte in the return byte[]
+            if ((currentDataGsm & EXT_FLAG) != 0)
+                dataGsm[n++] = ESC_BYTE;
+            dataGsm[n++] = (byte) currentDataGsm;
         }
 
-        Short[] dataGsmShortArray =  dataGsm.toArray(new Short[0]);
-        return translateShortToByteArray(dataGsmShortArray);
+        return n == dataGsm.length ? dataGsm : Arrays.copyOf(dataGsm, n);
     }
 
      public static final int INLINE_7BIT = 1;
@@ -140,55 +158,88 @@ public class Charset {
              return new String(input); // Default encoding (UTF-8, right?)
      }
 
+     /**
+      * \brief Unpack GSM 7-bit packed septets, one septet per output byte
+      * \param input The packed octets. Not modified.
+      * \param len Number of septets to unpack. Fewer are returned if the input runs out.
+      * \param offset Number of fill bits before the first septet (when a UDH precedes the text)
+      * \param convert_to_utf8 If set, the septets are translated from the GSM alphabet and returned as UTF-8
+      */
      public static byte[] decode7Bituncompressed(byte[] input, int len, int offset, boolean convert_to_utf8) throws Exception
      {
-         int septet, octet, prevoctet;
-         int i;
-         int r = 1;
-         int c = 7;
-         int pos = 0;
-         ByteArrayOutputStream decoded = new ByteArrayOutputStream();
-
-     /* Shift the buffer offset bits to the left */
-         if (offset > 0) {
-             int ip;
-             for (i = 0, ip = 0; i < input.length; i++) {
-                 if (i == input.length - 1)
-                     input[ip] = (byte) (input[ip] >> offset);
-                 else
-                     input[ip] = (byte) ((input[ip] >> offset) | (input[ip + 1] << (8 - offset)));
-                 ip++;
-             }
-         }
-         octet = input[pos];
-         prevoctet = 0;
-
-         for (i = 0; i < len; i++) {
-             septet = ((octet & at2_rmask[c]) << (r - 1)) + prevoctet;
-             decoded.write(septet);
-
-             prevoctet = (octet & at2_lmask[r]) >> c;
-
-         /* When r=7 we have a full character in prevoctet */
-             if ((r == 7) && (i < len - 1)) {
-                 i++;
-                 decoded.write(prevoctet);
-                 prevoctet = 0;
-             }
-
-             r = (r > 6) ? 1 : r + 1;
-             c = (c < 2) ? 7 : c - 1;
-
-             pos++;
-             octet = input[pos];
-         }
+         ByteBuffer decoded = ByteBuffer.allocate(Math.max(0, Math.min(len, (input.length * 8 - offset) / 7)));
+         unpack7Bit(input, 0, input.length, offset, decoded.remaining(), decoded);
 
          if (convert_to_utf8)
-             return convertToUTF8(decoded.toByteArray(), INLINE_7BIT).getBytes(StandardCharsets.UTF_8);
+             return convertToUTF8(decoded.array(), INLINE_7BIT).getBytes(StandardCharsets.UTF_8);
          else
-             return decoded.toByteArray();
+             return decoded.array();
      }
 
+    /**
+     * \brief Pack septets (one per input byte, top bit ignored) into GSM 7-bit packing, as per Sec 6.1.2.1.1 of
+     * GSM 03.38, writing straight into out.
+     * \param septets The septets
+     * \param off Where to start in septets
+     * \param len How many septets to pack
+     * \param fillBits Number of zero fill bits to put before the first septet, so it starts on a septet boundary
+     * after a UDH
+     * \param out Where to write. Must have room for packedLength(len, fillBits) octets
+     * \return The number of octets written
+     */
+    public static int pack7Bit(byte[] septets, int off, int len, int fillBits, ByteBuffer out) {
+        int start = out.position();
+        int acc = 0, nbits = fillBits;
+        for (int i = off; i < off + len; i++) {
+            acc |= (septets[i] & 0x7F) << nbits;
+            nbits += 7;
+            if (nbits >= 8) {
+                out.put((byte) acc);
+                acc >>>= 8;
+                nbits -= 8;
+            }
+        }
+        if (nbits > 0)
+            out.put((byte) acc);
+        return out.position() - start;
+    }
+
+    /**
+     * \brief Unpack GSM 7-bit packed octets into septets, one per output byte
+     * \param in The packed octets
+     * \param off Where they start
+     * \param len How many octets there are
+     * \param fillBits Fill bits to skip before the first septet
+     * \param septets Maximum number of septets to unpack
+     * \param out Where to write the septets
+     * \return The number of septets written
+     */
+    public static int unpack7Bit(byte[] in, int off, int len, int fillBits, int septets, ByteBuffer out) {
+        int n = 0;
+        int acc = 0, nbits = 0;
+        for (int i = off; i < off + len && n < septets; i++) {
+            acc |= (in[i] & 0xFF) << nbits;
+            nbits += 8;
+            if (i == off && fillBits > 0) {
+                acc >>>= fillBits;
+                nbits -= fillBits;
+            }
+            while (nbits >= 7 && n < septets) {
+                out.put((byte) (acc & 0x7F));
+                acc >>>= 7;
+                nbits -= 7;
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * \return Number of octets needed to pack the given number of septets, after fillBits fill bits
+     */
+    public static int packedLength(int septets, int fillBits) {
+        return (fillBits + septets * 7 + 7) / 8;
+    }
 
      /**
      * \brief Translate GSM 03.38 character set set into ISO-8859-1 character
@@ -196,29 +247,24 @@ public class Charset {
      * \return ISO-8859-1 string
      */
     public static String translateToIso(byte[] dataGsm) {
-        ArrayList<Short> dataIso = new ArrayList<Short>();
+        byte[] dataIso = new byte[dataGsm.length];
+        int n = 0;
 
         boolean isEscape = false;
         for (int dataIndex = 0; dataIndex < dataGsm.length; dataIndex++) {
-            // Convert to short to avoid negative values
-            short currentDataGsm = (short) dataGsm[dataIndex];
-            short currentDataIso = -1;
+            int currentDataGsm = dataGsm[dataIndex] & 0xFF;
 
-            if (currentDataGsm == ESC_BYTE.shortValue()) {
+            if (currentDataGsm == ESC_BYTE) {
                 isEscape = true;
             } else if (!isEscape) {
-                currentDataIso = findIsoChar(currentDataGsm);
-                dataIso.add(new Short(currentDataIso));
+                dataIso[n++] = (byte) gsmToIso[currentDataGsm];
             } else {
-                currentDataIso = findExtIsoChar(currentDataGsm);
-                dataIso.add(new Short(currentDataIso));
+                dataIso[n++] = (byte) extGsmToIso[currentDataGsm];
                 isEscape = false;
             }
         }
 
-        Short[] dataIsoShortArray =  dataIso.toArray(new Short[0]);
-        byte[] dataIsoByteArray = translateShortToByteArray(dataIsoShortArray);
-        return new String(dataIsoByteArray);
+        return new String(dataIso, 0, n);
     }
 
     /**
@@ -257,21 +303,6 @@ public class Charset {
         return gsmChar;
     }
 
-    /**
-     * \brief Find ISO-8859-1 character for the GSM 03.38 character
-     * \param gsmChar GSM 03.38 character
-     * \result ISO-8859-1 character or -1 if no match
-     */
-    private static short findIsoChar(short gsmChar) {
-        short isoChar = -1;
-
-        if (gsmChar < isoGsmMap.length) {
-            isoChar = isoGsmMap[gsmChar];
-        }
-
-        return isoChar;
-    }
-
     /**
      * \brief Find ISO-8859-1 character for the extended GSM 03.38 character
      * \param gsmChar Extended GSM 03.38 character
@@ -290,22 +321,6 @@ public class Charset {
         return isoChar;
     }
 
-    /**
-     * \brief Translate Short[] array to byte[]. Needed since there's no direct
-     * Java method/class to do this.
-     * \param shortArray Short[] array
-     * \return byte[] array
-     */
-    private static byte[] translateShortToByteArray(Short[] shortArray) {
-        byte[] byteArrayResult = new byte[shortArray.length];
-
-        for (int i = 0; i < shortArray.length; i++) {
-            byteArrayResult[i] = (byte) shortArray[i].shortValue();
-        }
-
-        return byteArrayResult;
-    }
-
        /* Attempts to convert a character to GSM format. Returns (character, length)
  * - Length is 0,if we can not convert.
  * - Length is 1, if we convert into one char
@@ -506,25 +521,17 @@ public class Charset {
 
     public static byte[] makeUssd7Bit(byte[] in) throws Exception {
         int num_chars = in.length;
-        int num_octets = (7 + (num_chars * 7)) / 8;
-        int pad = (num_chars % 8) == 7 ? 0x0D : 0;
-
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        for (int i = 0; i < num_octets; i++) {
-            int chnum = i + (i / 7);
-            int ch1 = in[chnum] & 0x7f;
-            int ch2 = chnum + 1 < num_chars ? (in[chnum + 1] & 0x7f) : pad;
-            int idx = i % 7;
-            int ch = (ch1 >> idx) | ((ch2 << (7 - idx)) & 0xFF);
-
-            out.write(ch);
-        }
+        ByteBuffer out = ByteBuffer.allocate(packedLength(num_chars, 0) + 1);
+
+        pack7Bit(in, 0, num_chars, 0, out);
+        if (num_chars % 8 == 7) // Fill the spare 7 bits of the last octet with CR, not @ (Sec 6.1.2.3.1 of GSM 03.38)
+            out.put(out.position() - 1, (byte) (out.get(out.position() - 1) | (0x0D << 1)));
 
         if ((num_chars % 8 == 0) &&  /* if last char is CR AND output is full octets, add one more.*/
                 in[num_chars - 1] == 0x0D)
-            out.write(0x0D);
+            out.put((byte) 0x0D);
 
-        return out.toByteArray();
+        return Arrays.copyOf(out.array(), out.position());
     }
 
 
@@ -262,6 +262,7 @@ public abstract class SDCommand {
             // XX Sec 4.9.1 seems to have the word *without* when it seems to mean *with*
             int lcc = edata.length + 8;
             os.write(0x84); // Class byte
+            os.write(ins & 0xFF);
             if (lcc > 255) {
                 os.write(p1 & 0x7F);
                 int lastblockNo = (lcc / 255) + (lcc % 255 == 0 ? 0 : 1); // add 1 for the extra bit at end
@@ -67,6 +67,17 @@ public class ServerSettings {
     private static final String VIRTUAL_SMSC_NUMBER_PREFIX = "virtual_smsc_number_prefix";
     private static final String VIRTUAL_SMSC_SHORTCODES = "virtual_smsc_shortcodes";
     private static final String SMS_THROUGHPUT1 = "sms_throughput";
+    private static final String SMS_ROUTE_THROUGHPUT = "sms_route_throughput";
+    private static final String SMS_THROTTLE_MAX_QUEUE = "sms_throttle_max_queue";
+    private static final String SMS_CALLBACK_QUEUE_SIZE = "sms_callback_queue_size";
+    private static final String SMS_CALLBACK_BATCH_SIZE = "sms_callback_batch_size";
+    private static final String SMS_CALLBACK_JOURNAL = "sms_callback_journal";
+    private static final String SMPP_BINDS = "smpp_binds";
+    private static final String SMPP_WINDOW_SIZE = "smpp_window_size";
+    private static final String SMPP_ENQUIRE_LINK_INTERVAL = "smpp_enquire_link_interval";
+    private static final String SMPP_RESPONSE_TIMEOUT = "smpp_response_timeout";
+    private static final String SMPP_SOURCE_ADDRESS = "smpp_source_address";
+    private static final String SMPP_SIMULATOR_PORT = "smpp_simulator_port";
     private static final String BIP_APN = "bip_apn";
     private static final String BIP_TITLE = "bip_title";
     private static final String BIP_ME_BUFFER = "bip_me_buffer";
@@ -78,7 +89,12 @@ public class ServerSettings {
     private static final String IMSI_LOOKUP_COMMAND = "imsi_lookup_command";
     private static final String MAX_BIP_SEND_REQUESTS = "max_bip_send_requests";
     private static final String BIP_IDLE_TIMEOUT = "bip_idle_timeout";
+    private static final String BIP_RECEIVE_THREADS = "bip_receive_threads";
+    private static final String BIP_CLUSTER = "bip_cluster";
+    private static final String BIP_CLUSTER_ADDRESS = "bip_cluster_address";
+    private static final String BIP_CLUSTER_SECRET = "bip_cluster_secret";
     private static final String BIP_PUSH_RETRY_TIMEOUT = "bip_push_retry_timeout";
+    private static final String BIP_PUSH_RATE = "bip_push_rate";
     private static final String MINIMUM_BIP_TRANSACTIONS = "minimum_bip_transactions";
     private static final String ALLOW_MULTIPLE_SAT_SESSIONS = "allow_multi";
     private static final String RAMHTTP_NUM_RETRIES = "ram_num_retries";
@@ -87,6 +103,9 @@ public class ServerSettings {
     private static final String RAM_ADMIN_BACKLOG = "ram_admin_backlog";
     private static final String RAM_ADMIN_HTTP_KEEP_ALIVE_TIMEOUT = "ram_admin_http_keep_alive_timeout";
     private static final String RAM_ADMIN_MAX_HTTP_REQUESTS_PER_SESSION = "ram_admin_max_http_requests_per_session";
+    private static final String RAM_PSK_CACHE_SIZE = "ram_psk_cache_size";
+    private static final String RAM_PSK_CACHE_TTL = "ram_psk_cache_ttl";
+    private static final String PACKET_DUMP_SAMPLING = "packet_dump_sampling";
     private static final String RAM_RETRY_TIMEOUT = "ram_retry_timeout";
     private static final String RAM_MAX_SEND_REQUESTS = "ram_max_send_requests";
     private static final String RAM_IDLE_TIMEOUT = "ram_idle_timeout";
@@ -173,6 +192,21 @@ public class ServerSettings {
                     new IntegerValuesValidator(0)));
 
             put(SMS_THROUGHPUT1, new IntegerValuesValidator(10));
+            // Per gateway route limits, each of the form route:rate, e.g. smpp:50,http:10
+            put(SMS_ROUTE_THROUGHPUT, new StringListValidator(new String[0], null));
+            put(SMS_THROTTLE_MAX_QUEUE, new PositiveIntegerValuesValidator(10000)); // Parts waiting per route
+
+            put(SMS_CALLBACK_QUEUE_SIZE, new PositiveIntegerValuesValidator(50000)); // Queued DLR/MO callbacks
+            put(SMS_CALLBACK_BATCH_SIZE, new PositiveIntegerValuesValidator(200)); // Callbacks per batch
+            put(SMS_CALLBACK_JOURNAL, new BooleanValidator(false)); // Journal queued callbacks in REDIS
+
+            // SMPP binds, each of the form host:port:system_id:password[:sessions]. None means use sendsmsUrl
+            put(SMPP_BINDS, new StringListValidator(new String[0], null));
+            put(SMPP_WINDOW_SIZE, new PositiveIntegerValuesValidator(10)); // Outstanding submit_sm per bind
+            put(SMPP_ENQUIRE_LINK_INTERVAL, new PositiveIntegerValuesValidator(30)); // In seconds
+            put(SMPP_RESPONSE_TIMEOUT, new PositiveIntegerValuesValidator(10)); // In seconds
+            put(SMPP_SOURCE_ADDRESS, new BaseValidator(""));
+            put(SMPP_SIMULATOR_PORT, new PositiveIntegerValuesValidator(0)); // 0 means simulator is off
 
             put(BIP_APN, new ByteArrayValidator("internet") {
                 @Override
@@ -209,7 +243,12 @@ public class ServerSettings {
 
             put(MAX_BIP_SEND_REQUESTS, new PositiveIntegerValuesValidator(10));
             put(BIP_IDLE_TIMEOUT, new PositiveIntegerValuesValidator(120));
+            put(BIP_RECEIVE_THREADS, new PositiveIntegerValuesValidator(2)); // CAT_TP UDP reader threads
+            put(BIP_CLUSTER, new BooleanValidator(false)); // Share CAT_TP connections with other nodes via REDIS
+            put(BIP_CLUSTER_ADDRESS, new BaseValidator("")); // host:port other nodes forward CAT_TP to. Default: hostname and bip_port
+            put(BIP_CLUSTER_SECRET, new BaseValidator("")); // Authenticates forwarded CAT_TP. Same on all nodes
             put(BIP_PUSH_RETRY_TIMEOUT, new PositiveIntegerValuesValidator(60 * 4));
+            put(BIP_PUSH_RATE, new PositiveIntegerValuesValidator(20)); // BIP push SMS per second, 0 for no limit
             put(MINIMUM_BIP_TRANSACTIONS, new PositiveIntegerValuesValidator(3));
             put(ALLOW_MULTIPLE_SAT_SESSIONS, new BooleanValidator(true));
 
@@ -220,6 +259,11 @@ public class ServerSettings {
             put(RAM_ADMIN_HTTP_KEEP_ALIVE_TIMEOUT, new PositiveIntegerValuesValidator(120)); // HTTP Connection
             // considered dead after 120 seconds.
             put(RAM_ADMIN_MAX_HTTP_REQUESTS_PER_SESSION, new PositiveIntegerValuesValidator(100));
+            put(RAM_PSK_CACHE_SIZE, new PositiveIntegerValuesValidator(10000)); // PSK-TLS keys held in memory, 0 to
+            // disable caching
+            put(RAM_PSK_CACHE_TTL, new PositiveIntegerValuesValidator(300)); // Seconds a cached PSK-TLS key is used
+            put(PACKET_DUMP_SAMPLING, new PositiveIntegerValuesValidator(1)); // Log the dump of 1 in N packets per
+            // eUICC (if INFO is enabled). 0 turns packet dumps off
 
             put(RAM_RETRY_TIMEOUT, new PositiveIntegerValuesValidator(120));
 
@@ -373,6 +417,50 @@ public class ServerSettings {
         return (String) propertyValues.get(VIRTUAL_SMSC_NUMBER_PREFIX);
     }
 
+    public static String[] getSmsRouteThroughput() {
+        return (String[]) propertyValues.get(SMS_ROUTE_THROUGHPUT);
+    }
+
+    public static int getSmsThrottleMaxQueue() {
+        return (Integer) propertyValues.get(SMS_THROTTLE_MAX_QUEUE);
+    }
+
+    public static int getSmsCallbackQueueSize() {
+        return (Integer) propertyValues.get(SMS_CALLBACK_QUEUE_SIZE);
+    }
+
+    public static int getSmsCallbackBatchSize() {
+        return (Integer) propertyValues.get(SMS_CALLBACK_BATCH_SIZE);
+    }
+
+    public static boolean isSmsCallbackJournal() {
+        return (Boolean) propertyValues.get(SMS_CALLBACK_JOURNAL);
+    }
+
+    public static String[] getSmppBinds() {
+        return (String[]) propertyValues.get(SMPP_BINDS);
+    }
+
+    public static int getSmppWindowSize() {
+        return (Integer) propertyValues.get(SMPP_WINDOW_SIZE);
+    }
+
+    public static int getSmppEnquireLinkInterval() {
+        return (Integer) propertyValues.get(SMPP_ENQUIRE_LINK_INTERVAL);
+    }
+
+    public static int getSmppResponseTimeout() {
+        return (Integer) propertyValues.get(SMPP_RESPONSE_TIMEOUT);
+    }
+
+    public static String getSmppSourceAddress() {
+        return (String) propertyValues.get(SMPP_SOURCE_ADDRESS);
+    }
+
+    public static int getSmppSimulatorPort() {
+        return (Integer) propertyValues.get(SMPP_SIMULATOR_PORT);
+    }
+
     public static byte[] getBip_apn() {
         return (byte[]) propertyValues.get(BIP_APN);
     }
@@ -414,10 +502,31 @@ public class ServerSettings {
         return (Integer) propertyValues.get(BIP_IDLE_TIMEOUT);
     }
 
+    public static int getBip_receive_threads() {
+        return Math.max(1, (Integer) propertyValues.get(BIP_RECEIVE_THREADS));
+    }
+
+    public static boolean isBip_cluster() {
+        return (Boolean) propertyValues.get(BIP_CLUSTER);
+    }
+
+    public static String getBip_cluster_address() {
+        String x = (String) propertyValues.get(BIP_CLUSTER_ADDRESS);
+        return x == null || x.trim().isEmpty() ? getMyhostname() + ":" + getCat_tp_port() : x.trim();
+    }
+
+    public static String getBip_cluster_secret() {
+        return (String) propertyValues.get(BIP_CLUSTER_SECRET);
+    }
+
     public static long getBip_push_retry_timeout() {
         return (Integer) propertyValues.get(BIP_PUSH_RETRY_TIMEOUT);
     }
 
+    public static int getBip_push_rate() {
+        return (Integer) propertyValues.get(BIP_PUSH_RATE);
+    }
+
     public static int getScWsNumberOfRetries() {
         return (Integer) propertyValues.get(RAMHTTP_NUM_RETRIES);
     }
@@ -454,6 +563,18 @@ public class ServerSettings {
         return (Integer) propertyValues.get(RAM_ADMIN_MAX_HTTP_REQUESTS_PER_SESSION);
     }
 
+    public static int getRamPskCacheSize() {
+        return (Integer) propertyValues.get(RAM_PSK_CACHE_SIZE);
+    }
+
+    public static int getRamPskCacheTtl() {
+        return (Integer) propertyValues.get(RAM_PSK_CACHE_TTL);
+    }
+
+    public static int getPacketDumpSampling() {
+        return (Integer) propertyValues.get(PACKET_DUMP_SAMPLING);
+    }
+
     public static Utils.Pair<String, X509Certificate> getCiCertAndAlias() throws Exception {
         return getCert(CI_CERTIFICATE_ALIAS);
     }
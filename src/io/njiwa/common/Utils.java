@@ -59,6 +59,7 @@ import java.math.BigInteger;
 import java.net.HttpURLConnection;
 import java.net.URL;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.security.cert.Certificate;
@@ -71,6 +72,8 @@ import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 
@@ -412,8 +415,15 @@ public class Utils {
     }
 
     public static byte[] replace(byte[] haystack, byte[] needle, byte[] replacement) {
-        // First find it
-        int idx = Collections.indexOfSubList(Arrays.asList(haystack), Arrays.asList(needle));
+        // First find it. (Arrays.asList() on a byte[] gives a list of one element, so no indexOfSubList() here.)
+        int idx = -1;
+        search:
+        for (int i = 0; i <= haystack.length - needle.length; i++) {
+            for (int j = 0; j < needle.length; j++)
+                if (haystack[i + j] != needle[j]) continue search;
+            idx = i;
+            break;
+        }
 
         if (idx < 0) return null;
         int newLen = haystack.length - needle.length + replacement.length;
@@ -422,7 +432,7 @@ public class Utils {
         System.arraycopy(haystack, 0, data, 0, idx); // Copy first part
         System.arraycopy(replacement, 0, data, idx, replacement.length); // Copy the replacement in place...
         System.arraycopy(haystack, idx + needle.length, data, idx + replacement.length,
-                haystack.length - needle.length);
+                haystack.length - idx - needle.length);
 
         return data;
     }
@@ -1190,6 +1200,18 @@ public class Utils {
             return b2H(a, 0, a.length);
         }
 
+        private static final char[] UPPER_DIGITS = "0123456789ABCDEF".toCharArray();
+        private static final char[] LOWER_DIGITS = "0123456789abcdef".toCharArray();
+        private static final byte[] DIGIT_VALUES = new byte[256]; //!< Value of each hex digit, -1 if not one
+
+        static {
+            Arrays.fill(DIGIT_VALUES, (byte) -1);
+            for (int i = 0; i < 16; i++) {
+                DIGIT_VALUES[UPPER_DIGITS[i]] = (byte) i;
+                DIGIT_VALUES[LOWER_DIGITS[i]] = (byte) i;
+            }
+        }
+
         /**
          * @param a
          * @param offset
@@ -1198,10 +1220,37 @@ public class Utils {
          * @brief Convert a slice of a byte sequence to hex
          */
         public static String b2H(byte[] a, int offset, int len) {
-            StringBuilder sb = new StringBuilder(a.length * 2);
-            for (int i = offset; i < len && i < a.length; i++)
-                sb.append(String.format("%02X", a[i] & 0xff));
-            return sb.toString();
+            return encode(a, offset, len, UPPER_DIGITS);
+        }
+
+        private static String encode(byte[] a, int offset, int len, char[] digits) {
+            int n = Math.min(len, a.length) - offset; // Historically len is where we stop, not the count
+            if (n <= 0) return "";
+            char[] out = new char[2 * n];
+            encode(a, offset, n, out, 0, digits);
+            return new String(out);
+        }
+
+        private static void encode(byte[] a, int offset, int len, char[] out, int outOffset, char[] digits) {
+            for (int i = offset, j = outOffset, end = offset + len; i < end; i++) {
+                int b = a[i] & 0xFF;
+                out[j++] = digits[b >>> 4];
+                out[j++] = digits[b & 0x0F];
+            }
+        }
+
+        /**
+         * @param a
+         * @param offset
+         * @param len       the number of bytes to convert
+         * @param out       where to put the (uppercase) hex digits: Must have room for 2 * len of them
+         * @param outOffset
+         * @return the number of chars written
+         * @brief Convert a slice of a byte sequence to hex, into a pre-allocated array
+         */
+        public static int b2H(byte[] a, int offset, int len, char[] out, int outOffset) {
+            encode(a, offset, len, out, outOffset, UPPER_DIGITS);
+            return 2 * len;
         }
 
         /**
@@ -1210,7 +1259,7 @@ public class Utils {
          * @brief Convert a byte sequence to (lowercase) hex
          */
         public static String b2h(byte[] a) {
-            return b2H(a).toLowerCase();
+            return encode(a, 0, a.length, LOWER_DIGITS);
         }
 
         /**
@@ -1244,17 +1293,32 @@ public class Utils {
         public static byte[] h2b(byte[] hex, boolean nullmapstoempty) {
             if (hex == null) return nullmapstoempty ? new byte[0] : null;
 
-            int len = hex.length / 2;
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            for (int i = 0; i < len; i++) {
-                int x1 = hex[2 * i] & 0xFF;
-                int x2 = hex[2 * i + 1] & 0xFF;
-                String s = (char) x1 + Character.toString((char) x2);
-                int x = Integer.parseInt(s, 16);
-                os.write(x);
+            byte[] out = new byte[hex.length / 2];
+            h2b(hex, 0, out.length * 2, out, 0);
+            return out;
+        }
 
-            }
-            return os.toByteArray();
+        /**
+         * @param hex       the hex digits, as ASCII
+         * @param offset
+         * @param len       the number of digits to convert. An odd one out is ignored.
+         * @param out       where to put the bytes: Must have room for len / 2 of them
+         * @param outOffset
+         * @return the number of bytes written
+         * @brief Convert hex to a byte sequence, into a pre-allocated array
+         */
+        public static int h2b(byte[] hex, int offset, int len, byte[] out, int outOffset) {
+            int n = len / 2;
+            for (int i = 0, j = offset; i < n; i++, j += 2)
+                out[outOffset + i] = (byte) digitPair(hex[j] & 0xFF, hex[j + 1] & 0xFF);
+            return n;
+        }
+
+        private static int digitPair(int c1, int c2) {
+            int x1 = DIGIT_VALUES[c1], x2 = DIGIT_VALUES[c2];
+            if (x1 < 0 || x2 < 0) // Not plain hex digits: Let the JDK decide, as we always have (e.g. "+F" is 15).
+                return Integer.parseInt((char) c1 + Character.toString((char) c2), 16);
+            return (x1 << 4) | x2;
         }
 
         public static byte[] h2b(byte[] hex) {
@@ -1270,15 +1334,20 @@ public class Utils {
             if (hex == null) return nullmapstoempty ? new byte[0] : null;
 
             // By design, it returns the empty byte sequence if the argument is null. Right?
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-
-            for (int i = 0; i < hex.length(); i++) {
+            int slen = hex.length(), digits = 0;
+            for (int i = 0; i < slen; i++)
+                if (!Character.isWhitespace(hex.charAt(i))) digits++; // Skip space. Right??
+            byte[] out = new byte[digits / 2];
+            for (int i = 0, j = 0, first = -1; j < out.length; i++) {
                 int ch = hex.charAt(i);
-                if (Character.isWhitespace(ch)) continue; // Skip space. Right??
-                os.write(ch & 0xFF);
+                if (Character.isWhitespace(ch)) continue;
+                if (first < 0) first = ch & 0xFF;
+                else {
+                    out[j++] = (byte) digitPair(first, ch & 0xFF);
+                    first = -1;
+                }
             }
-
-            return h2b(os.toByteArray());
+            return out;
         }
     }
 
@@ -1813,6 +1882,21 @@ public class Utils {
 
         }
 
+        /**
+         * @param buf
+         * @param len
+         * @throws Exception
+         * @brief append the length part of a BER TLV element to a pre-sized buffer. See getTlvLength()
+         */
+        public static void appendTLVlen(ByteBuffer buf, long len) throws Exception {
+            if (len <= 127) buf.put((byte) len);
+            else if (len <= 255) buf.put((byte) 0x81).put((byte) len);
+            else if (len <= 65535) buf.put((byte) 0x82).putShort((short) len);
+            else if (len <= 16777215) buf.put((byte) 0x83).put((byte) (len >> 16)).putShort((short) len);
+            else
+                throw new Exception(String.format("Invalid length [%d] in TLV argument exceeds 4 Length bytes", len));
+        }
+
         /**
          * @param len
          * @return
@@ -1862,6 +1946,7 @@ public class Utils {
             byte[] out = new byte[len > 0 ? len : 0];
 
             int xlen = os.read(out); // Unless input is mal-formed, we should get this many bytes.
+            if (xlen < 0) xlen = 0; // At the end: An empty TLV, or a truncated one
 
             return new Pair<>(new ByteArrayInputStream(out, 0, xlen), tag);
         }
@@ -1875,10 +1960,8 @@ public class Utils {
         }
 
         public static Pair<Integer, byte[]> decodeTLV(byte[] data) throws Exception {
-            ByteArrayInputStream in = new ByteArrayInputStream(data);
-            Pair<InputStream, Integer> xres = decodeTLV(in);
-            byte[] b = Utils.getBytes(xres.k);
-            return new Pair<>(xres.l, b);
+            TLVReader r = new TLVReader(data).next(false);
+            return new Pair<>(r.tag, r.value());
         }
 
         // Decode the length attribute
@@ -1890,7 +1973,10 @@ public class Utils {
         }
 
         public static long decodeInt(byte[] in, int octets) throws Exception {
-            return decodeInt(new ByteArrayInputStream(in), octets);
+            long u = 0;
+            for (int i = 0; i < octets; i++)
+                u = (u << 8) | (i < in.length ? in[i] & 0xFF : 0xFF); // As the stream version does
+            return u;
         }
 
         public static List<Pair<Integer, byte[]>> decodeTLVs(InputStream in) throws Exception {
@@ -1905,7 +1991,13 @@ public class Utils {
         }
 
         public static List<Pair<Integer, byte[]>> decodeTLVs(byte[] data) throws Exception {
-            return decodeTLVs(new ByteArrayInputStream(data));
+            List<Pair<Integer, byte[]>> l = new ArrayList<Pair<Integer, byte[]>>();
+            TLVReader r = new TLVReader(data);
+            while (r.hasNext()) {
+                r.next(false);
+                l.add(new Pair<>(r.tag, r.value()));
+            }
+            return l;
         }
 
         public static void appendTLV(OutputStream os, int tag, byte[] data) throws Exception {
@@ -1914,6 +2006,115 @@ public class Utils {
             appendTLV(os, xtag, data);
         }
 
+        /**
+         * @param buf
+         * @param tag
+         * @param value
+         * @param offset
+         * @param len
+         * @throws Exception
+         * @brief append a BER TLV with a one-byte tag and a slice of an array as value to a pre-sized buffer
+         */
+        public static void appendTLV(ByteBuffer buf, short tag, byte[] value, int offset, int len) throws Exception {
+            buf.put((byte) tag);
+            appendTLVlen(buf, len);
+            buf.put(value, offset, len);
+        }
+
+        /**
+         * @param tagLen
+         * @param len    the length of the value
+         * @return
+         * @brief Get the encoded size of a TLV, e.g. to size a buffer for appendTLV()
+         */
+        public static int getTlvSize(int tagLen, int len) {
+            return tagLen + getTlvLength(len) + len;
+        }
+
+        /**
+         * @brief Reads a sequence of BER TLVs in place: Each element is described by its tag and the offset and length
+         * of its value in the underlying array, so nothing is copied unless asked for. Malformed input is treated
+         * the same way as by decodeTLV(InputStream, boolean).
+         */
+        public static class TLVReader {
+            private final byte[] buf;
+            private final int end;
+            private int pos;
+
+            public int tag; //!< The tag of the current element, or -1 if its length was not valid
+            public int valueOffset; //!< Where its value starts in the array
+            public int valueLength; //!< The length of the value, less if the input was truncated
+
+            public TLVReader(byte[] buf) {
+                this(buf, 0, buf.length);
+            }
+
+            public TLVReader(byte[] buf, int offset, int len) {
+                this.buf = buf;
+                this.pos = offset;
+                this.end = offset + len;
+            }
+
+            public boolean hasNext() {
+                return pos < end;
+            }
+
+            /**
+             * @return the byte at the current position, or -1 past the end (like InputStream.read())
+             */
+            private int read() {
+                return pos < end ? buf[pos++] & 0xFF : -1;
+            }
+
+            /**
+             * @param twoByteTag
+             * @return this reader, positioned on the next element
+             * @brief Move to the next TLV
+             */
+            public TLVReader next(boolean twoByteTag) {
+                tag = read() & 0xFF;
+                if (twoByteTag) tag = (tag << 8) | (read() & 0xFF);
+
+                int len = read() & 0xFF;
+                if (len == 0x81) len = read();
+                else if (len == 0x82 || len == 0x83) {
+                    int n = len & 0x03;
+                    len = 0;
+                    while (n-- > 0)
+                        len = (len << 8) | (read() & 0xFF);
+                } else if (len > 127) len = -1;
+                if (len < 0) {
+                    tag = -1;
+                    len = 0;
+                }
+                valueOffset = pos;
+                valueLength = Math.min(len, end - pos);
+                pos += valueLength;
+                return this;
+            }
+
+            /**
+             * @return a copy of the current value
+             */
+            public byte[] value() {
+                return Arrays.copyOfRange(buf, valueOffset, valueOffset + valueLength);
+            }
+
+            /**
+             * @return a reader over the TLVs nested in the current value
+             */
+            public TLVReader children() {
+                return new TLVReader(buf, valueOffset, valueLength);
+            }
+
+            /**
+             * @return the offset of the next element
+             */
+            public int position() {
+                return pos;
+            }
+        }
+
         public static byte[] decodeTLV(InputStream in, short expectedTag) throws Exception {
             return decodeTLV(in, new byte[]{(byte) expectedTag});
         }
@@ -2242,6 +2443,14 @@ public class Utils {
             return isb64 ? Base64.getDecoder().decode(data) : data.getBytes(StandardCharsets.UTF_8);
         }
 
+        // The GPC Amd B (RAM over HTTP) headers
+        public static final String X_ADMIN_PROTOCOL = "X-Admin-Protocol";
+        public static final String X_ADMIN_FROM = "X-Admin-From";
+        public static final String X_ADMIN_SCRIPT_STATUS = "X-Admin-Script-Status";
+        public static final String X_ADMIN_RESUME = "X-Admin-Resume";
+        public static final String X_ADMIN_NEXT_URI = "X-Admin-Next-URI";
+        public static final String X_ADMIN_TARGETED_APPLICATION = "X-Admin-Targeted-Application";
+
         public enum Method {
             GET, POST, HEAD, PUT, DELETE;
 
@@ -2265,6 +2474,8 @@ public class Utils {
          * @brief This represents a standard MIME/HTTP Message type
          */
         private static abstract class Message {
+            private static final byte[] CRLF = {'\r', '\n'};
+            private static final byte[] LAST_CHUNK = {'0', '\r', '\n', '\r', '\n'}; //!< With no trailers
             private static final boolean USE_CHUNKED_IN_OUTPUT = true; //!< Spec says we must use chunked response
             // format
             public byte[] body = null; //!< The message body
@@ -2279,62 +2490,39 @@ public class Utils {
             protected boolean contentLengthSeen = false;
 
             /**
-             * @param in
-             * @return
-             * @throws Exception
-             * @brief Read a single UTF-8 line from the input as per HTTP specifications
-             */
-            private static String readLine(InputStream in) throws Exception {
-                ByteArrayOutputStream buffer = new ByteArrayOutputStream();
-                while (true) {
-                    int b = in.read();
-                    if (b < 0) {
-                        throw new IOException("Data truncated");
-                    }
-                    if (b == 0x0A) {
-                        break;
-                    }
-                    buffer.write(b);
-                }
-                String res = buffer.toString(StandardCharsets.UTF_8.toString());
-                if (res.length() > 0 && res.charAt(res.length() - 1) == '\r')
-                    res = res.substring(0, res.length() - 1); // Remove the '\r'
-                return res;
-            }
-
-            /**
-             * @param in
-             * @param len
-             * @return
-             * @throws Exception
-             * @brief Read a fixed-length chunk of data from the HTTP input
-             */
-            private static byte[] readBytes(InputStream in, int len) throws Exception {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                byte[] out = new byte[len];
-                int bleft = len;
-
-                while (bleft > 0) {
-                    int x = in.read(out, 0, bleft);
-                    bleft -= x;
-                    os.write(out, 0, x);
-                }
-                return os.toByteArray();
-            }
-
-            /**
-             * @param line
-             * @return
-             * @brief Get the chunked element size from the proceeding flow
+             * @param header
+             * @param value
+             * @throws IOException
+             * @brief Record a header received. Those that govern how the body is framed are kept as fields, the
+             * rest go into the header map.
              */
-            private int getChunkSize(String line) {
-                int len;
-                try {
-                    len = Integer.parseInt(line.trim().split("\\s+")[0], 16);
-                } catch (Exception ex) {
-                    len = 0;
+            protected void addHeader(String header, String value) throws IOException {
+                if (header.equalsIgnoreCase("Connection") && !value.equalsIgnoreCase("keep-alive"))
+                    keepAlive = false; // Close the connection
+                if (header.equalsIgnoreCase("Content-Length")) {
+                    int len = parseContentLength(value);
+                    if (contentLengthSeen && len != bodyLen)
+                        throw new IOException("Conflicting Content-Length headers");
+                    contentLengthSeen = true;
+                    bodyLen = len;
+                } else if (header.equalsIgnoreCase("TE"))
+                    hasTrailers = value.equalsIgnoreCase("trailers"); // As per sec 14.39 of RFC 2616
+                else if (header.equalsIgnoreCase("Transfer-Encoding")) {
+                    chunked = value.toLowerCase().contains("chunked");
+                    chunkedHeaderSeen = chunked;
+                } else headers.put(header, value);
+            }
+
+            private static int parseContentLength(String value) throws IOException {
+                long len = 0;
+                for (int i = 0; i < value.length(); i++) {
+                    char c = value.charAt(i);
+                    if (c < '0' || c > '9' || (len = len * 10 + (c - '0')) > Integer.MAX_VALUE)
+                        throw new IOException("Invalid Content-Length: " + value);
                 }
-                return len;
+                if (value.isEmpty())
+                    throw new IOException("Empty Content-Length");
+                return (int) len;
             }
 
             /**
@@ -2364,100 +2552,6 @@ public class Utils {
                 headers.put("Connection", closeConn ? "close" : "keep-alive");
             }
 
-            /**
-             * @param in
-             * @throws Exception
-             * @brief Read a full HTTP message: Start line, headers, body
-             */
-            protected void readMessage(InputStream in) throws Exception {
-                parseStartLine(readLine(in));
-                readHeaders(in);
-                readBody(in);
-            }
-
-            /**
-             * @param in
-             * @throws Exception
-             * @brief Read the message headers, return whether body is chunked and whether we have trailers.
-             */
-            private void readHeaders(InputStream in) throws Exception {
-                String s;
-                while ((s = readLine(in)) != null && !s.isEmpty()) {
-                    String[] xl = s.split(":");
-                    String header = xl[0].trim();
-                    String value = xl[1].trim();
-
-                    if (header.equalsIgnoreCase("Connection") && !value.equalsIgnoreCase("keep-alive"))
-                        keepAlive = false; // Close the connection
-                    if (header.equalsIgnoreCase("Content-Length")) {
-                        try {
-                            String.format("Http Incoming Content-Length Header: %s", value);
-                            contentLengthSeen = true;
-                            bodyLen = Integer.parseInt(value);
-                        } catch (Exception ex) {
-                            bodyLen = 0;
-                        }
-                    } else if (header.equalsIgnoreCase("TE")) {
-                        String.format("Http Incoming TE Header: %s", value);
-                        hasTrailers = value.equalsIgnoreCase("trailers"); // As per sec 14.39 of RFC 2616
-                    } else if (header.equalsIgnoreCase("Transfer-Encoding")) {
-                        String.format("Http Incoming Transfer-Encoding Header: %s", value);
-                        chunked = value.toLowerCase().contains("chunked");
-                        chunkedHeaderSeen = chunked;
-                    } else headers.put(header, value);
-
-                }
-
-
-                String xout = "";
-                for (Map.Entry<String, String> e : headers.entrySet())
-                    xout += String.format("\nHttp Incoming Header %s: %s", e.getKey(), e.getValue());
-                Utils.lg.info(xout);
-            }
-
-
-            /**
-             * @param in
-             * @throws Exception
-             * @brief Read an HTTP message body, taking into account whether the headers indicated
-             * chunked encoding, or it has a body, and the body length (from the Content-Length header)
-             */
-            private void readBody(InputStream in) throws Exception {
-                // Body follows.
-                String s;
-                if (!hasBody()) bodyLen = 0; // Regardless
-                else if (chunked) {
-                    // Read chunked: Sec 3.6.1 of the RFC
-                    int len;
-                    byte[] trailer = new byte[2];
-                    ByteArrayOutputStream xos = new ByteArrayOutputStream();
-                    while ((s = readLine(in)) != null && !s.trim().isEmpty() && (len = getChunkSize(s)) > 0) {
-                        byte[] data = readBytes(in, len);
-                        xos.write(data); // Read each chunk, append it.
-                        // Read trailer
-                        in.read(trailer);
-
-                        if (trailer[0] != '\r' && trailer[1] != '\n')
-                            Utils.lg.warning("Invalid chunked encoding trailer, got: %s" + HEX.b2H(trailer));
-                    }
-
-                    body = xos.toByteArray();
-                    if (hasTrailers) { // Get and add trailer headers
-                        while ((s = readLine(in)) != null && !s.isEmpty()) {
-                            String[] xl = s.split(":");
-                            String header = xl[0].trim();
-                            String value = xl[1].trim();
-
-                            headers.put(header, value);
-                        }
-                        readLine(in); // Remove the last CRLF
-                    }
-
-                } else body = readBytes(in, bodyLen);
-
-                Utils.lg.info(String.format("HTTP server, body received: %s", HEX.b2H(body)));
-            }
-
             /**
              * @param line
              * @throws Exception
@@ -2496,7 +2590,7 @@ public class Utils {
              * @brief Print/send out a HTTP Message: First line, then headers, then body (if any).
              */
             public final void outputMessage(OutputStream out) throws Exception {
-                ByteArrayOutputStream xos = new ByteArrayOutputStream();
+                ByteArrayOutputStream xos = new ByteArrayOutputStream(512 + (body != null ? body.length : 0));
                 printFirstLine(xos);
                 xos.write("\r\n".getBytes(StandardCharsets.UTF_8));
                 // Now print the headers
@@ -2519,29 +2613,24 @@ public class Utils {
                 }
 
                 xos.write("\r\n".getBytes(StandardCharsets.UTF_8));
-                if (xhasBody) {
-                    byte[] pre = (useChunked) ?
-                String.format("%X\r\n", body.length).getBytes(StandardCharsets.UTF_8) : new byte[0];
-                    byte[] post = (useChunked) ? "\r\n".getBytes(StandardCharsets.UTF_8) : new byte[0];
-
-                    xos.write(pre);
+                if (xhasBody && useChunked) {
+                    if (body.length > 0) { // The whole body goes as one chunk: A zero-sized one would end it.
+                        xos.write(Integer.toHexString(body.length).toUpperCase().getBytes(StandardCharsets.US_ASCII));
+                        xos.write(CRLF);
+                        xos.write(body);
+                        xos.write(CRLF);
+                    }
+                    xos.write(LAST_CHUNK);
+                } else if (xhasBody)
                     xos.write(body);
-                    xos.write(post);
-
-                    xos.write("0\r\n\r\n".getBytes(StandardCharsets.UTF_8)); // Last chunk, write...
-                }
 
 
                 byte[] xout = xos.toByteArray();
                 out.write(xout); // Write all at once. Right?
                 out.flush();
-                try {
-                    // Log it:
-                    String xs = new String(xout, StandardCharsets.US_ASCII);
-                    Utils.lg.info("HTTP Response going out as txt[" + xs + "], bin[" + HEX.b2H(xout) + "]");
-                } catch (Exception ex) {
-                    String ss = ex.getLocalizedMessage();
-                }
+                // Log it, if anyone is listening:
+                Utils.lg.log(Level.INFO, () -> "HTTP Response going out as txt[" +
+                        new String(xout, StandardCharsets.US_ASCII) + "], bin[" + HEX.b2H(xout) + "]");
             }
         }
 
@@ -2556,13 +2645,8 @@ public class Utils {
             public Map<String, Object> cgiParams; // CGI Parameters
             public String fragment;
 
-            /**
-             * @param in
-             * @throws Exception
-             * @brief Read a Request message from the input
-             */
-            public Request(InputStream in) throws Exception {
-                readMessage(in);
+            private Request() {
+                // Filled in by the Parser
             }
 
             /**
@@ -2636,12 +2720,13 @@ public class Utils {
                 } else cgiParams = new ConcurrentHashMap<String, Object>();
                 // Get verbs
                 xl = uri.split("/");
-                int offset = xl[0].length() == 0 ? 1 : 0; // If the URL begins with a '/' then the verb is the string
-                // right after it.
-                uriVerb = xl[offset];
+                int offset = xl.length > 0 && xl[0].length() == 0 ? 1 : 0; // If the URL begins with a '/' then the
+                // verb is the string right after it.
+                uriVerb = offset < xl.length ? xl[offset] : "";
                 int argsLen = xl.length - 1 - offset;
                 args = new String[argsLen >= 0 ? argsLen : 0];
-                System.arraycopy(xl, offset + 1, args, 0, args.length);
+                if (args.length > 0)
+                    System.arraycopy(xl, offset + 1, args, 0, args.length);
             }
 
             /**
@@ -2673,8 +2758,8 @@ public class Utils {
             public javax.ws.rs.core.Response.Status status = javax.ws.rs.core.Response.Status.OK;
             public String statusMsg;
 
-            public Response(InputStream in) throws Exception {
-                readMessage(in);
+            private Response() {
+                // Filled in by the Parser
             }
 
             public Response(javax.ws.rs.core.Response.Status rStatus, Map<String, String> rHeaders, String ctype,
@@ -2742,6 +2827,282 @@ statusMsg : status.getReasonPhrase());
 
             }
         }
+
+        /**
+         * @brief An incremental HTTP/1.1 message parser, e.g. for the SCP81 admin channel.
+         * @details Input is fed in as it arrives into a buffer that is kept across the messages of a connection, and
+         * complete messages are taken off it one at a time. Nothing is parsed twice, however the input is split up.
+         * Chunked bodies are de-chunked in place, so each body is copied out of the buffer exactly once, into the
+         * array that is then handed on as is. Well-known header names, including all the X-Admin-* headers of
+         * GPC Amd B, are matched without regard to case and stored under their canonical spelling.
+         * Malformed or oversized input raises an IOException, after which the parser must not be used again.
+         */
+        public static class Parser<T extends Message> {
+            private static final int MAX_LINE_LEN = 8 * 1024; //!< Longest start, header or chunk-size line
+            private static final int MAX_FIELDS = 100; //!< Most header and trailer fields in one message
+            private static final int INITIAL_BUFFER_LEN = 4 * 1024;
+            private static final String[] KNOWN_HEADERS = {
+                    "Host", "Connection", "Content-Length", "Content-Type", "Transfer-Encoding", "TE", "Date",
+                    "User-Agent", "Accept", X_ADMIN_PROTOCOL, X_ADMIN_FROM, X_ADMIN_SCRIPT_STATUS, X_ADMIN_RESUME,
+                    X_ADMIN_NEXT_URI, X_ADMIN_TARGETED_APPLICATION
+            };
+
+            private enum State {
+                START_LINE, HEADERS, BODY, CHUNK_SIZE, CHUNK_DATA, CHUNK_END, TRAILERS
+            }
+
+            private final Supplier<T> factory;
+            private final int maxMessageLen; //!< Largest message (start line, headers, body) we accept
+            private byte[] buf = new byte[INITIAL_BUFFER_LEN];
+            private int start = 0; //!< Where the current message starts. All before it has been consumed
+            private int pos = 0; //!< The next byte to parse
+            private int scan = 0; //!< How far we have looked for the end of the current line
+            private int end = 0; //!< The end of the input received so far
+            private int bodyStart, bodyEnd; //!< The de-chunked body so far
+            private int remaining; //!< What is left of the body, or of the current chunk
+            private int fields; //!< Header and trailer fields seen so far
+            private State state = State.START_LINE;
+            private T msg;
+
+            private Parser(Supplier<T> factory, int maxMessageLen) {
+                this.factory = factory;
+                this.maxMessageLen = maxMessageLen;
+            }
+
+            public static Parser<Request> forRequests(int maxMessageLen) {
+                return new Parser<>(Request::new, maxMessageLen);
+            }
+
+            public static Parser<Response> forResponses(int maxMessageLen) {
+                return new Parser<>(Response::new, maxMessageLen);
+            }
+
+            /**
+             * @param data
+             * @param offset
+             * @param len
+             * @brief Add input to the buffer
+             */
+            public void feed(byte[] data, int offset, int len) {
+                if (end + len > buf.length) {
+                    compact();
+                    if (end + len > buf.length)
+                        buf = Arrays.copyOf(buf, Math.max(2 * buf.length, end + len));
+                }
+                System.arraycopy(data, offset, buf, end, len);
+                end += len;
+            }
+
+            /**
+             * @return Whether there is input not yet taken off as a message
+             */
+            public boolean hasInput() {
+                return end > start;
+            }
+
+            /**
+             * @return the next complete message, or null if more input is needed
+             * @throws IOException if the input is not valid HTTP, or the message is too large
+             */
+            public T next() throws IOException {
+                int eol;
+                while (true)
+                    switch (state) {
+                        case START_LINE:
+                            if ((eol = lineEnd()) < 0)
+                                return null;
+                            String line = new String(buf, pos, trimCR(pos, eol) - pos, StandardCharsets.UTF_8);
+                            pos = eol + 1;
+                            if (line.isEmpty()) {
+                                start = pos; // RFC 7230 Sec 3.5: Ignore empty lines before the start line
+                                break;
+                            }
+                            msg = factory.get();
+                            fields = 0;
+                            try {
+                                msg.parseStartLine(line);
+                            } catch (Exception ex) {
+                                throw new IOException("Malformed HTTP start line: " + line);
+                            }
+                            state = State.HEADERS;
+                            break;
+                        case HEADERS:
+                            if ((eol = lineEnd()) < 0)
+                                return null;
+                            if (trimCR(pos, eol) > pos) {
+                                addField(pos, trimCR(pos, eol), false);
+                                pos = eol + 1;
+                                break;
+                            }
+                            pos = eol + 1; // Empty line: End of headers.
+                            if (!msg.hasBody())
+                                return done();
+                            if (msg.chunked) {
+                                bodyStart = bodyEnd = pos;
+                                state = State.CHUNK_SIZE;
+                            } else {
+                                checkLength(msg.bodyLen);
+                                remaining = msg.bodyLen;
+                                state = State.BODY;
+                            }
+                            break;
+                        case BODY:
+                            if (end - pos < remaining)
+                                return null;
+                            msg.body = Arrays.copyOfRange(buf, pos, pos + remaining);
+                            pos += remaining;
+                            return done();
+                        case CHUNK_SIZE: // Sec 4.1 of RFC 7230
+                            if ((eol = lineEnd()) < 0)
+                                return null;
+                            remaining = parseChunkSize(pos, trimCR(pos, eol));
+                            pos = eol + 1;
+                            checkLength(remaining);
+                            state = remaining > 0 ? State.CHUNK_DATA : State.TRAILERS;
+                            break;
+                        case CHUNK_DATA:
+                            if (end - pos < remaining)
+                                return null;
+                            System.arraycopy(buf, pos, buf, bodyEnd, remaining); // De-chunk in place
+                            bodyEnd += remaining;
+                            pos += remaining;
+                            state = State.CHUNK_END;
+                            break;
+                        case CHUNK_END:
+                            if (pos < end && buf[pos] == '\n')
+                                pos++;
+                            else if (end - pos < 2)
+                                return null;
+                            else if (buf[pos] == '\r' && buf[pos + 1] == '\n')
+                                pos += 2;
+                            else
+                                throw new IOException("Invalid chunked encoding: Chunk not followed by CRLF");
+                            state = State.CHUNK_SIZE;
+                            break;
+                        case TRAILERS:
+                            if ((eol = lineEnd()) < 0)
+                                return null;
+                            if (trimCR(pos, eol) > pos) {
+                                addField(pos, trimCR(pos, eol), true);
+                                pos = eol + 1;
+                                break;
+                            }
+                            pos = eol + 1;
+                            msg.body = Arrays.copyOfRange(buf, bodyStart, bodyEnd);
+                            return done();
+                    }
+            }
+
+            private T done() {
+                T m = msg;
+                msg = null;
+                state = State.START_LINE;
+                start = scan = pos;
+                if (start == end)
+                    start = pos = scan = end = 0; // All consumed: Start over at the front of the buffer.
+                return m;
+            }
+
+            private void compact() {
+                if (start == 0)
+                    return;
+                System.arraycopy(buf, start, buf, 0, end - start);
+                pos -= start;
+                scan -= start;
+                end -= start;
+                bodyStart -= start;
+                bodyEnd -= start;
+                start = 0;
+            }
+
+            /**
+             * @return the index of the LF that ends the line starting at pos, or -1 if it has not yet been received
+             * @throws IOException if the line is too long
+             */
+            private int lineEnd() throws IOException {
+                for (int i = Math.max(scan, pos); i < end; i++)
+                    if (buf[i] == '\n') {
+                        if (i - pos > MAX_LINE_LEN)
+                            break;
+                        scan = i + 1;
+                        return i;
+                    }
+                if (end - pos > MAX_LINE_LEN)
+                    throw new IOException(String.format("HTTP line exceeds %s bytes", MAX_LINE_LEN));
+                scan = end;
+                return -1;
+            }
+
+            private int trimCR(int from, int eol) {
+                return eol > from && buf[eol - 1] == '\r' ? eol - 1 : eol;
+            }
+
+            private void checkLength(int len) throws IOException {
+                if (len > maxMessageLen - (pos - start))
+                    throw new IOException(String.format("HTTP message exceeds %s bytes", maxMessageLen));
+            }
+
+            private static boolean isSpace(byte b) {
+                return b == ' ' || b == '\t';
+            }
+
+            private int parseChunkSize(int from, int to) throws IOException {
+                int len = 0, i = from;
+                for (; i < to; i++) {
+                    int d = Character.digit(buf[i], 16);
+                    if (d < 0)
+                        break;
+                    if (len > (Integer.MAX_VALUE >> 4))
+                        throw new IOException("Invalid chunked encoding: Chunk size too large");
+                    len = (len << 4) | d;
+                }
+                if (i == from || (i < to && buf[i] != ';' && !isSpace(buf[i])))
+                    throw new IOException("Invalid chunked encoding: Bad chunk size"); // Extensions are ignored.
+                return len;
+            }
+
+            /**
+             * @brief Parse a single "name: value" header or trailer field, on the line [from, to).
+             */
+            private void addField(int from, int to, boolean isTrailer) throws IOException {
+                if (++fields > MAX_FIELDS)
+                    throw new IOException(String.format("More than %s HTTP header fields", MAX_FIELDS));
+                int colon = from;
+                while (colon < to && buf[colon] != ':')
+                    colon++;
+                int nameEnd = colon;
+                while (nameEnd > from && isSpace(buf[nameEnd - 1]))
+                    nameEnd--;
+                // Lines starting with whitespace are obsolete line folding: Sec 3.2.4 of RFC 7230 lets us reject it.
+                if (colon == to || nameEnd == from || isSpace(buf[from]))
+                    throw new IOException("Malformed HTTP header field");
+                int vStart = colon + 1, vEnd = to;
+                while (vStart < vEnd && isSpace(buf[vStart]))
+                    vStart++;
+                while (vEnd > vStart && isSpace(buf[vEnd - 1]))
+                    vEnd--;
+                String name = headerName(from, nameEnd);
+                String value = new String(buf, vStart, vEnd - vStart, StandardCharsets.UTF_8);
+                if (!isTrailer)
+                    msg.addHeader(name, value);
+                else if (msg.hasTrailers)
+                    msg.headers.put(name, value);
+            }
+
+            private String headerName(int from, int to) {
+                int len = to - from;
+                for (String h : KNOWN_HEADERS)
+                    if (h.length() == len) {
+                        int i = 0;
+                        while (i < len && Character.toLowerCase((char) buf[from + i]) ==
+                                Character.toLowerCase(h.charAt(i)))
+                            i++;
+                        if (i == len)
+                            return h;
+                    }
+                return new String(buf, from, len, StandardCharsets.US_ASCII);
+            }
+        }
     }
 
 }
@@ -24,6 +24,7 @@ import javax.persistence.*;
  */
 @Entity
 @Table(name = "keycomponents")
+@EntityListeners(KeysChangeListener.class) // Drop cached SCP81 keys when they change
 @SequenceGenerator(name = "keycomponent", sequenceName = "keycomponent_seq", allocationSize = 1)
 @JsonIgnoreProperties(value = {"hibernateLazyInitializer","key"})
 @DynamicUpdate
@@ -34,6 +34,7 @@ import java.util.List;
 }, indexes = {
         @Index(columnList = "version,sd_id", name = "keysets_idx1")
 })
+@EntityListeners(KeysChangeListener.class) // Drop cached SCP81 keys when they change
 @SequenceGenerator(name = "keysets", sequenceName = "keysets_seq", allocationSize = 1)
 @JsonIgnoreProperties(value = {"hibernateLazyInitializer", "keyset"})
 @DynamicUpdate
@@ -0,0 +1,80 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common.model;
+
+import io.njiwa.common.Utils;
+import io.njiwa.sr.transports.RamHttp;
+
+import javax.naming.InitialContext;
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+import javax.transaction.Status;
+import javax.transaction.Synchronization;
+import javax.transaction.TransactionSynchronizationRegistry;
+
+/**
+ * @brief Watches keysets and key components, and tells those that cache key material when SCP81 keys change.
+ * @details The entity callbacks run when the change is flushed, before it is committed. Until then other transactions
+ * still read the old keys, so caches are only told once the transaction has committed.
+ */
+public class KeysChangeListener {
+    private static final String TSR_NAME = "java:comp/TransactionSynchronizationRegistry";
+    private static final Object SCP81_CHANGED = new Object(); //!< Marks the transaction as having changed SCP81 keys
+
+    @PostPersist
+    @PostUpdate
+    @PostRemove
+    void handleKeysChange(Object o) {
+        KeySet ks;
+        try {
+            ks = o instanceof KeySet ? (KeySet) o : ((KeyComponent) o).getKey().getKeyset();
+        } catch (Exception ex) {
+            ks = null; // Can't tell which keyset. Assume the worst.
+        }
+        // Counters on SCP80 keysets are bumped on every OTA message: Ignore those.
+        if (ks == null || ks.getType() == KeySet.Type.SCP81)
+            scp81KeysChangedOnCommit();
+    }
+
+    /**
+     * @brief Call RamHttp.scp81KeysChanged() once the current transaction commits (once per transaction), or right
+     * away if there is no transaction to wait for.
+     */
+    private static void scp81KeysChangedOnCommit() {
+        try {
+            TransactionSynchronizationRegistry tsr = (TransactionSynchronizationRegistry) new InitialContext()
+                    .lookup(TSR_NAME);
+            if (tsr.getTransactionStatus() == Status.STATUS_ACTIVE) {
+                if (tsr.getResource(SCP81_CHANGED) == null) {
+                    tsr.putResource(SCP81_CHANGED, Boolean.TRUE);
+                    tsr.registerInterposedSynchronization(new Synchronization() {
+                        @Override
+                        public void beforeCompletion() {
+                        }
+
+                        @Override
+                        public void afterCompletion(int status) {
+                            if (status == Status.STATUS_COMMITTED)
+                                RamHttp.scp81KeysChanged();
+                        }
+                    });
+                }
+                return;
+            }
+        } catch (Exception ex) {
+            Utils.lg.warning(String.format("SCP81 key change: Cannot wait for commit, telling caches now: %s", ex));
+        }
+        RamHttp.scp81KeysChanged();
+    }
+}
@@ -18,6 +18,7 @@ import io.njiwa.common.model.RpaEntity;
 import io.njiwa.common.rest.annotations.RestRoles;
 import io.njiwa.common.rest.types.*;
 import io.njiwa.sr.model.Eis;
+import io.njiwa.sr.transports.BipCatTP;
 import io.njiwa.sr.transports.Transport;
 
 import javax.persistence.EntityManager;
@@ -129,6 +130,20 @@ public class Reports {
         return StatsCollector.getTransportStats();
     }
 
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/cattp-timer-stats")
+    public Map<String, Long> getCatTPTimerStats() {
+        return BipCatTP.getTimerStats();
+    }
+
+    @GET
+    @Produces(MediaType.APPLICATION_JSON)
+    @Path("/cattp-connection-stats")
+    public Map<String, Long> getCatTPConnectionStats() {
+        return BipCatTP.getConnectionStats();
+    }
+
     @GET
     @Produces(MediaType.APPLICATION_JSON)
     @Path("/roles")
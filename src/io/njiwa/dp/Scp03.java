@@ -183,38 +183,44 @@ public class Scp03 {
             return null;
         }
 
-        private byte[] encryptData(byte[] data) {
-
-            if (data.length > 0)
-                try {
-                    byte[] xdata = Utils.pad80(data, 16);
-                    Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
-                    Key k = new SecretKeySpec(senc, "AES");
-                    c.init(Cipher.ENCRYPT_MODE, k, nullIv16); // Sec 6.2.6 of Ammend. D
-                    byte[] iv = c.doFinal(encCounter);
-                    c.init(Cipher.ENCRYPT_MODE, k, new IvParameterSpec(iv));
-                    data = c.doFinal(xdata); // Then encrypt data
-                } catch (Exception ex) {
-                }
+        private byte[] encryptData(byte[] data) throws Exception {
+
+            if (data.length > 0) {
+                byte[] xdata = Utils.pad80(data, 128); // To the AES block size
+                Cipher c = Cipher.getInstance("AES/CBC/NoPadding");
+                Key k = new SecretKeySpec(senc, "AES");
+                c.init(Cipher.ENCRYPT_MODE, k, nullIv16); // Sec 6.2.6 of Ammend. D
+                byte[] iv = c.doFinal(encCounter);
+                c.init(Cipher.ENCRYPT_MODE, k, new IvParameterSpec(iv));
+                data = c.doFinal(xdata); // Then encrypt data
+            }
             return data;
         }
 
         private byte[] decryptAndCheckMac(byte[] resp, int emode) throws Exception {
             // Do it based on mode
             byte[] encdata, r_mac = new byte[8];
+            byte[] forMac; // What the R-MAC is computed over, after the MAC chaining value
             if (mode == Mode.TLV) {
                 Utils.Pair<Integer, byte[]> xres = Utils.BER.decodeTLV(resp);
                 encdata = xres.l;
                 if ((xres.k >> 8) == 0x9F) // Error
                     throw new ErrorResponse(xres.k, encdata);
+                forMac = resp;
             } else {
-                int sw1 = resp[resp.length - 2], sw2 = resp[resp.length - 1];
+                int sw1 = resp[resp.length - 2] & 0xFF, sw2 = resp[resp.length - 1] & 0xFF;
                 encdata = Arrays.copyOf(resp, resp.length - 2);
                 if (!SDCommand.APDU.isSuccessCode(sw1))
                     throw new ErrorResponse((sw1 << 8) | sw2, encdata);
+                // Response data without the R-MAC, then the status word: Sec 6.2.5 of Ammend. D
+                forMac = Arrays.copyOf(resp, resp.length - 8);
+                forMac[forMac.length - 2] = (byte) sw1;
+                forMac[forMac.length - 1] = (byte) sw2;
             }
+            if (encdata.length < r_mac.length)
+                throw new InvalidCMAC("Response too short for an RMAC");
             System.arraycopy(encdata, encdata.length - 8, r_mac, 0, r_mac.length);
-            Arrays.copyOf(encdata, encdata.length - 8);
+            encdata = Arrays.copyOf(encdata, encdata.length - 8);
             byte[] data;
             if (encdata.length > 0 && (emode & R_ENCRYPTION) != 0) {
                 // Now decrypt. Use the existing iv
@@ -222,28 +228,25 @@ public class Scp03 {
                 Key k = new SecretKeySpec(senc, "AES");
                 c.init(Cipher.ENCRYPT_MODE, k, nullIv16); // Sec 6.2.6 of Ammend. D
                 byte[] icvblock = Arrays.copyOf(encCounter, encCounter.length);
-                icvblock[icvblock.length - 1] = (byte) 0x80; // According to Sec 6.2.7 of Ammend. D
+                icvblock[0] = (byte) 0x80; // The command's counter, first byte set: Sec 6.2.7 of Ammend. D
                 byte[] iv = c.doFinal(icvblock);
                 c.init(Cipher.DECRYPT_MODE, k, new IvParameterSpec(iv));
                 data = c.doFinal(encdata);
                 // Finally remove the padding...
-                int i;
-                for (i = data.length - 1; i > 0; i--)
-                    if (data[i] == 0)
-                        continue;
-                    else if (data[i] == 0x80)
-                        break;
+                int i = data.length - 1;
+                while (i >= 0 && data[i] == 0)
+                    i--;
+                if (i < 0 || data[i] != (byte) 0x80)
+                    throw new Exception("Invalid padding in response");
                 data = Arrays.copyOf(data, i);
             } else   // Else data is unchanged
                 data = Arrays.copyOf(encdata, encdata.length);
 
-            // Check mac: Always implied.
-            byte[] forMac = Arrays.copyOf(macChainingValue, macChainingValue.length + resp.length);
-            System.arraycopy(resp, 0, forMac, macChainingValue.length, resp.length);
-            // Do the MAc: Sec 6.2.5 of Ammend. D
+            // Check mac: Always implied. Sec 6.2.5 of Ammend. D
             BlockCipher cp = new AESEngine();
             CMac cmac = new CMac(cp);
             cmac.init(new KeyParameter(srmac));
+            cmac.update(macChainingValue, 0, macChainingValue.length);
             cmac.update(forMac, 0, forMac.length);
             byte[] out = new byte[cmac.getMacSize()];
             cmac.doFinal(out, 0);
@@ -251,48 +254,50 @@ public class Scp03 {
             if (!Arrays.equals(out_rmac, r_mac))
                 throw new InvalidCMAC(String.format("Invalid RMAC, got [%s], expected [%s]", Utils.HEX.b2H(out), Utils.HEX
                         .b2H(r_mac)));
-            incrementCtr(encCounter); // Bump encryption counter up
             return data;
         }
 
-        private void encryptAndMac(SDCommand c, int emode) {
+        /**
+         * @brief Encrypt (if asked) and MAC a command in place. On error the command is left as it was.
+         */
+        private void encryptAndMac(SDCommand c, int emode) throws Exception {
             boolean isapdu = c instanceof SDCommand.APDU;
             byte[] data = isapdu ? ((SDCommand.APDU) c).data : ((SDCommand.SCP03tCommand) c)
                     .data;
-            byte[] edata = (emode & C_DECRYPTION) != 0 ? encryptData(data) : data;
+            byte[] edata = data;
+            if ((emode & C_DECRYPTION) != 0) {
+                incrementCtr(encCounter); // Once per command, with or without data. The response uses the same value
+                edata = encryptData(data);
+            }
 
             // C_MAC is implied. Always?
-            try {
-                ByteArrayOutputStream os = new ByteArrayOutputStream();
-                os.write(macChainingValue);
-                c.appendDataForCMAC(os, edata);
-                byte[] input = os.toByteArray();
-                // Do the MAc
-                BlockCipher cp = new AESEngine();
-                CMac cmac = new CMac(cp);
-                cmac.init(new KeyParameter(smac));
-                cmac.update(input, 0, input.length);
-                byte[] out = new byte[cmac.getMacSize()];
-                cmac.doFinal(out, 0);
-
-                byte[] cmdMac = Arrays.copyOf(out, 8); // Copy first 8 bytes as c-mac
-                System.arraycopy(out, 0, macChainingValue, 0, macChainingValue.length); // Copy new chaining value
-
-                edata = Arrays.copyOf(edata, edata.length + cmdMac.length);
-                System.arraycopy(cmdMac, 0, edata, edata.length, cmdMac.length);
-                // Now rebuild the commands
-                if (isapdu) {
-                    SDCommand.APDU apdu = (SDCommand.APDU) c;
-                    apdu.data = edata;
-                    apdu.cla = (short) 0x84;
-                } else {
-                    SDCommand.SCP03tCommand cs = (SDCommand.SCP03tCommand) c;
-                    cs.data = edata;
-                    // Tag is unchanged. Could be 0x85 (for external auth) or 0x86 for regular data, so leave it alone
-                }
-            } catch (Exception ex) {
-            }
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            os.write(macChainingValue);
+            c.appendDataForCMAC(os, edata);
+            byte[] input = os.toByteArray();
+            // Do the MAc
+            BlockCipher cp = new AESEngine();
+            CMac cmac = new CMac(cp);
+            cmac.init(new KeyParameter(smac));
+            cmac.update(input, 0, input.length);
+            byte[] out = new byte[cmac.getMacSize()];
+            cmac.doFinal(out, 0);
+
+            byte[] cmdMac = Arrays.copyOf(out, 8); // Copy first 8 bytes as c-mac
+            System.arraycopy(out, 0, macChainingValue, 0, macChainingValue.length); // Copy new chaining value
 
+            edata = Arrays.copyOf(edata, edata.length + cmdMac.length);
+            System.arraycopy(cmdMac, 0, edata, edata.length - cmdMac.length, cmdMac.length);
+            // Now rebuild the commands
+            if (isapdu) {
+                SDCommand.APDU apdu = (SDCommand.APDU) c;
+                apdu.data = edata;
+                apdu.cla = (short) 0x84;
+            } else {
+                SDCommand.SCP03tCommand cs = (SDCommand.SCP03tCommand) c;
+                cs.data = edata;
+                // Tag is unchanged. Could be 0x85 (for external auth) or 0x86 for regular data, so leave it alone
+            }
         }
 
         public SDCommand scp03Command() throws Exception {
@@ -331,10 +336,9 @@ public class Scp03 {
                         c = new SDCommand.SCP03tCommand(0x85, edata);
                     } else
                         c = new SDCommand.APDU(0x80, 0x82, secLevel, 0x0, hostCryptoGram);
-                    // Now wrap the command
+                    // Now wrap the command. The MAC chains on from here, the encryption counter starts here.
                     encryptAndMac(c, C_MAC); // Only MAC
-                    encCounter = Arrays.copyOf(null16b, null16b.length);
-                    macChainingValue = Arrays.copyOf(null16b, null16b.length); // Figure 6-3 of Ammend. D
+                    encCounter = Arrays.copyOf(null16b, null16b.length); // Sec 6.2.6 of Ammend. D
                     return c;
                 case AUTHENTICATED:
                     try {
@@ -365,8 +369,8 @@ public class Scp03 {
                                         res.l));
                             resp = res.l;
                         } else {
-                            int sw1 = resp[resp.length - 2];
-                            int sw2 = resp[resp.length - 1];
+                            int sw1 = resp[resp.length - 2] & 0xFF;
+                            int sw2 = resp[resp.length - 1] & 0xFF;
                             if (!(sw1 == 0x90 && sw2 == 0x00))
                                 throw new Exception(String.format("Failed external auth [%02x%02x", sw1, sw2));
                         }
@@ -414,6 +418,7 @@ public class Scp03 {
                         }
 
                         hostCryptoGram = kdf(smac, (byte) 0x01, context, 64); // Compute host cryptogram
+                        macChainingValue = Arrays.copyOf(null16b, null16b.length); // Figure 6-3 of Ammend. D
                         state = State.AWAITING_AUTH; // Move to next state
                         break;
                     case AWAITING_AUTH:
@@ -426,8 +431,8 @@ public class Scp03 {
                             decryptAndCheckMac(resp, R_MAC); // This throws an exception on error, so we don't fall in
                             // below.
                         } else {
-                            int sw1 = resp[resp.length - 2];
-                            int sw2 = resp[resp.length - 1];
+                            int sw1 = resp[resp.length - 2] & 0xFF;
+                            int sw2 = resp[resp.length - 1] & 0xFF;
                             if (!(sw1 == 0x90 && sw2 == 0x00))
                                 throw new Exception(String.format("Failed external auth [%02x%02x", sw1, sw2));
                         }
@@ -424,10 +424,18 @@ public class ProfileTemplate {
     }
 
     public byte[] performDataPreparation(EntityManager em, String eid, ConnectivityParams cp) throws Exception {
-        List<ProfileElement> profileElements = profileElements();
-        Map<String, byte[]> data = obtainData(em, eid, cp);
-        Map<String, ParamTarget> ptypes = getParameterTypes();
+        return performDataPreparation(profileElements(), obtainData(em, eid, cp), getParameterTypes());
+    }
 
+    /**
+     * @param profileElements The profile, which is modified
+     * @param data            The values, by parameter name
+     * @param ptypes          Where each parameter goes
+     * @return the DER-encoded profile, with the parameters replaced by their values
+     * @brief Patch the profile data into the profile elements
+     */
+    public static byte[] performDataPreparation(List<ProfileElement> profileElements, Map<String, byte[]> data,
+                                                Map<String, ParamTarget> ptypes) throws Exception {
         // Make a map of TargetType => List<Pair(key,value)>
         Map<ParamTarget, List<Utils.Pair<byte[], byte[]>>> replacements = new HashMap<ParamTarget, List<Utils.Pair<byte[],
                 byte[]>>>() {
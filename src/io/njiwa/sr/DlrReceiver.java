@@ -15,7 +15,6 @@ package io.njiwa.sr;
 import io.njiwa.common.PersistenceUtility;
 import io.njiwa.common.ServerSettings;
 import io.njiwa.common.Utils;
-import io.njiwa.sr.transports.Transport;
 
 import javax.ejb.EJB;
 import javax.servlet.ServletException;
@@ -82,7 +81,11 @@ public class DlrReceiver extends HttpServlet {
             long smsId = Long.parseLong(xsmsId);
             int partNo = Integer.parseInt(xpartNo);
 
-            Transport.receiveDlr(po, msisdn, dlrCode, smsId, tag, tagID, partNo);
+            // Queue it and ack at once; it is applied later in a batch.
+            if (!SmsCallbackQueue.offerDlr(msisdn, dlrCode, smsId, tag, tagID, partNo)) {
+                response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Queue full");
+                return;
+            }
         } catch (Exception ex) {
 
         }
@@ -15,11 +15,9 @@ package io.njiwa.sr;
 import io.njiwa.common.PersistenceUtility;
 import io.njiwa.common.Utils;
 import io.njiwa.sr.ota.Ota;
-import io.njiwa.sr.transports.Transport;
 
 import javax.ejb.EJB;
 import javax.inject.Inject;
-import javax.persistence.EntityManager;
 import javax.servlet.ServletException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -85,18 +83,11 @@ public class MoHandler extends HttpServlet {
 
         final PrintWriter os = response.getWriter();
 
-        po.doTransaction(new PersistenceUtility.Runner<Object>() {
-            @Override
-            public Object run(PersistenceUtility po, EntityManager em) throws Exception {
-                Ota.receiveMO(text, Transport.TransportType.SMS, msisdn, udh, em);
-                return null;
-            }
-
-            @Override
-            public void cleanup(boolean success) {
-
-            }
-        });
+        // Queue it and ack at once; it is processed later, in order with other callbacks for this MSISDN.
+        if (!SmsCallbackQueue.offerMO(msisdn, text, udh)) {
+            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE, "Queue full");
+            return;
+        }
         os.write("Ok");
         os.close();
     }
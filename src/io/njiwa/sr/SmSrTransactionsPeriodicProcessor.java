@@ -19,6 +19,7 @@ import io.njiwa.common.Utils;
 import io.njiwa.sr.model.Eis;
 import io.njiwa.sr.model.SmSrTransaction;
 import io.njiwa.sr.model.SmSrTransactionRequestId;
+import io.njiwa.sr.ota.Ota;
 import io.njiwa.sr.transactions.SmSrBaseTransaction;
 import io.njiwa.sr.transports.BipCatTP;
 import io.njiwa.sr.transports.RamHttp;
@@ -110,6 +111,7 @@ public class SmSrTransactionsPeriodicProcessor extends GenericPeriodicProcessor<
         } catch (Exception ex) {
 
         }
+        Ota.clearCryptoCache(); // No more OTA traffic: Don't leave keys in the cached engines
         stop();
         Utils.lg.info(String.format("Stopped Transaction Log Processor."));
     }
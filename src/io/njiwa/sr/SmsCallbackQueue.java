@@ -0,0 +1,491 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr;
+
+import io.njiwa.common.PersistenceUtility;
+import io.njiwa.common.ServerSettings;
+import io.njiwa.common.Utils;
+import io.njiwa.sr.model.DlrTracker;
+import io.njiwa.sr.ota.Ota;
+import io.njiwa.sr.transports.Transport;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.Pipeline;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.ejb.ConcurrencyManagement;
+import javax.ejb.ConcurrencyManagementType;
+import javax.ejb.Singleton;
+import javax.ejb.Startup;
+import javax.enterprise.inject.Instance;
+import javax.inject.Inject;
+import javax.persistence.EntityManager;
+import javax.persistence.LockModeType;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * @brief Ingestion queue for SMS gateway callbacks (DLRs and MO messages).
+ * @details DlrReceiver and MoHandler put each callback on a bounded in-memory queue and acknowledge the HTTP request
+ * at once. A worker thread takes the callbacks off in batches and applies them:
+ * - The batch is grouped by MSISDN. For each MSISDN, the DLRs that arrived before its first MO are applied together
+ * in a single transaction for the whole batch, grouped by tracker so that each tracker is locked once.
+ * - The rest of each MSISDN's callbacks are then applied in arrival order: each MO in its own transaction (it may send
+ * a response), consecutive DLRs together.
+ * <p>
+ * So ordering is preserved per MSISDN, while the number of transactions (and tracker locks) no longer grows with the
+ * number of DLRs. If sms_callback_journal is set, queued callbacks are also kept in a REDIS hash (by sequence number)
+ * until applied, and are replayed at startup. Journal writes are pipelined by a writer thread of their own, so the
+ * HTTP callback threads never wait on REDIS.
+ */
+@Singleton(name = "SmsCallbackQueue")
+@Startup
+@ConcurrencyManagement(ConcurrencyManagementType.BEAN)
+public class SmsCallbackQueue {
+    private static final int JOURNAL_BATCH_SIZE = 1000; //!< Maximum journal writes per pipeline
+    private static final int JOURNAL_STOP_WAIT = 5000; //!< Milliseconds stop() waits for each thread to finish
+    private static final JournalOp JOURNAL_STOP = new JournalOp(null, null);
+
+    private static BlockingQueue<Callback> queue = new LinkedBlockingQueue<>(); //!< Replaced at startup with the configured size
+    private static final BlockingQueue<JournalOp> journalOps = new LinkedBlockingQueue<>();
+    private static final AtomicLong nextSeq = new AtomicLong();
+    private static Jedis journal; //!< Or null if not journaling. Only used by the journal writer once started
+    private static volatile boolean journaling = false;
+    private static String journalKey;
+    private static Thread worker, journalWriter;
+    private static volatile boolean stop = false;
+    private static Instance<PersistenceUtility> poTasks;
+
+    @Inject
+    Instance<PersistenceUtility> xpoTasks;
+
+    /**
+     * @param msisdn
+     * @param dlrCode
+     * @param smsId
+     * @param tag
+     * @param tagID
+     * @param partNo
+     * @return False if the queue is full
+     * @brief Queue a DLR received from the SMS gateway
+     */
+    public static boolean offerDlr(String msisdn, int dlrCode, long smsId, String tag, long tagID, int partNo) {
+        return offer(new Callback(msisdn, dlrCode, smsId, tag, tagID, partNo));
+    }
+
+    /**
+     * @param msisdn
+     * @param text
+     * @param udh
+     * @return False if the queue is full
+     * @brief Queue an MO message received from the SMS gateway
+     */
+    public static boolean offerMO(String msisdn, byte[] text, byte[] udh) {
+        return offer(new Callback(msisdn, text, udh));
+    }
+
+    private static boolean offer(Callback cb) {
+        cb.seq = nextSeq.incrementAndGet();
+        // Journal it before the worker can see it, so that its removal is always queued after it.
+        boolean journaled = journaling;
+        if (journaled)
+            journalOps.add(new JournalOp(cb, null));
+        if (!queue.offer(cb)) {
+            if (journaled)
+                journalOps.add(new JournalOp(null, Collections.singletonList(cb)));
+            Utils.lg.severe(String.format("SMS callback queue full, rejected %s", cb));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return The number of callbacks waiting
+     */
+    public static int size() {
+        return queue.size();
+    }
+
+    private static void closeJournal() {
+        journaling = false;
+        try {
+            journal.close();
+        } catch (Exception ex) {
+        }
+        journal = null;
+    }
+
+    /**
+     * @param batch
+     * @brief Drop callbacks from the journal, once they have been applied
+     */
+    private static void unjournal(List<Callback> batch) {
+        if (journaling)
+            journalOps.add(new JournalOp(null, new ArrayList<>(batch)));
+    }
+
+    /**
+     * @brief The journal writer: Applies journal updates in order, as many per pipeline as are waiting. Stops at
+     * JOURNAL_STOP, once everything queued before it has been written.
+     */
+    private static void writeJournal() {
+        List<JournalOp> ops = new ArrayList<>();
+        boolean done = false;
+        while (!done) {
+            ops.clear();
+            try {
+                ops.add(journalOps.take());
+            } catch (InterruptedException ex) {
+                break;
+            }
+            journalOps.drainTo(ops, JOURNAL_BATCH_SIZE - 1);
+            done = ops.remove(JOURNAL_STOP);
+            if (journal == null)
+                continue; // Journaling was turned off: Just empty the queue.
+            try {
+                Pipeline p = journal.pipelined();
+                for (JournalOp op : ops)
+                    if (op.add != null)
+                        p.hset(journalKey, Long.toString(op.add.seq), op.add.encode());
+                    else {
+                        String[] fields = new String[op.remove.size()];
+                        for (int i = 0; i < fields.length; i++)
+                            fields[i] = Long.toString(op.remove.get(i).seq);
+                        p.hdel(journalKey, fields);
+                    }
+                p.sync();
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMS callback journal write failed, journaling off: %s", ex));
+                closeJournal();
+            }
+        }
+        if (journal != null)
+            closeJournal();
+    }
+
+    /**
+     * @brief Apply a batch of callbacks, as described above.
+     * @param batch
+     */
+    private static void processBatch(List<Callback> batch) {
+        PersistenceUtility po = poTasks.get();
+
+        // Group by MSISDN, keeping arrival order within each group
+        Map<String, List<Callback>> groups = new LinkedHashMap<>();
+        for (Callback cb : batch)
+            groups.computeIfAbsent(cb.msisdn, k -> new ArrayList<>()).add(cb);
+
+        // First the leading DLRs of every MSISDN, all in one go.
+        List<Callback> leadingDlrs = new ArrayList<>();
+        List<List<Callback>> rest = new ArrayList<>();
+        for (List<Callback> l : groups.values()) {
+            int i = 0;
+            while (i < l.size() && l.get(i).isDlr())
+                leadingDlrs.add(l.get(i++));
+            if (i < l.size())
+                rest.add(l.subList(i, l.size()));
+        }
+        applyDlrs(po, leadingDlrs, true);
+
+        // Then the rest, per MSISDN, in order
+        for (List<Callback> l : rest) {
+            List<Callback> dlrs = new ArrayList<>();
+            for (Callback cb : l)
+                if (cb.isDlr())
+                    dlrs.add(cb);
+                else {
+                    applyDlrs(po, dlrs, false);
+                    dlrs.clear();
+                    applyMO(po, cb);
+                }
+            applyDlrs(po, dlrs, false);
+        }
+    }
+
+    /**
+     * @param po
+     * @param dlrs
+     * @param clearOld - Whether to also clear old trackers
+     * @brief Apply DLRs in one transaction. Trackers are locked once each, in ID order (so that concurrent batches do
+     * not deadlock). If the transaction fails, nothing in it was applied: Retry each tracker's DLRs in a transaction of
+     * their own, and each DLR on its own if that fails too, so one bad DLR does not hold up the rest.
+     */
+    private static void applyDlrs(PersistenceUtility po, List<Callback> dlrs, boolean clearOld) {
+        if (dlrs.isEmpty())
+            return;
+        Map<Long, List<Callback>> byTracker = new TreeMap<>();
+        for (Callback cb : dlrs)
+            byTracker.computeIfAbsent(cb.smsId, k -> new ArrayList<>()).add(cb);
+
+        if (applyDlrs(po, byTracker.values(), clearOld))
+            return;
+        Utils.lg.severe(String.format("SMS callback queue: Batch of %d DLRs failed, applying per tracker",
+                dlrs.size()));
+        for (List<Callback> l : byTracker.values())
+            if (!applyDlrs(po, Collections.singletonList(l), false) && l.size() > 1)
+                for (Callback cb : l)
+                    if (!applyDlrs(po, Collections.singletonList(Collections.singletonList(cb)), false))
+                        Utils.lg.severe(String.format("SMS callback queue: Failed to apply %s", cb));
+        if (clearOld)
+            po.doTransaction((PersistenceUtility.Runner<Object>) (xpo, em) -> {
+                DlrTracker.clearOldTrackers(em);
+                return null;
+            });
+    }
+
+    /**
+     * @param po
+     * @param byTracker - DLRs grouped by tracker, in tracker ID order
+     * @param clearOld
+     * @return True if the transaction was committed
+     * @brief Apply DLRs in a single transaction. A part that is already marked delivered is skipped, so a DLR is not
+     * acted on twice if its transaction was in fact committed, or if the gateway repeats it.
+     */
+    private static boolean applyDlrs(PersistenceUtility po, Collection<List<Callback>> byTracker, boolean clearOld) {
+        final boolean[] ok = {false};
+        po.doTransaction(new PersistenceUtility.Runner<Object>() {
+            @Override
+            public Object run(PersistenceUtility po, EntityManager em) throws Exception {
+                for (List<Callback> l : byTracker) {
+                    DlrTracker tracker = null;
+                    for (Callback cb : l) {
+                        if (tracker == null && cb.dlrCode == Transport.DLR_DELIVERED_TO_PHONE)
+                            try {
+                                tracker = em.find(DlrTracker.class, cb.smsId, LockModeType.PESSIMISTIC_WRITE);
+                            } catch (Exception ex) {
+                            }
+                        if (tracker != null && cb.dlrCode == Transport.DLR_DELIVERED_TO_PHONE &&
+                                tracker.isMessagePartDelivered(cb.partNo))
+                            continue;
+                        Transport.applyDlr(po, em, tracker, cb.msisdn, cb.dlrCode, cb.smsId, cb.tag, cb.tagId,
+                                cb.partNo);
+                    }
+                }
+                if (clearOld)
+                    DlrTracker.clearOldTrackers(em);
+                return null;
+            }
+
+            @Override
+            public void cleanup(boolean success) {
+                ok[0] = success;
+            }
+        });
+        return ok[0];
+    }
+
+    private static void applyMO(PersistenceUtility po, Callback cb) {
+        po.doTransaction((PersistenceUtility.Runner<Object>) (xpo, em) -> {
+            Ota.receiveMO(cb.text, Transport.TransportType.SMS, cb.msisdn, cb.udh, em);
+            return null;
+        });
+    }
+
+    /**
+     * @brief Re-queue callbacks left in the journal by a previous run, in their original order
+     */
+    private static void replayJournal() {
+        Map<String, String> m;
+        try {
+            m = journal.hgetAll(journalKey);
+        } catch (Exception ex) {
+            Utils.lg.severe(String.format("SMS callback journal read failed: %s", ex));
+            return;
+        }
+        Map<Long, String> entries = new TreeMap<>();
+        for (Map.Entry<String, String> e : m.entrySet())
+            try {
+                entries.put(Long.parseLong(e.getKey()), e.getValue());
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMS callback journal: Skipped invalid entry [%s]", e.getKey()));
+            }
+        int n = 0;
+        for (String x : entries.values())
+            try {
+                Callback cb = Callback.decode(x);
+                cb.seq = nextSeq.incrementAndGet();
+                if (queue.offer(cb))
+                    n++;
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMS callback journal: Skipped invalid entry [%s]: %s", x, ex));
+            }
+        // Rewrite it under the new sequence numbers, so that the journal matches the queue exactly
+        try {
+            Pipeline p = journal.pipelined();
+            p.del(journalKey);
+            for (Callback cb : queue)
+                p.hset(journalKey, Long.toString(cb.seq), cb.encode());
+            p.sync();
+        } catch (Exception ex) {
+            Utils.lg.severe(String.format("SMS callback journal rewrite failed, journaling off: %s", ex));
+            closeJournal();
+        }
+        if (n > 0)
+            Utils.lg.info(String.format("SMS callback queue: Replayed %d journaled callbacks", n));
+    }
+
+    @PostConstruct
+    public synchronized void start() {
+        poTasks = xpoTasks;
+        stop = false;
+        queue = new LinkedBlockingQueue<>(ServerSettings.getSmsCallbackQueueSize());
+        journalOps.clear();
+        if (ServerSettings.isSmsCallbackJournal())
+            try {
+                journalKey = String.format("sms_callbacks_%s", ServerSettings.getMyhostname());
+                journal = Utils.redisConnect();
+                journaling = true;
+                replayJournal();
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMS callback queue: Failed to open journal: %s", ex));
+                journaling = false;
+                journal = null;
+            }
+        if (journaling) {
+            journalWriter = new Thread(SmsCallbackQueue::writeJournal, "sms-callback-journal");
+            journalWriter.start();
+        }
+
+        worker = new Thread(() -> {
+            Utils.lg.info("SMS callback queue processor starting...");
+            List<Callback> batch = new ArrayList<>();
+            while (!stop)
+                try {
+                    batch.clear();
+                    batch.add(queue.take());
+                    queue.drainTo(batch, ServerSettings.getSmsCallbackBatchSize() - 1);
+                    try {
+                        processBatch(batch);
+                    } finally {
+                        unjournal(batch);
+                    }
+                } catch (InterruptedException ex) {
+                    break;
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("SMS callback queue: Error processing batch: %s", ex));
+                }
+            Utils.lg.info("SMS callback queue processor stopped");
+        });
+        worker.start();
+    }
+
+    @PreDestroy
+    public synchronized void stop() {
+        stop = true;
+        try {
+            worker.interrupt();
+            worker.join(JOURNAL_STOP_WAIT); // So that the batch it is on is removed from the journal
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+        }
+        if (journalWriter != null) {
+            // Let it write out what is queued, then close the journal.
+            journalOps.add(JOURNAL_STOP);
+            try {
+                journalWriter.join(JOURNAL_STOP_WAIT);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            journalWriter.interrupt();
+            journalWriter = null;
+        } else if (queue.size() > 0)
+            Utils.lg.severe(String.format("SMS callback queue: %d unjournaled callbacks lost on stop",
+                    queue.size()));
+    }
+
+    /**
+     * @brief A journal update: Add a callback, or remove callbacks that have been applied
+     */
+    private static class JournalOp {
+        final Callback add;
+        final List<Callback> remove;
+
+        JournalOp(Callback add, List<Callback> remove) {
+            this.add = add;
+            this.remove = remove;
+        }
+    }
+
+    /**
+     * @brief A queued DLR or MO
+     */
+    private static class Callback {
+        private static final String DLR = "D";
+        private static final String MO = "M";
+
+        final String type;
+        final String msisdn;
+        long seq; //!< Journal key
+        int dlrCode;
+        long smsId;
+        String tag;
+        long tagId;
+        int partNo;
+        byte[] text, udh;
+
+        Callback(String msisdn, int dlrCode, long smsId, String tag, long tagId, int partNo) {
+            this.type = DLR;
+            this.msisdn = msisdn;
+            this.dlrCode = dlrCode;
+            this.smsId = smsId;
+            this.tag = tag;
+            this.tagId = tagId;
+            this.partNo = partNo;
+        }
+
+        Callback(String msisdn, byte[] text, byte[] udh) {
+            this.type = MO;
+            this.msisdn = msisdn;
+            this.text = text;
+            this.udh = udh;
+        }
+
+        boolean isDlr() {
+            return DLR.equals(type);
+        }
+
+        /**
+         * @return A single line, with URL-encoded fields separated by spaces
+         */
+        String encode() throws Exception {
+            String m = Utils.urlEncode(msisdn.getBytes(StandardCharsets.UTF_8));
+            if (isDlr())
+                return String.format("%s %s %d %d %s %d %d", DLR, m, dlrCode, smsId,
+                        Utils.urlEncode((tag != null ? tag : "").getBytes(StandardCharsets.UTF_8)), tagId, partNo);
+            return String.format("%s %s %s %s", MO, m, Utils.urlEncode(text != null ? text : new byte[0]),
+                    Utils.urlEncode(udh != null ? udh : new byte[0]));
+        }
+
+        static Callback decode(String line) throws Exception {
+            String[] xl = line.split(" ", -1);
+            String msisdn = new String(Utils.urlDecode(xl[1]), StandardCharsets.UTF_8);
+            if (DLR.equals(xl[0]))
+                return new Callback(msisdn, Integer.parseInt(xl[2]), Long.parseLong(xl[3]),
+                        new String(Utils.urlDecode(xl[4]), StandardCharsets.UTF_8), Long.parseLong(xl[5]),
+                        Integer.parseInt(xl[6]));
+            else if (MO.equals(xl[0]))
+                return new Callback(msisdn, Utils.urlDecode(xl[2]), Utils.urlDecode(xl[3]));
+            throw new Exception("Unknown callback type");
+        }
+
+        @Override
+        public String toString() {
+            return isDlr() ? String.format("DLR [msisdn: %s, id: %s, code: %s, part: %s]", msisdn, smsId, dlrCode,
+                    partNo) : String.format("MO [msisdn: %s, %d bytes]", msisdn, text != null ? text.length : 0);
+        }
+    }
+}
@@ -99,6 +99,14 @@ public class DlrTracker {
        setMsisdn(msisdn);
    }
 
+   // Whether a DLR has already marked this part delivered
+   public boolean isMessagePartDelivered(int partNo) {
+       for (MessagePart m : getMessageParts())
+           if (m.getPartNo() == partNo)
+               return m.getDeliveredDate() != null;
+       return false;
+   }
+
    // Mark message delivered and return true if all messages delivered.
    public boolean markMessagePartDelivered(int partNo) {
        List<MessagePart> l = getMessageParts();
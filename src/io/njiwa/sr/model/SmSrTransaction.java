@@ -24,6 +24,7 @@ import org.hibernate.annotations.DynamicInsert;
 import org.hibernate.annotations.DynamicUpdate;
 
 import javax.persistence.*;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
 import java.util.List;
@@ -50,6 +51,9 @@ public class SmSrTransaction {
     @Column(name = "id", unique = true, nullable = false, updatable = false)
     @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "sr_tr_sequence")
     private Long Id;
+    @Version
+    @Column(nullable = false, columnDefinition = "bigint not null default 0")
+    private Long version; // Bumped on each update, so that concurrent updates of the same transaction are detected
     @Column(nullable = true) // Can be null, e.g. for SMSR Change
     private Long eis_id; // Link to the eid
 
@@ -194,6 +198,24 @@ public class SmSrTransaction {
         return null;
     }
 
+    /**
+     * @param em
+     * @param eid
+     * @param max
+     * @return
+     * @brief Find the transactions queued for an eUICC that are not yet with the card, oldest first. These are those
+     * ready to go out, and those waiting for the card to connect (e.g. after a RAM HTTP push).
+     */
+    public static List<SmSrTransaction> findQueuedTransactions(EntityManager em, long eid, int max) {
+        try {
+            return em.createQuery("from SmSrTransaction WHERE eis_id = :i AND status in (:r, :h) ORDER BY id ASC",
+                    SmSrTransaction.class).setParameter("i", eid).setParameter("r", Status.Ready).setParameter("h",
+                    Status.HttpWait).setMaxResults(max).getResultList();
+        } catch (Exception ex) {
+        }
+        return new ArrayList<>();
+    }
+
     public static SmSrTransaction fromMessageID(EntityManager em, String messageID) {
         try {
             Long id = Long.parseLong(messageID, 16);
@@ -220,6 +242,10 @@ public class SmSrTransaction {
         Id = id;
     }
 
+    public Long getVersion() {
+        return version;
+    }
+
     public Date getMessageDate() {
         return messageDate;
     }
@@ -465,8 +491,8 @@ public class SmSrTransaction {
             long lasttid = getId();
             long eid = getEis_id();
             return em.createQuery("from SmSrTransaction   WHERE id > :l and status not in (:b1,:b2,:b3,:b4)" + " and " +
-                    "nextSend > current_timestamp and eis_id = :eid", SmSrTransaction.class).setParameter("l",
-                    lasttid).setParameter("b1", Status.Completed).setParameter("b2", Status.Failed).setParameter("b3"
+                    "nextSend > current_timestamp and eis_id = :eid ORDER BY id ASC", SmSrTransaction.class)
+                    .setParameter("l", lasttid).setParameter("b1", Status.Completed).setParameter("b2", Status.Failed).setParameter("b3"
                     , Status.Expired).setParameter("b4", Status.Error).setParameter("eid", eid).setMaxResults(1).getSingleResult();
         } catch (Exception ex) {
             return null;
@@ -75,7 +75,7 @@ public class SmSrTransactionRequestId {
         em.createQuery("DELETE FROM SmSrTransactionRequestId  WHERE transaction.id = :i")
                 .setParameter("i", transId)
                 .executeUpdate();
-        em.createQuery("UPDATE SmSrTransaction  SET lastrequestID = null  WHERE  id = :i")
+        em.createQuery("UPDATE SmSrTransaction  SET lastrequestID = null, version = version + 1  WHERE  id = :i")
                 .setParameter("i",transId)
                 .executeUpdate();
     }
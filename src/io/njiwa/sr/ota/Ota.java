@@ -43,8 +43,11 @@ import java.io.BufferedInputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.security.Security;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 
 
 /**
@@ -257,21 +260,21 @@ public class Ota {
     }
 
     /**
-     * @param in
+     * @param dlen    the length of the data
      * @param spi1
      * @param has_enc
-     * @return
-     * @brief Perform the 03.48 data padding
+     * @return the number of padding octets
+     * @brief Compute the 03.48 data padding
      */
-    private static Utils.Pair<byte[], Integer> padData(byte[] in, int spi1, boolean has_enc) {
+    private static int padCount(int dlen, int spi1, boolean has_enc) {
         boolean cryptoCrc = ((spi1 >> 1) & 0x01) != 0;
         boolean hasRc = (spi1 & 0x01) != 0 && (spi1 & 0x02) == 0;
 
-        if ((spi1 & 0x03) == 0 && !has_enc) return new Utils.Pair<>(in, 0); // No padding required
+        if ((spi1 & 0x03) == 0 && !has_enc) return 0; // No padding required
 
         int ccLen = (cryptoCrc ? 8 : (hasRc ? 4 : 0));
 
-        int len = 5 + 1 + ccLen + in.length; // CNTR (5 bytes) + PCNTR (1 byte) + CCLen (variable) -- Table 2 of ETSI
+        int len = 5 + 1 + ccLen + dlen; // CNTR (5 bytes) + PCNTR (1 byte) + CCLen (variable) -- Table 2 of ETSI
         // TS 102 225
 
         int padTo;
@@ -279,16 +282,11 @@ public class Ota {
         else if (hasRc) padTo = 4;
         else padTo = 0;
 
-        int padCtr;
         if (padTo > 0) {
             int xpadTo = padTo - 1;
-            padCtr = ((len + xpadTo) & ~xpadTo) - len;
-
-            // Now add zeros
-            in = Arrays.copyOf(in, in.length + padCtr);
-        } else padCtr = 0;
-
-        return new Utils.Pair<>(in, padCtr);
+            return ((len + xpadTo) & ~xpadTo) - len;
+        }
+        return 0;
     }
 
     public static boolean spiHasCryptoCrc(int spi1) {
@@ -441,8 +439,8 @@ public class Ota {
      * @throws Exception
      * @brief Create the GSM 03.48 OTA packet, given its parameters. This is the base method
      */
-    private static byte[] createSCP80Pkg(byte[] in, int cpi, byte[] counter, int kic_byte, int kid_byte, int spi1,
-                                         int spi2, byte[] kic, byte[] kid, byte[] TAR) throws Exception {
+    static byte[] createSCP80Pkg(byte[] in, int cpi, byte[] counter, int kic_byte, int kid_byte, int spi1,
+                                 int spi2, byte[] kic, byte[] kid, byte[] TAR) throws Exception {
         if (counter.length != 5) throw new Exception("Invalid length of RFM counter");
 
         if (TAR.length != 3) throw new Exception("Invalid TAR length");
@@ -450,9 +448,7 @@ public class Ota {
         boolean crypto_crc = ((spi1 >> 1) & 0x1) != 0;
         // int encType = enc ? (kic_byte & 0x0F) : DES_NONE;
         // int crcType = crypto_crc ? (kid_byte & 0x0f) : DES_NONE;
-        Utils.Pair<byte[], Integer> px = padData(in, spi1, enc);
-        in = px.k;
-        int pcntr = px.l;
+        int pcntr = padCount(in.length, spi1, enc);
 
 
         /* cpl should calculated as 18 (or 22) + length of data because:
@@ -462,46 +458,40 @@ public class Ota {
 
         int hlen;
         int chl = hlen = (crypto_crc ? 21 : (spi1 & 0x03) != 0 ? 17 : 13);
-        int cpl = in.length + ((cpi >= 0) ? Utils.BER.getTlvLength(chl) : 1) + hlen; // Lenght + padding
-
-        ByteArrayOutputStream osPkg = new ByteArrayOutputStream();
+        int dlen = in.length + pcntr;
+        int cpl = dlen + ((cpi >= 0) ? Utils.BER.getTlvLength(chl) : 1) + hlen; // Lenght + padding
+
+        // Lay the whole packet out in one buffer: header, then counter, pcntr, RC/CC/DS and the padded data, which
+        // are encrypted in place if required.
+        int crcLen = Checksum.length(spi1, kid_byte);
+        int hdrLen = ((cpi >= 0) ? 1 + Utils.BER.getTlvLength(cpl) + Utils.BER.getTlvLength(chl) : 3) + 4 + 3;
+        int secured = hdrLen; // Start of the counter
+        int crcOffset = secured + 5 + 1;
+        ByteBuffer pkg = ByteBuffer.allocate(crcOffset + crcLen + dlen);
         if (cpi >= 0) { // If we are using ETSI 102 225 format
-            osPkg.write(cpi);
-            Utils.BER.appendTLVlen(osPkg, cpl);
-            Utils.BER.appendTLVlen(osPkg, chl);
+            pkg.put((byte) cpi);
+            Utils.BER.appendTLVlen(pkg, cpl);
+            Utils.BER.appendTLVlen(pkg, chl);
         } else {
-            Utils.appendEncodedInteger(osPkg, cpl, 2);
-            osPkg.write(chl & 0xFF);
+            pkg.putShort((short) cpl);
+            pkg.put((byte) chl);
         }
-        osPkg.write(new byte[]{(byte) (spi1 & 0xFF), (byte) (spi2 & 0xFF), (byte) (kic_byte & 0xFF),
-                (byte) (kid_byte & 0xFF)});
-        osPkg.write(TAR);
-
-        /* crc on cpl + chl + spi + KIc + KID + TAR + CNTR + */
-        byte[] crc = Checksum.get(spi1, kid_byte, kid, osPkg.toByteArray(), counter, pcntr, null, in);
+        pkg.put((byte) spi1).put((byte) spi2).put((byte) kic_byte).put((byte) kid_byte);
+        pkg.put(TAR);
+        pkg.put(counter);
+        pkg.put((byte) pcntr);
+        pkg.position(crcOffset + crcLen);
+        pkg.put(in); // Padding is already zero
+
+        /* crc on cpl + chl + spi + KIc + KID + TAR + CNTR + PCNTR + data, i.e. everything but the crc itself */
+        byte[] out = pkg.array();
+        byte[] crc = Checksum.get(spi1, kid_byte, kid, out, 0, crcOffset, crcOffset + crcLen, dlen);
         // Utils.lg.info(String.format("CRC: [%s]", Utils.b2H(crc)) );
-        if (!enc) {
-            osPkg.write(counter);
-            osPkg.write(pcntr);
-            osPkg.write(crc);
-            osPkg.write(in);
-        } else {
-            // Make package for encryption
-            ByteArrayOutputStream pkg = new ByteArrayOutputStream();
-            pkg.write(counter);
-            pkg.write(pcntr);
-            pkg.write(crc);
-            pkg.write(in);
-
-            byte[] clearpkg = pkg.toByteArray();
-            //  Utils.lg.info(String.format("Clear PKG [%s], kic [%s]", Utils.b2H(clearpkg), Utils.b2H(kic)));
-
-            byte[] osEnc = Crypt.encrypt(clearpkg, kic, kic_byte & 0x0F);
-            //  Utils.lg.info(String.format("Enc Pkg [%s]",  Utils.b2H(osEnc)));
-            osPkg.write(osEnc);
-        }
+        System.arraycopy(crc, 0, out, crcOffset, crc.length);
+        if (enc)
+            Crypt.encrypt(out, secured, out.length - secured, kic, kic_byte & 0x0F);
 
-        return osPkg.toByteArray();
+        return out;
     }
 
     /**
@@ -602,21 +592,16 @@ public class Ota {
         // Assume that definite coding
         // has a tag+length of 5, followed by chaining if any
 
-        ByteArrayOutputStream odata = new ByteArrayOutputStream() {
-            {
-                write(sdata); // Put script chaining data in first
-            }
-        };
-        // Now make the data stuff
-
-        ByteArrayOutputStream xos = new ByteArrayOutputStream();
+        // First see how many APDUs fit, then copy them once into a buffer of the right size.
+        byte[] out = new byte[0];
         int i = startIndex;
         try {
+            int dlen = sdata.length;
             do {
                 byte[] data = l.get(i); // At this point the APDUs should already be split.
                 if (!enoughOtaBuffer.hasEnoughBuffer(cursize + data.length)) break;
-                odata.write(data);
                 cursize += data.length;
+                dlen += data.length;
                 otaParams.numApdus++;
 
                 i++; // Forward
@@ -624,23 +609,27 @@ public class Ota {
 
 
             // Now wrap the whole thing in a Command Scripting Template TAG
-
-            byte[] commandTlvs = odata.toByteArray();
+            ByteBuffer xos;
             if (ServerSettings.Constants.useIndefiniteCodingInExpandedFormat) {
-                xos.write(new byte[]{(byte) Command_Scripting_Template_for_Indefinite_Length_Tag, (byte) 0x80});
-                xos.write(commandTlvs);
-                xos.write(new byte[]{0x00, 0x00}); // As per Sec 5.2.1 of ETSI TS 102 226 v12
+                xos = ByteBuffer.allocate(2 + dlen + 2);
+                xos.put((byte) Command_Scripting_Template_for_Indefinite_Length_Tag).put((byte) 0x80);
             } else { // Use definite coding.
-                xos.write(Command_Scripting_Template_Tag);
-                Utils.BER.appendTLVlen(xos, commandTlvs.length);
-                xos.write(commandTlvs);
+                xos = ByteBuffer.allocate(1 + Utils.BER.getTlvLength(dlen) + dlen);
+                xos.put((byte) Command_Scripting_Template_Tag);
+                Utils.BER.appendTLVlen(xos, dlen);
             }
+            xos.put(sdata); // Put script chaining data in first
+            for (int k = startIndex; k < i; k++)
+                xos.put(l.get(k));
+            if (ServerSettings.Constants.useIndefiniteCodingInExpandedFormat)
+                xos.put((byte) 0x00).put((byte) 0x00); // As per Sec 5.2.1 of ETSI TS 102 226 v12
+            out = xos.array();
         } catch (Exception ex) {
         }
         otaParams.allowChaining = false; // Prevent chaining. Right?
         otaParams.chainingStatus = chainingType; // Upper layer needs it.
 
-        return new Utils.Pair<>(xos.toByteArray(), i);
+        return new Utils.Pair<>(out, i);
     }
     /**
      * @param data          the data received after Command TLV Tag and length have been removed
@@ -795,6 +784,76 @@ public class Ota {
         boolean hasEnoughBuffer(long pktSize);
     }
 
+    /**
+     * @brief A crypto engine and the key it is initialised with
+     */
+    private abstract static class Keyed {
+        byte[] key; //!< The key the engine is initialised with, or null if it must be re-initialised
+
+        /**
+         * @brief Wipe the key, so the engine is re-initialised before its next use
+         */
+        void forget() {
+            if (key != null)
+                Arrays.fill(key, (byte) 0);
+            key = null;
+        }
+    }
+
+    /**
+     * @brief Idle keyed engines, most recently used first. An engine is used by one thread at a time, and the pool
+     * belongs to the application rather than to its worker threads, so clearCache() can wipe the keys on undeploy.
+     */
+    private static class EnginePool<T extends Keyed> {
+        private static final int MAX_IDLE = 64; //!< Engines beyond this are wiped and dropped when released
+
+        private final Callable<T> factory;
+        private final Keyed[] idle = new Keyed[MAX_IDLE]; //!< A stack, so borrowing and returning allocate nothing
+        private int count;
+
+        EnginePool(Callable<T> factory) {
+            this.factory = factory;
+        }
+
+        @SuppressWarnings("unchecked")
+        private synchronized T poll() {
+            if (count == 0)
+                return null;
+            T e = (T) idle[--count];
+            idle[count] = null;
+            return e;
+        }
+
+        T get() throws Exception {
+            T e = poll();
+            return e != null ? e : factory.call();
+        }
+
+        void release(T e) {
+            synchronized (this) {
+                if (count < idle.length) {
+                    idle[count++] = e;
+                    return;
+                }
+            }
+            e.forget();
+        }
+
+        void clear() {
+            T e;
+            while ((e = poll()) != null)
+                e.forget();
+        }
+    }
+
+    /**
+     * @brief Wipe the SCP80 keys cached with the cipher and MAC engines. Called when the application stops.
+     */
+    public static void clearCryptoCache() {
+        Crypt.clearCache();
+        Checksum.clearCache();
+    }
+
     public static class Crypt {
         // Do encryption
 
@@ -809,6 +868,47 @@ public class Ota {
             Security.addProvider(new BouncyCastleProvider());
         }
 
+        // Cipher.getInstance() is slow (provider lookup, reflection) and so is the key schedule. Keep initialised
+        // ciphers per transformation in a pool, and only re-initialise one when the key, IV or direction changes:
+        // After doFinal() a cipher is back in its initialised state, and consecutive packets usually go to the same
+        // card.
+        private static final Map<String, EnginePool<KeyedCipher>> ciphers = new ConcurrentHashMap<>();
+
+        private static class KeyedCipher extends Keyed {
+            final Cipher cipher;
+            byte[] iv;
+            int mode;
+
+            KeyedCipher(Cipher cipher) {
+                this.cipher = cipher;
+            }
+
+            @Override
+            void forget() {
+                super.forget();
+                if (iv != null)
+                    Arrays.fill(iv, (byte) 0);
+                iv = null;
+            }
+        }
+
+        private static EnginePool<KeyedCipher> getCiphers(String transformation) {
+            String provider = ServerSettings.Constants.jcaProvider;
+            String k = transformation + "@" + provider; // Provider can be changed by configuration
+            EnginePool<KeyedCipher> p = ciphers.get(k);
+            return p != null ? p : ciphers.computeIfAbsent(k, x -> new EnginePool<>(() ->
+                    new KeyedCipher(Cipher.getInstance(transformation, provider))));
+        }
+
+        /**
+         * @brief Wipe the keys held by the idle ciphers, and drop them
+         */
+        static void clearCache() {
+            for (EnginePool<KeyedCipher> p : ciphers.values())
+                p.clear();
+            ciphers.clear();
+        }
+
         /**
          * @param in   The input
          * @param key  the (3)DES/AES key
@@ -825,10 +925,20 @@ public class Ota {
         }
 
         public static byte[] perform(byte[] in, int keyType, byte[] key, int mode, byte[] inputIv) throws Exception {
+            byte[] out = new byte[in.length];
+            perform(in, 0, in.length, out, 0, keyType, key, mode, inputIv);
+            return out;
+        }
+
+        /**
+         * @brief Encrypt or decrypt in.length bytes at offset into out at outOffset. The two may overlap.
+         */
+        private static void perform(byte[] in, int offset, int len, byte[] out, int outOffset, int keyType,
+                                    byte[] key, int mode, byte[] inputIv) throws Exception {
             IvParameterSpec iv = new IvParameterSpec(inputIv);
 
             // Encrypt based key size
-            if (in.length % 8 != 0) throw new Exception("Invalid input size. Must be a multiple of 8 bytes");
+            if (len % 8 != 0) throw new Exception("Invalid input size. Must be a multiple of 8 bytes");
             if (key.length % 8 != 0) throw new Exception("Invalid key size. Must be a multiple of 8 bytes");
 
             if (key.length < 8 || key.length > 24)
@@ -837,14 +947,24 @@ public class Ota {
             String xkeytype = keyType == AES_CBC ? "AES" : (key.length == 16 || key.length == 24) ? "DESede" : "DES";
 
 
-            SecretKey keySpec = new SecretKeySpec(key, xkeytype);
-
-            Cipher cipher = Cipher.getInstance(xkeytype + "/CBC/NoPadding", ServerSettings.Constants.jcaProvider);
-            cipher.init(mode, keySpec, iv);
-
-            byte[] out = cipher.doFinal(in);
-
-            return out;
+            EnginePool<KeyedCipher> pool = getCiphers(xkeytype + "/CBC/NoPadding");
+            KeyedCipher c = pool.get();
+            try {
+                if (c.key == null || c.mode != mode || !Arrays.equals(c.key, key) || !Arrays.equals(c.iv, inputIv)) {
+                    c.forget();
+                    SecretKey keySpec = new SecretKeySpec(key, xkeytype);
+                    c.cipher.init(mode, keySpec, iv);
+                    c.key = key.clone();
+                    c.iv = inputIv.clone();
+                    c.mode = mode;
+                }
+                c.cipher.doFinal(in, offset, len, out, outOffset); // Copy-safe
+            } catch (Exception ex) {
+                c.forget(); // Don't trust its state
+                throw ex;
+            } finally {
+                pool.release(c);
+            }
         }
 
         /**
@@ -858,6 +978,20 @@ public class Ota {
             return perform(in, keyType, key, Cipher.ENCRYPT_MODE);
         }
 
+        /**
+         * @param buf
+         * @param offset
+         * @param len
+         * @param key
+         * @param keyType
+         * @throws Exception
+         * @brief Encrypt part of a buffer in place
+         */
+        public static void encrypt(byte[] buf, int offset, int len, byte[] key, int keyType) throws Exception {
+            perform(buf, offset, len, buf, offset, keyType, key, Cipher.ENCRYPT_MODE,
+                    new byte[keyType == AES_CBC ? 16 : 8]);
+        }
+
         /**
          * @param in
          * @param key
@@ -874,15 +1008,56 @@ public class Ota {
     /**
      * @brief The CRC32 and Crypto Checksum computation functions
      */
-    private static class Checksum {
+    static class Checksum {
         // Checksum stuff.
 
+        // MAC engines, re-keyed only when the key changes: CMac.doFinal() resets the MAC but keeps the key schedule
+        // and sub-keys.
+        private static final EnginePool<KeyedMac> aesCMac = new EnginePool<>(() -> new KeyedMac(new AESEngine()));
+        private static final EnginePool<KeyedMac> desCMac = new EnginePool<>(() -> new KeyedMac(new DESEngine()));
+        private static final EnginePool<KeyedMac> desedeCMac =
+                new EnginePool<>(() -> new KeyedMac(new DESedeEngine()));
+
+        private static class KeyedMac extends Keyed {
+            final CMac cmac;
+
+            KeyedMac(BlockCipher cipher) {
+                cmac = new CMac(cipher);
+            }
+
+            byte[] mac(byte[] key, byte[] in, int off1, int len1, int off2, int len2) {
+                byte[] out = new byte[cmac.getMacSize()];
+                try {
+                    if (this.key == null || !Arrays.equals(this.key, key)) {
+                        forget();
+                        cmac.init(new KeyParameter(key));
+                        this.key = key.clone();
+                    }
+                    cmac.update(in, off1, len1);
+                    cmac.update(in, off2, len2);
+                    cmac.doFinal(out, 0);
+                } catch (RuntimeException ex) {
+                    forget();
+                    throw ex;
+                }
+                return out;
+            }
+        }
+
+        /**
+         * @brief Wipe the keys held by the idle MAC engines
+         */
+        static void clearCache() {
+            aesCMac.clear();
+            desCMac.clear();
+            desedeCMac.clear();
+        }
+
         public static byte[] get(int spi1, int kid_byte, byte[] kid, byte[] cheader, byte[] counter, int pcntr,
                                  Byte statusCode, byte[] data) throws Exception {
 
             if ((spi1 & 0x03) == 0) return new byte[0]; // No checksum requested
 
-            boolean crypto_crc = ((spi1 >> 1) & 0x01) != 0;
             ByteArrayOutputStream os = new ByteArrayOutputStream();
 
             os.write(cheader);
@@ -893,8 +1068,32 @@ public class Ota {
             os.write(data);
 
             // Utils.lg.info(String.format("HDR: %s", Utils.b2H(os.toByteArray())));
+            byte[] in = os.toByteArray();
+            return get(spi1, kid_byte, kid, in, 0, in.length, in.length, 0);
+        }
+
+        /**
+         * @param spi1
+         * @param kid_byte
+         * @return the length of the RC/CC/DS returned by get()
+         */
+        public static int length(int spi1, int kid_byte) {
+            if ((spi1 & 0x03) == 0) return 0;
+            boolean crypto_crc = ((spi1 >> 1) & 0x01) != 0;
+            return crypto_crc && (kid_byte & 0x0F) == Crypt.AES_CBC ? 8 : 4;
+        }
+
+        /**
+         * @brief Compute the RC/CC/DS over two consecutive ranges of a buffer, i.e., skipping whatever is in between
+         * (such as the space for the checksum itself)
+         */
+        public static byte[] get(int spi1, int kid_byte, byte[] kid, byte[] buf, int off1, int len1, int off2,
+                                 int len2) throws Exception {
+            if ((spi1 & 0x03) == 0) return new byte[0]; // No checksum requested
+
+            boolean crypto_crc = ((spi1 >> 1) & 0x01) != 0;
             if (!crypto_crc) {
-                long x = CRC32(os.toByteArray());
+                long x = CRC32(buf, off1, len1, off2, len2);
 
                 return Utils.encodeInteger(x, 4);
             }
@@ -911,19 +1110,7 @@ public class Ota {
 
              */
 
-            return CC(os.toByteArray(), kid, mode);
-        }
-
-        private static long CRC32AddTo(long CRC, int byteval) {
-            long TabVal;
-            int j;
-            TabVal = (CRC ^ byteval) & 0xFF;
-            for (j = 8; j > 0; j--) {
-                if ((TabVal & 1) != 0) TabVal = ((TabVal & 0xffffffffL) >> 1) ^ 0xEDB88320;
-                else TabVal = (TabVal & 0xffffffffL) >> 1;
-            }
-            CRC = (TabVal & 0xffffffffL) ^ (((CRC & 0xffffffffL) >> 8) & 0x00FFFFFF);
-            return CRC;
+            return CC(buf, off1, len1, off2, len2, kid, mode);
         }
 
         /**
@@ -931,18 +1118,13 @@ public class Ota {
          * @return the 32-bit value
          * @brief perform a cyclic redundancy computation
          */
-        private static long CRC32(byte[] b) {
-            long CRC = 0xFFFFFFFFL;
-            for (int i = 0; i < b.length; i++) {
-                int bval = b[i] & 0xFF;
-                CRC = CRC32AddTo(CRC, bval);
-            }
-
-            CRC ^= 0xFFFFFFFFL;
-
-            CRC &= 0xffffffffL;
-
-            return CRC;
+        private static long CRC32(byte[] b, int off1, int len1, int off2, int len2) {
+            // The GSM 03.48 CRC is the standard reflected CRC-32 (poly 0xEDB88320, initial value and final XOR
+            // 0xFFFFFFFF), which the JDK computes table-driven (or with CPU support).
+            java.util.zip.CRC32 crc = new java.util.zip.CRC32();
+            crc.update(b, off1, len1);
+            crc.update(b, off2, len2);
+            return crc.getValue();
         }
 
         /**
@@ -952,10 +1134,11 @@ public class Ota {
          * @throws Exception
          * @brief Perform a cryptographic checksum
          */
-        private static byte[] CC(byte[] in, byte[] key, int mode) throws Exception {
+        private static byte[] CC(byte[] in, int off1, int len1, int off2, int len2, byte[] key, int mode)
+                throws Exception {
 
 
-            if (mode != Crypt.AES_CBC && in.length % 8 != 0)
+            if (mode != Crypt.AES_CBC && (len1 + len2) % 8 != 0)
                 throw new Exception("Invalid input size. Must be a multiple of 8 bytes");
 
 
@@ -963,22 +1146,24 @@ public class Ota {
 
             if (key.length < 8 || key.length > 24)
                 throw new Exception("Invalid key size. Must be a multiple of 8, 16 or 24 bytes");
-            BlockCipher cipher;
             int finalLen;
+            EnginePool<KeyedMac> pool;
             // The cc must be 8 bytes for AES and 4 bytes for all else.
             // Ref Sec 8.2.1.5.1  of ETS TS 102 226 rel 9
             if (mode == Crypt.AES_CBC) {
                 finalLen = 8;
-                cipher = new AESEngine();
+                pool = aesCMac;
             } else {
                 finalLen = 4;
-                cipher = key.length == 8 ? new DESEngine() : new DESedeEngine();
+                pool = key.length == 8 ? desCMac : desedeCMac;
+            }
+            KeyedMac cmac = pool.get();
+            byte[] out;
+            try {
+                out = cmac.mac(key, in, off1, len1, off2, len2);
+            } finally {
+                pool.release(cmac);
             }
-            CMac cmac = new CMac(cipher);
-            cmac.init(new KeyParameter(key));
-            cmac.update(in, 0, in.length);
-            byte[] out = new byte[cmac.getMacSize()];
-            cmac.doFinal(out, 0);
 
             return Arrays.copyOf(out, finalLen);
         }
@@ -1188,8 +1373,10 @@ public class Ota {
                             numApdus = data[2] & 0xFF;
                             // Skip 3 elements as per table 5.11
                             data = Arrays.copyOfRange(data, 3, data.length);
-                            Utils.lg.info(String.format("Received response, %d c-apdus executed, data: %s", numApdus,
-                                    Utils.HEX.b2H(data)));
+                            final byte[] xdata = data;
+                            final int n = numApdus;
+                            Transport.PacketDump.info(null, () -> String.format("Received response, %d c-apdus " +
+                                    "executed, data: %s", n, Utils.HEX.b2H(xdata)));
                         }
                     }
                     // r = new ETSI102226APDUResponses();
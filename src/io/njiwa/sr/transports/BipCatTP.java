@@ -18,9 +18,16 @@ import io.njiwa.sr.model.Eis;
 import io.njiwa.sr.model.SecurityDomain;
 import io.njiwa.sr.model.SmSrTransaction;
 import io.njiwa.sr.ota.Ota;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.exceptions.JedisConnectionException;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
 import javax.ejb.ConcurrencyManagement;
 import javax.ejb.ConcurrencyManagementType;
 import javax.ejb.Singleton;
@@ -33,13 +40,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.InetSocketAddress;
+import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.logging.Level;
 
 
 /**
@@ -75,6 +85,9 @@ public class BipCatTP extends Transport {
     // private static PersistenceUtil po = null;
     private static Instance<PersistenceUtility> poTasks = null; //!< We need to get persistence context dynamically for the CAT_TP layer. Hence..
     private static boolean BipStarted = false;
+    private static final Map<Long, PushClaim> pushClaims = new ConcurrentHashMap<Long, PushClaim>(); //!< Pushes in progress, by eUICC
+    private static long nextPushSlot = 0; //!< When (nanoTime) the next push may go out, under bip_push_rate
+    private static final String PUSH_CLAIM_PREFIX = "bip_push_claim_"; //!< REDIS keys of push claims, in a cluster
 
     static {
         // Put the mappers
@@ -356,6 +369,7 @@ public class BipCatTP extends Transport {
                     Eis sim = x.k;
                     updateSubscriberStatus(sim, true, true); // We got a new connection, so the sim supports bip.
                     connection.setMsisdn(msisdn);
+                    releasePush(sim.getId(), tid);
 
                     // Send it out immediately.
                     try {
@@ -367,6 +381,16 @@ public class BipCatTP extends Transport {
                     } catch (Exception ex) {
                         Utils.lg.severe(String.format("BIP: Failed to push out trans [%s] on [%s]: %s", tid, msisdn, ex));
                     }
+                    // And have everything else that was waiting for this card go out on the same connection
+                    int ntrans = em.createQuery("UPDATE SmSrTransaction  SET nextSend = current_timestamp, " +
+                            "status=:sr, version = version + 1 WHERE eis_id = :m AND id <> :i  AND status = :sb")
+                            .setParameter("m", sim.getId())
+                            .setParameter("i", tid)
+                            .setParameter("sr", SmSrTransaction.Status.Ready)
+                            .setParameter("sb", SmSrTransaction.Status.BipWait)
+                            .executeUpdate();
+                    if (ntrans > 0)
+                        Utils.lg.info(String.format("BIP [%s]: Released %d waiting transactions onto new connection", msisdn, ntrans));
                 } catch (Exception ex) {
                     connection.requestClosure(); // Close it.
                 }
@@ -489,6 +513,21 @@ public class BipCatTP extends Transport {
         return started;
     }
 
+    /**
+     * @return CAT_TP timer counts: Totals scheduled, fired and cancelled since start, and the number pending by kind
+     */
+    public static Map<String, Long> getTimerStats() {
+        return CatTP.Timers.stats();
+    }
+
+    /**
+     * @return CAT_TP connection counts, queued and unacknowledged data, and JVM heap in use. Sampled as connections
+     * ramp up (e.g. from the card simulator), the heap figure gives the memory cost of a connection.
+     */
+    public static Map<String, Long> getConnectionStats() {
+        return CatTP.Connection.stats();
+    }
+
     @Override
     @PostConstruct
     public synchronized void start() {
@@ -521,6 +560,10 @@ public class BipCatTP extends Transport {
                     CatTP.Connection.clearIdle(ServerSettings.getBip_idle_timeout());
                 } catch (Exception ex) {
                 } // Ignore errors. Right?
+                try {
+                    clearExpiredPushes();
+                } catch (Exception ex) {
+                }
             }
         }, ServerSettings.getBip_idle_timeout(), ServerSettings.getBip_idle_timeout(), TimeUnit.SECONDS);
 
@@ -580,7 +623,8 @@ public class BipCatTP extends Transport {
         String msisdn = bt.getMsisdn();
         // Else, push out the first in sequence after us, that was waiting.
         // XXX Shouldn't we push out any that's waiting? Not just the one ahead of us?
-        int ntrans = em.createQuery("UPDATE SmSrTransaction  SET nextSend = current_timestamp, status=:sr WHERE eis_id = :m AND id > :i  AND status = :sb")
+        int ntrans = em.createQuery("UPDATE SmSrTransaction  SET nextSend = current_timestamp, status=:sr, " +
+                "version = version + 1 WHERE eis_id = :m AND id > :i  AND status = :sb")
                 .setParameter("m", bt.getEis_id())
                 .setParameter("i", bt.getId())
                 .setParameter("sr", SmSrTransaction.Status.Ready)
@@ -607,6 +651,93 @@ public class BipCatTP extends Transport {
         }
     }
 
+    /**
+     * @param eisId
+     * @param tid
+     * @param ttlMillis - How long to wait for the card to connect before another transaction may push
+     * @return True if the transaction may push to the card, false if another transaction's push is in progress, in which
+     * case the caller should wait for that connection.
+     * @brief Make sure we send only one push at a time to a card, however many transactions want BIP. In a cluster
+     * the claim is also taken in REDIS, so that transactions on other nodes wait for it too.
+     */
+    private static boolean claimPush(long eisId, long tid, long ttlMillis) {
+        PushClaim c;
+        long ttl;
+        synchronized (pushClaims) {
+            long tnow = System.currentTimeMillis();
+            c = pushClaims.get(eisId);
+            if (c != null && c.tid != tid && c.expires > tnow)
+                return false;
+            if (c == null || c.tid != tid)
+                pushClaims.put(eisId, c = new PushClaim(tid));
+            c.expires = Math.max(c.expires, tnow + ttlMillis);
+            ttl = c.expires - tnow;
+        }
+        if (CatTP.Cluster.claim(PUSH_CLAIM_PREFIX + eisId, String.valueOf(tid), ttl))
+            return true;
+        pushClaims.remove(eisId, c); // Another node's transaction is pushing
+        return false;
+    }
+
+    /**
+     * @param eisId
+     * @return Seconds to wait before pushing, or 0 to push now
+     * @brief Pace pushes to bip_push_rate per second, so a campaign doesn't flood the SMSC and the APN. The first time
+     * a push is deferred it is given a slot, which it keeps for when it comes back. The pace is kept by each node: In
+     * a cluster, each node pushes at up to bip_push_rate.
+     */
+    private static long pushWait(long eisId) {
+        int rate = ServerSettings.getBip_push_rate();
+        if (rate <= 0)
+            return 0;
+        long secs, tid, ttl;
+        synchronized (pushClaims) {
+            PushClaim c = pushClaims.get(eisId);
+            long tnow = System.nanoTime();
+            if (c == null)
+                return 0; // Not claimed? Let it go.
+            if (c.slot == 0) {
+                nextPushSlot = Math.max(nextPushSlot, tnow);
+                c.slot = nextPushSlot;
+                nextPushSlot += 1000000000L / rate;
+            }
+            long w = c.slot - tnow;
+            if (w <= 0)
+                return 0;
+            secs = (w + 999999999L) / 1000000000L;
+            long t = System.currentTimeMillis();
+            c.expires = Math.max(c.expires, t + (secs + ServerSettings.getBip_push_retry_timeout()) * 1000);
+            tid = c.tid;
+            ttl = c.expires - t;
+        }
+        CatTP.Cluster.claim(PUSH_CLAIM_PREFIX + eisId, String.valueOf(tid), ttl); // Hold it while we wait
+        return secs;
+    }
+
+    /**
+     * @param eisId
+     * @param tid
+     * @brief Give up the push claim on a card, if the transaction holds it. A transaction whose claim expired must not
+     * release the one that took over from it.
+     */
+    private static void releasePush(Long eisId, long tid) {
+        if (eisId == null)
+            return;
+        synchronized (pushClaims) {
+            PushClaim c = pushClaims.get(eisId);
+            if (c != null && c.tid == tid)
+                pushClaims.remove(eisId, c);
+        }
+        CatTP.Cluster.unclaim(PUSH_CLAIM_PREFIX + eisId, String.valueOf(tid));
+    }
+
+    private static void clearExpiredPushes() {
+        long tnow = System.currentTimeMillis();
+        synchronized (pushClaims) {
+            pushClaims.values().removeIf(c -> c.expires < tnow);
+        }
+    }
+
     /**
      * @param sim
      * @param transID
@@ -635,11 +766,14 @@ public class BipCatTP extends Transport {
             // Check the connection,
             if (connection != null && connection.isCloseRequested())
                 connection = null;
+            // In a cluster, the card might be connected to another node
+            Utils.Pair<String, InetSocketAddress> remote = connection == null ?
+                    CatTP.Cluster.remoteConnection(sim.activeMISDN()) : null;
             Context ctx = new Context(xres.k, connection,
                     xres.m,
-                    transID, xres.l);
+                    transID, xres.l, remote);
 
-            if (connection == null) {
+            if (connection == null && remote == null) {
                 // Check whether to force a push
                 long tnow = System.currentTimeMillis();
                 Date lastOpen = xres.k.getLastBipRequest();
@@ -648,6 +782,10 @@ public class BipCatTP extends Transport {
                         (lastOpen == null ||
                                 tnow - lastOpen.getTime() > numOpens * ServerSettings.getBip_push_retry_timeout() * 1000);
 
+                // Only one push per card: If another transaction is already waking it up, wait for that connection
+                if (ctx.forcePush && !claimPush(xres.k.getId(), transID, (1 + numOpens) * ServerSettings.getBip_push_retry_timeout() * 1000))
+                    ctx.forcePush = false;
+
                 if (ctx.forcePush) {
                     // Massage the ota parameters
                     ctx.TAR = xres.l;
@@ -688,6 +826,7 @@ public class BipCatTP extends Transport {
                 em.createQuery("UPDATE Eis  SET lastBipRequest = current_timestamp, numPendingBipRequests = 0 WHERE id = :m")
                         .setParameter("m", bt.getEis_id())
                         .executeUpdate();
+                releasePush(bt.getEis_id(), bt.getId()); // Let the next one try
             }
         }
         return !psent; // Continue only if this is NOT a response to a PUSH request.
@@ -762,6 +901,9 @@ public class BipCatTP extends Transport {
         // Must be set by the time we get here. Unless... Right?
         Eis sim = ctx.sim;
         if (connection == null && ctx.forcePush) {
+            long wait = pushWait(sim.getId());
+            if (wait > 0) // Not our turn yet
+                return new Utils.Triple<>(0, MessageStatus.BipWait, wait);
             Date tnow = Calendar.getInstance().getTime();
             // Prepare to push.
             Utils.lg.info(String.format("BIP: Preparing to send PUSH to [%s] for trans [#%s]", ctx.sim.activeMISDN(), ctx.tid));
@@ -771,9 +913,16 @@ public class BipCatTP extends Transport {
             //  Sms smsT = new Sms();
             Utils.Triple<Integer, MessageStatus, Long> xres = smsT.sendMsg(em, context, msg, DLR_DELIVERED_TO_PHONE); // Message passed to us is already in coded form.
             MessageStatus status = xres.l == MessageStatus.Sent ? MessageStatus.BipPushSent : MessageStatus.BipWait;
+            if (status != MessageStatus.BipPushSent)
+                releasePush(sim.getId(), ctx.tid);
             long nextt = (1 + sim.getNumPendingBipRequests()) * ServerSettings.getBip_push_retry_timeout(); // When to next try...
             return new Utils.Triple<>(xres.k, status, nextt);
         }
+        if (connection == null && ctx.remote != null) { // Connected to another node, send it there
+            if (msg.length < 60000 && CatTP.Cluster.forwardSDU(ctx.remote, ctx.tid, msg))
+                return new Utils.Triple<>(msg.length, MessageStatus.Sent, -1L);
+            return new Utils.Triple<>(0, MessageStatus.BipWait, ServerSettings.getBip_push_retry_timeout());
+        }
         if (connection == null || connection.isCloseRequested() ||
                 connection.outgoingSDUs.size() > ServerSettings.getMax_bip_send_queue()) { // Buffer is full, or connection is closing, or no connection since we last came here
             // Must wait a little
@@ -801,6 +950,7 @@ public class BipCatTP extends Transport {
         public static final int CAT_TP_WIN_SIZE = 10; //!< The default window size for CAT TP
         public static final int CAT_TP_DEFAULT_MAX_RTT = 60; //!< The default maximum (expected) round trip time
         public static final int CAT_TP_DEFAULT_MIN_RTT = 2; //!< The default minimum
+        public static final int CAT_TP_INITIAL_RTO = 3; //!< Retransmission timeout before we have measured the round trip
         public static final int CAT_TP_DEFAULT_RETRIES = 10; //!< Default maximum CAT TP retries
         public static final int SND_INITIAL_SQ_NB = 1; //!< Initial sending packet sequence number
         public static final int CAT_TP_DEFAULT_DATA_TIMEOUT = 20 * 60; //!< Default data timeout in seconds
@@ -816,14 +966,17 @@ public class BipCatTP extends Transport {
         private static final int MAX_STATE = DEAD_STATE; //!< Largest state constant
 
         private static final List<StateTransitionRule>[] transitionRules; //!< These the state transition rules Indexed by state ID.
-        private static DatagramSocket socket; //!< The server socket
-        private static boolean stopIt = false;
-        private static Thread socketThread = null; //!< Socket listener thread
-        private static BlockingQueue<Event> eventsList = new LinkedBlockingQueue<Event>(); //!<  The global event queue
-        private static Thread eventDispatcher = null; //!< The event dispatcher/processor
+        private static DatagramChannel[] channels; //!< The server sockets: One, or several sharing the port
+        private static volatile boolean stopIt = false;
+        private static Thread[] readerThreads = null; //!< Socket listener threads
+        private static final BufferPool bufferPool = new BufferPool(); //!< Receive buffers
+        private static final int LISTEN_MAILBOXES = 64; //!< Mailboxes for packets that have no connection (yet)
+        private static final Mailbox[] listenMailboxes = new Mailbox[LISTEN_MAILBOXES];
         private static ExecutorService eventProcessor = null; //!< Event processor thread pool
 
         static {
+            for (int i = 0; i < LISTEN_MAILBOXES; i++)
+                listenMailboxes[i] = new Mailbox();
             // Here we initiliase the CAT TP Finite State Machine
             // These are the special, shared actions:
 
@@ -836,7 +989,7 @@ public class BipCatTP extends Transport {
                     int seqNum;
 
                     // Cancel keep alive timer
-                    Timers.cancel(KeepAliveEvent.class, 0); // Cancel the keep alive.
+                    Timers.cancel(evt.connection, Timers.Kind.KeepAlive, 0); // Cancel the keep alive.
 
                     if (evt instanceof RetransmitEvent)
                         seqNum = ((RetransmitEvent) evt).pdu.sequenceNumber + 1;
@@ -847,7 +1000,7 @@ public class BipCatTP extends Transport {
 
                     // Cancel all waitin retransmissions
                     for (int i = evt.connection.snd_una_pdu_seq_nb; i < seqNum; i++)
-                        Timers.cancel(RetransmitEvent.class, i);
+                        Timers.cancel(evt.connection, Timers.Kind.Retransmit, i);
                     if (evt instanceof RetransmitEvent ||
                             evt instanceof KeepAliveEvent ||
                             evt instanceof CloseConnectionEvent) {
@@ -867,7 +1020,7 @@ public class BipCatTP extends Transport {
                     notifyEngine(res, evt.connection, code);
 
                     // Set a timer to close it finally
-                    Timers.put(new CloseConnectionEvent(evt.connection), seqNum, evt.connection.rto, eventsList);
+                    Timers.schedule(new CloseConnectionEvent(evt.connection), seqNum, evt.connection.rto);
                     return CLOSE_WAIT_STATE;
                 }
             };
@@ -933,7 +1086,7 @@ public class BipCatTP extends Transport {
 
                             if (evt.connection != null) {
                                 // Start keep-alive
-                                Timers.put(new KeepAliveEvent(evt.connection), 0, CAT_TP_DEFAULT_DATA_TIMEOUT, eventsList);
+                                Timers.put(new KeepAliveEvent(evt.connection), 0, CAT_TP_DEFAULT_DATA_TIMEOUT);
                                 evt.connection.currentState = new_state = SYN_RCVD_STATE;
                             }
 
@@ -1037,16 +1190,8 @@ public class BipCatTP extends Transport {
                             int new_state = -1;
                             RecvPduEvent recvPduEvent = (RecvPduEvent) evt;
                             Packet pdu = recvPduEvent.pdu;
-                            Event revt = Timers.cancel(RetransmitEvent.class, pdu.ackNumber); // Cancel the retransmit event for this
-
-                            // Set window size, since it is an ACK
-                            evt.connection.snd_win_size = pdu.winSize;
-                            if (revt != null)
-                                evt.connection.recomputeRto(revt);
-                            // Else do nothing since retransmit was already sent.
-                            if (evt.connection.snd_una_pdu_seq_nb <= pdu.ackNumber &&
-                                    pdu.ackNumber < evt.connection.snd_nxt_seq_nb)
-                                evt.connection.snd_una_pdu_seq_nb = pdu.ackNumber + 1; // We have this many acknowledged
+                            // Cancel the retransmit for the SYN+ACK and set window size, since it is an ACK
+                            evt.connection.acknowledge(pdu.ackNumber, pdu.winSize);
 
                             if (pdu.dataLen == 0 && !pdu.isNUL_PDU()) {
                                 // Connection has been opened by the ACK to the SYN+ACK
@@ -1090,8 +1235,12 @@ public class BipCatTP extends Transport {
                                 } catch (Exception ex) {
                                     Utils.lg.severe(String.format("CAT_TP Engine [%s]: Cancel retry failed on %s: %s", evt.connection, revt.pdu, ex));
                                 }
-                            else // Retry
+                            else if (evt.connection.isUnacknowledged(revt.pdu)) { // Retry, unless an ACK beat the timer
+                                // Back off once per window, i.e. on the oldest PDU in flight (RFC 6298 Sec. 5.5)
+                                if (revt.pdu.sequenceNumber == evt.connection.snd_una_pdu_seq_nb)
+                                    evt.connection.backoff();
                                 evt.connection.sendWithRetry(revt.pdu, revt.retries, revt.timeSent);
+                            }
                             return -1;
                         }
 
@@ -1173,7 +1322,7 @@ public class BipCatTP extends Transport {
 
                         @Override
                         public int action(Event evt) throws Exception {
-                            Timers.put(new KeepAliveEvent(evt.connection), 0, CAT_TP_DEFAULT_DATA_TIMEOUT, eventsList);
+                            Timers.put(new KeepAliveEvent(evt.connection), 0, CAT_TP_DEFAULT_DATA_TIMEOUT);
                             return -1;
                         }
                     },
@@ -1309,37 +1458,12 @@ public class BipCatTP extends Transport {
                             RecvPduEvent revt = (RecvPduEvent) evt;
                             Packet pdu = revt.pdu;
                             Connection conn = evt.connection;
-                            // From pg 35/36 of spec,
-                            if (pdu.isACK_PDU()) {
-                                if (conn.snd_una_pdu_seq_nb - 1 == pdu.ackNumber) {
-                                    if (conn.snd_win_size < pdu.winSize)
-                                        conn.snd_sdu_size_max = pdu.winSize; // Change of window size
-                                } else if (conn.snd_una_pdu_seq_nb <= pdu.ackNumber &&
-                                        pdu.ackNumber < conn.snd_nxt_seq_nb) {
-
-                                    int old_una_sq = conn.snd_una_pdu_seq_nb;
-                                    conn.snd_una_pdu_seq_nb = pdu.ackNumber + 1;
-                                    conn.snd_win_size = pdu.winSize;
-
-                                    // Cancel all timers
-                                    for (int i = old_una_sq; i <= pdu.ackNumber; i++) {
-                                        Event e = Timers.cancel(RetransmitEvent.class, i);
-                                        if (e != null)
-                                            conn.recomputeRto(e);
-                                    }
-                                }
-                            }
+                            // From pg 35/36 of spec. An EACK also carries the cumulative acknowledgement.
+                            if (pdu.isOneOf(Packet.ACK_PDU | Packet.EACK_PDU))
+                                conn.acknowledge(pdu.ackNumber, pdu.winSize);
 
-                            if (pdu.isEACK_PDU()) {
-                                Packet.EACKParams eparams = pdu.getEackparams();
-                                // Cancel all acknowledged retransmit timers
-                                for (int i = 0; i < eparams.seqNums.length; i++) {
-                                    int xid = eparams.seqNums[i];
-                                    Event e = Timers.cancel(RetransmitEvent.class, xid);
-                                    if (e != null)
-                                        conn.recomputeRto(e);
-                                }
-                            }
+                            if (pdu.isEACK_PDU())
+                                conn.selectiveAcknowledge(pdu.getEackparams().seqNums);
                             // A packet without data which is not a null pkt, just send more data
                             if (pdu.dataLen == 0 && !pdu.isNUL_PDU()) {
                                 conn.sendPacket(null);
@@ -1557,6 +1681,10 @@ public class BipCatTP extends Transport {
         private static void processEvent(Event evt) {
             // Run through the event thingie and do the needful
 
+            if (evt instanceof TakenOverEvent) {
+                Cluster.drop(evt.connection, ((TakenOverEvent) evt).owner); // Not a protocol event
+                return;
+            }
             // Connection connection = evt.connection;
             int currentState = evt.connection == null ? LISTEN_STATE : evt.connection.currentState;
 
@@ -1578,10 +1706,12 @@ public class BipCatTP extends Transport {
                         int new_state = rule.action(evt);
                         int xnew_state = new_state >= 0 ? new_state : evt.connection != null ? evt.connection.currentState : -1;
 
-                        Utils.lg.info(String.format("Cat_TP event processed [rule: %s, State %s->%s, evt: %s]", rule,
-                                stateToString(currentState),
-                                stateToString(xnew_state),
-                                evt));
+                        if (Utils.lg.isLoggable(Level.INFO))
+                            Utils.lg.info(String.format("Cat_TP event processed [rule: %s, State %s->%s, evt: %s]",
+                                    rule,
+                                    stateToString(currentState),
+                                    stateToString(xnew_state),
+                                    evt));
 
                         if (new_state >= 0 && evt.connection != null) // Re-set the state.
                             evt.connection.currentState = new_state;
@@ -1599,75 +1729,112 @@ public class BipCatTP extends Transport {
          */
         public static synchronized void start() throws Exception {
 
-            if (socket != null)
+            if (channels != null)
                 return;
             stopIt = false;
-            socket = new DatagramSocket(ServerSettings.getCat_tp_port());
+            int nreaders = ServerSettings.getBip_receive_threads();
+            channels = openChannels(ServerSettings.getCat_tp_port(), nreaders);
 
-            // Initialise the event Processors and event dispatcher
+            // Initialise the event processors. Connection mailboxes are run on these.
             eventProcessor = Executors.newFixedThreadPool(ServerSettings.getNumThreads()); // Make executors
-            eventDispatcher = new Thread(new Runnable() {
-                @Override
-                public void run() {
-                    Utils.lg.info("CAT_TP Event dispatcher starting up...");
-                    while (!stopIt)
+            Timers.start();
+            if (ServerSettings.isBip_cluster())
+                Cluster.start();
+
+            // The CATP socket receivers: One per socket if the port is shared, else all on the one socket.
+            Utils.lg.info(String.format("CAT_TP UDP Socket server starting up on port [%s] with %d socket(s), %d " +
+                    "reader(s)...", ServerSettings.getCat_tp_port(), channels.length, nreaders));
+            readerThreads = new Thread[nreaders];
+            for (int i = 0; i < nreaders; i++) {
+                final DatagramChannel ch = channels[i % channels.length];
+                readerThreads[i] = new Thread(() -> receiveLoop(ch), "cat_tp-reader-" + i);
+                readerThreads[i].start();
+            }
+        }
+
+        /**
+         * @param port
+         * @param n
+         * @return
+         * @throws Exception
+         * @brief Open the CAT_TP UDP port. Where the platform has SO_REUSEPORT (Java 9+, Linux) we open n sockets on
+         * the port, so the kernel spreads datagrams over them by source address. Otherwise we open one.
+         */
+        @SuppressWarnings("unchecked")
+        private static DatagramChannel[] openChannels(int port, int n) throws Exception {
+            SocketOption<Boolean> reusePort;
+            try {
+                reusePort = (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+            } catch (Exception ex) {
+                reusePort = null; // Not available on this JVM
+            }
+            if (reusePort != null && n > 1) {
+                DatagramChannel[] l = new DatagramChannel[n];
+                try {
+                    for (int i = 0; i < n; i++) {
+                        l[i] = DatagramChannel.open(StandardProtocolFamily.INET);
+                        l[i].setOption(reusePort, true);
+                        l[i].bind(new InetSocketAddress(port));
+                    }
+                    return l;
+                } catch (Exception ex) {
+                    Utils.lg.info(String.format("CAT_TP: Cannot share UDP port [%s], using one socket: %s", port, ex));
+                    for (DatagramChannel c : l)
                         try {
-                            final Event evt = eventsList.take();
-                            Utils.lg.info(String.format("CAT_TP Event [%s]", evt));
-                            // We got it. Now, dispatch it.
-                            eventProcessor.execute(new Runnable() {
-                                Event xevt = evt;
-
-                                @Override
-                                public void run() {
-                                    // Call the state transition processor.
-                                    processEvent(xevt);
-                                }
-                            });
-                        } catch (Exception ex) {
-                            Utils.lg.severe(String.format("Event dispatcher loop exception: %s", ex));
+                            c.close();
+                        } catch (Exception ex2) {
                         }
-                    Utils.lg.info("CAT_TP Event dispatcher stopped...");
                 }
-            });
-
+            }
+            DatagramChannel ch = DatagramChannel.open(StandardProtocolFamily.INET);
+            ch.bind(new InetSocketAddress(port));
+            return new DatagramChannel[]{ch};
+        }
 
-            // The CATP socket receiver.
-            socketThread = new Thread(() -> {
-                byte[] data = new byte[1024];
-                Utils.lg.info("CAT_TP UDP Socket server starting up on port [" + ServerSettings.getCat_tp_port() + "]...");
-                while (!stopIt)
+        /**
+         * @param ch
+         * @brief Read datagrams into a pooled buffer, parse the header in place and post the event to the mailbox of
+         * the connection it is for.
+         */
+        private static void receiveLoop(DatagramChannel ch) {
+            while (!stopIt) {
+                ByteBuffer buf = bufferPool.acquire();
+                try {
+                    InetSocketAddress from = (InetSocketAddress) ch.receive(buf);
+                    if (from == null)
+                        continue;
+                    buf.flip();
+                    Packet pdu;
                     try {
-                        DatagramPacket pkt = new DatagramPacket(data, data.length);
-                        socket.receive(pkt);
-
-                        byte[] x = pkt.getData();
-                        int len = pkt.getLength();
-                        int offset = pkt.getOffset();
-                        // Copy it
-                        byte[] rcvdData = Arrays.copyOfRange(x, offset, offset + len);
-                        // Utils.lg.info(String.format("CAT_TP received %d bytes from [%s:%s]: %s",
-                        //         len,
-                        //         pkt.getAddress(), pkt.getPort(), Utils.b2H(rcvdData)));
-                        Packet pdu;
-                        try {
-                            pdu = Packet.parse(rcvdData); // Gets it and checks checksum, or fails
-                        } catch (Exception ex) {
-                            pdu = null;
-                        }
-                        Utils.lg.info(Packet.dumpPacket(pdu, true, (InetSocketAddress) pkt.getSocketAddress(), rcvdData));
-                        Connection conn = Connection.getConnection(pkt);
-                        RecvPduEvent pevt = new RecvPduEvent(pkt.getAddress(), pkt.getPort(), pdu, conn);
-                        eventsList.add(pevt); // Dump it on the queue.
+                        pdu = Packet.parse(buf); // Gets it and checks checksum, or fails
                     } catch (Exception ex) {
-                        Utils.lg.severe(String.format("CAT_TP Recv error: %s", ex));
+                        pdu = null;
                     }
-                Utils.lg.info("CAT_TP Socket server stopped.");
-            });
-
-            socketThread.start();
-            eventDispatcher.start();
+                    if (pdu == null && Cluster.isEnvelope(buf)) {
+                        Cluster.receive(buf, from); // From another node
+                        continue;
+                    }
+                    final Packet xpdu = pdu;
+                    PacketDump.info(from, () -> Packet.dumpPacket(xpdu, true, from, BufferPool.toBytes(buf)));
+                    // Dump it on the queue. Without a connection, it goes to a listen mailbox, which (in a cluster) may
+                    // pass it on to the node that has the connection
+                    post(new RecvPduEvent(from, pdu, Connection.getConnection(from)));
+                } catch (ClosedChannelException ex) {
+                    break;
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP Recv error: %s", ex));
+                } finally {
+                    bufferPool.release(buf);
+                }
+            }
+            Utils.lg.info("CAT_TP Socket server stopped.");
+        }
 
+        /**
+         * @return The socket to send on
+         */
+        private static DatagramChannel sendChannel() {
+            return channels[0];
         }
 
         /**
@@ -1676,32 +1843,633 @@ public class BipCatTP extends Transport {
          * @throws Exception
          */
         public static synchronized void stop() throws Exception {
-            if (socket == null)
+            if (channels == null)
                 return;
 
             stopIt = true;
 
 
-            try {
-                socket.close();
-                socketThread.interrupt();
-            } catch (Exception ex) {
-
-            }
+            for (DatagramChannel ch : channels)
+                try {
+                    ch.close();
+                } catch (Exception ex) {
+                }
+            for (Thread t : readerThreads)
+                try {
+                    t.interrupt();
+                } catch (Exception ex) {
+                }
+            Cluster.stop(); // Before we drop the connections, so other nodes can take them over
             // Kill the event processors
             Timers.cancelAll(); // Kill all timers.
-            try {
-                eventDispatcher.interrupt();
-            } catch (Exception ex) {
-            }
+            Timers.stop();
             try {
                 eventProcessor.shutdownNow();
             } catch (Exception ex) {
             }
             Connection.clearAll();
-            eventDispatcher = null;
+            for (Mailbox m : listenMailboxes)
+                m.clear();
             eventProcessor = null;
-            socket = null;
+            readerThreads = null;
+            channels = null;
+        }
+
+        /**
+         * @brief A pool of direct buffers for receiving datagrams. Buffers are big enough for any UDP datagram, so
+         * nothing is ever truncated.
+         */
+        private static class BufferPool {
+            private static final int BUFFER_SIZE = 65536;
+            private static final int MAX_POOLED = 64;
+            private final Queue<ByteBuffer> free = new ConcurrentLinkedQueue<>();
+            private final AtomicInteger pooled = new AtomicInteger(0);
+
+            ByteBuffer acquire() {
+                ByteBuffer b = free.poll();
+                if (b == null)
+                    return ByteBuffer.allocateDirect(BUFFER_SIZE);
+                pooled.decrementAndGet();
+                b.clear();
+                return b;
+            }
+
+            void release(ByteBuffer b) {
+                if (pooled.incrementAndGet() <= MAX_POOLED)
+                    free.offer(b);
+                else
+                    pooled.decrementAndGet();
+            }
+
+            static byte[] toBytes(ByteBuffer b) {
+                byte[] out = new byte[b.remaining()];
+                b.duplicate().get(out);
+                return out;
+            }
+        }
+
+        /**
+         * @brief Sharing CAT_TP connections between nodes, so BIP can run on several nodes behind a UDP load balancer.
+         * @details When bip_cluster is set, each node writes the state of its connections to REDIS, and holds an
+         * ownership key for each, which it keeps refreshing. A connection's mailbox takes a snapshot of it after
+         * processing its events; the snapshots are written out a little later, in batches, by the flusher. When a
+         * datagram arrives for a connection this node doesn't have, the listen mailbox it goes to looks it up:
+         * - If another live node owns it, the datagram is forwarded to that node, which replies to the card directly
+         * (so the load balancer must allow direct server return).
+         * - If the owner has gone (its ownership key has expired), we take the connection over from its record.
+         * <p>
+         * SDUs to send are likewise forwarded to the node that has the connection. Forwarded traffic goes to the other
+         * node's CAT_TP port in an envelope, and is only accepted from known nodes. Live nodes are listed in a set,
+         * each with a heartbeat key that expires if the node goes silent. On a clean stop a node gives up its
+         * connections at once, so that others don't have to wait for the ownership keys to expire.
+         */
+        private static class Cluster {
+            static final int RECORD_VERSION = 1;
+            private static final byte[] MAGIC = {'N', 'J', 'F', 'W'}; //!< Starts a forwarded datagram. Never a valid PDU
+            private static final int FWD_PDU = 1, FWD_SDU = 2;
+            private static final int ENVELOPE_HEADER_LEN = MAGIC.length + 1 + 8; //!< Magic, type and time sent
+            private static final int ENVELOPE_TAG_LEN = 16; //!< The HMAC-SHA256 at the end, cut to 128 bits
+            private static final long ENVELOPE_MAX_AGE = 30 * 1000; //!< Milliseconds, allowing for clock skew
+            private static final long FLUSH_INTERVAL = 250; //!< Milliseconds between writes of changed connections
+            private static final long REFRESH_INTERVAL = 5000; //!< Milliseconds between ownership refreshes
+            private static final int OWNER_TTL = 15; //!< Seconds after which a silent node's connections may be taken
+            private static final String CONN_PREFIX = "cattp_conn_", OWNER_PREFIX = "cattp_owner_",
+                    MSISDN_PREFIX = "cattp_msisdn_", NODE_PREFIX = "cattp_node_", NODES_KEY = "cattp_nodes";
+            //! Take a claim if free, or extend it if the holder already has it. In one step, so it can't lapse between
+            private static final String CLAIM_SCRIPT = "local v = redis.call('GET', KEYS[1]) " +
+                    "if not v then redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2]) return 1 end " +
+                    "if v == ARGV[1] then redis.call('PEXPIRE', KEYS[1], ARGV[2]) return 1 end " +
+                    "return 0";
+            //! Release a claim only if the holder still has it
+            private static final String UNCLAIM_SCRIPT = "if redis.call('GET', KEYS[1]) == ARGV[1] then " +
+                    "return redis.call('DEL', KEYS[1]) end return 0";
+
+            private static volatile boolean enabled = false;
+            private static String node; //!< Our node name
+            private static Mac envelopeMac; //!< Keyed with the cluster secret. Cloned for use, never used directly
+            private static Jedis redis; //!< The flusher's. Guarded by the class
+            private static JedisPool lookups; //!< For lookups made while routing packets and SDUs
+            private static ScheduledExecutorService flusher;
+            //! Connection records (and MSISDNs) waiting to be written, by connection ID
+            private static final Map<String, Utils.Pair<byte[], String>> snapshots = new ConcurrentHashMap<>();
+            private static final Queue<Utils.Pair<String, String>> gone = new ConcurrentLinkedQueue<>(); //!< Removed connection IDs and MSISDNs
+            private static volatile Map<String, InetSocketAddress> nodes = Collections.emptyMap(); //!< Live nodes, by name
+            private static volatile Set<InetAddress> peers = Collections.emptySet(); //!< Their addresses
+            private static long lastRefresh = 0;
+
+            static boolean isEnabled() {
+                return enabled;
+            }
+
+            static synchronized void start() {
+                node = ServerSettings.getMyhostname();
+                String secret = ServerSettings.getBip_cluster_secret();
+                if (secret == null || secret.isEmpty()) {
+                    Utils.lg.severe("CAT_TP cluster: No bip_cluster_secret set, so forwarded packets can't be " +
+                            "authenticated. Running standalone");
+                    return;
+                }
+                try {
+                    envelopeMac = Mac.getInstance("HmacSHA256");
+                    envelopeMac.init(new SecretKeySpec(secret.getBytes(StandardCharsets.UTF_8), "HmacSHA256"));
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: No HMAC-SHA256, running standalone: %s", ex));
+                    return;
+                }
+                try {
+                    redis = Utils.redisConnect();
+                    lookups = new JedisPool(ServerSettings.getRedis_server(), ServerSettings.getRedis_port());
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Failed to connect to REDIS, running standalone: %s", ex));
+                    return;
+                }
+                enabled = true;
+                flusher = Executors.newSingleThreadScheduledExecutor();
+                flusher.scheduleWithFixedDelay(Cluster::flush, 0, FLUSH_INTERVAL, TimeUnit.MILLISECONDS);
+                Utils.lg.info(String.format("CAT_TP cluster: Node [%s] reachable at [%s]", node,
+                        ServerSettings.getBip_cluster_address()));
+            }
+
+            static void stop() {
+                if (!enabled)
+                    return;
+                try {
+                    flusher.shutdownNow();
+                    flusher.awaitTermination(2, TimeUnit.SECONDS);
+                } catch (Exception ex) {
+                }
+                synchronized (Cluster.class) {
+                    flush(); // Snapshots taken since the last flush
+                    try {
+                        // Let go of our connections, and announce we are gone
+                        Pipeline p = redis.pipelined();
+                        for (String id : Connection.activeConnections.keySet())
+                            p.del(OWNER_PREFIX + id);
+                        p.srem(NODES_KEY, node);
+                        p.del(NODE_PREFIX + node);
+                        p.sync();
+                    } catch (Exception ex) {
+                        Utils.lg.severe(String.format("CAT_TP cluster: Failed to release connections: %s", ex));
+                    }
+                    enabled = false;
+                    snapshots.clear();
+                    gone.clear();
+                    try {
+                        redis.close();
+                        lookups.close();
+                    } catch (Exception ex) {
+                    }
+                    redis = null;
+                    lookups = null;
+                }
+            }
+
+            /**
+             * @brief Take a snapshot of a connection, for the flusher to write out. Called on the connection's mailbox
+             * (the only thread that changes it), after it has processed its events.
+             */
+            static void changed(Connection c) {
+                if (!enabled || c.currentState == DEAD_STATE)
+                    return;
+                try {
+                    snapshots.put(c.getID(), new Utils.Pair<>(c.toRecord(), c.msisdn));
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Failed to save [%s]: %s", c, ex));
+                }
+            }
+
+            static void removed(Connection c) {
+                if (enabled) {
+                    snapshots.remove(c.getID());
+                    gone.add(new Utils.Pair<>(c.getID(), c.msisdn));
+                }
+            }
+
+            /**
+             * @brief Drop a connection another node has taken over (e.g. while we were cut off). Called on its mailbox.
+             */
+            static void drop(Connection c, String owner) {
+                Utils.lg.info(String.format("CAT_TP cluster: [%s] now belongs to node [%s], dropping it", c, owner));
+                snapshots.remove(c.getID());
+                c.mailbox.clear();
+                c.clearLocal();
+            }
+
+            private static void reconnect() {
+                try {
+                    redis.close();
+                } catch (Exception ex) {
+                }
+                try {
+                    redis = Utils.redisConnect();
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: REDIS reconnect failed: %s", ex));
+                }
+            }
+
+            /**
+             * @brief Remove closed connections, write out the snapshots of changed ones and, now and then, refresh our
+             * ownership keys and the list of live nodes. Connections another node has taken over are dropped by their
+             * own mailboxes.
+             */
+            private static synchronized void flush() {
+                if (redis == null)
+                    return;
+                try {
+                    int ttl = Math.max(60, 2 * ServerSettings.getBip_idle_timeout());
+                    Pipeline p = redis.pipelined();
+                    // Removals first: A connection closed and re-opened since the last flush has a new snapshot
+                    Utils.Pair<String, String> x;
+                    while ((x = gone.poll()) != null) {
+                        p.del(CONN_PREFIX + x.k, OWNER_PREFIX + x.k);
+                        if (x.l != null)
+                            p.del(MSISDN_PREFIX + x.l);
+                    }
+                    for (String id : snapshots.keySet()) {
+                        Utils.Pair<byte[], String> rec = snapshots.remove(id);
+                        if (rec == null)
+                            continue;
+                        p.setex((CONN_PREFIX + id).getBytes(StandardCharsets.UTF_8), ttl, rec.k);
+                        p.setex(OWNER_PREFIX + id, OWNER_TTL, node);
+                        if (rec.l != null)
+                            p.setex(MSISDN_PREFIX + rec.l, ttl, id);
+                    }
+                    long tnow = System.currentTimeMillis();
+                    boolean refresh = tnow - lastRefresh >= REFRESH_INTERVAL;
+                    List<Connection> mine = null;
+                    List<Response<String>> owners = null;
+                    if (refresh) {
+                        lastRefresh = tnow;
+                        p.setex(NODE_PREFIX + node, OWNER_TTL, ServerSettings.getBip_cluster_address());
+                        p.sadd(NODES_KEY, node);
+                        mine = new ArrayList<>(Connection.activeConnections.values());
+                        owners = new ArrayList<>();
+                        for (Connection c : mine)
+                            owners.add(p.get(OWNER_PREFIX + c.getID()));
+                    }
+                    p.sync();
+                    if (refresh) {
+                        p = redis.pipelined();
+                        for (int i = 0; i < mine.size(); i++) {
+                            Connection c = mine.get(i);
+                            String o = owners.get(i).get();
+                            if (o == null || o.equals(node))
+                                p.setex(OWNER_PREFIX + c.getID(), OWNER_TTL, node);
+                            else
+                                post(new TakenOverEvent(c, o)); // Taken over while we were cut off
+                        }
+                        p.sync();
+                        refreshNodes();
+                    }
+                } catch (JedisConnectionException ex) {
+                    Utils.lg.severe("CAT_TP cluster: REDIS connection down. Will try to reconnect");
+                    reconnect();
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Flush failed: %s", ex));
+                }
+            }
+
+            /**
+             * @brief Re-read the live nodes. Those in the set whose heartbeat key has expired are removed from it.
+             */
+            private static void refreshNodes() {
+                List<String> names = new ArrayList<>(redis.smembers(NODES_KEY));
+                if (names.isEmpty())
+                    return;
+                String[] keys = new String[names.size()];
+                for (int i = 0; i < keys.length; i++)
+                    keys[i] = NODE_PREFIX + names.get(i);
+                List<String> addrs = redis.mget(keys);
+                Map<String, InetSocketAddress> m = new HashMap<>();
+                Set<InetAddress> a = new HashSet<>();
+                List<String> dead = new ArrayList<>();
+                for (int i = 0; i < keys.length; i++)
+                    try {
+                        if (addrs.get(i) == null) {
+                            dead.add(names.get(i));
+                            continue;
+                        }
+                        String[] hp = addrs.get(i).split(":");
+                        InetSocketAddress addr = new InetSocketAddress(hp[0], Integer.parseInt(hp[1]));
+                        m.put(names.get(i), addr);
+                        a.add(addr.getAddress());
+                    } catch (Exception ex) {
+                    }
+                if (!dead.isEmpty())
+                    redis.srem(NODES_KEY, dead.toArray(new String[0]));
+                nodes = m;
+                peers = a;
+            }
+
+            /**
+             * @param evt - The event on the listen mailbox
+             * @return True if the datagram was forwarded to another node
+             * @brief Called on the listen mailbox for datagrams on connections we don't have (other than SYNs and
+             * those forwarded to us). Forward them to the owner if it is alive, else take the connection over (if
+             * there is one to take over): The datagram is then processed on it, and the mailbox publishes it.
+             */
+            static boolean route(Event evt) {
+                if (!enabled || evt.connection != null || !(evt instanceof RecvPduEvent))
+                    return false;
+                RecvPduEvent rpdu = (RecvPduEvent) evt;
+                if (rpdu.forwarded || rpdu.addr == null || rpdu.pdu == null || rpdu.pdu.isSYN_PDU())
+                    return false;
+                String id = Connection.getConnectionID(rpdu.addr.getAddress().toString(), rpdu.addr.getPort());
+                InetSocketAddress owner;
+                try (Jedis r = lookups.getResource()) {
+                    String o = r.get(OWNER_PREFIX + id);
+                    if (o != null && !o.equals(node)) {
+                        owner = nodes.get(o);
+                        if (owner == null)
+                            return false; // Owner still holds it, but isn't listed. The card will retry.
+                    } else {
+                        // Nobody owns it (or we did, before a restart): Take it over, if there is anything to take
+                        if (o == null && !"OK".equalsIgnoreCase(r.set(OWNER_PREFIX + id, node, "NX", "EX", OWNER_TTL)))
+                            return false; // Another node beat us to it
+                        byte[] rec = r.get((CONN_PREFIX + id).getBytes(StandardCharsets.UTF_8));
+                        if (rec != null) {
+                            evt.connection = Connection.fromRecord(rec);
+                            Utils.lg.info(String.format("CAT_TP cluster: Took over [%s]", evt.connection));
+                        } else
+                            r.del(OWNER_PREFIX + id); // Nothing to take over
+                        return false;
+                    }
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Routing of [%s] failed: %s", id, ex));
+                    return false;
+                }
+                try {
+                    byte[] addr = rpdu.addr.getAddress().getAddress();
+                    byte[] pdu = rpdu.pdu.toBytes(); // The receive buffer has long been reused
+                    ByteBuffer out = envelope(FWD_PDU, 1 + addr.length + 2 + pdu.length);
+                    out.put((byte) addr.length).put(addr).putShort((short) rpdu.addr.getPort()).put(pdu);
+                    sendChannel().send(seal(out), owner);
+                    return true;
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Forward of [%s] to [%s] failed: %s", id, owner, ex));
+                    return false;
+                }
+            }
+
+            /**
+             * @param msisdn
+             * @return The connection ID and the node that has it, if another node has a connection for this MSISDN
+             */
+            static Utils.Pair<String, InetSocketAddress> remoteConnection(String msisdn) {
+                if (!enabled || msisdn == null)
+                    return null;
+                try (Jedis r = lookups.getResource()) {
+                    String id = r.get(MSISDN_PREFIX + msisdn);
+                    String o = id != null ? r.get(OWNER_PREFIX + id) : null;
+                    InetSocketAddress addr = o != null && !o.equals(node) ? nodes.get(o) : null;
+                    return addr != null ? new Utils.Pair<>(id, addr) : null;
+                } catch (Exception ex) {
+                }
+                return null;
+            }
+
+            /**
+             * @param key
+             * @param holder
+             * @param ttlMillis
+             * @return True if the claim is ours: It was free, or already held by the same holder (it is then
+             * extended). Also true if REDIS can't be asked, leaving it to this node's own claims.
+             * @brief Take a claim shared by all nodes, such as the right to push to a card
+             */
+            static boolean claim(String key, String holder, long ttlMillis) {
+                if (!enabled)
+                    return true;
+                try (Jedis r = lookups.getResource()) {
+                    Object res = r.eval(CLAIM_SCRIPT, Collections.singletonList(key),
+                            Arrays.asList(holder, String.valueOf(Math.max(1, ttlMillis))));
+                    return res instanceof Long && (Long) res == 1;
+                } catch (Exception ex) {
+                    Utils.lg.warning(String.format("CAT_TP cluster: Failed to claim [%s]: %s", key, ex));
+                    return true;
+                }
+            }
+
+            /**
+             * @param key
+             * @param holder
+             * @brief Give up a claim, unless it has lapsed and another holder has taken it since
+             */
+            static void unclaim(String key, String holder) {
+                if (!enabled)
+                    return;
+                try (Jedis r = lookups.getResource()) {
+                    r.eval(UNCLAIM_SCRIPT, Collections.singletonList(key), Collections.singletonList(holder));
+                } catch (Exception ex) {
+                    Utils.lg.warning(String.format("CAT_TP cluster: Failed to release [%s]: %s", key, ex));
+                }
+            }
+
+            /**
+             * @return True if forwarded
+             * @brief Send an SDU via the node that has the connection
+             */
+            static boolean forwardSDU(Utils.Pair<String, InetSocketAddress> remote, long tid, byte[] sdu) {
+                try {
+                    byte[] id = remote.k.getBytes(StandardCharsets.UTF_8);
+                    ByteBuffer out = envelope(FWD_SDU, 8 + 2 + id.length + sdu.length);
+                    out.putLong(tid).putShort((short) id.length).put(id).put(sdu);
+                    sendChannel().send(seal(out), remote.l);
+                    return true;
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Forward of SDU to [%s] failed: %s", remote.l, ex));
+                    return false;
+                }
+            }
+
+            /**
+             * @param type
+             * @param bodyLen
+             * @return A buffer with the envelope header written, and room for the body and the tag
+             */
+            private static ByteBuffer envelope(int type, int bodyLen) {
+                ByteBuffer out = ByteBuffer.allocate(ENVELOPE_HEADER_LEN + bodyLen + ENVELOPE_TAG_LEN);
+                return out.put(MAGIC).put((byte) type).putLong(System.currentTimeMillis());
+            }
+
+            /**
+             * @param out
+             * @return The envelope, ready to send
+             * @brief Append the tag: An HMAC, keyed with the cluster secret, over all that was written
+             */
+            private static ByteBuffer seal(ByteBuffer out) throws Exception {
+                Mac mac = (Mac) envelopeMac.clone();
+                mac.update(out.array(), 0, out.position());
+                out.put(mac.doFinal(), 0, ENVELOPE_TAG_LEN);
+                out.flip();
+                return out;
+            }
+
+            /**
+             * @param buf
+             * @return The envelope type, with buf positioned at the body and limited to it. -1 if the tag is wrong or
+             * the envelope is too old.
+             */
+            private static int open(ByteBuffer buf) throws Exception {
+                if (buf.remaining() < ENVELOPE_HEADER_LEN + ENVELOPE_TAG_LEN)
+                    return -1;
+                int start = buf.position(), end = buf.limit() - ENVELOPE_TAG_LEN;
+                Mac mac = (Mac) envelopeMac.clone();
+                if (buf.hasArray())
+                    mac.update(buf.array(), buf.arrayOffset() + start, end - start);
+                else
+                    mac.update((ByteBuffer) buf.duplicate().limit(end));
+                byte[] tag = new byte[ENVELOPE_TAG_LEN];
+                ((ByteBuffer) buf.duplicate().position(end)).get(tag);
+                if (!MessageDigest.isEqual(tag, Arrays.copyOf(mac.doFinal(), ENVELOPE_TAG_LEN)))
+                    return -1;
+                buf.position(start + MAGIC.length);
+                int type = buf.get();
+                if (Math.abs(System.currentTimeMillis() - buf.getLong()) > ENVELOPE_MAX_AGE)
+                    return -1;
+                buf.limit(end);
+                return type;
+            }
+
+            static boolean isEnvelope(ByteBuffer buf) {
+                if (!enabled || buf.remaining() < MAGIC.length + 1)
+                    return false;
+                for (int i = 0; i < MAGIC.length; i++)
+                    if (buf.get(buf.position() + i) != MAGIC[i])
+                        return false;
+                return true;
+            }
+
+            /**
+             * @brief Handle a datagram or SDU forwarded by another node
+             */
+            static void receive(ByteBuffer buf, InetSocketAddress from) {
+                if (!peers.contains(from.getAddress())) {
+                    Utils.lg.warning(String.format("CAT_TP cluster: Dropping forwarded packet from unknown node [%s]", from));
+                    return;
+                }
+                try {
+                    ByteBuffer b = buf.duplicate();
+                    int type = open(b);
+                    if (type < 0) {
+                        Utils.lg.warning(String.format("CAT_TP cluster: Dropping forwarded packet from [%s]: Bad " +
+                                "or stale authentication tag", from));
+                        return;
+                    }
+                    if (type == FWD_PDU) {
+                        byte[] addr = new byte[b.get()];
+                        b.get(addr);
+                        InetSocketAddress card = new InetSocketAddress(InetAddress.getByAddress(addr),
+                                b.getShort() & 0xFFFF);
+                        Packet pdu = Packet.parse(b.slice());
+                        RecvPduEvent evt = new RecvPduEvent(card, pdu, Connection.getConnection(card));
+                        evt.forwarded = true; // Never routed again: The sender says it is ours
+                        post(evt);
+                    } else if (type == FWD_SDU) {
+                        long tid = b.getLong();
+                        byte[] id = new byte[b.getShort() & 0xFFFF];
+                        b.get(id);
+                        byte[] sdu = new byte[b.remaining()];
+                        b.get(sdu);
+                        Connection c = Connection.getConnectionForID(new String(id, StandardCharsets.UTF_8));
+                        if (c != null)
+                            c.queueSDU(sdu, tid);
+                        else
+                            Utils.lg.warning(String.format("CAT_TP cluster: No connection [%s] for forwarded SDU of trans [%s]",
+                                    new String(id, StandardCharsets.UTF_8), tid));
+                    }
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("CAT_TP cluster: Bad forwarded packet from [%s]: %s", from, ex));
+                }
+            }
+        }
+
+        /**
+         * @param evt
+         * @brief Queue an event for processing. Events on a connection go to its mailbox; received packets without
+         * a connection go to a listen mailbox picked by the sender's address, so that packets from the same peer
+         * stay in order.
+         */
+        private static void post(Event evt) {
+            Mailbox m;
+            if (evt.connection != null)
+                m = evt.connection.mailbox;
+            else if (evt instanceof RecvPduEvent && ((RecvPduEvent) evt).addr != null)
+                m = listenMailboxes[(((RecvPduEvent) evt).addr.hashCode() & 0x7FFFFFFF) % LISTEN_MAILBOXES];
+            else
+                m = listenMailboxes[0];
+            m.post(evt);
+        }
+
+        /**
+         * @brief A serial event queue. Events posted to a mailbox are processed one at a time, in order, on the
+         * event processor pool. The mailbox is only on the pool while it has events, so different connections are
+         * processed in parallel while a single connection's state is only ever touched by one thread at a time.
+         */
+        private static class Mailbox implements Runnable {
+            private static final int MAX_BATCH = 32; //!< Events processed before giving the thread to other mailboxes
+            private final Queue<Event> events = new ConcurrentLinkedQueue<>();
+            private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+            void post(Event evt) {
+                events.add(evt);
+                schedule();
+            }
+
+            private void schedule() {
+                if (!scheduled.compareAndSet(false, true))
+                    return; // Already on the pool, it will see the new event.
+                try {
+                    eventProcessor.execute(this);
+                } catch (Exception ex) {
+                    scheduled.set(false); // Not running (stopped?). Leave them queued.
+                }
+            }
+
+            void clear() {
+                events.clear();
+            }
+
+            /**
+             * @return True if the packet was passed on to the mailbox of its connection, which was opened (published)
+             * after the packet was queued here
+             */
+            private static boolean toConnection(Event evt) {
+                InetSocketAddress addr = evt instanceof RecvPduEvent ? ((RecvPduEvent) evt).addr : null;
+                Connection c = evt.connection == null && addr != null ? Connection.getConnection(addr) : null;
+                if (c == null)
+                    return false;
+                evt.connection = c;
+                c.mailbox.post(evt);
+                return true;
+            }
+
+            @Override
+            public void run() {
+                Event evt;
+                Connection changed = null;
+                for (int i = 0; i < MAX_BATCH && (evt = events.poll()) != null; i++)
+                    try {
+                        if (toConnection(evt) || Cluster.route(evt))
+                            continue;
+                        if (Utils.lg.isLoggable(Level.INFO))
+                            Utils.lg.info(String.format("CAT_TP Event [%s]", evt));
+                        processEvent(evt);
+                        Connection c = evt.connection;
+                        if (c != null && !c.isPublished()) {
+                            // Made by this event: Save it before its own mailbox can get at it
+                            Cluster.changed(c);
+                            c.publish();
+                        } else if (c != null)
+                            changed = c;
+                    } catch (Exception ex) {
+                        Utils.lg.severe(String.format("CAT_TP event processing exception: %s", ex));
+                    }
+                if (changed != null)
+                    Cluster.changed(changed); // Once per batch, on this thread
+                scheduled.set(false);
+                if (!events.isEmpty())
+                    schedule();
+            }
         }
 
         public enum CatTPCodes {
@@ -1744,10 +2512,15 @@ public class BipCatTP extends Transport {
         private static class RecvPduEvent extends Event {
             public InetSocketAddress addr; //!< The socket on which it was received
             public Packet pdu; //!< The received PDU
+            public boolean forwarded = false; //!< Forwarded to us by another node in the cluster
 
             public RecvPduEvent(InetAddress fromAddress, int fromPort, Packet pdu, Connection conn) {
+                this(new InetSocketAddress(fromAddress, fromPort), pdu, conn);
+            }
+
+            public RecvPduEvent(InetSocketAddress from, Packet pdu, Connection conn) {
                 super(conn);
-                addr = new InetSocketAddress(fromAddress, fromPort);
+                addr = from;
                 this.pdu = pdu;
                 //connection = conn;
             }
@@ -1838,12 +2611,28 @@ public class BipCatTP extends Transport {
 
         }
 
+        /**
+         * Queued by the cluster flusher when another node has taken the connection over, so that it is dropped on
+         * its own mailbox
+         */
+        private static class TakenOverEvent extends Event {
+            public String owner; //!< The node that has it now
+
+            public TakenOverEvent(Connection conn, String owner) {
+                super(conn);
+                this.owner = owner;
+            }
+
+            @Override
+            public String toString() {
+                return String.format("TakenOverEvent [%s]", owner);
+            }
+        }
+
         /**
          * This is the CAT_TP connection representation
          */
         private static class Connection {
-            private static final double ALPHA = 0.5; //!< This is a smoothing parameter from RFC 793
-            private static final double BETA = 1.3; //!< Also smoothing parameter from RFC 793
             private static Map<String, Connection> activeConnections = new ConcurrentHashMap<String, Connection>(); //!< List of active connections
             private static Map<String, Connection> msisdnMap = new ConcurrentHashMap<String, Connection>(); //!< List of active Indexed by msisdn, points to same...
             // Represents a connection.
@@ -1851,8 +2640,9 @@ public class BipCatTP extends Transport {
             public byte[] ident; //!< The connection Identifier as received
             public int SrcPort, DestPort; //!< Cat TP params
             public String msisdn; //!< The MSISDN
-            public long srtt = 0; //!< Smoothed round trip for a packet, starts out as default
-            public long rto = CAT_TP_DEFAULT_MAX_RTT; //!< Round trip time
+            public long srtt = 0; //!< Smoothed round trip time in milliseconds, 0 until we have a measurement
+            public long rttvar = 0; //!< Round trip time variation in milliseconds
+            public long rto = CAT_TP_INITIAL_RTO * 1000L; //!< Retransmission timeout in milliseconds
             public int snd_nxt_seq_nb = SND_INITIAL_SQ_NB; /*!< Next PDU sequence number when sending */
             public int snd_una_pdu_seq_nb;  /*!< Oldest unacknowledged PDU that was sent. */
             public int snd_pdu_size_max, snd_sdu_size_max;  /*!< Largest PDU/SDU that can be sent. */
@@ -1865,9 +2655,14 @@ public class BipCatTP extends Transport {
             public int cat_tp_dst_port = 0; //!< The destination port in the CAT_TP packet
             public int cat_tp_src_port = 0; //!< The source port in the CAT_TP packet
             InetSocketAddress destAddr; //!< The destination address
+            final Mailbox mailbox = new Mailbox(); //!< Events on this connection, processed in order
+            final Map<Long, Timers.Timeout> timers = new ConcurrentHashMap<>(); //!< Pending timers, by kind and ID
             List<Packet> receivedPkts = new ArrayList<Packet>(); //!< Received packets until we have an SDU
             Queue<Utils.Pair<ByteArrayInputStream, Long>> outgoingSDUs = new LinkedList<Utils.Pair<ByteArrayInputStream, Long>>(); //!< Outgoing SDUs on this connection
+            private final SortedMap<Integer, Packet> unacked = new TreeMap<Integer, Packet>(); //!< PDUs sent and not yet acknowledged, by sequence number
+            private final Set<Integer> fastRetransmitted = new HashSet<Integer>(); //!< Unacknowledged PDUs already resent because of an EACK
             private boolean closeRequested = false;
+            private boolean published = false; //!< In the pool yet? See publish()
             private long lastt = System.currentTimeMillis(); //!< When last active from the perspective of the upper layer.
 
             /**
@@ -1890,52 +2685,63 @@ public class BipCatTP extends Transport {
 
                 this.cat_tp_dst_port = dstPort;
                 this.cat_tp_src_port = srcPort;
-
-
-                // Put a new connection into our pool. *after it has been initiliased fully of course *
-                activeConnections.put(getID(), this);
+                // Not in the pool yet: The mailbox that made it calls publish() once it is set up.
             }
 
             /**
-             * Compute a new smoothed round trip time given the current smoothed round trip time and the last round trip time seen
-             * This is from RFC 793
-             *
-             * @param srtt
-             * @param rtt
-             * @return
+             * @brief Put the connection into our pool, so that its packets go to its own mailbox. Called by the mailbox
+             * that made the connection, once the event that made it has been processed. Until then the card's packets
+             * keep going to that (listen) mailbox, behind the one that opened the connection.
              */
-            private static long SRTT(long srtt, long rtt) {
-                return (long) (ALPHA * srtt + (1 - ALPHA) * rtt);
+            public synchronized boolean isPublished() {
+                return published;
+            }
+
+            public synchronized void publish() {
+                if (published || currentState == DEAD_STATE)
+                    return;
+                published = true;
+                activeConnections.put(getID(), this);
+                if (msisdn != null)
+                    msisdnMap.put(msisdn, this);
             }
 
             /**
-             * Compute the round trip time.
-             *
-             * @param srtt
-             * @param rtt
+             * @param rto
              * @return
+             * @brief Keep the RTO within the CAT_TP minimum and maximum round trip times
              */
-            private static long RTO(long srtt, long rtt) {
-                return (long) Math.min((double) CAT_TP_DEFAULT_MAX_RTT, Math.max((double) CAT_TP_DEFAULT_MIN_RTT,
-                        (BETA * SRTT(srtt, rtt))));
-            }
-
-            private static String getConnectionID(DatagramPacket pkt) {
-
-
-                return getConnectionID(pkt.getAddress().toString(), pkt.getPort());
+            private static long clampRto(long rto) {
+                return Math.min(CAT_TP_DEFAULT_MAX_RTT * 1000L, Math.max(CAT_TP_DEFAULT_MIN_RTT * 1000L, rto));
             }
 
             public static String getConnectionID(String host, int port) {
-                return String.format("%s:%s", host, port);
+                return host + ":" + port;
             }
 
-            public static Connection getConnection(DatagramPacket pkt) {
-                String cID = getConnectionID(pkt);
+            public static Connection getConnection(InetSocketAddress from) {
+                String cID = getConnectionID(from.getAddress().toString(), from.getPort());
 
                 return activeConnections.get(cID);
             }
 
+            public static Map<String, Long> stats() {
+                long sdus = 0, pdus = 0;
+                for (Connection c : activeConnections.values())
+                    synchronized (c) {
+                        sdus += c.outgoingSDUs.size();
+                        pdus += c.unacked.size();
+                    }
+                Runtime rt = Runtime.getRuntime();
+                Map<String, Long> m = new LinkedHashMap<>();
+                m.put("connections", (long) activeConnections.size());
+                m.put("msisdns", (long) msisdnMap.size());
+                m.put("queuedSDUs", sdus);
+                m.put("unackedPDUs", pdus);
+                m.put("heapUsed", rt.totalMemory() - rt.freeMemory());
+                return m;
+            }
+
             public static Connection getConnectionForMSISDN(String msisdn) {
                 return msisdnMap.get(msisdn);
             }
@@ -1944,6 +2750,139 @@ public class BipCatTP extends Transport {
                 return activeConnections.get(cID);
             }
 
+            /**
+             * @return The connection state as a compact record: Addresses, sequence numbers, window, round trip
+             * estimates and the PDUs and SDUs still in play.
+             * @throws Exception
+             */
+            public synchronized byte[] toRecord() throws Exception {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                DataOutputStream ds = new DataOutputStream(os);
+                ds.writeByte(Cluster.RECORD_VERSION);
+                writeBytes(ds, destAddr.getAddress().getAddress());
+                ds.writeShort(destAddr.getPort());
+                writeBytes(ds, ident);
+                ds.writeUTF(msisdn != null ? msisdn : "");
+                ds.writeShort(cat_tp_src_port);
+                ds.writeShort(cat_tp_dst_port);
+                ds.writeByte(currentState);
+                ds.writeBoolean(closeRequested);
+                ds.writeInt(snd_nxt_seq_nb);
+                ds.writeInt(snd_una_pdu_seq_nb);
+                ds.writeInt(snd_pdu_size_max);
+                ds.writeInt(snd_sdu_size_max);
+                ds.writeInt(snd_win_size);
+                ds.writeInt(rcv_cur_seq_nb);
+                ds.writeInt(rcv_ini_seq_nb);
+                ds.writeInt((int) srtt);
+                ds.writeInt((int) rttvar);
+                ds.writeInt((int) rto);
+
+                writePackets(ds, unacked.values());
+                List<Packet> l = new ArrayList<Packet>();
+                for (Packet p : rcv_out_of_seq_pdu)
+                    if (p != null)
+                        l.add(p);
+                writePackets(ds, l);
+                writePackets(ds, receivedPkts);
+                synchronized (outgoingSDUs) {
+                    ds.writeShort(outgoingSDUs.size());
+                    for (Utils.Pair<ByteArrayInputStream, Long> x : outgoingSDUs) {
+                        ds.writeLong(x.l != null ? x.l : -1);
+                        ByteArrayInputStream in = x.k;
+                        byte[] data = new byte[in.available()];
+                        in.mark(0);
+                        in.read(data);
+                        in.reset();
+                        writeBytes(ds, data);
+                    }
+                }
+                ds.flush();
+                return os.toByteArray();
+            }
+
+            /**
+             * @param rec
+             * @return The connection
+             * @throws Exception
+             * @brief Re-create a connection (taken over from another node) from its record. Unacknowledged PDUs are
+             * sent again, since they may have been lost with the other node. The caller publishes it.
+             */
+            public static Connection fromRecord(byte[] rec) throws Exception {
+                DataInputStream ds = new DataInputStream(new ByteArrayInputStream(rec));
+                if (ds.readByte() != Cluster.RECORD_VERSION)
+                    throw new Exception("Unsupported connection record version");
+                InetAddress addr = InetAddress.getByAddress(readBytes(ds));
+                int port = ds.readUnsignedShort();
+                byte[] ident = readBytes(ds);
+                String msisdn = ds.readUTF();
+                int srcPort = ds.readUnsignedShort(), dstPort = ds.readUnsignedShort();
+                int state = ds.readByte();
+                boolean closeRequested = ds.readBoolean();
+                int snd_nxt = ds.readInt(), snd_una = ds.readInt(), pduMax = ds.readInt(), sduMax = ds.readInt();
+                int win = ds.readInt(), rcv_cur = ds.readInt(), rcv_ini = ds.readInt();
+
+                Connection c = new Connection(addr, port, ident, rcv_ini, pduMax, sduMax, dstPort, srcPort);
+                synchronized (c) {
+                    c.currentState = state;
+                    c.closeRequested = closeRequested;
+                    c.snd_nxt_seq_nb = snd_nxt;
+                    c.snd_una_pdu_seq_nb = snd_una;
+                    c.snd_win_size = win;
+                    c.rcv_cur_seq_nb = rcv_cur;
+                    c.srtt = ds.readInt();
+                    c.rttvar = ds.readInt();
+                    c.rto = ds.readInt();
+                    List<Packet> unacked = readPackets(ds);
+                    for (Packet p : readPackets(ds)) {
+                        int idx = p.sequenceNumber - (rcv_cur + 1);
+                        if (idx >= 0 && idx < c.rcv_out_of_seq_pdu.length)
+                            c.rcv_out_of_seq_pdu[idx] = p;
+                    }
+                    c.receivedPkts.addAll(readPackets(ds));
+                    for (int n = ds.readUnsignedShort(); n > 0; n--) {
+                        long tid = ds.readLong();
+                        c.outgoingSDUs.add(new Utils.Pair<ByteArrayInputStream, Long>(
+                                new ByteArrayInputStream(readBytes(ds)), tid >= 0 ? tid : null));
+                    }
+                    if (!msisdn.isEmpty())
+                        c.setMsisdn(msisdn);
+                    if (state == OPEN_STATE || state == SYN_RCVD_STATE) {
+                        Timers.put(new KeepAliveEvent(c), 0, CAT_TP_DEFAULT_DATA_TIMEOUT);
+                        long tnow = System.currentTimeMillis();
+                        for (Packet p : unacked)
+                            c.sendWithRetry(p, 1, tnow); // Counts as a retry, so it isn't used for the RTT
+                    } else if (state == CLOSE_WAIT_STATE)
+                        Timers.schedule(new CloseConnectionEvent(c), c.snd_nxt_seq_nb, c.rto);
+                }
+                return c;
+            }
+
+            private static void writeBytes(DataOutputStream ds, byte[] b) throws Exception {
+                ds.writeInt(b != null ? b.length : 0);
+                if (b != null)
+                    ds.write(b);
+            }
+
+            private static byte[] readBytes(DataInputStream ds) throws Exception {
+                byte[] b = new byte[ds.readInt()];
+                ds.readFully(b);
+                return b;
+            }
+
+            private static void writePackets(DataOutputStream ds, Collection<Packet> l) throws Exception {
+                ds.writeShort(l.size());
+                for (Packet p : l)
+                    writeBytes(ds, p.toBytes());
+            }
+
+            private static List<Packet> readPackets(DataInputStream ds) throws Exception {
+                List<Packet> l = new ArrayList<Packet>();
+                for (int n = ds.readUnsignedShort(); n > 0; n--)
+                    l.add(Packet.parse(readBytes(ds)));
+                return l;
+            }
+
             public static synchronized void clearAll() {
                 Set<String> l = activeConnections.keySet();
                 for (String k : l)
@@ -1975,25 +2914,97 @@ public class BipCatTP extends Transport {
             }
 
             /**
-             * Recompute the round trip time from a retransmission event.
+             * Recompute the round trip time from a retransmission event, as per RFC 6298 Sec. 2. Following Karn's
+             * algorithm, PDUs that were retransmitted are not measured, since we can't tell which copy was acknowledged.
              *
              * @param evt
              */
             public synchronized void recomputeRto(Event evt) {
                 try {
                     RetransmitEvent revt = (RetransmitEvent) evt; // Might fail, in which case, ignore
-
+                    if (revt.retries > 1)
+                        return;
                     long rtt = System.currentTimeMillis() - revt.timeSent;
                     if (rtt > 0) {
-                        srtt = srtt > 0 ? SRTT(srtt, rtt) : rtt; // First time, we set round trip to what we got. Next time we smooth it.
-                        rto = RTO(srtt, rtt);
-                        Utils.lg.info(String.format("CatTP conn [%s] new RTO=>%s", this, rto));
+                        if (srtt == 0) { // First time, we set round trip to what we got. Next time we smooth it.
+                            srtt = rtt;
+                            rttvar = rtt / 2;
+                        } else {
+                            rttvar = (3 * rttvar + Math.abs(srtt - rtt)) / 4; // beta = 1/4
+                            srtt = (7 * srtt + rtt) / 8; // alpha = 1/8
+                        }
+                        rto = clampRto(srtt + Math.max(Timers.TICK_MS, 4 * rttvar));
+                        Utils.lg.fine(String.format("CatTP conn [%s] new RTO=>%s", this, rto));
                     }
 
                 } catch (Exception ex) {
                 }
             }
 
+            /**
+             * @brief Double the RTO after a retransmission timeout (RFC 6298 Sec. 5.5)
+             */
+            public synchronized void backoff() {
+                rto = clampRto(rto * 2);
+            }
+
+            /**
+             * @param pkt
+             * @return True if the PDU is still waiting for an acknowledgement
+             */
+            public synchronized boolean isUnacknowledged(Packet pkt) {
+                return unacked.get(pkt.sequenceNumber) == pkt;
+            }
+
+            /**
+             * @param ackNumber The last in-sequence PDU received by the peer
+             * @param winSize   The peer's receive window
+             * @brief Process a cumulative acknowledgement: Release all PDUs up to ackNumber and take the peer's
+             * (possibly new) window size. Duplicate ACKs still update the window.
+             */
+            public synchronized void acknowledge(int ackNumber, int winSize) {
+                snd_win_size = Math.max(1, winSize); // Always allow one PDU in flight, else we could stall for ever
+                if (snd_una_pdu_seq_nb <= ackNumber && ackNumber < snd_nxt_seq_nb) {
+                    for (int i = snd_una_pdu_seq_nb; i <= ackNumber; i++)
+                        release(i);
+                    snd_una_pdu_seq_nb = ackNumber + 1;
+                }
+            }
+
+            /**
+             * @param seqNums PDUs received out of sequence by the peer
+             * @brief Process an EACK: Release the PDUs the peer has, then resend (once) any PDU still outstanding
+             * below the highest of them, since those were most likely lost. This way we don't wait for their timers.
+             */
+            public synchronized void selectiveAcknowledge(int[] seqNums) {
+                int highest = -1;
+                for (int seq : seqNums)
+                    if (seq >= snd_una_pdu_seq_nb && seq < snd_nxt_seq_nb) {
+                        release(seq);
+                        highest = Math.max(highest, seq);
+                    }
+                if (highest < 0)
+                    return;
+                for (Packet pkt : new ArrayList<Packet>(unacked.headMap(highest).values()))
+                    if (fastRetransmitted.add(pkt.sequenceNumber))
+                        try {
+                            Event e = Timers.cancel(this, Timers.Kind.Retransmit, pkt.sequenceNumber);
+                            if (e instanceof RetransmitEvent)
+                                sendWithRetry(pkt, ((RetransmitEvent) e).retries, ((RetransmitEvent) e).timeSent);
+                        } catch (Exception ex) {
+                            Utils.lg.severe(String.format("CAT_TP [%s]: Selective retransmit of [%s] failed: %s", this,
+                                    pkt, ex));
+                        }
+            }
+
+            private void release(int seq) {
+                unacked.remove(seq);
+                fastRetransmitted.remove(seq);
+                Event e = Timers.cancel(this, Timers.Kind.Retransmit, seq);
+                if (e != null)
+                    recomputeRto(e);
+            }
+
             /**
              * @param sdu
              * @param tid
@@ -2001,7 +3012,7 @@ public class BipCatTP extends Transport {
              * which the state machine will proces accordingly
              */
             public void queueSDU(byte[] sdu, long tid) {
-                eventsList.add(new SendSDUEvent(sdu, tid, this));
+                mailbox.post(new SendSDUEvent(sdu, tid, this));
             }
 
             /**
@@ -2011,13 +3022,16 @@ public class BipCatTP extends Transport {
              * @throws Exception
              * @brief Send a packet and start a timer to queue a retransmit event when it expires.
              */
-            public void sendWithRetry(Packet pkt, int numRetries, long lastt) throws Exception {
+            public synchronized void sendWithRetry(Packet pkt, int numRetries, long lastt) throws Exception {
+                if (numRetries > 0 && pkt.isACK_PDU())
+                    pkt.ackNumber = rcv_cur_seq_nb; // Resends carry the current acknowledgement
                 pkt.send(destAddr.getAddress(), destAddr.getPort()); // Send it
                 // Then optionally queue a retry
 
                 if (pkt.isSYN_PDU() || pkt.isNUL_PDU() || (pkt.dataLen > 0)) {
+                    unacked.put(pkt.sequenceNumber, pkt);
                     RetransmitEvent re = new RetransmitEvent(numRetries + 1, lastt, pkt, this);
-                    Timers.put(re, pkt.sequenceNumber, rto, eventsList); // Queue a retry
+                    Timers.schedule(re, pkt.sequenceNumber, rto); // Queue a retry
                 }
             }
 
@@ -2046,7 +3060,7 @@ public class BipCatTP extends Transport {
                             xout = x.l;
                         } else
                             xout = null;
-                        Utils.lg.severe(String.format("CAT_TP [%s]: Got  outgoing data [size=%s] ", this, dsize));
+                        Utils.lg.fine(String.format("CAT_TP [%s]: Got  outgoing data [size=%s] ", this, dsize));
                         return new Utils.Pair<>(out, xout);
 
                     } catch (Exception ex) {
@@ -2131,22 +3145,40 @@ public class BipCatTP extends Transport {
 
             public synchronized void setMsisdn(String msisdn) {
                 this.msisdn = msisdn;
-                msisdnMap.put(msisdn, this);
+                if (published)
+                    msisdnMap.put(msisdn, this);
             }
 
             public synchronized void clear() {
 
 
                 try {
-                    activeConnections.remove(getID());
+                    activeConnections.remove(getID(), this); // Might not be published, or have been replaced
                 } catch (Exception ex) {
                 }
 
                 try {
-                    msisdnMap.remove(msisdn);
+                    msisdnMap.remove(msisdn, this);
                 } catch (Exception ex) {
 
                 }
+                Timers.cancelAll(this);
+                unacked.clear();
+                fastRetransmitted.clear();
+                currentState = DEAD_STATE;
+                Cluster.removed(this);
+            }
+
+            /**
+             * @brief Drop the connection here only: It lives on at another node.
+             */
+            public synchronized void clearLocal() {
+                activeConnections.remove(getID(), this);
+                if (msisdn != null)
+                    msisdnMap.remove(msisdn, this);
+                Timers.cancelAll(this);
+                unacked.clear();
+                fastRetransmitted.clear();
                 currentState = DEAD_STATE;
             }
 
@@ -2156,7 +3188,7 @@ public class BipCatTP extends Transport {
                 setCloseRequested(true);
                 Utils.lg.info(String.format("Cat_TP connection closure requested for [%s]", this));
                 CloseConnectionEvent evt = new CloseConnectionEvent(this);
-                eventsList.add(evt); // Queue an event.
+                mailbox.post(evt); // Queue an event.
             }
 
             public synchronized boolean isCloseRequested() {
@@ -2210,25 +3242,138 @@ public class BipCatTP extends Transport {
          * Timers module: A timer is an event that should be fired after a certain number of seconds has elapsed
          * This is used say for packet retransmission.
          * A timer can also be cancelled at any time by the caller, in which case the event it represents is returned.
-         * Each timer is also identified by an integer ID
+         * Each timer is identified by its connection, its kind and an integer ID (e.g. the sequence number of the
+         * packet to retransmit). Putting a timer with the same identity replaces (and cancels) the old one.
+         * <p>
+         * Timers are kept in a hashed timing wheel: a ring of buckets, one per tick, that a single thread walks
+         * through. Adding or cancelling a timer is O(1) and allocation-light; cancelled timers are simply marked and
+         * dropped when the wheel next passes their bucket.
          */
         private static class Timers {
-            private static ScheduledThreadPoolExecutor schPool = new ScheduledThreadPoolExecutor(4);
-            private static Map<String, Utils.Quad<Event, Long, ScheduledFuture, Long>> activeTimers = new ConcurrentHashMap<>();
+            private static final long TICK_MS = 100; //!< Wheel resolution
+            private static final int WHEEL_SIZE = 512; //!< Number of buckets. Must be a power of 2
+            private static final int MAX_TRANSFERS_PER_TICK = 100000; //!< New timers moved onto the wheel per tick
+
+            private static final Timeout[] wheel = new Timeout[WHEEL_SIZE]; //!< Bucket lists. Only the wheel thread
+            // touches these
+            private static final Queue<Timeout> newTimeouts = new ConcurrentLinkedQueue<>(); //!< Timers not yet on
+            // the wheel
+            private static final AtomicLong scheduledCount = new AtomicLong(0);
+            private static final AtomicLong firedCount = new AtomicLong(0);
+            private static final AtomicLong cancelledCount = new AtomicLong(0);
+            private static final AtomicInteger[] pendingCount = new AtomicInteger[Kind.values().length];
+            private static final long startTime = System.nanoTime();
+            private static volatile Thread worker = null;
+            private static long tick = 0; //!< Next tick to process. Only used by the wheel thread
 
             static {
-                schPool.setRemoveOnCancelPolicy(true); // Clear when removed.
+                for (int i = 0; i < pendingCount.length; i++)
+                    pendingCount[i] = new AtomicInteger(0);
             }
 
             /**
-             * Makea timer ID string from the event class and the ID
-             *
-             * @param cls
-             * @param id
-             * @return
+             * @brief The kinds of timer. A timer's kind comes from its event.
              */
-            private static String timerId(Class<? extends Event> cls, long id) {
-                return String.format("%s-%s", cls.getName(), id);
+            enum Kind {
+                Retransmit, KeepAlive, Close, Other;
+
+                static Kind of(Event event) {
+                    if (event instanceof RetransmitEvent)
+                        return Retransmit;
+                    else if (event instanceof KeepAliveEvent)
+                        return KeepAlive;
+                    else if (event instanceof CloseConnectionEvent)
+                        return Close;
+                    return Other;
+                }
+            }
+
+            /**
+             * @brief A handle on a scheduled timer
+             */
+            static final class Timeout {
+                private static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+                private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                        AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+                final Event event;
+                final Kind kind;
+                final long id;
+                final long created = System.currentTimeMillis();
+                private final long deadline; //!< In ms since startTime
+                private volatile int state = PENDING;
+                private long remainingRounds; //!< Wheel revolutions left. Wheel thread only
+                private Timeout next; //!< Next in bucket. Wheel thread only
+
+                private Timeout(Event event, Kind kind, long id, long deadline) {
+                    this.event = event;
+                    this.kind = kind;
+                    this.id = id;
+                    this.deadline = deadline;
+                }
+
+                /**
+                 * @return True if the timer was pending and is now cancelled
+                 */
+                boolean cancel() {
+                    if (!STATE.compareAndSet(this, PENDING, CANCELLED))
+                        return false;
+                    pendingCount[kind.ordinal()].decrementAndGet();
+                    cancelledCount.incrementAndGet();
+                    if (event.connection != null)
+                        event.connection.timers.remove(key(kind, id), this);
+                    return true;
+                }
+
+                boolean isPending() {
+                    return state == PENDING;
+                }
+
+                private void expire() {
+                    if (!STATE.compareAndSet(this, PENDING, EXPIRED))
+                        return;
+                    pendingCount[kind.ordinal()].decrementAndGet();
+                    firedCount.incrementAndGet();
+                    if (event.connection != null)
+                        event.connection.timers.remove(key(kind, id), this);
+                    if (Utils.lg.isLoggable(Level.FINE))
+                        Utils.lg.fine(String.format("CAT_TP Timer <%s [%s]> elapsed after %s seconds", event, id,
+                                (System.currentTimeMillis() - created) / 1000));
+                    try {
+                        post(event); // Queue it upwards.
+                    } catch (Exception ex) {
+                    }
+                }
+            }
+
+            /**
+             * @return The key of a timer in its connection's timer map
+             */
+            private static Long key(Kind kind, long id) {
+                return ((long) kind.ordinal() << 32) | (id & 0xFFFFFFFFL);
+            }
+
+            private static long now() {
+                return (System.nanoTime() - startTime) / 1000000;
+            }
+
+            public static synchronized void start() {
+                if (worker != null)
+                    return;
+                worker = new Thread(Timers::run, "cat_tp-timers");
+                worker.setDaemon(true);
+                worker.start();
+            }
+
+            public static synchronized void stop() {
+                Thread t = worker;
+                worker = null;
+                if (t != null)
+                    try {
+                        t.interrupt();
+                        t.join(1000);
+                    } catch (Exception ex) {
+                    }
             }
 
             /**
@@ -2237,100 +3382,157 @@ public class BipCatTP extends Transport {
              * @param event
              * @param id
              * @param seconds
-             * @param eventList
+             * @return The timer handle
              */
-            public static void put(final Event event,
-                                   final long id, long seconds,
-                                   final Collection<Event> eventList) {
-
-                final long tnow = System.currentTimeMillis();
-                Utils.lg.info(String.format("CAT_TP future/timer event request for <%s[%s]>", event, id));
-                // Schedule the task, keep track of thingies
-                ScheduledFuture f = schPool.schedule(new Runnable() {
-                    Event xevent = event;
-                    long xid = id;
-
-                    String cname = xevent.toString();
-
-                    public void run() {
-                        long elapsed = System.currentTimeMillis() - tnow;
-                        Utils.lg.info(String.format("CAT_TP Timer <%s [%s]> elapsed after %s seconds", cname, xid, elapsed / 1000));
-                        try {
-                            activeTimers.remove(timerId(xevent.getClass(), xid));
-                        } catch (Exception ex) {
-                        }
-                        try {
-                            eventList.add(xevent); // Queue it upwards.
-                        } catch (Exception ex) {
-                        }
-                    }
-                }, seconds, TimeUnit.SECONDS);
-
-                activeTimers.put(timerId(event.getClass(), id), new Utils.Quad<>(event, tnow, f, id));
+            public static Timeout put(final Event event,
+                                      final long id, long seconds) {
+                return schedule(event, id, seconds * 1000);
             }
 
             /**
-             * Cancel a timer event given the Id.
-             *
-             * @param eventClass
+             * @param event
              * @param id
-             * @param immediate
-             * @return
+             * @param millis
+             * @return The timer handle
+             * @brief Add an event to the timer queue, to be fired after the given number of milliseconds
              */
-            public static Event cancel(Class<? extends Event> eventClass, long id, boolean immediate) {
-                return cancel(timerId(eventClass, id), immediate);
+            public static Timeout schedule(final Event event, final long id, long millis) {
+                if (worker == null)
+                    start();
+                Kind kind = Kind.of(event);
+                Timeout t = new Timeout(event, kind, id, now() + Math.max(0, millis));
+                pendingCount[kind.ordinal()].incrementAndGet();
+                scheduledCount.incrementAndGet();
+                if (Utils.lg.isLoggable(Level.FINE))
+                    Utils.lg.fine(String.format("CAT_TP future/timer event request for <%s[%s]>", event, id));
+                if (event.connection != null) {
+                    Timeout old = event.connection.timers.put(key(kind, id), t);
+                    if (old != null)
+                        old.cancel();
+                }
+                newTimeouts.add(t);
+                return t;
             }
 
             /**
-             * Cancel a timer event given the ID and the event class.
+             * Cancel a timer given its connection, kind and ID.
              *
-             * @param eventClass
+             * @param conn
+             * @param kind
              * @param id
-             * @return
+             * @return The event the timer would have fired, or null if there was no such pending timer
              */
-            public static Event cancel(Class<? extends Event> eventClass, long id) {
-                return cancel(eventClass, id, false);
+            public static Event cancel(Connection conn, Kind kind, long id) {
+                if (conn == null)
+                    return null;
+                Timeout t = conn.timers.get(key(kind, id));
+                if (t == null || !t.cancel())
+                    return null;
+                if (Utils.lg.isLoggable(Level.FINE))
+                    Utils.lg.fine(String.format("CAT_TP Timer cancelled <%s [%s]>, after %s seconds", t.event, id,
+                            (System.currentTimeMillis() - t.created) / 1000));
+                return t.event;
             }
 
             /**
-             * Cancel a timer given the ID representation.
-             * Remove it from the list of timers, get the event scheduled and cancel it.
-             *
-             * @param id
-             * @param immediate
-             * @return
+             * @param conn
+             * @brief Cancel all of a connection's timers
              */
-            private static Event cancel(String id, boolean immediate) {
-                try {
-                    Utils.Quad<Event, Long, ScheduledFuture, Long> xf =
-                            activeTimers.remove(id);
-                    ScheduledFuture f = xf.m;
-                    long startedAt = xf.l;
-                    long xid = xf.o;
-                    Event evt = xf.k;
-                    f.cancel(immediate);
-                    long tnow = System.currentTimeMillis();
-                    long tspent = tnow - startedAt;
-                    Utils.lg.info(String.format("CAT_TP Timer cancelled <%s [%s]>, after %s seconds", evt, xid, tspent / 1000));
-                    return xf.k;
-                } catch (Exception ex) {
-                }
-                return null;
+            public static void cancelAll(Connection conn) {
+                for (Timeout t : conn.timers.values())
+                    t.cancel();
             }
 
             /**
              * Shut down all pending timers.
              */
             public static void cancelAll() {
-                Set<String> keylist = activeTimers.keySet();
-                for (String key : keylist)
+                for (Connection c : Connection.activeConnections.values())
+                    cancelAll(c);
+                Timeout t;
+                while ((t = newTimeouts.poll()) != null)
+                    t.cancel();
+            }
+
+            /**
+             * @return Timer counts: totals since start and timers currently pending, by kind
+             */
+            public static Map<String, Long> stats() {
+                Map<String, Long> m = new LinkedHashMap<>();
+                m.put("scheduled", scheduledCount.get());
+                m.put("fired", firedCount.get());
+                m.put("cancelled", cancelledCount.get());
+                long total = 0;
+                for (Kind k : Kind.values()) {
+                    long n = pendingCount[k.ordinal()].get();
+                    m.put("pending" + k, n);
+                    total += n;
+                }
+                m.put("pending", total);
+                return m;
+            }
+
+            /**
+             * @brief The wheel thread: Once per tick, move new timers onto the wheel and fire those in the current
+             * bucket that are due.
+             */
+            private static void run() {
+                Utils.lg.info("CAT_TP timer wheel starting...");
+                while (worker == Thread.currentThread())
                     try {
-                        cancel(key, true);
+                        long sleep = (tick + 1) * TICK_MS - now();
+                        if (sleep > 0)
+                            Thread.sleep(sleep);
+                        transferNewTimeouts();
+                        expireBucket((int) (tick & (WHEEL_SIZE - 1)));
+                        tick++;
+                    } catch (InterruptedException ex) {
+                        break;
                     } catch (Exception ex) {
+                        Utils.lg.severe(String.format("CAT_TP timer wheel error: %s", ex));
+                    }
+                Utils.lg.info("CAT_TP timer wheel stopped.");
+            }
+
+            private static void transferNewTimeouts() {
+                Timeout t;
+                for (int i = 0; i < MAX_TRANSFERS_PER_TICK && (t = newTimeouts.poll()) != null; i++) {
+                    if (!t.isPending())
+                        continue;
+                    long due = t.deadline / TICK_MS; // The tick at which it expires
+                    t.remainingRounds = Math.max(0, (due - tick) / WHEEL_SIZE);
+                    int idx = (int) (Math.max(due, tick) & (WHEEL_SIZE - 1)); // Overdue ones go in the current bucket
+                    t.next = wheel[idx];
+                    wheel[idx] = t;
+                }
+            }
+
+            private static void expireBucket(int idx) {
+                Timeout prev = null, t = wheel[idx];
+                while (t != null) {
+                    Timeout next = t.next;
+                    boolean remove;
+                    if (!t.isPending())
+                        remove = true;
+                    else if (t.remainingRounds <= 0) {
+                        remove = true;
+                        t.expire();
+                    } else {
+                        t.remainingRounds--;
+                        remove = false;
                     }
+                    if (remove) {
+                        if (prev == null)
+                            wheel[idx] = next;
+                        else
+                            prev.next = next;
+                        t.next = null;
+                    } else
+                        prev = t;
+                    t = next;
+                }
             }
         }
-
         /**
          * A CAT TP Packet, received or to be sent. The different packet types
          * are defined in the CAT TP specification. This is a straight representation of them.
@@ -2406,7 +3608,7 @@ public class BipCatTP extends Transport {
             }
 
             public static String dumpPacket(Packet pkt, boolean incoming, InetSocketAddress socketAddress) {
-                return dumpPacket(pkt, incoming, socketAddress);
+                return dumpPacket(pkt, incoming, socketAddress, null);
             }
 
             /**
@@ -2416,49 +3618,67 @@ public class BipCatTP extends Transport {
              * @brief Read the packet from the input
              */
             public static Packet parse(byte[] in) throws Exception {
-                if (checksum(in, in.length) != 0)
+                return parse(ByteBuffer.wrap(in));
+            }
+
+            /**
+             * @param in The datagram, from position to limit. Not consumed.
+             * @return
+             * @throws Exception
+             * @brief Read the packet straight out of the receive buffer. Only the extra headers and data are copied.
+             */
+            public static Packet parse(ByteBuffer in) throws Exception {
+                int start = in.position(), end = in.limit();
+                if (end - start < staticHeaderLen)
+                    throw new Exception("Short packet");
+                if (checksum(in, start, end - start) != 0)
                     throw new Exception("Invalid checksum");
-                // Read the header
+                // Read the header. Offsets as per Sec 5.6.2 of ETSI TS 102 127; the rfu (1) and checksum (16) are
+                // ignored
                 Packet pkt = new Packet();
 
-                DataInputStream ds = new DataInputStream(new ByteArrayInputStream(in));
-                pkt.descriptor = ds.readByte();
-                int rfu = ds.readShort(); // Ignore rfu
-                pkt.headerLen = ds.readByte();
-                pkt.srcPort = ds.readShort();
-                pkt.destPort = ds.readShort();
-                pkt.dataLen = ds.readShort();
-                pkt.sequenceNumber = ds.readShort();
-                pkt.ackNumber = ds.readShort();
-                pkt.winSize = ds.readShort();
-                short cksum = ds.readShort(); // Ignore
+                pkt.descriptor = in.get(start);
+                pkt.headerLen = in.get(start + 3);
+                pkt.srcPort = in.getShort(start + 4);
+                pkt.destPort = in.getShort(start + 6);
+                pkt.dataLen = in.getShort(start + 8);
+                pkt.sequenceNumber = in.getShort(start + 10);
+                pkt.ackNumber = in.getShort(start + 12);
+                pkt.winSize = in.getShort(start + 14);
 
+                int pos = start + staticHeaderLen;
                 int eLen = pkt.headerLen - staticHeaderLen;
                 if (eLen > 0) {
                     pkt.setExtra_headers(new byte[eLen]);
-                    ds.read(pkt.getExtra_headers());
+                    pos = copy(in, pos, end, pkt.getExtra_headers());
                 }
 
                 if (pkt.dataLen > 0) {
                     pkt.setData(new byte[pkt.dataLen]);
-                    ds.read(pkt.getData());
+                    copy(in, pos, end, pkt.getData());
                 }
 
                 return pkt;
             }
 
             /**
-             * @param in
-             * @param count
-             * @return
-             * @brief Compute the checksum of a packet
+             * @brief Copy from in at pos (up to end) into out. Like a stream read, a short packet leaves the tail of
+             * out zeroed.
              */
-            private static int checksum(byte[] in, int count) {
+            private static int copy(ByteBuffer in, int pos, int end, byte[] out) {
+                int n = Math.max(0, Math.min(out.length, end - pos));
+                ByteBuffer b = in.duplicate();
+                b.limit(end).position(pos);
+                b.get(out, 0, n);
+                return pos + n;
+            }
+
+            private static int checksum(ByteBuffer in, int start, int count) {
                 long crc16 = 0;
-                int i = 0;
+                int i = start;
                 while (count > 1) {
                     // Get two bytes at a time
-                    int y = (in[i] & 0xFF) | ((in[i + 1] & 0xFF) << 8);
+                    int y = (in.get(i) & 0xFF) | ((in.get(i + 1) & 0xFF) << 8);
                     long x = crc16 + y;
 
                     crc16 = (x & 0xFFFFL) + ((x & 0xFFFFFFFFL) >> 16);
@@ -2468,13 +3688,23 @@ public class BipCatTP extends Transport {
                 }
 
                 if (count > 0) {
-                    long x = crc16 + (in[i] & 0xFF);
+                    long x = crc16 + (in.get(i) & 0xFF);
                     crc16 = (x & 0xFFFFL) + ((x & 0xFFFFFFFFL) >> 16);
                     crc16 &= 0xFFFFFFFFL;
                 }
                 return (int) ((~crc16) & 0xFFFFL); // Mask off top bits
             }
 
+            /**
+             * @param in
+             * @param count
+             * @return
+             * @brief Compute the checksum of a packet
+             */
+            private static int checksum(byte[] in, int count) {
+                return checksum(ByteBuffer.wrap(in), 0, count);
+            }
+
 
             public boolean isNUL_PDU() {
                 return (descriptor & NUL_PDU) != 0;
@@ -2692,9 +3922,10 @@ public class BipCatTP extends Transport {
             public void send(InetAddress address, int port) throws Exception {
                 byte[] data = toBytes();
 
-                socket.send(new DatagramPacket(data, data.length, address, port));
+                InetSocketAddress to = new InetSocketAddress(address, port);
+                sendChannel().send(ByteBuffer.wrap(data), to);
 
-                Utils.lg.info(dumpPacket(this, false, new InetSocketAddress(address, port), data));
+                PacketDump.info(to, () -> dumpPacket(this, false, to, data));
                 // Utils.lg.info(String.format("Sent raw packets [%s]", Utils.b2H(data)));
             }
 
@@ -2796,6 +4027,19 @@ public class BipCatTP extends Transport {
         }
     }
 
+    /**
+     * @brief A push in progress to a card: The transaction that sent it, and when to give up waiting for the connection
+     */
+    private static class PushClaim {
+        final long tid;
+        long expires = 0; //!< In milliseconds
+        long slot = 0; //!< When (nanoTime) the push may go out, if it had to wait its turn
+
+        PushClaim(long tid) {
+            this.tid = tid;
+        }
+    }
+
     /**
      * @brief The BIP context class. It needs to be special because it needs to hold the BIP connection object,
      * if any, the PUSH commands, etc
@@ -2807,11 +4051,14 @@ public class BipCatTP extends Transport {
         public String TAR;
         public boolean doPush = false;
         public CatTP.Connection conn;
+        public Utils.Pair<String, InetSocketAddress> remote; //!< Connection ID and node, if the connection is on another node
         private byte[] pushCmd = null; // The push command, as needed
 
-        public Context(Eis sim, CatTP.Connection connection, int bufferLen, long tid, String pushTar) {
-            super(sim, bufferLen, connection != null, false, false); // We allow chaining of commands provided we have a BIP connection, otherwise we do not.
+        public Context(Eis sim, CatTP.Connection connection, int bufferLen, long tid, String pushTar,
+                       Utils.Pair<String, InetSocketAddress> remote) {
+            super(sim, bufferLen, connection != null || remote != null, false, false); // We allow chaining of commands provided we have a BIP connection, otherwise we do not.
             conn = connection;
+            this.remote = remote;
             this.tid = tid;
             TAR = pushTar;
         }
@@ -2831,7 +4078,7 @@ public class BipCatTP extends Transport {
         }
 
         public boolean usingPush() {
-            return (conn == null && forcePush);
+            return (conn == null && remote == null && forcePush);
         }
     }
 
@@ -28,6 +28,8 @@ import io.njiwa.sr.transactions.SmSrBaseTransaction;
 import org.bouncycastle.tls.*;
 import org.bouncycastle.tls.crypto.impl.bc.BcTlsCrypto;
 import org.bouncycastle.util.Strings;
+import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPubSub;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
@@ -44,14 +46,14 @@ import javax.persistence.LockModeType;
 import javax.ws.rs.core.Response;
 import java.io.*;
 import java.net.InetAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.security.SecureRandom;
-import java.util.Calendar;
-import java.util.Date;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 
 /**
@@ -99,6 +101,8 @@ public class RamHttp extends Transport {
     private static final int DEFAULT_HTTP_BUFFER_LEN = 1024; //!< The default HTTP buffer length, less headers.
     private static final short ADMIN_AGENT_FAILURE_REPORT_TAG = 0x88;
     private static final boolean ALLOW_RAM_COMMAND_CHAINING = false; //!< Whether to allow command chaining for RAM
+    private static final int MAX_TRANSACTION_ATTEMPTS = 3; //!< How often to re-run a session DB step on conflict
+    private static final int MAX_QUEUED_LOOKUP = 10; //!< How many queued transactions to consider for a session
     private static final short PSK_ID_SGP_FORMAT = 0x80;
     private static final short PSKID_EID_TAG = 0x81;
     private static final short PSKID_AID_TAG = 0x4F;
@@ -150,6 +154,7 @@ public class RamHttp extends Transport {
     @Override
     public synchronized void start() {
         try {
+            PskInvalidations.start();
             tlsAdminServer.startUp(); // Try to start it.
             started = ramHttpStarted = true;
             String ipAddr;
@@ -174,6 +179,7 @@ public class RamHttp extends Transport {
         } catch (Exception ex) {
 
         }
+        PskInvalidations.stop();
     }
 
     @Override
@@ -226,11 +232,12 @@ public class RamHttp extends Transport {
         final String targetApp = otaParams.getHTTPargetApplication();
         Map<String, String> hdrs = new HashMap<String, String>() {
             {
-                put("X-Admin-Next-URI", String.format("/%s/%s", RamHttp.DISPATCHER_RESULT_URI, bt.getId())); // Put
-                // in response URI
+                // Put in response URI
+                put(Utils.Http.X_ADMIN_NEXT_URI, String.format("/%s/%s", RamHttp.DISPATCHER_RESULT_URI, bt.getId()));
                 // put("X-Admin-From", formatRamHTTPXAdminFrom(sim));
-                if (targetApp != null) put("X-Admin-Targeted-Application", String.format("//aid/%s", targetApp));
-                put("X-Admin-Protocol", "globalplatform-remote-admin/1.0");
+                if (targetApp != null)
+                    put(Utils.Http.X_ADMIN_TARGETED_APPLICATION, String.format("//aid/%s", targetApp));
+                put(Utils.Http.X_ADMIN_PROTOCOL, "globalplatform-remote-admin/1.0");
             }
         };
 
@@ -252,8 +259,10 @@ public class RamHttp extends Transport {
             SmSrTransaction.Status status = bt.getStatus();
             if (status != SmSrTransaction.Status.HttpWait && status != SmSrTransaction.Status.Ready && status != SmSrTransaction.Status.InProgress && status != SmSrTransaction.Status.Sent)
                 throw new Exception("This transaction has already completed. Will not re-send it");
-            Eis euicc = em.find(Eis.class, bt.getEis_id(), LockModeType.PESSIMISTIC_WRITE);
-            euicc.setLastRAMHttpRequest(Calendar.getInstance().getTime()); // Update date of last HTTP
+            Eis euicc = em.find(Eis.class, bt.getEis_id());
+            em.createQuery("UPDATE Eis  SET lastRAMHttpRequest = current_timestamp WHERE id = :m")
+                    .setParameter("m", euicc.getId())
+                    .executeUpdate(); // Update date of last HTTP. No need to lock the eUICC for this.
 
             // int tkCount = tparams.size();
 
@@ -295,7 +304,7 @@ public class RamHttp extends Transport {
     }
 
     private Utils.Http.Response transactionToRequest(EntityManager em, final long tid, boolean closeConn) {
-        return transactionToRequest(em, em.find(SmSrTransaction.class, tid, LockModeType.PESSIMISTIC_WRITE), closeConn);
+        return transactionToRequest(em, em.find(SmSrTransaction.class, tid), closeConn);
     }
 
     /**
@@ -343,11 +352,10 @@ public class RamHttp extends Transport {
      * @param tid
      * @param scriptStatus
      * @param input
-     * @param closeConn @return
+     * @return the ID of the transaction to send next, if any
      * @brief When a HTTP response is received as a response to an APDU sequence sent, process it.
      */
-    private Utils.Http.Response processResponse(EntityManager em, Eis sim, final long tid, String scriptStatus, byte[] input, boolean closeConn) {
-        Utils.Http.Response resp;
+    private Long processResponse(EntityManager em, Eis sim, final long tid, String scriptStatus, byte[] input) {
         // Find the transaction and process the response.
         try {
             boolean executeOK = scriptStatus == null || scriptStatus.equalsIgnoreCase("ok");
@@ -359,7 +367,9 @@ public class RamHttp extends Transport {
 
 
             if (rp instanceof Ota.ResponseHandler.ETSI102226APDUResponses) {
-                SmSrTransaction bt = em.find(SmSrTransaction.class, tid, LockModeType.PESSIMISTIC_WRITE);
+                SmSrTransaction bt = em.find(SmSrTransaction.class, tid); // Versioned: No lock needed
+                if (bt == null || !sim.getId().equals(bt.getEis_id())) // The URI we gave names one of its own
+                    throw new Exception(String.format("No such transaction for eUICC [%s]", sim.getId()));
                 SmSrBaseTransaction tobj = bt.getTransObject();
                 byte[] output = rp.getData();
                 Ota.ResponseHandler.ETSI102226APDUResponses r = (Ota.ResponseHandler.ETSI102226APDUResponses) rp;
@@ -369,24 +379,105 @@ public class RamHttp extends Transport {
 
                 tobj.setResponses(r);
                 processSingleResponse(em, bt, output,   success, xstatus);
-                nextBt = success ? bt.findNextAvailableTransaction(em) : null;
+                nextBt = success ? nextTransactionForSession(em, sim.getId(), bt) : null;
                 //  em.flush(); // Right?
             } else {
                 // Just a notification: handle it
                 Session session = new Session(em, sim);
                 nextBt = Ota.processNotification(rp.getData(), TransportType.RAMHTTP, session); // Get the one to
                 // send next.
+                if (nextBt == null)
+                    nextBt = nextTransactionForSession(em, sim.getId(), null);
             }
             // Now get the next one in sequence, if any
             if (nextBt != null) {
                 nextBt.setNextSend(Calendar.getInstance().getTime()); // Set to go out
-                resp = transactionToRequest(em, nextBt, closeConn);
-            } else resp = new Utils.Http.Response(Response.Status.NO_CONTENT, null, null, null, closeConn);
+                return nextBt.getId();
+            }
         } catch (Exception ex) {
-            resp = new Utils.Http.Response(Response.Status.NO_CONTENT, null, null, null, closeConn);
             Utils.lg.severe(String.format("RamHTTP.admin.endpoint: Received response to a transaction [%s] but had " + "problems processing it: %s", tid, ex));
         }
-        return resp;
+        return null;
+    }
+
+    /**
+     * @param em
+     * @param simId
+     * @param last The transaction whose response was just received, if any
+     * @return the transaction to carry next over the admin session, or null if there is none
+     * @brief Keep an open admin session busy with whatever is queued for the eUICC.
+     * @details First in line is what SmSrTransaction.findNextAvailableTransaction() gives (the rest of the last
+     * transaction's script, or its successor), as long as that is not out on another transport already. Failing
+     * that, the oldest transaction queued for the eUICC. Each goes out with its own X-Admin-Next-URI, so each
+     * response comes back against the right transaction. Batching these saves a push SMS, a handshake and a
+     * session for each.
+     */
+    private static SmSrTransaction nextTransactionForSession(EntityManager em, long simId, SmSrTransaction last) {
+        SmSrTransaction next = last != null ? last.findNextAvailableTransaction(em) : null;
+        if (next != null && canSendInSession(next))
+            return next;
+        for (SmSrTransaction t : SmSrTransaction.findQueuedTransactions(em, simId, MAX_QUEUED_LOOKUP))
+            if (t != last && canSendInSession(t))
+                return t;
+        return null;
+    }
+
+    /**
+     * @param t
+     * @return
+     * @brief Whether a transaction can go out over the admin session: It must be an eUICC command script with
+     * commands left, and not already with the card over another transport.
+     */
+    private static boolean canSendInSession(SmSrTransaction t) {
+        try {
+            SmSrTransaction.Status status = t.getStatus();
+            TransactionType tobj = t.getTransObject();
+            return (status == SmSrTransaction.Status.Ready || status == SmSrTransaction.Status.HttpWait) &&
+                    tobj instanceof SmSrBaseTransaction && tobj.hasMore();
+        } catch (Exception ex) {
+            return false;
+        }
+    }
+
+    /**
+     * @param em
+     * @param simId
+     * @brief Clear the number of pending push requests for an eUICC, now that it has connected.
+     */
+    private static void clearPendingRequests(EntityManager em, Long simId) {
+        em.createQuery("UPDATE Eis  SET numPendingRAMRequests = 0 WHERE id = :m")
+                .setParameter("m", simId)
+                .executeUpdate();
+    }
+
+    /**
+     * @param po
+     * @param r
+     * @return The result of the runner, or null if the transaction did not commit in MAX_TRANSACTION_ATTEMPTS tries
+     * @brief Run one short database transaction on behalf of an admin session, re-running it if it fails.
+     * @details No DB connection or lock is held between exchanges with the card. Instead SmSrTransaction rows are
+     * versioned, so if some other thread or node updated the same transaction in the meantime, the commit fails.
+     * The runner is then run again, on fresh data. The runner must not return null.
+     */
+    static <T> T doShortTransaction(PersistenceUtility po, PersistenceUtility.Runner<T> r) {
+        for (int i = 0; i < MAX_TRANSACTION_ATTEMPTS; i++) {
+            final boolean[] committed = {false};
+            T res = po.doTransaction(new PersistenceUtility.Runner<T>() {
+                @Override
+                public T run(PersistenceUtility po, EntityManager em) throws Exception {
+                    return r.run(po, em);
+                }
+
+                @Override
+                public void cleanup(boolean success) {
+                    committed[0] = success;
+                }
+            });
+            // PersistenceUtility.doTransaction() returns the runner's result whether or not the commit went through
+            if (committed[0])
+                return res;
+        }
+        return null;
     }
 
     /**
@@ -603,32 +694,269 @@ public class RamHttp extends Transport {
         return null;
     }
 
+    /**
+     * @brief Tell the RAM HTTP transport that SCP81 keys have been added, changed or removed. Call it once the change
+     * has been committed: Cached keys are dropped here and on the other nodes.
+     */
+    public static void scp81KeysChanged() {
+        PskCache.clear();
+        PskInvalidations.publish();
+    }
+
+    /**
+     * @brief A bounded cache of PSK-TLS keys, by PSK identity
+     * @details Without it, every TLS handshake costs a DB transaction to find the eUICC, its ISD-R and the key, so a
+     * mass reconnect (e.g. after a network outage) turns into a DB storm. Entries expire after a configured time,
+     * and the least recently used ones are dropped once the cache is full. Key material is zeroed when it leaves the
+     * cache, and callers only ever get copies (BouncyCastle may wipe the PSK it is handed). Each clear() starts a new
+     * generation: A key read from the DB under an older generation is not cached, since it may predate the change.
+     */
+    private static class PskCache {
+        private static final long PURGE_INTERVAL = 30 * 1000; //!< How often to sweep out expired keys, in ms
+        private static final Map<String, CachedKey> entries = new LinkedHashMap<String, CachedKey>(1024, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedKey> eldest) {
+                if (size() <= ServerSettings.getRamPskCacheSize())
+                    return false;
+                eldest.getValue().wipe();
+                return true;
+            }
+        };
+        private static long nextPurge = 0;
+        private static long generation = 0;
+
+        /**
+         * @return The current generation. Get it before reading a key from the DB, and pass it to put()
+         */
+        static synchronized long generation() {
+            return generation;
+        }
+
+        /**
+         * @param identity
+         * @return a copy of the PSK and the eUICC ID, or null if not cached
+         */
+        static synchronized Utils.Pair<byte[], Long> get(byte[] identity) {
+            long tnow = System.currentTimeMillis();
+            purge(tnow);
+            String k = new String(identity, StandardCharsets.ISO_8859_1);
+            CachedKey e = entries.get(k);
+            if (e == null)
+                return null;
+            if (e.expires <= tnow) {
+                entries.remove(k);
+                e.wipe();
+                return null;
+            }
+            return new Utils.Pair<>(e.psk.clone(), e.simId);
+        }
+
+        static synchronized void put(byte[] identity, byte[] psk, Long simId, long gen) {
+            int ttl = ServerSettings.getRamPskCacheTtl();
+            if (ttl <= 0 || ServerSettings.getRamPskCacheSize() <= 0 || gen != generation)
+                return;
+            String k = new String(identity, StandardCharsets.ISO_8859_1);
+            CachedKey old = entries.put(k, new CachedKey(psk.clone(), simId, System.currentTimeMillis() + ttl * 1000L));
+            if (old != null)
+                old.wipe();
+        }
+
+        static synchronized void clear() {
+            generation++;
+            for (CachedKey e : entries.values())
+                e.wipe();
+            entries.clear();
+        }
+
+        /**
+         * @brief Wipe expired keys that nobody has asked for, so they don't linger in memory until evicted.
+         * @param tnow
+         */
+        private static void purge(long tnow) {
+            if (tnow < nextPurge)
+                return;
+            nextPurge = tnow + PURGE_INTERVAL;
+            Iterator<CachedKey> it = entries.values().iterator();
+            while (it.hasNext()) {
+                CachedKey e = it.next();
+                if (e.expires <= tnow) {
+                    e.wipe();
+                    it.remove();
+                }
+            }
+        }
+
+        private static class CachedKey {
+            final byte[] psk;
+            final Long simId;
+            final long expires;
+
+            CachedKey(byte[] psk, Long simId, long expires) {
+                this.psk = psk;
+                this.simId = simId;
+                this.expires = expires;
+            }
+
+            void wipe() {
+                Arrays.fill(psk, (byte) 0);
+            }
+        }
+    }
+
+    /**
+     * @brief Tells the other nodes to drop their cached PSK-TLS keys when SCP81 keys change, via a REDIS channel
+     * @details Each node listens on the channel on a thread of its own, and ignores its own messages. Messages sent
+     * while a node was not listening are lost, so a node clears its cache whenever it (re)subscribes.
+     */
+    private static class PskInvalidations {
+        private static final String CHANNEL = "ram_psk_invalidate";
+        private static final long RECONNECT_INTERVAL = 5000; //!< Wait between attempts to reach REDIS, in ms
+        private static volatile boolean running = false;
+        private static volatile Jedis connection; //!< The listener's
+        private static Thread listener;
+
+        static synchronized void start() {
+            if (running)
+                return;
+            running = true;
+            listener = new Thread(PskInvalidations::listen, "ram-psk-invalidations");
+            listener.setDaemon(true);
+            listener.start();
+        }
+
+        static synchronized void stop() {
+            running = false;
+            Jedis x = connection;
+            if (x != null)
+                try {
+                    x.disconnect(); // Gets the listener out of subscribe()
+                } catch (Exception ex) {
+                }
+            if (listener != null)
+                listener.interrupt();
+            listener = null;
+        }
+
+        static void publish() {
+            try (Jedis redis = Utils.redisConnect()) {
+                redis.publish(CHANNEL, ServerSettings.getMyhostname());
+            } catch (Exception ex) {
+                Utils.lg.warning(String.format("PSK-TLS: Failed to tell other nodes of SCP81 key change: %s", ex));
+            }
+        }
+
+        private static void listen() {
+            final String me = ServerSettings.getMyhostname();
+            while (running)
+                try (Jedis redis = Utils.redisConnect()) {
+                    connection = redis;
+                    JedisPubSub subscriber = new JedisPubSub() {
+                        @Override
+                        public void onSubscribe(String channel, int subscribedChannels) {
+                            PskCache.clear(); // We may have missed changes while not subscribed.
+                        }
+
+                        @Override
+                        public void onMessage(String channel, String message) {
+                            if (!me.equals(message))
+                                PskCache.clear();
+                        }
+                    };
+                    if (running)
+                        redis.subscribe(subscriber, CHANNEL); // Returns once unsubscribed
+                } catch (Exception ex) {
+                    if (!running)
+                        break;
+                    Utils.lg.warning(String.format("PSK-TLS: Lost SCP81 key change channel: %s", ex));
+                    try {
+                        Thread.sleep(RECONNECT_INTERVAL);
+                    } catch (InterruptedException ie) {
+                        break;
+                    }
+                } finally {
+                    connection = null;
+                }
+        }
+    }
+
     /**
      * @brief This is the PSK-TLS server
-     * @detail This class implements the PSK-TLS server proper. It starts a single thread listening on the
-     * TLS port for incoming connections. When a connection is received, a new processing task is
-     * created for it (using the HttpTlServer class) and submitted to the thread pool for execution.
+     * @detail This class implements the PSK-TLS server proper. A single selector thread accepts connections on the
+     * TLS port and watches all admin sessions for input. Nothing is run for a session until bytes arrive on its
+     * socket: the session (an HttpTlsServer) is then submitted to the thread pool, which feeds the bytes through
+     * a non-blocking BouncyCastle TLS engine, and handles any complete HTTP requests that come out of it. Idle and
+     * slow card sessions therefore cost a socket and a TLS state object only, not a pooled thread.
      */
     private class PskTlsAdminServer {
+        private static final int SELECT_TIMEOUT = 1000; //!< How long to block in select, in milliseconds
+        private static final int IO_BUFFER_LEN = 16 * 1024; //!< Size of the per-worker socket read buffer
+        private static final int MAX_HTTP_REQUEST_LEN = 1024 * 1024; //!< Largest HTTP request we will buffer
+
         Thread th = null; //!< The server execution thread
         private int port = ServerSettings.getRamhttpAdminPort(); //!< The server port from the configuration
         private int backlog = ServerSettings.getRamAdminBackLog(); //!< The server port back log
-        private ServerSocket socket = null; //!< The server socket
+        private ServerSocketChannel socket = null; //!< The server socket
+        private Selector selector = null; //!< Watches the server socket and all client sessions
+        private final Queue<Runnable> selectorTasks = new ConcurrentLinkedQueue<>(); //!< Interest changes, run by
+        // the selector thread
+        private final ThreadLocal<byte[]> ioBuffer = ThreadLocal.withInitial(() -> new byte[IO_BUFFER_LEN]);
+        private volatile boolean running = false;
 
         public void startUp() throws Exception {
 
-            socket = new ServerSocket(port, backlog);
+            selector = Selector.open();
+            socket = ServerSocketChannel.open();
+            socket.bind(new InetSocketAddress(port), backlog);
+            socket.configureBlocking(false);
+            socket.register(selector, SelectionKey.OP_ACCEPT);
+            running = true;
 
             // Start the server thread
             th = new Thread(() -> {
                 Utils.lg.info(String.format("Starting Ram HTTP admin agent port handler on [%s]...", port));
-                while (true) try {
-                    Socket client = socket.accept();
-                    HttpTlsServer server = new HttpTlsServer(client);
-                    runner.submit(server); // Put it on queue and go away...
-                } catch (Exception ex) {
-                    // All others close it.
+                long lastSweep = System.currentTimeMillis();
+                while (running) try {
+                    selector.select(SELECT_TIMEOUT);
+                    Runnable task;
+                    while ((task = selectorTasks.poll()) != null)
+                        task.run();
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid())
+                            continue;
+                        if (key.isAcceptable())
+                            accept();
+                        else {
+                            HttpTlsServer server = (HttpTlsServer) key.attachment();
+                            if (key.isWritable())
+                                server.writePending();
+                            if (key.isValid() && key.isReadable()) {
+                                // Stop watching for input until the worker is done with this lot.
+                                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                                runner.submit(server); // Put it on queue and go away...
+                            }
+                        }
+                    }
+                    long tnow = System.currentTimeMillis();
+                    if (tnow - lastSweep >= SELECT_TIMEOUT) {
+                        closeIdleSessions(tnow);
+                        lastSweep = tnow;
+                    }
+                } catch (ClosedSelectorException ex) {
                     break;
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("Ram HTTP admin agent port handler error: %s", ex));
+                }
+                // Close all remaining sessions
+                try {
+                    for (SelectionKey key : selector.keys())
+                        if (key.attachment() instanceof HttpTlsServer)
+                            ((HttpTlsServer) key.attachment()).close();
+                    selector.close();
+                } catch (Exception ex) {
                 }
                 Utils.lg.info(String.format("Stopping Ram HTTP admin agent port handler on [%s]", port));
 
@@ -637,13 +965,61 @@ public class RamHttp extends Transport {
         }
 
         public void stop() throws Exception {
+            running = false;
             socket.close(); // Close the socket
             socket = null;
+            selector.wakeup();
             th.interrupt(); // Interrupt and close thread
             th.join(1000); // Wait for it
 
         }
 
+        /**
+         * @brief Accept all pending connections, and start watching them for input
+         */
+        private void accept() throws Exception {
+            SocketChannel ch;
+            while ((ch = socket.accept()) != null) try {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                HttpTlsServer server = new HttpTlsServer(ch);
+                server.key = ch.register(selector, SelectionKey.OP_READ, server);
+            } catch (Exception ex) {
+                Utils.lg.warning(String.format("Failed to accept Ram HTTP admin connection: %s", ex));
+                try {
+                    ch.close();
+                } catch (Exception ex2) {
+                }
+            }
+        }
+
+        /**
+         * @brief Close sessions on which the card has gone quiet. Called on the selector thread.
+         * @param tnow
+         */
+        private void closeIdleSessions(long tnow) {
+            long maxIdle = HttpTlsServer.HTTP_SOCKET_WAIT_FACTOR * ServerSettings.getRAMAdminHttpKeepAliveTimeOut() * 1000L;
+            for (SelectionKey key : selector.keys()) {
+                Object o = key.attachment();
+                if (o instanceof HttpTlsServer) {
+                    HttpTlsServer server = (HttpTlsServer) o;
+                    if (!server.busy && tnow - server.lastActive > maxIdle) {
+                        Utils.lg.info(String.format("Closing idle PSK-TLS session from %s", server.remote));
+                        server.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * @brief Run a task on the selector thread. Interest ops are only changed there, never by the workers.
+         * @param task
+         */
+        private void onSelector(Runnable task) {
+            selectorTasks.add(task);
+            selector.wakeup();
+        }
+
         /**
          * @brief This is our Identity Manager for PSK-TLS. It's main function is to handle/process
          * PSK Ids. So when a TLS client requests our PSK, this class generates one from the
@@ -660,14 +1036,20 @@ public class RamHttp extends Transport {
             @Override
             public byte[] getPSK(final byte[] identity) {
                 if (identity != null) {
-                    PersistenceUtility po = poTasks.get();
-                    // Get the Key from the bytes
-                    return po.doTransaction((PersistenceUtility unused, EntityManager em) -> {
-                        Utils.Pair<byte[], Long> res = makeTlsPskFromPskId(em, identity);
-                        simId = res.l;
-
-                        return res.k;
-                    });
+                    Utils.Pair<byte[], Long> res = PskCache.get(identity);
+                    if (res == null) {
+                        long gen = PskCache.generation();
+                        PersistenceUtility po = poTasks.get();
+                        // Get the Key from the bytes
+                        res = po.doTransaction((PersistenceUtility unused, EntityManager em) ->
+                                makeTlsPskFromPskId(em, identity));
+                        if (res != null && res.k != null)
+                            PskCache.put(identity, res.k, res.l, gen);
+                    }
+                    if (res == null)
+                        return null;
+                    simId = res.l;
+                    return res.k;
                 } else return null;
             }
 
@@ -679,118 +1061,250 @@ public class RamHttp extends Transport {
 
         /**
          * @brief This is the TLS HTTP server proper
-         * @details This class implements the TLS HTTP server. It performs the TLS handshake, reads
-         * HTTP requests, passes the requests to the upper layer (RAM HTTP or Scws),
-         * gets the HTTP response and sends it to the client (SIM) via TLS.
+         * @details This class implements the TLS HTTP server for one card connection. Each time the selector sees
+         * input on the socket, it is run on the thread pool: It drains the socket into the non-blocking TLS engine
+         * (which performs the handshake as records arrive), sends out whatever the engine produces, then passes
+         * each complete HTTP request to the upper layer (RAM HTTP or Scws) and sends the HTTP response to the
+         * client (SIM) via TLS. At most one worker runs a given session at a time.
          */
         private class HttpTlsServer implements Runnable {
 
             private static final int HTTP_SOCKET_WAIT_FACTOR = 10;
-            private Socket socket;
-
-            public HttpTlsServer(Socket socket) {
+            private final SocketChannel socket;
+            private final SocketAddress remote;
+            private final TlsServerProtocol tls = new TlsServerProtocol(); //!< Non-blocking mode: no streams
+            private final PskTlsServ tlsServer = new PskTlsServ();
+            private final Utils.Http.Parser<Utils.Http.Request> httpInput =
+                    Utils.Http.Parser.forRequests(MAX_HTTP_REQUEST_LEN); //!< Decrypted input, parsed as it arrives
+            private final Deque<ByteBuffer> pendingOutput = new ArrayDeque<>(); //!< What the socket would not take
+            private SelectionKey key;
+            private volatile long lastActive = System.currentTimeMillis();
+            private volatile boolean busy = false; //!< Whether a worker is running this session
+            private boolean closing = false; //!< Close once pending output is written
+            private int reqs = 0; //!< Number of HTTP requests received so far
+
+            public HttpTlsServer(SocketChannel socket) throws Exception {
                 this.socket = socket;
+                this.remote = socket.getRemoteAddress();
+                tls.accept(tlsServer); // Non-blocking: This only prepares the handshake.
             }
 
             /**
-             * @brief Perform the client handshake, then process HTTP transactions as received
+             * @brief Read what has arrived, advance the handshake, then process HTTP transactions as received
              */
             @Override
             public void run() {
+                busy = true;
                 try {
-                    // SecureRandom srand = new SecureRandom();
-
-                    TlsServerProtocol s = new TlsServerProtocol(socket.getInputStream(), socket.getOutputStream());
-                    final PskTlsServ tlsServer = new PskTlsServ();
-                    s.accept(tlsServer);
-                    final InputStream in = s.getInputStream();
-                    final OutputStream out = s.getOutputStream();
-
-                    socket.setSoTimeout(HTTP_SOCKET_WAIT_FACTOR * ServerSettings.getRAMAdminHttpKeepAliveTimeOut() * 1000);
-                    PersistenceUtility po = poTasks.get();
-                    po.doTransaction((po1, em) -> {
-                        runHttpSession(em, in, out, tlsServer.getSimId());
-                        return null;
-                    });
+                    boolean eof = false;
+                    byte[] buf = ioBuffer.get();
+                    ByteBuffer bb = ByteBuffer.wrap(buf);
+                    int n;
+                    while ((n = socket.read(bb)) > 0) {
+                        tls.offerInput(buf, 0, n);
+                        bb.clear();
+                    }
+                    if (n < 0)
+                        eof = true;
+                    flushTls(); // Handshake messages, alerts, etc.
+
+                    int avail;
+                    while (!tls.isClosed() && (avail = tls.getAvailableInputBytes()) > 0) {
+                        int len = tls.readInput(buf, 0, Math.min(avail, buf.length));
+                        httpInput.feed(buf, 0, len);
+                    }
+                    runHttpSession();
 
-                    socket.close(); // Close it
-                    // s.close(); // Do we need this?
+                    if (eof || tls.isClosed())
+                        finish();
+                    else
+                        rearm();
                 } catch (Exception ex) {
                     Utils.lg.severe(String.format("Failed to run PSK-TLS http session: %s", ex));
+                    close();
+                } finally {
+                    lastActive = System.currentTimeMillis();
+                    busy = false;
                 }
             }
 
             /**
-             * Process an HTTP session from the card: Parse http packet, call the relevant function internally to
-             * process the data received
-             *
-             * @param em
-             * @param in
-             * @param out
-             * @param simId
+             * Process the HTTP requests received from the card so far: Parse each http packet, call the relevant
+             * function internally to process the data received and send back the response. A partial request
+             * is left in the buffer until the rest of it arrives.
              */
-            private void runHttpSession(EntityManager em, InputStream in, OutputStream out, Long simId) {
-                // Do the actual HTTP transactions
+            private void runHttpSession() throws Exception {
                 int maxReqs = ServerSettings.getRAMAdminHttpMaxRequests();
-                int reqs = 0;
-
-                while (reqs < maxReqs) try {
-
-                    Utils.Http.Request req = new Utils.Http.Request(in);
-
-                    long tid;
+                Utils.Http.Request req;
 
+                while (!closing && reqs < maxReqs && (req = httpInput.next()) != null) {
                     reqs++;
-                    // Try to get the IDs from the args array
-                    try {
-                        tid = Long.parseLong(req.args[req.args.length - 1]);
-                    } catch (Exception ex) {
-                        tid = -1;
-                    }
-                    Eis euicc = em.find(Eis.class, simId, LockModeType.PESSIMISTIC_WRITE); // Get the SIM card,
-                    // right??
-                    euicc.setNumPendingRAMRequests(0); // Clear the number of pending requests. We got a connection.
-
-                    // em.flush(); // Force changes out. Right?
-                    Utils.Http.Response response;
-                    boolean closeConn = (reqs == maxReqs);
-                    String xAdminFrom = req.headers.get("X-Admin-From");
-                    String xResponseStatus = req.headers.get("X-Admin-Script-Status");
-                    Object msgData = req.cgiParams.get("msg");
-                    boolean hasMsgData = (msgData != null) && (msgData instanceof String); // Sec 3.15.2
-                    // notification via HTTPS: It is hex-coded as per spec
-                    byte[] inputData = hasMsgData ? Utils.HEX.h2b((String) msgData) : req.body;
-
-                    if (hasMsgData || req.uriVerb.equalsIgnoreCase(RamHttp.DISPATCHER_RESULT_URI) || xResponseStatus != null) {
-                        Utils.lg.info(String.format("Incoming HTTP request, x-script-status: %s, xfrom: %s, body: %s",
-                                xResponseStatus != null ? xResponseStatus : "",
-                                xAdminFrom != null ? xAdminFrom : "",
-                                msgData));
-                        StatsCollector.recordTransportEvent(TransportType.RAMHTTP, PacketType.MO); // Record
-                        // incoming stat
-                        response = processResponse(em, euicc, tid, xResponseStatus, inputData, closeConn);
-                    } else /* if (req.uriVerb.equalsIgnoreCase(DISPATCHER_URI)) */ {
-                        if (tid < 0) try {
-                            SmSrTransaction bt = SmSrTransaction.findfirstTransaction(em, euicc.getId(),
-                                    SmSrTransaction.Status.HttpWait);
-                            tid = bt.getId();
-                        } catch (Exception ex) {
-                        }
-                        response = transactionToRequest(em, tid, closeConn);
-                    }
-                        /*
-                        else
-                            response = new Utils.Http.Response(Response.Status.FORBIDDEN, null, null, null, closeConn);
-                            */
+                    final Utils.Http.Request xreq = req;
+                    final boolean closeConn = (reqs == maxReqs);
+                    Utils.Http.Response response = handleRequest(xreq, tlsServer.getSimId(), closeConn);
                     response.version = req.version; // Copy version over.
-                    response.outputMessage(out);
+                    ByteArrayOutputStream os = new ByteArrayOutputStream();
+                    response.outputMessage(os);
+                    byte[] xout = os.toByteArray();
+                    tls.writeApplicationData(xout, 0, xout.length);
+                    flushTls();
 
                     if (response.status == Response.Status.OK)
                         StatsCollector.recordTransportEvent(TransportType.RAMHTTP, PacketType.MT);
+                    if (closeConn) {
+                        tls.close(); // Send close_notify
+                        flushTls();
+                    }
+                }
+            }
+
+            /**
+             * @brief Process a single HTTP request from the card: Call the relevant function internally to
+             * process the data received, return the response to send.
+             * @details This runs as two short transactions: One records the card's response (if any) against its
+             * transaction, the other composes the next command script. Neither holds a lock on the eUICC.
+             * @param req
+             * @param simId
+             * @param closeConn
+             * @return
+             */
+            private Utils.Http.Response handleRequest(Utils.Http.Request req, Long simId, boolean closeConn) {
+                long tid;
+
+                // Try to get the IDs from the args array
+                try {
+                    tid = Long.parseLong(req.args[req.args.length - 1]);
                 } catch (Exception ex) {
-                    break; // We are done
+                    tid = -1;
                 }
 
+                String xAdminFrom = req.headers.get(Utils.Http.X_ADMIN_FROM);
+                String xResponseStatus = req.headers.get(Utils.Http.X_ADMIN_SCRIPT_STATUS);
+                Object msgData = req.cgiParams.get("msg");
+                boolean hasMsgData = (msgData != null) && (msgData instanceof String); // Sec 3.15.2
+                // notification via HTTPS: It is hex-coded as per spec
+                byte[] inputData = hasMsgData ? Utils.HEX.h2b((String) msgData) : req.body;
+                boolean isResponse = hasMsgData || req.uriVerb.equalsIgnoreCase(RamHttp.DISPATCHER_RESULT_URI) ||
+                        xResponseStatus != null;
+
+                if (isResponse) {
+                    PacketDump.info(simId, () -> String.format("Incoming HTTP request, x-script-status: %s, xfrom: " +
+                                    "%s, body: %s",
+                            xResponseStatus != null ? xResponseStatus : "",
+                            xAdminFrom != null ? xAdminFrom : "",
+                            msgData));
+                    StatsCollector.recordTransportEvent(TransportType.RAMHTTP, PacketType.MO); // Record
+                    // incoming stat
+                }
+                final long xtid = tid;
+                Long nextTid = doShortTransaction(poTasks.get(), (po, em) -> {
+                    clearPendingRequests(em, simId); // We got a connection.
+                    if (isResponse) {
+                        Eis euicc = em.find(Eis.class, simId);
+                        Long xnext = processResponse(em, euicc, xtid, xResponseStatus, inputData);
+                        return xnext != null ? xnext : -1L;
+                    } else if (xtid < 0) /* if (req.uriVerb.equalsIgnoreCase(DISPATCHER_URI)) */ {
+                        SmSrTransaction bt = nextTransactionForSession(em, simId, null);
+                        return bt != null ? bt.getId() : -1L;
+                    } else {
+                        SmSrTransaction bt = em.find(SmSrTransaction.class, xtid);
+                        return bt != null && simId.equals(bt.getEis_id()) ? xtid : -1L; // Only its own
+                    }
+                });
+                if (nextTid == null)
+                    Utils.lg.warning(String.format("RamHTTP.admin.endpoint: Failed to process request for " +
+                            "transaction [%s] on eUICC [%s] after %s attempts", tid, simId, MAX_TRANSACTION_ATTEMPTS));
+                if (nextTid == null || nextTid < 0)
+                    return new Utils.Http.Response(Response.Status.NO_CONTENT, null, null, null, closeConn);
+
+                // Now compose the next command script. It is only sent if its state changes made it to the DB.
+                final long ntid = nextTid;
+                Utils.Http.Response response = doShortTransaction(poTasks.get(),
+                        (po, em) -> transactionToRequest(em, ntid, closeConn));
+                return response != null ? response : new Utils.Http.Response(Response.Status.NO_CONTENT, null,
+                        null, null, closeConn);
+            }
+
+            /**
+             * @brief Move whatever the TLS engine has produced to the socket. What the socket won't take now is
+             * queued, and written by the selector thread when the socket becomes writable.
+             * @throws IOException
+             */
+            private void flushTls() throws IOException {
+                int avail = tls.getAvailableOutputBytes();
+                if (avail <= 0)
+                    return;
+                byte[] out = new byte[avail];
+                tls.readOutput(out, 0, avail);
+                ByteBuffer bb = ByteBuffer.wrap(out);
+                synchronized (this) {
+                    if (pendingOutput.isEmpty())
+                        socket.write(bb);
+                    if (bb.hasRemaining())
+                        pendingOutput.add(bb);
+                }
+            }
+
+            /**
+             * @brief Write queued output. Called on the selector thread when the socket is writable.
+             */
+            private synchronized void writePending() {
+                try {
+                    while (!pendingOutput.isEmpty()) {
+                        ByteBuffer bb = pendingOutput.peek();
+                        socket.write(bb);
+                        if (bb.hasRemaining())
+                            return; // Socket is full again.
+                        pendingOutput.poll();
+                    }
+                    if (closing)
+                        close();
+                    else if (key.isValid())
+                        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+                } catch (Exception ex) {
+                    close();
+                }
+            }
+
+            /**
+             * @brief Done with this lot of input: Watch the socket again.
+             */
+            private void rearm() {
+                onSelector(() -> {
+                    synchronized (this) {
+                        if (!key.isValid())
+                            return;
+                        int ops = closing ? 0 : SelectionKey.OP_READ;
+                        if (!pendingOutput.isEmpty())
+                            ops |= SelectionKey.OP_WRITE;
+                        key.interestOps(ops);
+                    }
+                });
+            }
+
+            /**
+             * @brief Close the session once any pending output has gone out.
+             */
+            private void finish() {
+                synchronized (this) {
+                    closing = true;
+                    if (pendingOutput.isEmpty()) {
+                        close();
+                        return;
+                    }
+                }
+                rearm();
+            }
+
+            private void close() {
+                try {
+                    tls.close();
+                } catch (Exception ex) {
+                }
+                try {
+                    socket.close(); // Close it. This also cancels the selection key.
+                } catch (Exception ex) {
+                }
             }
         }
 
@@ -798,6 +1312,11 @@ public class RamHttp extends Transport {
          * @brief The TLS server, sub-classing the BouncyCastle class.
          * @details We need this class so that we can customise the list of supported TLS ciphers and also
          * customise the PSK identity manager so that we can generate our own PSK from the identity.
+         * <p>
+         * Sessions are not resumed: Each SCP81 connection runs a full PSK handshake. The bctls 1.65
+         * TlsServerProtocol always sends an empty session ID and never calls getSessionToResume(), so a session
+         * store here would never be used. Resumption needs a bctls whose server side supports it. That also means
+         * a matching bcprov, which the application server provides.
          */
         private class PskTlsServ extends PSKTlsServer {
             private IdentityManager identityManager;
@@ -0,0 +1,1072 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.Charset;
+import io.njiwa.common.PersistenceUtility;
+import io.njiwa.common.ServerSettings;
+import io.njiwa.common.Utils;
+import io.njiwa.sr.ota.Ota;
+
+import javax.enterprise.inject.Instance;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * @addtogroup g_transports
+ * @{
+ */
+
+/**
+ * @brief This is a native SMPP v3.4 client, used by the SMS transport in place of the Kannel sendsms URL when SMPP binds
+ * are configured.
+ * @details Each configured bind is a transceiver session with its own socket and reader thread. Submissions are
+ * spread round-robin over the bound sessions. Each session keeps a window of outstanding submit_sm PDUs, and the
+ * slot is freed when the submit_sm_resp arrives (or the response times out). A send never waits for a slot: If all
+ * bound sessions have full windows, it is reported to SmsThrottle as throttled, which slows the route down and
+ * re-queues the message. The returned message ID is remembered so that the delivery receipt (a deliver_sm) can be
+ * routed back to Transport.receiveDlr(). All other deliver_sm PDUs are MO messages and are passed to Ota.receiveMO().
+ * Idle sessions are kept alive with enquire_link.
+ * <p>
+ * An in-process SMSC simulator can be started (see ServerSettings smpp_simulator_port) for testing without a real SMSC.
+ */
+public class Smpp {
+    // Command IDs, see Sec 5.1.2.1 of SMPP v3.4
+    public static final int GENERIC_NACK = 0x80000000;
+    public static final int BIND_RECEIVER = 0x00000001;
+    public static final int BIND_TRANSMITTER = 0x00000002;
+    public static final int SUBMIT_SM = 0x00000004;
+    public static final int SUBMIT_SM_RESP = 0x80000004;
+    public static final int DELIVER_SM = 0x00000005;
+    public static final int DELIVER_SM_RESP = 0x80000005;
+    public static final int UNBIND = 0x00000006;
+    public static final int UNBIND_RESP = 0x80000006;
+    public static final int BIND_TRANSCEIVER = 0x00000009;
+    public static final int BIND_TRANSCEIVER_RESP = 0x80000009;
+    public static final int ENQUIRE_LINK = 0x00000015;
+    public static final int ENQUIRE_LINK_RESP = 0x80000015;
+
+    // Command status codes, Sec 5.1.3
+    public static final int ESME_ROK = 0x00000000;
+    public static final int ESME_RINVCMDID = 0x00000003;
+    public static final int ESME_RBINDFAIL = 0x0000000D;
+    public static final int ESME_RTHROTTLED = 0x00000058;
+
+    // Optional parameter tags, Sec 5.3.2
+    public static final int TLV_RECEIPTED_MESSAGE_ID = 0x001E;
+    public static final int TLV_MESSAGE_PAYLOAD = 0x0424;
+    public static final int TLV_MESSAGE_STATE = 0x0427;
+
+    // Message states, Sec 5.2.28
+    public static final int STATE_ENROUTE = 1;
+    public static final int STATE_DELIVERED = 2;
+    public static final int STATE_EXPIRED = 3;
+    public static final int STATE_DELETED = 4;
+    public static final int STATE_UNDELIVERABLE = 5;
+    public static final int STATE_ACCEPTED = 6;
+    public static final int STATE_UNKNOWN = 7;
+    public static final int STATE_REJECTED = 8;
+
+    private static final int ESM_CLASS_UDHI = 0x40;
+    private static final int ESM_CLASS_TYPE_MASK = 0x3C;
+    private static final int ESM_CLASS_DELIVERY_RECEIPT = 0x04;
+    private static final int INTERFACE_VERSION = 0x34;
+    private static final int MAX_PDU_SIZE = 64 * 1024; //!< Guard against garbage command_length
+    private static final long RECONNECT_INTERVAL = 5 * 1000; //!< Milliseconds between bind attempts
+    private static final long MAX_RECEIPT_AGE = 48 * 3600 * 1000L; //!< How long we wait for a delivery receipt
+
+    private static final List<Bind> binds = new CopyOnWriteArrayList<>(); //!< All configured sessions
+    private static final Map<String, DlrInfo> pendingReceipts = new ConcurrentHashMap<>(); //!< Indexed by SMSC message ID
+    private static final AtomicInteger nextBind = new AtomicInteger(0);
+    private static ScheduledExecutorService keepAliveTimer;
+    private static ExecutorService callbackExecutor; //!< Where DLR and MO processing is done
+    private static Instance<PersistenceUtility> poTasks;
+    private static Simulator simulator;
+
+    /**
+     * @param xpoTasks - Persistence utility source, used for DLR and MO processing
+     * @param executor - Executor on which DLR and MO processing is run
+     * @brief Start the simulator (if enabled) and all configured SMPP binds
+     */
+    public static synchronized void start(Instance<PersistenceUtility> xpoTasks, ExecutorService executor) throws Exception {
+        if (keepAliveTimer != null)
+            return;
+        poTasks = xpoTasks;
+        callbackExecutor = executor;
+
+        int simPort = ServerSettings.getSmppSimulatorPort();
+        if (simPort > 0) {
+            simulator = new Simulator(simPort);
+            simulator.start();
+        }
+
+        for (String spec : ServerSettings.getSmppBinds())
+            try {
+                if (spec == null || spec.trim().length() == 0)
+                    continue;
+                String[] xl = spec.trim().split(":");
+                int sessions = xl.length > 4 ? Integer.parseInt(xl[4]) : 1;
+                for (int i = 0; i < sessions; i++) {
+                    Bind b = new Bind(xl[0], Integer.parseInt(xl[1]), xl[2], xl.length > 3 ? xl[3] : "");
+                    binds.add(b);
+                    b.start();
+                }
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMPP: Invalid bind specification [%s]: %s", spec, ex));
+            }
+
+        keepAliveTimer = Executors.newSingleThreadScheduledExecutor();
+        keepAliveTimer.scheduleAtFixedRate(() -> {
+            for (Bind b : binds)
+                try {
+                    b.keepAlive();
+                } catch (Exception ex) {
+                }
+            expireReceipts();
+        }, 1, 1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * @brief Unbind all sessions and stop the simulator
+     */
+    public static synchronized void stop() {
+        for (Bind b : binds)
+            try {
+                b.stop();
+            } catch (Exception ex) {
+            }
+        binds.clear();
+        try {
+            keepAliveTimer.shutdownNow();
+        } catch (Exception ex) {
+        }
+        keepAliveTimer = null;
+        try {
+            simulator.stop();
+        } catch (Exception ex) {
+        }
+        simulator = null;
+    }
+
+    /**
+     * @return True if SMPP binds are configured, in which case SMS goes out via SMPP rather than over HTTP.
+     */
+    public static boolean isActive() {
+        return !binds.isEmpty();
+    }
+
+    /**
+     * @param msisdn
+     * @param text
+     * @param udh
+     * @param pid
+     * @param dcs
+     * @param dlrMask
+     * @param smsId
+     * @param tag
+     * @param tagID
+     * @param partNo
+     * @return Sent if the submit_sm was written to a bound session, Throttled if all bound sessions have full windows
+     * @brief Send a single SMS via SMPP. Delivery reports are mapped onto the Kannel-style DLR codes in Transport.
+     */
+    public static SmsThrottle.Result sendSms(String msisdn, ByteBuffer text, ByteBuffer udh, int pid, int dcs,
+                                             int dlrMask, long smsId, String tag, long tagID, int partNo) {
+        int n = binds.size();
+        if (n == 0)
+            return SmsThrottle.Result.Failed;
+        DlrInfo dlrInfo = new DlrInfo(msisdn, dlrMask & Transport.DLR_ALL, smsId, tag, tagID, partNo);
+        try {
+            return submit(new Submission(makeSubmitSm(msisdn, text, udh, pid, dcs, dlrInfo.mask), dlrInfo));
+        } catch (Exception ex) {
+            Utils.lg.severe(String.format("SMPP: Failed to make submit_sm to [%s]: %s", msisdn, ex));
+            return SmsThrottle.Result.Failed;
+        }
+    }
+
+    /**
+     * @param sub
+     * @return Sent, Throttled if no session was down but all had full windows, else Failed
+     * @brief Send a submit_sm round robin over bound sessions, skipping those that are down or busy.
+     */
+    private static SmsThrottle.Result submit(Submission sub) {
+        int n = binds.size();
+        int start = Math.abs(nextBind.getAndIncrement() % Math.max(1, n));
+        boolean busy = false;
+        for (int i = 0; i < n; i++)
+            try {
+                Bind b = binds.get((start + i) % n);
+                if (!b.isBound())
+                    continue;
+                SmsThrottle.Result res = b.submit(sub);
+                if (res == SmsThrottle.Result.Sent)
+                    return res;
+                busy |= res == SmsThrottle.Result.Throttled;
+            } catch (Exception ex) {
+            }
+        if (busy)
+            return SmsThrottle.Result.Throttled;
+        Utils.lg.severe(String.format("SMPP: No bound session could accept message to [%s]", sub.dlrInfo.msisdn));
+        return SmsThrottle.Result.Failed;
+    }
+
+    /**
+     * @brief Make the submit_sm body, Sec 4.4.1.
+     */
+    static byte[] makeSubmitSm(String msisdn, ByteBuffer text, ByteBuffer udh, int pid, int dcs,
+                               int dlrMask) throws Exception {
+        if (dcs == 0x00)
+            try {
+                // Text for the SMSC default alphabet
+                text = ByteBuffer.wrap(Charset.translateToGsm0338(StandardCharsets.UTF_8.decode(text.duplicate())
+                        .toString()));
+            } catch (Exception ex) {
+            }
+        int udhLen = udh != null ? udh.remaining() : 0;
+        int smLen = udhLen + text.remaining();
+        String to = msisdn.startsWith("+") ? msisdn.substring(1) : msisdn;
+
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataOutputStream ds = new DataOutputStream(os);
+        writeCString(ds, ""); // service type
+        ds.writeByte(0x00); // source ton: unknown
+        ds.writeByte(0x00); // source npi: unknown
+        writeCString(ds, ServerSettings.getSmppSourceAddress());
+        ds.writeByte(0x01); // dest ton: international
+        ds.writeByte(0x01); // dest npi: ISDN
+        writeCString(ds, to);
+        ds.writeByte(udhLen > 0 ? ESM_CLASS_UDHI : 0x00);
+        ds.writeByte(pid);
+        ds.writeByte(0x00); // priority
+        writeCString(ds, ""); // schedule_delivery_time
+        writeCString(ds, ""); // validity_period
+        ds.writeByte((dlrMask & (Transport.DLR_DELIVERED_TO_PHONE | Transport.DLR_NONDELIVERED_TO_PHONE)) != 0 ? 0x01 : 0x00);
+        ds.writeByte(0x00); // replace_if_present
+        ds.writeByte(dcs);
+        ds.writeByte(0x00); // sm_default_msg_id
+        if (smLen <= 254) {
+            ds.writeByte(smLen);
+            if (udhLen > 0)
+                write(ds, udh);
+            write(ds, text);
+        } else {
+            // Too long for short_message, use message_payload
+            ds.writeByte(0);
+            ds.writeShort(TLV_MESSAGE_PAYLOAD);
+            ds.writeShort(smLen);
+            if (udhLen > 0)
+                write(ds, udh);
+            write(ds, text);
+        }
+        ds.flush();
+        return os.toByteArray();
+    }
+
+    private static void write(DataOutputStream ds, ByteBuffer b) throws Exception {
+        if (b.hasArray())
+            ds.write(b.array(), b.arrayOffset() + b.position(), b.remaining());
+        else {
+            byte[] x = new byte[b.remaining()];
+            b.duplicate().get(x);
+            ds.write(x);
+        }
+    }
+
+    private static void writeCString(DataOutputStream ds, String s) throws Exception {
+        if (s != null)
+            ds.write(s.getBytes(StandardCharsets.ISO_8859_1));
+        ds.write(0);
+    }
+
+    /**
+     * @param code
+     * @param dlrInfo
+     * @brief Report a DLR upwards, if it was requested. Done off the SMPP reader thread, since the DLR handler may
+     * trigger further sends.
+     */
+    private static void reportDlr(final int code, final DlrInfo dlrInfo) {
+        if (dlrInfo == null || (dlrInfo.mask & code) == 0)
+            return;
+        callbackExecutor.submit(() -> {
+            PersistenceUtility po = poTasks.get();
+            Transport.receiveDlr(po, dlrInfo.msisdn, code, dlrInfo.smsId, dlrInfo.tag, dlrInfo.tagId, dlrInfo.partNo);
+        });
+    }
+
+    /**
+     * @param messageId
+     * @param state
+     * @brief Handle a delivery receipt: Find the message it refers to and map the message state to a DLR code
+     */
+    private static void handleReceipt(String messageId, int state) {
+        if (messageId == null)
+            return;
+        DlrInfo dlrInfo;
+        int code;
+        switch (state) {
+            case STATE_DELIVERED:
+                code = Transport.DLR_DELIVERED_TO_PHONE;
+                break;
+            case STATE_EXPIRED:
+            case STATE_DELETED:
+            case STATE_UNDELIVERABLE:
+            case STATE_REJECTED:
+                code = Transport.DLR_NONDELIVERED_TO_PHONE;
+                break;
+            default:
+                // Intermediate state, keep waiting.
+                Utils.lg.info(String.format("SMPP: Intermediate receipt for message [%s], state [%s]", messageId, state));
+                return;
+        }
+        dlrInfo = pendingReceipts.remove(messageId);
+        if (dlrInfo == null) {
+            Utils.lg.info(String.format("SMPP: Receipt for unknown message [%s], state [%s]", messageId, state));
+            return;
+        }
+        reportDlr(code, dlrInfo);
+    }
+
+    /**
+     * @param from
+     * @param dcs
+     * @param esmClass
+     * @param sm
+     * @brief Handle an MO message: split out the UDH, decode the text if need be, then pass it to the OTA layer
+     */
+    private static void handleMO(final String from, int dcs, int esmClass, byte[] sm) throws Exception {
+        final byte[] udh, text;
+        if ((esmClass & ESM_CLASS_UDHI) != 0 && sm.length > 0) {
+            int udhLen = sm[0] & 0xFF;
+            udh = Arrays.copyOfRange(sm, 0, udhLen + 1);
+            sm = Arrays.copyOfRange(sm, udhLen + 1, sm.length);
+        } else
+            udh = new byte[0];
+        boolean gsm7 = dcs == 0x00 || ((dcs & 0xF0) == 0xF0 && (dcs & 0x04) == 0);
+        text = gsm7 ? Charset.convertToUTF8(sm, Charset.INLINE_7BIT).getBytes(StandardCharsets.UTF_8) : sm;
+
+        final byte[] xudh = udh, xtext = text;
+        Transport.PacketDump.info(from, () -> String.format("SMPP: Received MO [from: %s], [udh: %s], [text: %s]",
+                from, Utils.HEX.b2H(xudh), Utils.HEX.b2H(xtext)));
+        callbackExecutor.submit(() -> {
+            PersistenceUtility po = poTasks.get();
+            po.doTransaction((PersistenceUtility.Runner<Object>) (xpo, em) -> {
+                Ota.receiveMO(text, Transport.TransportType.SMS, from, udh, em);
+                return null;
+            });
+        });
+    }
+
+    private static void expireReceipts() {
+        long tnow = System.currentTimeMillis();
+        for (Map.Entry<String, DlrInfo> e : pendingReceipts.entrySet())
+            if (tnow - e.getValue().created > MAX_RECEIPT_AGE)
+                pendingReceipts.remove(e.getKey());
+    }
+
+    /**
+     * @brief What we need to know in order to route a DLR back to the tracker
+     */
+    private static class DlrInfo {
+        final String msisdn;
+        final int mask;
+        final long smsId;
+        final String tag;
+        final long tagId;
+        final int partNo;
+        final long created = System.currentTimeMillis();
+
+        DlrInfo(String msisdn, int mask, long smsId, String tag, long tagId, int partNo) {
+            this.msisdn = msisdn;
+            this.mask = mask;
+            this.smsId = smsId;
+            this.tag = tag;
+            this.tagId = tagId;
+            this.partNo = partNo;
+        }
+    }
+
+    /**
+     * @brief A submit_sm body and where its DLR goes. Kept until the submit_sm_resp arrives, so that it can be
+     * re-sent if the SMSC throttles us.
+     */
+    private static class Submission {
+        final byte[] body;
+        final DlrInfo dlrInfo;
+        long sentAt;
+
+        Submission(byte[] body, DlrInfo dlrInfo) {
+            this.body = body;
+            this.dlrInfo = dlrInfo;
+        }
+    }
+
+    /**
+     * @brief An SMPP PDU: The header fields and the undecoded body.
+     */
+    static class Pdu {
+        int commandId;
+        int status;
+        int seq;
+        byte[] body;
+
+        Pdu(int commandId, int status, int seq, byte[] body) {
+            this.commandId = commandId;
+            this.status = status;
+            this.seq = seq;
+            this.body = body != null ? body : new byte[0];
+        }
+
+        static Pdu read(DataInputStream in) throws Exception {
+            int len = in.readInt();
+            if (len < 16 || len > MAX_PDU_SIZE)
+                throw new IOException(String.format("Invalid SMPP command length [%d]", len));
+            int commandId = in.readInt();
+            int status = in.readInt();
+            int seq = in.readInt();
+            byte[] body = new byte[len - 16];
+            in.readFully(body);
+            return new Pdu(commandId, status, seq, body);
+        }
+
+        void write(DataOutputStream out) throws Exception {
+            // Write the whole PDU in one go so that concurrent writers do not interleave
+            ByteArrayOutputStream os = new ByteArrayOutputStream(16 + body.length);
+            DataOutputStream ds = new DataOutputStream(os);
+            ds.writeInt(16 + body.length);
+            ds.writeInt(commandId);
+            ds.writeInt(status);
+            ds.writeInt(seq);
+            ds.write(body);
+            ds.flush();
+            synchronized (out) {
+                os.writeTo(out);
+                out.flush();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("[cmd=0x%08x status=0x%x seq=%d len=%d]", commandId, status, seq, body.length);
+        }
+    }
+
+    /**
+     * @brief Sequential reader of a PDU body
+     */
+    static class BodyReader {
+        private final byte[] data;
+        private int pos = 0;
+
+        BodyReader(byte[] data) {
+            this.data = data;
+        }
+
+        int int8() {
+            return pos < data.length ? data[pos++] & 0xFF : 0;
+        }
+
+        int int16() {
+            return (int8() << 8) | int8();
+        }
+
+        String cString() {
+            int start = pos;
+            while (pos < data.length && data[pos] != 0)
+                pos++;
+            String s = new String(data, start, pos - start, StandardCharsets.ISO_8859_1);
+            pos++; // Skip the NUL
+            return s;
+        }
+
+        byte[] bytes(int n) {
+            n = Math.max(0, Math.min(n, data.length - pos));
+            byte[] out = Arrays.copyOfRange(data, pos, pos + n);
+            pos += n;
+            return out;
+        }
+
+        Map<Integer, byte[]> tlvs() {
+            Map<Integer, byte[]> m = new HashMap<>();
+            while (pos + 4 <= data.length) {
+                int tag = int16();
+                int len = int16();
+                m.put(tag, bytes(len));
+            }
+            return m;
+        }
+    }
+
+    /**
+     * @brief A deliver_sm or submit_sm, decoded.
+     */
+    static class ShortMessage {
+        String source, destination;
+        int esmClass, pid, registeredDelivery, dcs;
+        byte[] sm;
+        Map<Integer, byte[]> tlvs;
+
+        ShortMessage(byte[] body) {
+            BodyReader r = new BodyReader(body);
+            r.cString(); // service type
+            r.int8();
+            r.int8();
+            source = r.cString();
+            r.int8();
+            r.int8();
+            destination = r.cString();
+            esmClass = r.int8();
+            pid = r.int8();
+            r.int8(); // priority
+            r.cString(); // schedule_delivery_time
+            r.cString(); // validity_period
+            registeredDelivery = r.int8();
+            r.int8(); // replace_if_present
+            dcs = r.int8();
+            r.int8(); // sm_default_msg_id
+            sm = r.bytes(r.int8());
+            tlvs = r.tlvs();
+            if (sm.length == 0 && tlvs.containsKey(TLV_MESSAGE_PAYLOAD))
+                sm = tlvs.get(TLV_MESSAGE_PAYLOAD);
+        }
+    }
+
+    /**
+     * @brief A single SMPP transceiver session. It (re-)binds on its own thread, then reads PDUs until the link fails.
+     */
+    private static class Bind implements Runnable {
+        private final String host, systemId, password;
+        private final int port;
+        private final AtomicInteger seq = new AtomicInteger(1);
+        private final Map<Integer, Submission> inflight = new ConcurrentHashMap<>(); //!< Outstanding submit_sm
+        private final Semaphore window = new Semaphore(ServerSettings.getSmppWindowSize());
+        private volatile boolean stop = false;
+        private volatile boolean bound = false;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private Socket socket;
+        private DataOutputStream out;
+        private Thread thread;
+
+        Bind(String host, int port, String systemId, String password) {
+            this.host = host;
+            this.port = port;
+            this.systemId = systemId;
+            this.password = password;
+        }
+
+        void start() {
+            thread = new Thread(this, "smpp-" + systemId + "@" + host + ":" + port);
+            thread.start();
+        }
+
+        void stop() {
+            stop = true;
+            if (bound)
+                try {
+                    new Pdu(UNBIND, 0, nextSeq(), null).write(out);
+                } catch (Exception ex) {
+                }
+            closeSocket();
+            try {
+                thread.interrupt();
+            } catch (Exception ex) {
+            }
+        }
+
+        boolean isBound() {
+            return bound;
+        }
+
+        private int nextSeq() {
+            return seq.getAndUpdate(x -> x >= 0x7FFFFFFF ? 1 : x + 1);
+        }
+
+        private void closeSocket() {
+            bound = false;
+            try {
+                socket.close();
+            } catch (Exception ex) {
+            }
+        }
+
+        /**
+         * @param sub
+         * @return Sent, Throttled if the window is full, or Failed if the link went down
+         * @brief Send a submit_sm if there is a free window slot. Never waits: That would hold up the throttle's
+         * worker behind a slow SMSC.
+         */
+        SmsThrottle.Result submit(Submission sub) {
+            if (!window.tryAcquire())
+                return SmsThrottle.Result.Throttled;
+            int xseq = nextSeq();
+            sub.sentAt = System.currentTimeMillis();
+            inflight.put(xseq, sub);
+            try {
+                new Pdu(SUBMIT_SM, 0, xseq, sub.body).write(out);
+                lastActivity = System.currentTimeMillis();
+                return SmsThrottle.Result.Sent;
+            } catch (Exception ex) {
+                if (inflight.remove(xseq) != null)
+                    window.release();
+                Utils.lg.severe(String.format("SMPP [%s]: Failed to write submit_sm: %s", this, ex));
+                closeSocket();
+                return SmsThrottle.Result.Failed;
+            }
+        }
+
+        /**
+         * @brief Called periodically: Send enquire_link if idle, time out missing submit_sm_resp
+         */
+        void keepAlive() throws Exception {
+            long tnow = System.currentTimeMillis();
+            long timeout = ServerSettings.getSmppResponseTimeout() * 1000L;
+            for (Map.Entry<Integer, Submission> e : inflight.entrySet())
+                if (tnow - e.getValue().sentAt > timeout && inflight.remove(e.getKey()) != null) {
+                    window.release();
+                    Utils.lg.severe(String.format("SMPP [%s]: No submit_sm_resp for seq [%d]", this, e.getKey()));
+                    reportDlr(Transport.DLR_NONDELIVERED_TO_SMSC, e.getValue().dlrInfo);
+                }
+            if (bound && tnow - lastActivity > ServerSettings.getSmppEnquireLinkInterval() * 1000L) {
+                lastActivity = tnow;
+                new Pdu(ENQUIRE_LINK, 0, nextSeq(), null).write(out);
+            }
+        }
+
+        /**
+         * @brief Fail all outstanding submissions, e.g. after the link went down
+         */
+        private void failInflight() {
+            for (Integer k : inflight.keySet()) {
+                Submission x = inflight.remove(k);
+                if (x != null) {
+                    window.release();
+                    reportDlr(Transport.DLR_NONDELIVERED_TO_SMSC, x.dlrInfo);
+                }
+            }
+        }
+
+        private void bind(DataInputStream in) throws Exception {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            DataOutputStream ds = new DataOutputStream(os);
+            writeCString(ds, systemId);
+            writeCString(ds, password);
+            writeCString(ds, ""); // system type
+            ds.writeByte(INTERFACE_VERSION);
+            ds.writeByte(0); // addr ton
+            ds.writeByte(0); // addr npi
+            writeCString(ds, ""); // address range
+            ds.flush();
+            new Pdu(BIND_TRANSCEIVER, 0, nextSeq(), os.toByteArray()).write(out);
+            Pdu resp = Pdu.read(in);
+            if (resp.commandId != BIND_TRANSCEIVER_RESP || resp.status != ESME_ROK)
+                throw new Exception(String.format("Bind refused: %s", resp));
+        }
+
+        private void handleSubmitResp(Pdu pdu) {
+            final Submission x = inflight.remove(pdu.seq);
+            if (x == null)
+                return; // Timed out already
+            window.release();
+            DlrInfo dlrInfo = x.dlrInfo;
+            if (pdu.status == ESME_RTHROTTLED) {
+                // Slow down and send it again later. Never re-send from here: we are the reader thread.
+                Utils.lg.info(String.format("SMPP [%s]: Throttled, will re-send message to [%s]", this,
+                        dlrInfo.msisdn));
+                SmsThrottle.retry(SmsThrottle.ROUTE_SMPP, () -> submit(x),
+                        () -> reportDlr(Transport.DLR_NONDELIVERED_TO_SMSC, dlrInfo));
+                return;
+            }
+            if (pdu.status != ESME_ROK) {
+                Utils.lg.severe(String.format("SMPP [%s]: submit_sm to [%s] rejected, status [0x%x]", this,
+                        dlrInfo.msisdn, pdu.status));
+                reportDlr(Transport.DLR_NONDELIVERED_TO_SMSC, dlrInfo);
+                return;
+            }
+            String messageId = new BodyReader(pdu.body).cString();
+            if ((dlrInfo.mask & (Transport.DLR_DELIVERED_TO_PHONE | Transport.DLR_NONDELIVERED_TO_PHONE)) != 0)
+                pendingReceipts.put(messageId, dlrInfo);
+            reportDlr(Transport.DLR_DELIVERED_TO_SMSC, dlrInfo);
+        }
+
+        private void handleDeliverSm(Pdu pdu) throws Exception {
+            ShortMessage m = new ShortMessage(pdu.body);
+            new Pdu(DELIVER_SM_RESP, ESME_ROK, pdu.seq, new byte[]{0}).write(out);
+
+            String from;
+            try {
+                from = Utils.cleanPhoneNumber(m.source);
+            } catch (Exception ex) {
+                from = m.source;
+            }
+            if ((m.esmClass & ESM_CLASS_TYPE_MASK) == ESM_CLASS_DELIVERY_RECEIPT) {
+                Utils.Pair<String, Integer> r = parseReceipt(m);
+                handleReceipt(r.k, r.l);
+            } else
+                handleMO(from, m.dcs, m.esmClass, m.sm);
+        }
+
+        public void run() {
+            Utils.lg.info(String.format("SMPP [%s]: Session starting", this));
+            while (!stop) {
+                try {
+                    socket = new Socket();
+                    socket.connect(new InetSocketAddress(host, port), ServerSettings.getSmppResponseTimeout() * 1000);
+                    // If nothing at all arrives for a few keep-alive periods, the link is dead.
+                    socket.setSoTimeout(3 * ServerSettings.getSmppEnquireLinkInterval() * 1000);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    bind(in);
+                    bound = true;
+                    lastActivity = System.currentTimeMillis();
+                    Utils.lg.info(String.format("SMPP [%s]: Bound", this));
+
+                    while (!stop) {
+                        Pdu pdu = Pdu.read(in);
+                        lastActivity = System.currentTimeMillis();
+                        switch (pdu.commandId) {
+                            case SUBMIT_SM_RESP:
+                            case GENERIC_NACK:
+                                handleSubmitResp(pdu);
+                                break;
+                            case DELIVER_SM:
+                                handleDeliverSm(pdu);
+                                break;
+                            case ENQUIRE_LINK:
+                                new Pdu(ENQUIRE_LINK_RESP, ESME_ROK, pdu.seq, null).write(out);
+                                break;
+                            case ENQUIRE_LINK_RESP:
+                                break;
+                            case UNBIND:
+                                new Pdu(UNBIND_RESP, ESME_ROK, pdu.seq, null).write(out);
+                                throw new IOException("Unbind requested by SMSC");
+                            case UNBIND_RESP:
+                                throw new IOException("Unbound");
+                            default:
+                                new Pdu(GENERIC_NACK, ESME_RINVCMDID, pdu.seq, null).write(out);
+                                break;
+                        }
+                    }
+                } catch (SocketTimeoutException ex) {
+                    Utils.lg.severe(String.format("SMPP [%s]: Link timed out", this));
+                } catch (Exception ex) {
+                    if (!stop)
+                        Utils.lg.severe(String.format("SMPP [%s]: Session error: %s", this, ex));
+                } finally {
+                    closeSocket();
+                    failInflight();
+                }
+                if (!stop)
+                    try {
+                        Thread.sleep(RECONNECT_INTERVAL);
+                    } catch (Exception ex) {
+                    }
+            }
+            Utils.lg.info(String.format("SMPP [%s]: Session stopped", this));
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s@%s:%d", systemId, host, port);
+        }
+    }
+
+    private static final Pattern receiptIdPattern = Pattern.compile("id:(\\S+)");
+    private static final Pattern receiptStatPattern = Pattern.compile("stat:(\\S+)");
+
+    /**
+     * @param m
+     * @return The message ID and state
+     * @brief Get the receipted message ID and the final state from the TLVs if present, else from the receipt text
+     * (Appendix B of SMPP v3.4)
+     */
+    static Utils.Pair<String, Integer> parseReceipt(ShortMessage m) {
+        String id = null;
+        int state = STATE_UNKNOWN;
+        byte[] x = m.tlvs.get(TLV_RECEIPTED_MESSAGE_ID);
+        if (x != null)
+            id = new BodyReader(x).cString();
+        x = m.tlvs.get(TLV_MESSAGE_STATE);
+        if (x != null && x.length > 0)
+            state = x[0] & 0xFF;
+        else {
+            String text = new String(m.sm, StandardCharsets.ISO_8859_1);
+            Matcher mt = receiptStatPattern.matcher(text);
+            if (mt.find())
+                state = stateFromStat(mt.group(1));
+        }
+        if (id == null) {
+            Matcher mt = receiptIdPattern.matcher(new String(m.sm, StandardCharsets.ISO_8859_1));
+            if (mt.find())
+                id = mt.group(1);
+        }
+        return new Utils.Pair<>(id, state);
+    }
+
+    private static int stateFromStat(String stat) {
+        switch (stat.toUpperCase()) {
+            case "DELIVRD":
+                return STATE_DELIVERED;
+            case "EXPIRED":
+                return STATE_EXPIRED;
+            case "DELETED":
+                return STATE_DELETED;
+            case "UNDELIV":
+                return STATE_UNDELIVERABLE;
+            case "ACCEPTD":
+                return STATE_ACCEPTED;
+            case "REJECTD":
+                return STATE_REJECTED;
+            case "ENROUTE":
+                return STATE_ENROUTE;
+            default:
+                return STATE_UNKNOWN;
+        }
+    }
+
+    /**
+     * @brief An in-process SMSC simulator. It accepts any bind, acknowledges every submit_sm and, if a receipt was
+     * requested, sends back a delivery receipt shortly afterwards. MO messages can be injected using sendMO().
+     */
+    public static class Simulator {
+        private static final long RECEIPT_DELAY = 100; //!< Milliseconds before a receipt is sent
+        private final int port;
+        private final List<Session> sessions = new CopyOnWriteArrayList<>();
+        private final AtomicInteger messageIds = new AtomicInteger(1);
+        private final ScheduledExecutorService receiptTimer = Executors.newSingleThreadScheduledExecutor();
+        private ServerSocket serverSocket;
+        private Thread acceptThread;
+        private volatile boolean stop = false;
+
+        public Simulator(int port) {
+            this.port = port;
+        }
+
+        public synchronized void start() throws Exception {
+            serverSocket = new ServerSocket(port);
+            acceptThread = new Thread(() -> {
+                Utils.lg.info(String.format("SMPP simulator listening on port [%d]", port));
+                while (!stop)
+                    try {
+                        Session s = new Session(serverSocket.accept());
+                        sessions.add(s);
+                        new Thread(s, "smpp-sim-" + s.socket.getPort()).start();
+                    } catch (Exception ex) {
+                        if (!stop)
+                            Utils.lg.severe(String.format("SMPP simulator: accept failed: %s", ex));
+                    }
+                Utils.lg.info("SMPP simulator stopped");
+            });
+            acceptThread.start();
+        }
+
+        public synchronized void stop() {
+            stop = true;
+            try {
+                serverSocket.close();
+            } catch (Exception ex) {
+            }
+            for (Session s : sessions)
+                s.close();
+            receiptTimer.shutdownNow();
+        }
+
+        /**
+         * @return The number of submit_sm acknowledged so far
+         */
+        public int submitCount() {
+            return messageIds.get() - 1;
+        }
+
+        /**
+         * @param from
+         * @param udh
+         * @param text
+         * @param dcs
+         * @return True if sent on a bound session
+         * @brief Inject an MO message as if it came from the handset
+         */
+        public boolean sendMO(String from, byte[] udh, byte[] text, int dcs) {
+            for (Session s : sessions)
+                if (s.bound)
+                    try {
+                        int udhLen = udh != null ? udh.length : 0;
+                        ByteArrayOutputStream os = new ByteArrayOutputStream();
+                        DataOutputStream ds = new DataOutputStream(os);
+                        writeCString(ds, "");
+                        ds.writeByte(1);
+                        ds.writeByte(1);
+                        writeCString(ds, from);
+                        ds.writeByte(0);
+                        ds.writeByte(0);
+                        writeCString(ds, ServerSettings.getSmppSourceAddress());
+                        ds.writeByte(udhLen > 0 ? ESM_CLASS_UDHI : 0);
+                        ds.writeByte(0);
+                        ds.writeByte(0);
+                        writeCString(ds, "");
+                        writeCString(ds, "");
+                        ds.writeByte(0);
+                        ds.writeByte(0);
+                        ds.writeByte(dcs);
+                        ds.writeByte(0);
+                        ds.writeByte(udhLen + text.length);
+                        if (udhLen > 0)
+                            ds.write(udh);
+                        ds.write(text);
+                        ds.flush();
+                        new Pdu(DELIVER_SM, 0, s.nextSeq(), os.toByteArray()).write(s.out);
+                        return true;
+                    } catch (Exception ex) {
+                        Utils.lg.severe(String.format("SMPP simulator: MO send failed: %s", ex));
+                    }
+            return false;
+        }
+
+        private void sendReceipt(Session s, String messageId, String to) {
+            try {
+                String text = String.format("id:%s sub:001 dlvrd:001 submit date:0000000000 done date:0000000000 " +
+                        "stat:DELIVRD err:000 text:", messageId);
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                DataOutputStream ds = new DataOutputStream(os);
+                writeCString(ds, "");
+                ds.writeByte(1);
+                ds.writeByte(1);
+                writeCString(ds, to);
+                ds.writeByte(0);
+                ds.writeByte(0);
+                writeCString(ds, ServerSettings.getSmppSourceAddress());
+                ds.writeByte(ESM_CLASS_DELIVERY_RECEIPT);
+                ds.writeByte(0);
+                ds.writeByte(0);
+                writeCString(ds, "");
+                writeCString(ds, "");
+                ds.writeByte(0);
+                ds.writeByte(0);
+                ds.writeByte(0);
+                ds.writeByte(0);
+                byte[] xtext = text.getBytes(StandardCharsets.ISO_8859_1);
+                ds.writeByte(xtext.length);
+                ds.write(xtext);
+                byte[] xid = messageId.getBytes(StandardCharsets.ISO_8859_1);
+                ds.writeShort(TLV_RECEIPTED_MESSAGE_ID);
+                ds.writeShort(xid.length + 1);
+                ds.write(xid);
+                ds.write(0);
+                ds.writeShort(TLV_MESSAGE_STATE);
+                ds.writeShort(1);
+                ds.writeByte(STATE_DELIVERED);
+                ds.flush();
+                new Pdu(DELIVER_SM, 0, s.nextSeq(), os.toByteArray()).write(s.out);
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("SMPP simulator: Receipt send failed: %s", ex));
+            }
+        }
+
+        /**
+         * @brief A single ESME connected to the simulator
+         */
+        private class Session implements Runnable {
+            final Socket socket;
+            final AtomicInteger seq = new AtomicInteger(1);
+            DataOutputStream out;
+            volatile boolean bound = false;
+
+            Session(Socket socket) {
+                this.socket = socket;
+            }
+
+            int nextSeq() {
+                return seq.getAndIncrement();
+            }
+
+            void close() {
+                bound = false;
+                try {
+                    socket.close();
+                } catch (Exception ex) {
+                }
+                sessions.remove(this);
+            }
+
+            public void run() {
+                try {
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                    out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                    while (!stop) {
+                        Pdu pdu = Pdu.read(in);
+                        switch (pdu.commandId) {
+                            case BIND_TRANSCEIVER:
+                            case BIND_TRANSMITTER:
+                            case BIND_RECEIVER: {
+                                String systemId = new BodyReader(pdu.body).cString();
+                                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                                writeCString(new DataOutputStream(os), "njiwa-sim");
+                                new Pdu(pdu.commandId | 0x80000000, ESME_ROK, pdu.seq, os.toByteArray()).write(out);
+                                bound = true;
+                                Utils.lg.info(String.format("SMPP simulator: [%s] bound", systemId));
+                                break;
+                            }
+                            case SUBMIT_SM: {
+                                if (!bound) {
+                                    new Pdu(GENERIC_NACK, ESME_RBINDFAIL, pdu.seq, null).write(out);
+                                    break;
+                                }
+                                final ShortMessage m = new ShortMessage(pdu.body);
+                                final String messageId = String.format("%08X", messageIds.getAndIncrement());
+                                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                                writeCString(new DataOutputStream(os), messageId);
+                                new Pdu(SUBMIT_SM_RESP, ESME_ROK, pdu.seq, os.toByteArray()).write(out);
+                                Transport.PacketDump.info(m.destination, () -> String.format("SMPP simulator: " +
+                                        "submit_sm [to: %s, id: %s]: %s", m.destination, messageId,
+                                        Utils.HEX.b2H(m.sm)));
+                                if ((m.registeredDelivery & 0x03) != 0)
+                                    receiptTimer.schedule(() -> sendReceipt(this, messageId, m.destination),
+                                            RECEIPT_DELAY, TimeUnit.MILLISECONDS);
+                                break;
+                            }
+                            case ENQUIRE_LINK:
+                                new Pdu(ENQUIRE_LINK_RESP, ESME_ROK, pdu.seq, null).write(out);
+                                break;
+                            case UNBIND:
+                                new Pdu(UNBIND_RESP, ESME_ROK, pdu.seq, null).write(out);
+                                close();
+                                return;
+                            case DELIVER_SM_RESP:
+                            case ENQUIRE_LINK_RESP:
+                                break;
+                            default:
+                                new Pdu(GENERIC_NACK, ESME_RINVCMDID, pdu.seq, null).write(out);
+                                break;
+                        }
+                    }
+                } catch (Exception ex) {
+                    if (!stop)
+                        Utils.lg.info(String.format("SMPP simulator: session closed: %s", ex));
+                } finally {
+                    close();
+                }
+            }
+        }
+    }
+}
+
+/**
+ * @}
+ */
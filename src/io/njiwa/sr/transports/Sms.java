@@ -29,17 +29,19 @@ import javax.enterprise.concurrent.ManagedExecutorService;
 import javax.enterprise.inject.Instance;
 import javax.inject.Inject;
 import javax.persistence.EntityManager;
-import java.io.BufferedReader;
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
-import java.io.InputStreamReader;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
 import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
 import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 /**
@@ -64,7 +66,6 @@ public class Sms extends Transport {
     public static final int MAX_SMS_LEN = MAX_SMS_OCTETS * MAX_CSMS;
     public static final int MAX_APDUS_FOR_SMS = 5;
 
-    private static ServerSocket vsmsc_sock; //!< The virtual SMSC socket
     private static Map<String, VirtualDevice> devList = new ConcurrentHashMap<String, VirtualDevice>(); //!< List of
     // connections to the virtual SMSC, indexed by msisdn
     private static Thread smscTh; //!< Virtual SMSC handler thread
@@ -90,17 +91,15 @@ public class Sms extends Transport {
 
     /**
      * @param msisdn
-     * @param socket
+     * @param session
      * @return
      * @brief make a virtual SMSC receive object
      */
-    public static VirtualDevice makeDev(String msisdn, Socket socket) {
+    private static VirtualDevice makeDev(String msisdn, Session session) {
         if (msisdn != null && msisdn.length() > 0) {
-            VirtualDevice d = devList.get(msisdn);
-
-            if (d != null) return d;
-            d = new VirtualDevice(msisdn, socket);
-            devList.put(msisdn, d);
+            VirtualDevice d = devList.computeIfAbsent(msisdn, k -> new VirtualDevice(k, session));
+            d.session = session; // Re-registration moves the device to the new connection
+            d.lastUse = Calendar.getInstance().getTime();
             return d;
         } else
             // We need to allocate a phone number
@@ -109,7 +108,7 @@ public class Sms extends Transport {
                 VirtualDevice d = new VirtualDevice(msisdn, null);
                 if (devList.put(msisdn, d) == null) {
                     // We got one
-                    d.socket = socket;
+                    d.session = session;
                     return d;
                 }
             }
@@ -117,27 +116,22 @@ public class Sms extends Transport {
     }
 
     private static synchronized void startVsmsc() throws Exception {
-        if (vsmsc_sock == null) {
-            vsmsc_sock = new ServerSocket(ServerSettings.getVsmscPort());
-
-            receiver = new SmscReceiver();
-            smscTh = new Thread(receiver);
+        if (receiver == null) {
+            receiver = new SmscReceiver(ServerSettings.getVsmscPort(), vsmscDlrExecutor);
+            smscTh = new Thread(receiver, "vsmsc");
             smscTh.start();
         }
     }
 
     private static synchronized void stopVsmsc() throws Exception {
-        try {
-            vsmsc_sock.close();
-        } catch (Exception ex) {
-        }
         try {
             receiver.setStop();
-            smscTh.interrupt();
-            smscTh.wait();
-            vsmsc_sock = null;
+            smscTh.join(5000);
         } catch (Exception ex) {
         }
+        receiver = null;
+        smscTh = null;
+        devList.clear();
     }
 
     /**
@@ -155,8 +149,8 @@ public class Sms extends Transport {
      * @throws Exception
      * @brief send a single SMS to a virtual device (STK emulator) connected to the virtual SMSC
      */
-    private static boolean sendSms(VirtualDevice dev, byte[] text, int pid, int dcs, byte[] udh, int request_por,
-                                   long smsID, String tag, int partNo, long tagID) throws Exception {
+    private static boolean sendSms(VirtualDevice dev, ByteBuffer text, int pid, int dcs, ByteBuffer udh,
+                                   int request_por, long smsID, String tag, int partNo, long tagID) throws Exception {
         // Send to device
         dev.lastUse = Calendar.getInstance().getTime();
 
@@ -166,30 +160,32 @@ public class Sms extends Transport {
 
         // Make an SMS-DELIVER PDU - Sec 9.2.2.1 of GSM 03.40
         /* TP-UDHI: Page 36 of GSM 03.40 gives order */
-        int h1 = (udh != null && udh.length > 0) ? (1 << 6) : 0;
-        ByteArrayOutputStream tpdu = new ByteArrayOutputStream();
-        tpdu.write(h1);
+        int udhlen = (udh != null) ? udh.remaining() : 0;
+        int h1 = udhlen > 0 ? (1 << 6) : 0;
+        int udl = text.remaining() + udhlen;
+        ByteBuffer tpdu = ByteBuffer.allocate(2 + smsc.k.length + 2 + 7 + 1 + udl);
+        tpdu.put((byte) h1);
         // Write the SMSC address. First its length in bytes, then itself
-        tpdu.write(smsc.l);
-        tpdu.write(smsc.k);
+        tpdu.put(smsc.l.byteValue());
+        tpdu.put(smsc.k);
 
-        tpdu.write(new byte[]{(byte) pid, (byte) dcs});
+        tpdu.put(new byte[]{(byte) pid, (byte) dcs});
         // Write blank tp-scts
-        tpdu.write(new byte[7]);
-        int udhlen = (udh != null) ? udh.length : 0;
-        int udl = text.length + udhlen;
-        tpdu.write(udl);
-        if (udhlen > 0) tpdu.write(udh);
-        tpdu.write(text);
-
-        byte[] msgBytes = tpdu.toByteArray();
-        Utils.lg.info(String.format("Vsms: Queueing %d bytes (%d sms bytes) to [%s] for tracker [%s]: %s",
-                tpdu.size(), text.length, dev.msisdn, smsID, Utils.HEX.b2H(msgBytes)));
-
-        DataOutputStream out = new DataOutputStream(dev.socket.getOutputStream());
-
-        out.write((Utils.urlEncode(msgBytes) + "\n").getBytes(StandardCharsets.UTF_8));
-        out.flush();
+        tpdu.put(new byte[7]);
+        tpdu.put((byte) udl);
+        if (udhlen > 0) tpdu.put(udh.duplicate());
+        tpdu.put(text.duplicate());
+
+        byte[] msgBytes = Arrays.copyOf(tpdu.array(), tpdu.position());
+        PacketDump.info(dev.msisdn, () -> String.format("Vsms: Queueing %d bytes (%d sms bytes) to [%s] for tracker " +
+                "[%s]: %s", msgBytes.length, text.remaining(), dev.msisdn, smsID, Utils.HEX.b2H(msgBytes)));
+
+        Session session = dev.session;
+        if (session == null || !session.sendLine(Utils.urlEncode(msgBytes))) {
+            Utils.lg.severe(String.format("Vsms: Device [%s] is not connected or not reading, dropped MT",
+                    dev.msisdn));
+            return false;
+        }
 
         if (request_por != 0 && (request_por & (DLR_DELIVERED_TO_SMSC | DLR_DELIVERED_TO_PHONE)) != 0) // indicated
             // delivered to SMSC
@@ -236,9 +232,9 @@ public class Sms extends Transport {
      * @throws Exception
      * @brief Send SMS to an external MSISDN (i.e. one not connected via the virtual SMSC)
      */
-    private static boolean sendSms(byte[] text, byte[] udh, String msidn, String dlr_url, int request_por,
-                                   int coding) throws Exception {
-        boolean res;
+    private static SmsThrottle.Result sendSms(byte[] text, byte[] udh, String msidn, String dlr_url, int request_por,
+                                              int coding) throws Exception {
+        SmsThrottle.Result res;
 
         String url = String.format("%s%stext=%s&to=%s", ServerSettings.getSendSmsUrl(),
                 ServerSettings.getSendSmsUrl().contains("&") ? "&" : "?", Utils.urlEncode(text),
@@ -256,12 +252,14 @@ public class Sms extends Transport {
                     Utils.HttpRequestMethod.GET, null, null, null);
             int code = out.k;
 
-            res = (code / 100 == 2); // Success code.
+            if (code / 100 == 2) res = SmsThrottle.Result.Sent; // Success code.
+            else if (code == 503 || code == 429) res = SmsThrottle.Result.Throttled; // Gateway queue full
+            else res = SmsThrottle.Result.Failed;
 
-            if (!res)
+            if (res != SmsThrottle.Result.Sent)
                 Utils.lg.severe(String.format("Failed to send sms to [%s]: http code [%d: %s]", msidn, code, out.m));
         } catch (Exception ex) {
-            res = false;
+            res = SmsThrottle.Result.Failed;
             Utils.lg.severe(String.format("Failed to send sms to [%s]: %s", msidn, ex));
         }
 
@@ -304,6 +302,12 @@ public class Sms extends Transport {
         } catch (Exception ex) {
             Utils.lg.severe(String.format("Error starting SMS transport: %s", ex));
         }
+        SmsThrottle.start();
+        try {
+            Smpp.start(poTasks, vsmscDlrExecutor);
+        } catch (Exception ex) {
+            Utils.lg.severe(String.format("Error starting SMPP binds: %s", ex));
+        }
     }
 
     @Override
@@ -314,6 +318,8 @@ public class Sms extends Transport {
         } catch (Exception ex) {
             Utils.lg.severe(String.format("Error stopping SMS transport: %s", ex));
         }
+        Smpp.stop();
+        SmsThrottle.stop();
     }
 
     private String mkDlrUrl(Context context, int mask, long trackerId) throws Exception {
@@ -325,9 +331,44 @@ public class Sms extends Transport {
                 mask, trackerId);
     }
 
-    private void logSms(String to, byte[] text, byte[] udh) {
-        Utils.lg.info(String.format("Sent SMS [to: %s], [Udh: %s], [Text: %s]", to, udh != null ? Utils.HEX.b2H(udh)
-                : "", Utils.HEX.b2H(text)));
+    private void logSms(String to, ByteBuffer text, ByteBuffer udh) {
+        PacketDump.info(to, () -> String.format("Sent SMS [to: %s], [Udh: %s], [Text: %s]", to, udh.hasRemaining() ?
+                Utils.HEX.b2H(Parts.toBytes(udh)) : "", Utils.HEX.b2H(Parts.toBytes(text))));
+    }
+
+    /**
+     * @param vdev
+     * @param msisdn
+     * @param parts
+     * @param partNo
+     * @param pid
+     * @param dcs
+     * @param ucs2
+     * @param dlr_url
+     * @param dlr_flags
+     * @param trackerId
+     * @param tag
+     * @param tagId
+     * @return
+     * @brief Send a single SMS part over whichever route reaches the MSISDN. Called by the throughput limiter, possibly
+     * on another thread and some time after sendMsg() returned.
+     */
+    private SmsThrottle.Result sendPart(VirtualDevice vdev, String msisdn, Parts parts, int partNo, int pid, int dcs,
+                                        boolean ucs2, String dlr_url, int dlr_flags, long trackerId, String tag,
+                                        long tagId) throws Exception {
+        SmsThrottle.Result res;
+        ByteBuffer text = parts.text(partNo), udh = parts.udh(partNo);
+        if (vdev != null)
+            res = sendSms(vdev, text, pid, dcs, udh, dlr_flags, trackerId, tag, partNo, tagId) ?
+                    SmsThrottle.Result.Sent : SmsThrottle.Result.Failed;
+        else if (Smpp.isActive())
+            res = Smpp.sendSms(msisdn, text, udh, pid, dcs, dlr_flags, trackerId, tag, tagId, partNo);
+        else
+            res = sendSms(Parts.toBytes(text), udh.hasRemaining() ? Parts.toBytes(udh) : null, msisdn, dlr_url,
+                    dlr_flags, ucs2 ? 2 : 0);
+
+        if (res == SmsThrottle.Result.Sent) logSms(msisdn, text, udh);
+        return res;
     }
 
     /**
@@ -370,7 +411,16 @@ public class Sms extends Transport {
 
         }
 
-        int n = Ota.smsCount(msg.length);
+        final Parts parts = new Parts(msg, context.no0348coding, trackerId);
+        final int pid = context.no0348coding ? 0x00 : 0x7f;
+        final int dcs = context.no0348coding ? context.ucs2Sms ? 0x08 : 0x00 : 0xF6;
+        final boolean ucs2 = context.ucs2Sms;
+        final String tag = context.tag;
+        final long tagId = context.tagId, xtrackerId = trackerId;
+        final int xdlr_flags = dlr_flags;
+        final String route = vdev != null ? SmsThrottle.ROUTE_VSMSC : Smpp.isActive() ? SmsThrottle.ROUTE_SMPP :
+                SmsThrottle.ROUTE_HTTP;
+        SmsThrottle.Result sres;
 
         MessageStatus status;
         int count = 0;
@@ -378,82 +428,30 @@ public class Sms extends Transport {
         List<DlrTracker.MessagePart> l = (tracker != null) ? tracker.getMessageParts() :
                 new ArrayList<DlrTracker.MessagePart>();
 
-        if (n <= 1) {
-            // Only one message
-            byte[] udh = context.no0348coding ? null : Utils.HEX.h2b("027000");
-            String xdlr_url = String.format("%s&part_no=0", dlr_url);
+        for (int i = 0; i < parts.count(); i++) {
+            final String xdlr_url = String.format("%s&part_no=%d", dlr_url, i);
+            final int partNo = i;
 
             if (tracker != null) {
                 DlrTracker.MessagePart m = new DlrTracker.MessagePart();
-                m.setPartNo(0);
+                m.setPartNo(i);
                 l.add(m);
                 //  em.flush(); // Really?
             }
-            // Send the message
-            if (vdev == null) res = sendSms(msg, udh, msisdn, xdlr_url, dlr_flags, context.ucs2Sms ? 2 : 0);
-            else
-                res = sendSms(vdev, msg, context.no0348coding ? 0x00 : 0x7f, context.no0348coding ? context.ucs2Sms ?
-                        0x08 : 0x00 : 0xF6, udh, dlr_flags, trackerId, context.tag, 0, context.tagId);
-
-            if (res) {
-                StatsCollector.recordTransportEvent(TransportType.SMS, PacketType.MT); // count stats
-                logSms(msisdn, msg, udh);
-                count = 1;
-            }
-        } else {
-            long ref = System.currentTimeMillis() % 1023; // Make a message reference.
-            int offset = 0;
-            for (int i = 0; offset < msg.length; i++) {
-                ByteArrayOutputStream udh = new ByteArrayOutputStream();
-                String xdlr_url = String.format("%s&part_no=%d", dlr_url, i);
-                if (context.no0348coding) { // Concat only...
-                    udh.write(new byte[]{0x00, 0x03, (byte) ((ref + trackerId) & 0xFF), // Ref
-                            (byte) n, // Num messages
-                            (byte) (i + 1), // Sequence number, starting at 1
-                    });
-                } else {
-                    if (i == 0) udh.write(new byte[]{0x07, 0x70, 0x00}); // First one gets the security identifier.
-                    else udh.write(0x05);
-
-                    udh.write(new byte[]{0x00, // Concat marker
-                            0x03, // Length of contact
-                            (byte) ((ref + trackerId) & 0xFF), // Ref
-                            (byte) n, // Num messages
-                            (byte) (i + 1), // Sequence number, starting at 1
-                    });
-                }
-                int tSize = MAX_SMS_OCTETS - udh.size();
-                byte[] text = Utils.byteArrayCopy(msg, offset, tSize);
-                offset += tSize; // Skip forward the amount read, or go past end of string.
-
-                if (ServerSettings.getSmsThroughput() > 0 && i > 0) try {
-                    long millisecs = 1000 / ServerSettings.getSmsThroughput();
-                    Thread.sleep(millisecs);
-                } catch (Exception ex) {
-                }
-
-                if (tracker != null) {
-                    DlrTracker.MessagePart m = new DlrTracker.MessagePart();
-                    m.setPartNo(i);
-                    l.add(m);
-                    //  em.flush(); // Really?
-                }
-                byte[] xudh = udh.toByteArray();
-
-                // Send the message
-                if (vdev == null) res = sendSms(text, xudh, msisdn, xdlr_url, dlr_flags, context.ucs2Sms ? 2 : 0);
-                else
-                    res = sendSms(vdev, text, context.no0348coding ? 0x00 : 0x7f, context.no0348coding ?
-                            context.ucs2Sms ? 0x08 : 0x00 : 0xF6, xudh, dlr_flags, trackerId, context.tag, i,
-                            context.tagId);
-
-                if (res) {
-                    logSms(msisdn, text, xudh);
-
-                    count++;
-                }
-            }
+            // Send the message, or queue it if we are over the throughput limit. Parts are paced by the throughput
+            // limiter, not by sleeping here. A queued part that then fails is reported as a DLR, since we have
+            // already told our caller it was sent.
+            sres = SmsThrottle.submit(route, () -> sendPart(vdev, msisdn, parts, partNo, pid, dcs, ucs2, xdlr_url,
+                    xdlr_flags, xtrackerId, tag, tagId), () -> {
+                if (xdlr_flags != 0)
+                    queueDlr(msisdn, DLR_NONDELIVERED_TO_SMSC, xtrackerId, tag, tagId, partNo);
+            });
+            res = sres == SmsThrottle.Result.Sent || sres == SmsThrottle.Result.Queued;
+
+            if (res) count++;
         }
+        if (count > 0 && parts.count() == 1)
+            StatsCollector.recordTransportEvent(TransportType.SMS, PacketType.MT); // count stats
         if (em != null && tracker != null) {
             tracker.setMessageParts(l);
             em.persist(tracker);
@@ -496,27 +494,161 @@ public class Sms extends Transport {
         return "sms";
     }
 
+    /**
+     * @brief The parts of an outgoing (possibly concatenated) message. All parts are laid out one after the other in
+     * a single backing array, each as its UDH followed by its slice of the message, and are handed out as views over
+     * it. So splitting a message costs one array, however many parts it has.
+     */
+    static class Parts {
+        private final byte[] buf;
+        private final int[] start; //!< Where each part (its UDH) starts in buf
+        private final int[] udhLen;
+
+        /**
+         * @param msg
+         * @param no0348coding If set, parts get a plain concatenation UDH. Otherwise the first one also carries the
+         *                     03.48 command packet identifier.
+         * @param trackerId    Used to vary the concatenation reference
+         */
+        Parts(byte[] msg, boolean no0348coding, long trackerId) {
+            int n = Ota.smsCount(msg.length);
+            if (n <= 1) {
+                // Only one message
+                byte[] udh = no0348coding ? new byte[0] : new byte[]{0x02, 0x70, 0x00};
+                buf = new byte[udh.length + msg.length];
+                System.arraycopy(udh, 0, buf, 0, udh.length);
+                System.arraycopy(msg, 0, buf, udh.length, msg.length);
+                start = new int[]{0, buf.length};
+                udhLen = new int[]{udh.length};
+                return;
+            }
+            int ref = (int) (((System.currentTimeMillis() % 1023) + trackerId) & 0xFF); // Make a message reference.
+            int firstUdh = no0348coding ? 5 : 8, otherUdh = no0348coding ? 5 : 6;
+            // Count the parts as we cut them, then lay them out.
+            int count = 0;
+            for (int offset = 0, i = 0; offset < msg.length; i++, count++)
+                offset += MAX_SMS_OCTETS - (i == 0 ? firstUdh : otherUdh);
+            buf = new byte[msg.length + firstUdh + (count - 1) * otherUdh];
+            start = new int[count + 1];
+            udhLen = new int[count];
+            int pos = 0;
+            for (int i = 0, offset = 0; i < count; i++) {
+                start[i] = pos;
+                if (!no0348coding) {
+                    if (i == 0) {
+                        // First one gets the security identifier.
+                        buf[pos++] = 0x07;
+                        buf[pos++] = 0x70;
+                        buf[pos++] = 0x00;
+                    } else buf[pos++] = 0x05;
+                }
+                buf[pos++] = 0x00; // Concat marker
+                buf[pos++] = 0x03; // Length of contact
+                buf[pos++] = (byte) ref; // Ref
+                buf[pos++] = (byte) n; // Num messages
+                buf[pos++] = (byte) (i + 1); // Sequence number, starting at 1
+                udhLen[i] = pos - start[i];
+                int tSize = Math.min(MAX_SMS_OCTETS - udhLen[i], msg.length - offset);
+                System.arraycopy(msg, offset, buf, pos, tSize);
+                offset += tSize; // Skip forward the amount read
+                pos += tSize;
+            }
+            start[count] = pos;
+        }
+
+        int count() {
+            return udhLen.length;
+        }
+
+        /**
+         * @return The part's UDH (empty if none)
+         */
+        ByteBuffer udh(int i) {
+            return ByteBuffer.wrap(buf, start[i], udhLen[i]).slice();
+        }
+
+        /**
+         * @return The part's slice of the message
+         */
+        ByteBuffer text(int i) {
+            int s = start[i] + udhLen[i];
+            return ByteBuffer.wrap(buf, s, start[i + 1] - s).slice();
+        }
+
+        static byte[] toBytes(ByteBuffer b) {
+            byte[] out = new byte[b.remaining()];
+            b.duplicate().get(out);
+            return out;
+        }
+    }
+
     /**
      * @brief This is a virtual device/SIM connected to our virtual SMSC
      */
     private static class VirtualDevice {
         public String msisdn; //!< The Registered MSISDN
-        public Socket socket; //!< The actual network socket on which it listens for MT SMS
+        public volatile Session session; //!< The connection on which it listens for MT SMS
 
         Date lastUse = Calendar.getInstance().getTime(); //!< When it was last used
 
-        public VirtualDevice(String msisdn, Socket socket) {
+        public VirtualDevice(String msisdn, Session session) {
             this.msisdn = msisdn;
-            this.socket = socket;
+            this.session = session;
 
         }
+    }
 
-        @Override
-        protected void finalize() {
+    /**
+     * @brief A connection to the virtual SMSC. Incoming bytes are framed into lines by the selector thread; the
+     * lines are then handled in order, one at a time, on the executor. Outgoing frames are queued and written by the
+     * selector thread when the socket is writable, so a slow device never blocks a sender.
+     */
+    private static class Session {
+        private static final int MAX_PENDING_OUTPUT = 256 * 1024; //!< Refuse to queue more than this for one device
+
+        final SocketChannel channel;
+        final String peer;
+        final ByteArrayOutputStream line = new ByteArrayOutputStream(); //!< The incoming line so far
+        final Queue<String> inbox = new ConcurrentLinkedQueue<>(); //!< Complete lines waiting to be handled
+        final Queue<ByteBuffer> outbox = new ConcurrentLinkedQueue<>(); //!< Frames waiting to be written
+        final AtomicInteger pendingOutput = new AtomicInteger(0);
+        final AtomicBoolean busy = new AtomicBoolean(false); //!< Whether a task is handling the inbox
+        volatile VirtualDevice dev; //!< Set once the device registers on this connection
+        volatile boolean closeWhenFlushed = false;
+        volatile boolean closed = false;
+        volatile long lastActive = System.currentTimeMillis();
+        SelectionKey key;
+
+        Session(SocketChannel channel) {
+            this.channel = channel;
+            String p;
             try {
-                socket.close();
+                p = channel.getRemoteAddress().toString();
             } catch (Exception ex) {
+                p = "n/a";
             }
+            this.peer = p;
+        }
+
+        /**
+         * @param data
+         * @return false if the connection is closed or too far behind
+         * @brief Queue a frame for writing. Can be called from any thread.
+         */
+        boolean send(byte[] data) {
+            if (closed || pendingOutput.get() > MAX_PENDING_OUTPUT)
+                return false;
+            SmscReceiver r = receiver;
+            if (r == null)
+                return false;
+            pendingOutput.addAndGet(data.length);
+            outbox.add(ByteBuffer.wrap(data));
+            r.wantWrite(this);
+            return true;
+        }
+
+        boolean sendLine(String l) {
+            return send((l + "\n").getBytes(StandardCharsets.UTF_8));
         }
     }
 
@@ -533,53 +665,218 @@ public class Sms extends Transport {
      * - deregister - to deregister from the virtual SMSC
      * In turn the Virtual SMSC can send MT SMS using by simply sending the url-encoded SMS TPDU on the connected
      * file descriptor of the virtual device
+     * <p>
+     * A connection that registers stays open, receives its MT SMS on it and may send further commands on it. Any
+     * other connection is closed once its command has been answered.
+     * <p>
+     * All connections are served by one selector thread, so thousands of devices can be connected at once.
+     * Commands are handled on the executor, in order for each connection.
      */
     private static class SmscReceiver implements Runnable {
         private static final int MAX_AGE = 60 * 30; // 30 minutes idle, we kill you
-        private static final int CLEANUP_INTERVAL = 10;
-        private boolean stop = false;
-        private int cleanup_ct = 0;
-
-        private synchronized void doCleanup() {
-            cleanup_ct++;
+        private static final int MAX_UNREGISTERED_IDLE = 60; //!< Seconds an unregistered connection may sit idle
+        private static final int CLEANUP_INTERVAL = 10; //!< Seconds between cleanups
+        private static final int MAX_LINE = 64 * 1024; //!< Longest line we accept
+
+        private final ServerSocketChannel serverChannel;
+        private final Selector selector;
+        private final ExecutorService executor;
+        private final Set<Session> sessions = ConcurrentHashMap.newKeySet();
+        private final Queue<Session> writable = new ConcurrentLinkedQueue<>(); //!< Sessions with new output
+        private final ByteBuffer readBuf = ByteBuffer.allocateDirect(16 * 1024);
+        private volatile boolean stop = false;
+        private long lastCleanup = System.currentTimeMillis();
+
+        SmscReceiver(int port, ExecutorService executor) throws Exception {
+            this.executor = executor;
+            selector = Selector.open();
+            serverChannel = ServerSocketChannel.open();
+            try {
+                serverChannel.socket().setReuseAddress(true);
+                serverChannel.bind(new InetSocketAddress(port), 1024);
+                serverChannel.configureBlocking(false);
+                serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            } catch (Exception ex) {
+                serverChannel.close();
+                selector.close();
+                throw ex;
+            }
+        }
 
-            if (cleanup_ct % CLEANUP_INTERVAL != 0) return;
+        private void doCleanup() {
+            long currentT = System.currentTimeMillis();
+            if (currentT - lastCleanup < CLEANUP_INTERVAL * 1000) return;
+            lastCleanup = currentT;
 
-            long currentT = Calendar.getInstance().getTimeInMillis();
             List<String> stale = new ArrayList<String>();
             for (Map.Entry<String, VirtualDevice> d : devList.entrySet())
                 if (currentT - d.getValue().lastUse.getTime() > MAX_AGE * 1000) stale.add(d.getKey());
             for (String msisdn : stale) {
-                devList.remove(msisdn);
+                VirtualDevice dev = devList.remove(msisdn);
+                if (dev != null && dev.session != null) close(dev.session);
                 Utils.lg.info(String.format("Vsms: De-registered stale device [%s]", msisdn));
             }
+            for (Session s : sessions)
+                if (s.dev == null && !s.busy.get() && currentT - s.lastActive > MAX_UNREGISTERED_IDLE * 1000)
+                    close(s);
         }
 
         public void setStop() {
             stop = true;
+            selector.wakeup();
+        }
+
+        void wantWrite(Session s) {
+            writable.add(s);
+            selector.wakeup();
         }
 
         public void run() {
-            Socket socket, xsocket;
-            DataOutputStream out = null;
             Utils.lg.info(String.format("Starting virtual SMSC on port [%d]...", ServerSettings.getVsmscPort()));
-            // Run the receiver queue
             while (!stop) try {
-                socket = xsocket = vsmsc_sock.accept();
-                Utils.lg.info(String.format("Received Virtual SMSC connect from [%s:%d]", socket.getInetAddress(),
-                        socket.getPort()));
-
-                BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                out = new DataOutputStream(socket.getOutputStream());
-                String reply = "Ok";
-                boolean replySent = false;
+                selector.select(1000);
+                Session s;
+                while ((s = writable.poll()) != null)
+                    if (!s.closed && s.key != null && s.key.isValid())
+                        s.key.interestOps(s.key.interestOps() | SelectionKey.OP_WRITE);
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while (it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if (!key.isValid()) continue;
+                    if (key.isAcceptable()) accept();
+                    else {
+                        s = (Session) key.attachment();
+                        try {
+                            if (key.isReadable()) read(s);
+                            if (key.isValid() && key.isWritable()) write(s);
+                        } catch (Exception ex) {
+                            close(s);
+                        }
+                    }
+                }
+                doCleanup();
+            } catch (ClosedSelectorException ex) {
+                break;
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("Error in vsmsc: %s", ex));
+            }
+            for (Session s : sessions)
+                close(s);
+            try {
+                serverChannel.close();
+            } catch (Exception ex) {
+            }
+            try {
+                selector.close();
+            } catch (Exception ex) {
+            }
+            Utils.lg.info(String.format("Stopped virtual SMSC on port [%d]", ServerSettings.getVsmscPort()));
+        }
+
+        private void accept() throws Exception {
+            SocketChannel ch;
+            while ((ch = serverChannel.accept()) != null) {
+                ch.configureBlocking(false);
+                ch.socket().setTcpNoDelay(true);
+                Session s = new Session(ch);
+                s.key = ch.register(selector, SelectionKey.OP_READ, s);
+                sessions.add(s);
+                Utils.lg.info(String.format("Received Virtual SMSC connect from [%s]", s.peer));
+            }
+        }
+
+        private void read(Session s) throws Exception {
+            int n;
+            while ((n = s.channel.read(readBuf)) > 0) {
+                readBuf.flip();
+                while (readBuf.hasRemaining()) {
+                    byte ch = readBuf.get();
+                    if (ch == '\n') {
+                        String l = new String(s.line.toByteArray(), StandardCharsets.UTF_8);
+                        s.line.reset();
+                        if (l.endsWith("\r")) l = l.substring(0, l.length() - 1);
+                        s.inbox.add(l);
+                    } else if (s.line.size() < MAX_LINE) s.line.write(ch);
+                }
+                readBuf.clear();
+            }
+            s.lastActive = System.currentTimeMillis();
+            if (s.dev != null) s.dev.lastUse = new Date(s.lastActive);
+            if (!s.inbox.isEmpty()) schedule(s);
+            if (n < 0) {
+                // Peer has closed its side. Finish what we have, then close.
+                s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_READ);
+                s.closeWhenFlushed = true;
+                if (!s.busy.get() && s.inbox.isEmpty()) wantWrite(s);
+            }
+        }
+
+        private void write(Session s) throws Exception {
+            ByteBuffer b;
+            while ((b = s.outbox.peek()) != null) {
+                int n = s.channel.write(b);
+                s.pendingOutput.addAndGet(-n);
+                if (b.hasRemaining()) return; // Socket is full, wait for the next OP_WRITE
+                s.outbox.poll();
+            }
+            s.key.interestOps(s.key.interestOps() & ~SelectionKey.OP_WRITE);
+            if (s.closeWhenFlushed && !s.busy.get() && s.inbox.isEmpty()) close(s);
+        }
+
+        private void close(Session s) {
+            if (s.closed) return;
+            s.closed = true;
+            sessions.remove(s);
+            try {
+                s.key.cancel();
+            } catch (Exception ex) {
+            }
+            try {
+                s.channel.close();
+            } catch (Exception ex) {
+            }
+            VirtualDevice dev = s.dev;
+            if (dev != null && dev.session == s && devList.remove(dev.msisdn, dev))
+                Utils.lg.info(String.format("Vsmsc: Device [%s] disconnected", dev.msisdn));
+        }
+
+        /**
+         * @param s
+         * @brief Make sure a task is handling the session's inbox. Only one runs per session at a time, so commands
+         * are handled in the order received.
+         */
+        private void schedule(Session s) {
+            if (!s.busy.compareAndSet(false, true)) return;
+            try {
+                if (executor != null) {
+                    executor.execute(() -> drain(s));
+                    return;
+                }
+            } catch (Exception ex) {
+            }
+            drain(s);
+        }
+
+        private void drain(Session s) {
+            do {
+                String req;
+                while ((req = s.inbox.poll()) != null)
+                    if (!s.closed) handleCommand(s, req);
+                s.busy.set(false);
+            } while (!s.inbox.isEmpty() && s.busy.compareAndSet(false, true));
+            if (s.closeWhenFlushed) wantWrite(s); // So the selector closes it once flushed
+        }
+
+        private void handleCommand(Session s, String req) {
+            String reply = "Ok";
+            boolean replySent = false;
+            try {
                 VirtualDevice dev;
                 int i = 0;
 
-                // Read line
-                String req = in.readLine();
-                Utils.lg.info(String.format("VSMSC [%s:%d]<---%s", socket.getInetAddress(), socket.getPort(), req));
-                String[] xl = req.split("\\s+");
+                PacketDump.info(s.peer, () -> String.format("VSMSC [%s]<---%s", s.peer, req));
+                String[] xl = req.trim().split("\\s+");
 
                 String command = xl[i++];
 
@@ -595,38 +892,30 @@ public class Sms extends Transport {
                 }
                 // Now look at the commands.
                 if (req.contains("license") && command.contains("GET")) {
-                    // Fake HTTP, license check
-                    // Get all
-                    char[] xin = new char[1];
-                    int l = 0;
-                    socket.setSoTimeout(100);
-
-                    try {
-                        while (in.read(xin) > 0) l++;
-                    } catch (Exception ex) {
-                    }
+                    // Fake HTTP, license check. Whatever else the client sends is ignored, since we close.
                     String r = String.format("SMSC: %d\r\n", ServerSettings.getVsmscPort());
                     SimpleDateFormat df = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
                     Date dt = Calendar.getInstance().getTime();
 
-                    out.write("HTTP/1.1 200 OK\r\n".getBytes(StandardCharsets.UTF_8));
-                    out.write("Connection: close\r\n".getBytes(StandardCharsets.UTF_8));
-                    out.write("Content-Type: text/plain\r\n".getBytes(StandardCharsets.UTF_8));
-                    out.write(String.format("Content-Length: %d\r\n", r.length()).getBytes(StandardCharsets.UTF_8));
-
-                    out.write(String.format("Date: %s\r\n", df.format(dt)).getBytes(StandardCharsets.UTF_8));
-                    out.write("Server: anon/1.1\r\n".getBytes(StandardCharsets.UTF_8));
-                    out.write(("\r\n\r\n" + r).getBytes(StandardCharsets.UTF_8));
-                    reply = "";
+                    s.send(("HTTP/1.1 200 OK\r\n" +
+                            "Connection: close\r\n" +
+                            "Content-Type: text/plain\r\n" +
+                            String.format("Content-Length: %d\r\n", r.length()) +
+                            String.format("Date: %s\r\n", df.format(dt)) +
+                            "Server: anon/1.1\r\n" +
+                            "\r\n\r\n" + r).getBytes(StandardCharsets.UTF_8));
+                    s.inbox.clear();
+                    s.closeWhenFlushed = true;
+                    reply = null;
                 } else if (command.equalsIgnoreCase("register")) {
                     // Device wishes to register...
-                    dev = makeDev(from, socket);
+                    dev = makeDev(from, s);
                     if (dev == null)
                         Utils.lg.severe(String.format("Vsmsc: Failed to create virtual device for [%s]",
                                 from != null ? from : "n/a"));
                     else {
                         reply = dev.msisdn;
-                        socket = null; // Captured.
+                        s.dev = dev; // Captured.
                         Utils.lg.info(String.format("Vsmsc: Device [%s] registered", reply));
                     }
                 } else if (command.equalsIgnoreCase("deregister")) {
@@ -635,156 +924,163 @@ public class Sms extends Transport {
                     if (dev == null)
                         Utils.lg.severe(String.format("Vsmsc: Failed to de-register device for [%s]", from != null ?
                                 from : "n/a"));
-                    else Utils.lg.info(String.format("Vsmsc: Device [%s] de-registered", from));
-                    // dev.socket.close();
-                    //  dev = null; // Clear it.
+                    else {
+                        Utils.lg.info(String.format("Vsmsc: Device [%s] de-registered", from));
+                        if (dev.session != null && dev.session != s) {
+                            dev.session.closeWhenFlushed = true;
+                            wantWrite(dev.session);
+                        }
+                        if (s.dev == dev) s.dev = null;
+                    }
                 } else if (command.equalsIgnoreCase("dlr")) {
                     PersistenceUtility po = poTasks.get();
                     receiveDlr(po, from, 1, 0, "trans", 0L, 0); // XXX Change these flags.
                 } else if (command.equalsIgnoreCase("send")) {
                     dev = devList.get(from);
-                    String tpdu = xl[i++];
+                    String tpdu = i < xl.length ? xl[i++] : null;
                     if (dev == null || tpdu == null || tpdu.length() == 0) {
                         Utils.lg.severe(String.format("Vsms: Received 'send' from unregistered device [%s]",
                                 from != null ? from : "n/a"));
-                        continue;
-                    }
-
-                    byte[] xtpdu = Utils.urlDecode(tpdu);
-                    Utils.lg.info(String.format("Vsms: Received 'send' from device [%s], %d bytes", from,
-                            xtpdu.length));
-
-                    int ch = xtpdu[0];
-
-                    if ((ch & 0x03) != 0x01) {
-                        Utils.lg.severe(String.format("Vsms: Received non-SUBMIT-SM  from device [%s]", from));
-                        continue;
-                    }
-
-                    dev.lastUse = Calendar.getInstance().getTime(); // Indicate latest usage.
-
-                    // This is the SMS TDPU parsing a la GSM 03.40. This is an SMS-SUBMIT packet (see sec 9.2.2.2)
-                    int udhi = (ch >> 6) & 0x01;
-                    int x = (ch >> 3) & 0x03;
-                    int vp_len = (x == 0) ? 0 : (x == 2) ? 1 : 7;
-
-                    ch = xtpdu[2];
-                    Utils.Pair<String, Integer> pres = Utils.parsePhoneFromSemiOctets(xtpdu, ch, 3);
-                    int da_len = pres.l;
-                    String to = pres.k;
-                    int tp_pid = xtpdu[3 + da_len];
-                    int tp_dcs = xtpdu[4 + da_len];
-                    int coding = DC_UNDEF;
-                    int mclass = MC_UNDEF;
-                    boolean alt_dcs = false;
-                    boolean compress = false;
-
-                    // Break down DCS flags
-                    if ((tp_dcs & 0xF0) == 0xF0) {
-                        tp_dcs &= 0x07;
-                        coding = (tp_dcs & 0x04) != 0 ? DC_8BIT : DC_7BIT; /* grab bit 2 */
-                        mclass = tp_dcs & 0x03; /* grab bits 1,0 */
-                        alt_dcs = true; /* set 0xFX data coding */
-                    }
-
-                    /* Non-MWI Mode 0 */
-                    else if ((tp_dcs & 0xC0) == 0x00) {
-                        alt_dcs = false;
-                        compress = ((tp_dcs & 0x20) == 0x20) ? true : false; /* grab bit 5 */
-                        mclass = ((tp_dcs & 0x10) == 0x10) ? tp_dcs & 0x03 : MC_UNDEF;
-                        /* grab bit 0,1 if bit 4 is on */
-                        coding = (tp_dcs & 0x0C) >> 2; /* grab bit 3,2 */
-                    }
-
-                    /* MWI */
-                    else if ((tp_dcs & 0xC0) == 0xC0) {
-                        alt_dcs = false;
-                        coding = ((tp_dcs & 0x30) == 0x30) ? DC_UCS2 : DC_7BIT;
-                    }
-
-                    int udl = xtpdu[5 + da_len + vp_len];
-
-                    // Get the SMS
-                    byte[] sms = Arrays.copyOfRange(xtpdu, 6 + da_len + vp_len, xtpdu.length);
-
-
-                    byte[] udh;
-                    if (udhi != 0) {
-                        // We have UDH. SO
-                        int udh_len = sms[0];
-                        udh = Arrays.copyOfRange(sms, 0, udh_len + 1);
-                        sms = Arrays.copyOfRange(sms, udh_len + 1, sms.length);
-                    } else udh = new byte[0];
-                    int udhlen = udh.length;
-                    // Massage message
-                    if (coding != DC_8BIT && coding != DC_UCS2) {
-                        // 7bit encoding
-                        int offset = 0;
-                        if (udhi != 0 && coding == DC_7BIT) {
-                            int nbits = (udhlen + 1) * 8;
-                            offset = (((nbits / 7) + 1) * 7 - nbits) % 7;
-                            udl -= ((udhlen + 1) * 8 + offset) / 7; /* remove UDH len septets. */
-                        }
-
-                        try {
-                            byte[] t = Charset.decode7Bituncompressed(sms, udl, offset, true);
-                            sms = t;
-                        } catch (Exception ex) {
+                        reply = null;
+                    } else {
+                        Utils.Pair<byte[], byte[]> mo = receiveSubmit(dev, Utils.urlDecode(tpdu));
+                        if (mo == null) reply = null;
+                        else {
+                            reply = Utils.urlEncode(mo.k);
+                            s.sendLine(reply);
+                            replySent = true;
                         }
-                    } else if (udhi != 0) udl -= udhlen + 1;
-
-                    Utils.lg.info(String.format("vsmsc: Received [to: %s], [udh: %s], [text: %s]", to, udh != null ?
-                            Utils.HEX.b2H(udh) : "n/a", Utils.HEX.b2H(sms)));
-
-                    // Find destination: Ignore short codes for now, all go to GW
-                    boolean forgw = true; // to.equalsIgnoreCase(Properties.getVsmsc_number());
+                    }
+                }
 
-                    reply = Utils.urlEncode(sms);
-                    out.write((reply + "\n").getBytes(StandardCharsets.UTF_8));
-                    replySent = true;
-                    final byte[] xsms = sms, xudh = udh;
-                    final String xfrom = from;
-                    if (forgw) {
-                        PersistenceUtility po = poTasks.get();
-                        po.doTransaction(new PersistenceUtility.Runner<Object>() {
-                            @Override
-                            public Object run(PersistenceUtility po, EntityManager em) throws Exception {
-                                Ota.receiveMO(xsms, TransportType.SMS, xfrom, xudh, em);
-                                return null;
-                            }
+                if (reply != null) {
+                    if (!replySent) s.sendLine(reply);
+                    final String xreply = reply;
+                    PacketDump.info(s.peer, () -> String.format("VSMSC [%s]--->%s", s.peer, xreply));
+                }
+            } catch (Exception ex) {
+                Utils.lg.severe(String.format("Error in vsmsc: %s", ex));
+                s.sendLine("Error");
+            }
+            if (s.dev == null) s.closeWhenFlushed = true; // Only registered devices keep their connection
+        }
 
-                            @Override
-                            public void cleanup(boolean success) {
+        /**
+         * @param dev
+         * @param xtpdu
+         * @return The message text and UDH, or null if the TPDU is not an SMS-SUBMIT
+         * @throws Exception
+         * @brief Handle an SMS-SUBMIT from a device: Decode it and pass it into the gateway as an MO
+         */
+        private Utils.Pair<byte[], byte[]> receiveSubmit(VirtualDevice dev, byte[] xtpdu) throws Exception {
+            String from = dev.msisdn;
+            Utils.lg.info(String.format("Vsms: Received 'send' from device [%s], %d bytes", from, xtpdu.length));
+
+            int ch = xtpdu[0];
+
+            if ((ch & 0x03) != 0x01) {
+                Utils.lg.severe(String.format("Vsms: Received non-SUBMIT-SM  from device [%s]", from));
+                return null;
+            }
 
-                            }
-                        });
+            dev.lastUse = Calendar.getInstance().getTime(); // Indicate latest usage.
+
+            // This is the SMS TDPU parsing a la GSM 03.40. This is an SMS-SUBMIT packet (see sec 9.2.2.2)
+            int udhi = (ch >> 6) & 0x01;
+            int x = (ch >> 3) & 0x03;
+            int vp_len = (x == 0) ? 0 : (x == 2) ? 1 : 7;
+
+            ch = xtpdu[2];
+            Utils.Pair<String, Integer> pres = Utils.parsePhoneFromSemiOctets(xtpdu, ch, 3);
+            int da_len = pres.l;
+            String to = pres.k;
+            int tp_pid = xtpdu[3 + da_len];
+            int tp_dcs = xtpdu[4 + da_len];
+            int coding = DC_UNDEF;
+            int mclass = MC_UNDEF;
+            boolean alt_dcs = false;
+            boolean compress = false;
+
+            // Break down DCS flags
+            if ((tp_dcs & 0xF0) == 0xF0) {
+                tp_dcs &= 0x07;
+                coding = (tp_dcs & 0x04) != 0 ? DC_8BIT : DC_7BIT; /* grab bit 2 */
+                mclass = tp_dcs & 0x03; /* grab bits 1,0 */
+                alt_dcs = true; /* set 0xFX data coding */
+            }
 
-                        // Else, send via external. Right?
-                    } else sendSms(sms, udh, to, null, 0, 0);
+            /* Non-MWI Mode 0 */
+            else if ((tp_dcs & 0xC0) == 0x00) {
+                alt_dcs = false;
+                compress = ((tp_dcs & 0x20) == 0x20) ? true : false; /* grab bit 5 */
+                mclass = ((tp_dcs & 0x10) == 0x10) ? tp_dcs & 0x03 : MC_UNDEF;
+                /* grab bit 0,1 if bit 4 is on */
+                coding = (tp_dcs & 0x0C) >> 2; /* grab bit 3,2 */
+            }
 
+            /* MWI */
+            else if ((tp_dcs & 0xC0) == 0xC0) {
+                alt_dcs = false;
+                coding = ((tp_dcs & 0x30) == 0x30) ? DC_UCS2 : DC_7BIT;
+            }
 
+            int udl = xtpdu[5 + da_len + vp_len];
+
+            // Get the SMS
+            byte[] sms = Arrays.copyOfRange(xtpdu, 6 + da_len + vp_len, xtpdu.length);
+
+
+            byte[] udh;
+            if (udhi != 0) {
+                // We have UDH. SO
+                int udh_len = sms[0];
+                udh = Arrays.copyOfRange(sms, 0, udh_len + 1);
+                sms = Arrays.copyOfRange(sms, udh_len + 1, sms.length);
+            } else udh = new byte[0];
+            int udhlen = udh.length;
+            // Massage message
+            if (coding != DC_8BIT && coding != DC_UCS2) {
+                // 7bit encoding
+                int offset = 0;
+                if (udhi != 0 && coding == DC_7BIT) {
+                    int nbits = (udhlen + 1) * 8;
+                    offset = (((nbits / 7) + 1) * 7 - nbits) % 7;
+                    udl -= ((udhlen + 1) * 8 + offset) / 7; /* remove UDH len septets. */
                 }
 
-                if (reply != null) {
-                    if (!replySent) out.write((reply + "\n").getBytes(StandardCharsets.UTF_8));
-                    Utils.lg.info(String.format("VSMSC [%s:%d]--->%s", xsocket.getInetAddress(), xsocket.getPort(),
-                            reply));
-                }
-                if (socket != null) socket.close(); // Only works if above didn't capture it
-            } catch (Exception ex) {
-                Utils.lg.severe(String.format("Error in vsmsc: %s", ex));
-                if (out != null) try {
-                    out.write("Error".getBytes(StandardCharsets.UTF_8));
-                } catch (Exception ex2) {
-                }
-            } finally {
                 try {
-                    doCleanup(); // Clean up.
+                    byte[] t = Charset.decode7Bituncompressed(sms, udl, offset, true);
+                    sms = t;
                 } catch (Exception ex) {
                 }
-            }
+            } else if (udhi != 0) udl -= udhlen + 1;
+
+            final byte[] xsms = sms, xudh = udh;
+            final String xfrom = from;
+            PacketDump.info(from, () -> String.format("vsmsc: Received [to: %s], [udh: %s], [text: %s]", to,
+                    xudh != null ? Utils.HEX.b2H(xudh) : "n/a", Utils.HEX.b2H(xsms)));
+
+            // Find destination: Ignore short codes for now, all go to GW
+            boolean forgw = true; // to.equalsIgnoreCase(Properties.getVsmsc_number());
+
+            if (forgw) {
+                PersistenceUtility po = poTasks.get();
+                po.doTransaction(new PersistenceUtility.Runner<Object>() {
+                    @Override
+                    public Object run(PersistenceUtility po, EntityManager em) throws Exception {
+                        Ota.receiveMO(xsms, TransportType.SMS, xfrom, xudh, em);
+                        return null;
+                    }
 
-            Utils.lg.info(String.format("Stopped virtual SMSC on port [%d]", ServerSettings.getVsmscPort()));
+                    @Override
+                    public void cleanup(boolean success) {
+
+                    }
+                });
+
+                // Else, send via external. Right?
+            } else sendSms(sms, udh, to, null, 0, 0);
+            return new Utils.Pair<>(sms, udh);
         }
     }
 
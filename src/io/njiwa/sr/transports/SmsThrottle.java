@@ -0,0 +1,395 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.ServerSettings;
+import io.njiwa.common.Utils;
+
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @addtogroup g_transports
+ * @{
+ */
+
+/**
+ * @brief SMS throughput control. Outgoing SMS parts are metered by a global token bucket (sms_throughput per second)
+ * and a per-route token bucket (sms_route_throughput, e.g. "smpp:50,http:10").
+ * @details If tokens are available and nothing is waiting on the route, a part is sent right away on the caller's
+ * thread. Otherwise it is queued (in order) on its route and a scheduler thread releases it when tokens become
+ * available, so callers never sleep. When a gateway reports throttling, the route's rate is halved and then allowed
+ * to creep back up to the configured rate as parts go through (additive increase, multiplicative decrease).
+ * A queued part that cannot be sent is reported through the failure callback given with it, since by then the caller
+ * has long been told it was queued.
+ */
+public class SmsThrottle {
+    public static final String ROUTE_HTTP = "http"; //!< Kannel-style HTTP sendsms gateway
+    public static final String ROUTE_SMPP = "smpp"; //!< Native SMPP binds
+    public static final String ROUTE_VSMSC = "vsmsc"; //!< Devices on the virtual SMSC
+
+    private static final int MAX_THROTTLE_RETRIES = 5; //!< How many times a throttled part is re-queued
+    private static final double MIN_RATE_FACTOR = 0.05; //!< Never go below this fraction of the configured rate
+    private static final double RATE_RECOVERY_STEP = 0.05; //!< Added to the rate factor each second with no throttling
+    private static final int STOP_WAIT_SECS = 5; //!< How long stop() waits for parts already being sent
+
+    private static final Bucket global = new Bucket(null);
+    private static final Map<String, Route> routes = new ConcurrentHashMap<>();
+    private static final AtomicBoolean drainScheduled = new AtomicBoolean(false);
+    private static ScheduledExecutorService scheduler;
+    private static ExecutorService dispatcher;
+
+    public static synchronized void start() {
+        if (scheduler != null)
+            return;
+        scheduler = Executors.newSingleThreadScheduledExecutor();
+        dispatcher = Executors.newFixedThreadPool(Math.max(1, ServerSettings.getNumThreads()));
+    }
+
+    /**
+     * @brief Stop pacing. Parts not yet handed to the gateway are failed (their callbacks are run), parts being sent
+     * are given a few seconds to finish.
+     */
+    public static synchronized void stop() {
+        ScheduledExecutorService s = scheduler;
+        ExecutorService d = dispatcher;
+        scheduler = null;
+        dispatcher = null;
+        if (s == null)
+            return;
+        s.shutdownNow();
+        for (Runnable x : d.shutdownNow())
+            if (x instanceof Dispatch)
+                ((Dispatch) x).p.failed();
+        try {
+            if (!d.awaitTermination(STOP_WAIT_SECS, TimeUnit.SECONDS))
+                Utils.lg.warning("SMS throttle: Senders still running after stop");
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        drainScheduled.set(false);
+        for (Route r : routes.values()) {
+            if (!r.queue.isEmpty())
+                Utils.lg.severe(String.format("SMS throttle: Dropped %d queued parts on route [%s]", r.queue.size(),
+                        r.name));
+            Pending p;
+            while ((p = r.queue.pollFirst()) != null)
+                p.failed();
+        }
+        routes.clear();
+    }
+
+    private static Route getRoute(String name) {
+        return routes.computeIfAbsent(name, Route::new);
+    }
+
+    public static Result submit(String route, Sender sender) {
+        return submit(route, sender, null);
+    }
+
+    /**
+     * @param route - The gateway route
+     * @param sender - Sends the part
+     * @param onFailed - Called if the part was queued and then could not be sent. May be null
+     * @return Sent/Failed/Throttled if the part was sent right away, Queued if it will be sent later, Rejected if the
+     * route queue is full.
+     * @brief Send a part subject to the global and route limits.
+     */
+    public static Result submit(String route, Sender sender, Runnable onFailed) {
+        Route r = getRoute(route);
+        Pending p = new Pending(sender, onFailed);
+        if (scheduler == null)
+            return run(r, p); // Not started, so no pacing. Right?
+        boolean sendNow;
+        synchronized (SmsThrottle.class) {
+            long tnow = System.nanoTime();
+            sendNow = r.queue.isEmpty() && global.waitTime(tnow) == 0 && r.bucket.waitTime(tnow) == 0;
+            if (sendNow) {
+                global.take();
+                r.bucket.take();
+            } else if (r.queue.size() >= ServerSettings.getSmsThrottleMaxQueue())
+                return Result.Rejected;
+            else
+                r.queue.offerLast(p);
+        }
+        if (!sendNow) {
+            scheduleDrain(0);
+            return Result.Queued;
+        }
+        Result res = run(r, p);
+        return res == Result.Throttled ? Result.Queued : res;
+    }
+
+    /**
+     * @param route
+     * @param sender
+     * @param onFailed - Called if the part could not be sent in the end. May be null
+     * @brief Queue a part that the gateway throttled asynchronously (e.g. in an SMPP submit_sm_resp). It goes to the
+     * head of the route queue. Never sends on the caller's thread.
+     */
+    public static void retry(String route, Sender sender, Runnable onFailed) {
+        Route r = getRoute(route);
+        Pending p = new Pending(sender, onFailed);
+        r.bucket.throttled();
+        if (scheduler == null) {
+            p.failed(); // Stopped: Nobody will drain the queue.
+            return;
+        }
+        r.queue.offerFirst(p);
+        scheduleDrain(0);
+    }
+
+    /**
+     * @param route
+     * @brief Tell the limiter that the gateway on this route reported throttling.
+     */
+    public static void reportThrottled(String route) {
+        getRoute(route).bucket.throttled();
+    }
+
+    /**
+     * @param r
+     * @param p
+     * @return
+     * @brief Send one part. If the gateway throttles us, slow down the route and put the part back at the head of the
+     * queue.
+     */
+    private static Result run(Route r, Pending p) {
+        Result res;
+        try {
+            res = p.sender.send();
+        } catch (Exception ex) {
+            Utils.lg.severe(String.format("SMS throttle: Send on route [%s] failed: %s", r.name, ex));
+            res = Result.Failed;
+        }
+        if (res == Result.Throttled) {
+            r.bucket.throttled();
+            if (scheduler != null && ++p.attempts <= MAX_THROTTLE_RETRIES) {
+                r.queue.offerFirst(p);
+                scheduleDrain(0);
+            } else {
+                Utils.lg.severe(String.format("SMS throttle: Giving up on part after %d throttled attempts on route [%s]",
+                        p.attempts, r.name));
+                res = Result.Failed;
+            }
+        } else if (res == Result.Sent)
+            r.bucket.recover();
+        return res;
+    }
+
+    private static void scheduleDrain(long delayNanos) {
+        ScheduledExecutorService s = scheduler;
+        if (s != null && drainScheduled.compareAndSet(false, true))
+            try {
+                s.schedule(SmsThrottle::drain, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (Exception ex) {
+                drainScheduled.set(false);
+            }
+    }
+
+    /**
+     * @brief Release as many queued parts as the buckets allow, then schedule ourselves for when the next token is
+     * due.
+     */
+    private static void drain() {
+        drainScheduled.set(false);
+        long delay = Long.MAX_VALUE;
+        synchronized (SmsThrottle.class) {
+            for (Route r : routes.values())
+                while (!r.queue.isEmpty()) {
+                    long tnow = System.nanoTime();
+                    long w = Math.max(global.waitTime(tnow), r.bucket.waitTime(tnow));
+                    if (w > 0) {
+                        delay = Math.min(delay, w);
+                        break;
+                    }
+                    Pending p = r.queue.pollFirst();
+                    if (p == null)
+                        break;
+                    global.take();
+                    r.bucket.take();
+                    try {
+                        dispatcher.execute(new Dispatch(r, p));
+                    } catch (Exception ex) {
+                        Utils.lg.severe(String.format("SMS throttle: Dispatch failed: %s", ex));
+                        p.failed();
+                    }
+                }
+        }
+        if (delay != Long.MAX_VALUE)
+            scheduleDrain(delay);
+    }
+
+    /**
+     * @return Number of parts waiting, over all routes
+     */
+    public static int queued() {
+        int n = 0;
+        for (Route r : routes.values())
+            n += r.queue.size();
+        return n;
+    }
+
+    /**
+     * @brief The result of sending (or trying to send) a part
+     */
+    public enum Result {
+        Sent, Failed, Throttled, Queued, Rejected
+    }
+
+    /**
+     * @brief Sends one SMS part to the gateway
+     */
+    public interface Sender {
+        Result send() throws Exception;
+    }
+
+    private static class Pending {
+        final Sender sender;
+        final Runnable onFailed;
+        int attempts = 0;
+
+        Pending(Sender sender, Runnable onFailed) {
+            this.sender = sender;
+            this.onFailed = onFailed;
+        }
+
+        /**
+         * @brief Report that the part was not sent
+         */
+        void failed() {
+            if (onFailed != null)
+                try {
+                    onFailed.run();
+                } catch (Exception ex) {
+                    Utils.lg.severe(String.format("SMS throttle: Failure report failed: %s", ex));
+                }
+        }
+    }
+
+    /**
+     * @brief Sends a part released by drain(), on a dispatcher thread. A class rather than a lambda so that stop()
+     * can fail the parts that never ran.
+     */
+    private static class Dispatch implements Runnable {
+        final Route r;
+        final Pending p;
+
+        Dispatch(Route r, Pending p) {
+            this.r = r;
+            this.p = p;
+        }
+
+        @Override
+        public void run() {
+            if (SmsThrottle.run(r, p) == Result.Failed)
+                p.failed();
+        }
+    }
+
+    /**
+     * @brief A gateway route: Its bucket and its queue of waiting parts
+     */
+    private static class Route {
+        final String name;
+        final Bucket bucket;
+        final BlockingDeque<Pending> queue = new LinkedBlockingDeque<>();
+
+        Route(String name) {
+            this.name = name;
+            bucket = new Bucket(name);
+        }
+    }
+
+    /**
+     * @brief A token bucket. The rate is read from the configuration each time, so changes apply at once. A burst of
+     * up to one second's worth of tokens is allowed.
+     */
+    private static class Bucket {
+        private final String route; //!< Or null for the global bucket
+        private double tokens = 1;
+        private long lastRefill = System.nanoTime();
+        private double rateFactor = 1.0; //!< Reduced when throttled
+        private long lastThrottled = 0;
+        private long lastRecovered = 0;
+
+        Bucket(String route) {
+            this.route = route;
+        }
+
+        /**
+         * @return Configured rate in parts per second, or 0 for no limit
+         */
+        private double configuredRate() {
+            if (route == null)
+                return ServerSettings.getSmsThroughput();
+            for (String x : ServerSettings.getSmsRouteThroughput())
+                try {
+                    String[] xl = x.split(":");
+                    if (xl[0].trim().equalsIgnoreCase(route))
+                        return Double.parseDouble(xl[1].trim());
+                } catch (Exception ex) {
+                }
+            return 0;
+        }
+
+        private synchronized double refill(long tnow) {
+            double rate = configuredRate() * rateFactor;
+            if (rate > 0) {
+                tokens = Math.min(Math.max(1, rate), tokens + (tnow - lastRefill) * rate / 1e9);
+            }
+            lastRefill = tnow;
+            return rate;
+        }
+
+        /**
+         * @return Nanoseconds until a token is available, 0 if one is available now
+         */
+        synchronized long waitTime(long tnow) {
+            double rate = refill(tnow);
+            if (rate <= 0 || tokens >= 1)
+                return 0;
+            return (long) Math.ceil((1 - tokens) * 1e9 / rate);
+        }
+
+        synchronized void take() {
+            if (configuredRate() > 0)
+                tokens -= 1;
+        }
+
+        synchronized void throttled() {
+            long tnow = System.nanoTime();
+            // Halve at most once per second, since a burst of rejections is really one event.
+            if (tnow - lastThrottled > 1000000000L) {
+                rateFactor = Math.max(MIN_RATE_FACTOR, rateFactor / 2);
+                Utils.lg.info(String.format("SMS throttle: Route [%s] throttled, rate now %.1f/s", route,
+                        configuredRate() * rateFactor));
+            }
+            lastThrottled = tnow;
+            tokens = Math.min(tokens, 0);
+        }
+
+        synchronized void recover() {
+            long tnow = System.nanoTime();
+            if (rateFactor < 1.0 && tnow - lastThrottled > 1000000000L && tnow - lastRecovered > 1000000000L) {
+                rateFactor = Math.min(1.0, rateFactor + RATE_RECOVERY_STEP);
+                lastRecovered = tnow; // So we step up at most once a second
+            }
+        }
+    }
+}
+
+/**
+ * @}
+ */
@@ -25,8 +25,11 @@ import io.njiwa.sr.ota.Ota;
 import javax.persistence.EntityManager;
 import javax.persistence.LockModeType;
 import java.util.Calendar;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.logging.Level;
 
 
 /**
@@ -84,23 +87,14 @@ public abstract class Transport {
         po.doTransaction(new PersistenceUtility.Runner<Object>() {
             @Override
             public Object run(PersistenceUtility po, EntityManager em) throws Exception {
-                boolean allDelivered;
-                if (dlrCode == DLR_DELIVERED_TO_PHONE) {
-                    try {
-                        // DlrTracker tracker = em.find(DlrTracker.class, sms_id);
-                        allDelivered = em.find(DlrTracker.class, sms_id, LockModeType.PESSIMISTIC_WRITE).markMessagePartDelivered(partNo);
-                    } catch (Exception ex) {
-                        allDelivered = false;
-                    }
-                } else
-                    allDelivered = false;
-
-                // Now based on the tag, route the message.
-
-                Utils.lg.info(String.format("Received DLR [id: %s, code: %s, tag: %s, objId: %s, partNo: %s] ",
-                        sms_id, dlrCode, tag, tagID, partNo
-                       ));
-                processDlr(po, em, msisdn, tagID, dlrCode, allDelivered);
+                DlrTracker tracker;
+                try {
+                    tracker = dlrCode == DLR_DELIVERED_TO_PHONE ? em.find(DlrTracker.class, sms_id,
+                            LockModeType.PESSIMISTIC_WRITE) : null;
+                } catch (Exception ex) {
+                    tracker = null;
+                }
+                applyDlr(po, em, tracker, msisdn, dlrCode, sms_id, tag, tagID, partNo);
 
                 DlrTracker.clearOldTrackers(em); // Amortise cleanup here. Right??
                 return null;
@@ -114,6 +108,39 @@ public abstract class Transport {
 
     }
 
+    /**
+     * @brief Apply a single delivery report within the caller's transaction. The tracker (if any) must already be
+     * locked by the caller. Used by receiveDlr() and by batched DLR processing.
+     * @param po
+     * @param em
+     * @param tracker
+     * @param msisdn
+     * @param dlrCode
+     * @param sms_id
+     * @param tag
+     * @param tagID
+     * @param partNo
+     */
+    public static void applyDlr(PersistenceUtility po, EntityManager em, DlrTracker tracker, String msisdn,
+                                int dlrCode, long sms_id, String tag, long tagID, int partNo) {
+        boolean allDelivered;
+        if (dlrCode == DLR_DELIVERED_TO_PHONE) {
+            try {
+                allDelivered = tracker.markMessagePartDelivered(partNo);
+            } catch (Exception ex) {
+                allDelivered = false;
+            }
+        } else
+            allDelivered = false;
+
+        // Now based on the tag, route the message.
+
+        Utils.lg.info(String.format("Received DLR [id: %s, code: %s, tag: %s, objId: %s, partNo: %s] ",
+                sms_id, dlrCode, tag, tagID, partNo
+        ));
+        processDlr(po, em, msisdn, tagID, dlrCode, allDelivered);
+    }
+
 
 
     public String getName() {
@@ -274,12 +301,14 @@ public abstract class Transport {
         text = sender.messageToSend(em, ctx, otaParams, text); // Mogrify message
         int cpi = sender.getCPI(ctx);
         String msisdn = sim.activeMISDN();
-        Utils.lg.info(String.format("+++Packet Dump [MSISDN=%s, TAR=%s, rfmApp=%s, CPI=%s]+++%s+++",
-                msisdn,
-                otaParams.getTARasString(),
-                otaParams.sd != null ? otaParams.sd.description() : "n/a",
-                cpi >= 0 ? cpi : "n/a",
-                Utils.HEX.b2H(text)));
+        boolean dump = PacketDump.wanted(Level.INFO, msisdn); // Both dumps of this packet, or neither
+        if (dump)
+            Utils.lg.info(String.format("+++Packet Dump [MSISDN=%s, TAR=%s, rfmApp=%s, CPI=%s]+++%s+++",
+                    msisdn,
+                    otaParams.getTARasString(),
+                    otaParams.sd != null ? otaParams.sd.description() : "n/a",
+                    cpi >= 0 ? cpi : "n/a",
+                    Utils.HEX.b2H(text)));
         if (otaParams.no034bPacking)
             pkg = text;
         else {
@@ -296,8 +325,9 @@ public abstract class Transport {
 
             int pktLen = pkg.length;
 
-            Utils.lg.info(String.format("+++OTA Dump [MSISDN=%s, TAR=%s]+++%s+++", msisdn, otaParams.getTARasString(),
-                    Utils.HEX.b2H(pkg)));
+            if (dump)
+                Utils.lg.info(String.format("+++OTA Dump [MSISDN=%s, TAR=%s]+++%s+++", msisdn,
+                        otaParams.getTARasString(), Utils.HEX.b2H(pkg)));
 
             if (!sender.hasEnoughBuffer(ctx, pktLen)) {
                 Utils.lg.severe(String.format("Send Transaction [%d]: Packet size [%d %s] exceeded on-SIM buffer size of" +
@@ -366,6 +396,48 @@ public abstract class Transport {
         }
         return hasDataPlan;
     }
+    /**
+     * @brief Packet dumps for the logs. The text of a dump is only built if it is going to be logged, and with
+     * packet_dump_sampling = N only one in N packets to/from the same eUICC is dumped.
+     * @details The counters are kept for the most recently active eUICCs only. One that was evicted starts again,
+     * with its next packet dumped.
+     */
+    public static class PacketDump {
+        private static final int MAX_COUNTERS = 4096; //!< Per-eUICC counters, least recently used evicted first
+        private static final Map<Object, int[]> counters = new LinkedHashMap<Object, int[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, int[]> eldest) {
+                return size() > MAX_COUNTERS;
+            }
+        };
+
+        /**
+         * @param level
+         * @param key   What identifies the eUICC: MSISDN, EID, address. Or null
+         * @return whether the dump of this packet should be logged
+         */
+        public static boolean wanted(Level level, Object key) {
+            if (!Utils.lg.isLoggable(level))
+                return false;
+            int n = ServerSettings.getPacketDumpSampling();
+            if (n <= 1)
+                return n == 1;
+            synchronized (counters) {
+                int[] c = counters.computeIfAbsent(key, k -> new int[1]);
+                return (c[0]++ & Integer.MAX_VALUE) % n == 0;
+            }
+        }
+
+        public static void log(Level level, Object key, Supplier<String> dump) {
+            if (wanted(level, key))
+                Utils.lg.log(level, dump);
+        }
+
+        public static void info(Object key, Supplier<String> dump) {
+            log(Level.INFO, key, dump);
+        }
+    }
+
     /**
      * @brief Transport message status after sending.
      */
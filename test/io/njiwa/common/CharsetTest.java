@@ -0,0 +1,135 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The GSM 03.38 codec: Alphabet translation both ways, and 7-bit packing checked against a bit-by-bit
+ * reference.
+ * @details translateToGsm0338() and translateToIso() go through the platform charset, so the translation round trips
+ * stick to ASCII, which every platform charset agrees on.
+ */
+public class CharsetTest {
+    private static final String EXTENSION_CHARS = "\f^{}\\[~]|";
+
+    /**
+     * @brief Reference packing: Bit i of the septet stream goes to bit (fillBits + i) of the output, least significant
+     * bit first
+     */
+    private static byte[] referencePack(byte[] septets, int fillBits) {
+        byte[] out = new byte[(fillBits + 7 * septets.length + 7) / 8];
+        for (int i = 0; i < septets.length; i++)
+            for (int b = 0; b < 7; b++)
+                if ((septets[i] >> b & 1) != 0) {
+                    int bit = fillBits + 7 * i + b;
+                    out[bit / 8] |= 1 << (bit % 8);
+                }
+        return out;
+    }
+
+    private static byte[] pack(byte[] septets, int fillBits) {
+        ByteBuffer out = ByteBuffer.allocate(Charset.packedLength(septets.length, fillBits));
+        assertEquals(out.capacity(), Charset.pack7Bit(septets, 0, septets.length, fillBits, out));
+        return out.array();
+    }
+
+    @Test
+    public void asciiRoundTrip() throws Exception {
+        StringBuilder sb = new StringBuilder("\n\r");
+        for (char c = ' '; c < 0x7F; c++)
+            if (c != '`') // Not in the GSM alphabet
+                sb.append(c);
+        sb.append('\f');
+        String s = sb.toString();
+        byte[] gsm = Charset.translateToGsm0338(s);
+        assertEquals(s.length() + EXTENSION_CHARS.length(), gsm.length);
+        for (byte b : gsm)
+            assertTrue(b >= 0);
+        assertEquals(s, Charset.translateToIso(gsm));
+    }
+
+    @Test
+    public void knownTranslations() throws Exception {
+        assertEquals("0002110D0A41617A", Utils.HEX.b2H(Charset.translateToGsm0338("@$_\r\nAaz")));
+        assertEquals("1B0A1B141B281B291B2F1B3C1B3D1B3E1B40",
+                Utils.HEX.b2H(Charset.translateToGsm0338(EXTENSION_CHARS)));
+        assertEquals(EXTENSION_CHARS, Charset.translateToIso(Utils.HEX.h2b("1B0A1B141B281B291B2F1B3C1B3D1B3E1B40")));
+        assertEquals("@$_", Charset.translateToIso(new byte[]{0x00, 0x02, 0x11}));
+        try {
+            Charset.translateToGsm0338("`");
+            fail("Translated a character that is not in the GSM alphabet");
+        } catch (Exception ex) {
+        }
+    }
+
+    @Test
+    public void knownPacking() throws Exception {
+        byte[] hello = "hellohello".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("E8329BFD4697D9EC37", Utils.HEX.b2H(pack(hello, 0)));
+        // Seven septets leave seven spare bits for USSD, filled with CR
+        byte[] seven = Arrays.copyOf(hello, 7);
+        byte[] ussd = Charset.makeUssd7Bit(seven);
+        assertEquals(7, ussd.length);
+        assertEquals(0x0D, (ussd[6] & 0xFF) >> 1);
+        // Eight septets ending in CR fill the octets exactly, so get another CR
+        byte[] eight = Arrays.copyOf(hello, 8);
+        eight[7] = 0x0D;
+        ussd = Charset.makeUssd7Bit(eight);
+        assertEquals(8, ussd.length);
+        assertEquals(0x0D, ussd[7]);
+    }
+
+    @Test
+    public void packingMatchesReference() {
+        Random r = new Random(3);
+        for (int k = 0; k < 5000; k++) {
+            byte[] septets = new byte[r.nextInt(200)];
+            for (int i = 0; i < septets.length; i++)
+                septets[i] = (byte) r.nextInt(128);
+            int fillBits = r.nextInt(7);
+            byte[] packed = pack(septets, fillBits);
+            assertArrayEquals(referencePack(septets, fillBits), packed);
+
+            // Unpack from the middle of a larger buffer
+            byte[] in = new byte[packed.length + 4];
+            System.arraycopy(packed, 0, in, 2, packed.length);
+            ByteBuffer out = ByteBuffer.allocate(septets.length);
+            assertEquals(septets.length, Charset.unpack7Bit(in, 2, packed.length, fillBits, septets.length, out));
+            assertArrayEquals(septets, out.array());
+        }
+    }
+
+    @Test
+    public void decodeStopsAtTheEndOfItsInput() throws Exception {
+        byte[] packed = pack("hellohello".getBytes(StandardCharsets.US_ASCII), 0);
+        byte[] copy = packed.clone();
+        // Nine octets only hold ten septets, however many are asked for
+        assertEquals("hellohello", new String(Charset.decode7Bituncompressed(packed, 20, 0, true),
+                StandardCharsets.UTF_8));
+        assertArrayEquals(copy, packed);
+        assertEquals("hello", new String(Charset.decode7Bituncompressed(packed, 5, 0, false),
+                StandardCharsets.US_ASCII));
+
+        byte[] shifted = pack("hello".getBytes(StandardCharsets.US_ASCII), 1);
+        assertEquals("hello", new String(Charset.decode7Bituncompressed(shifted, 5, 1, true), StandardCharsets.UTF_8));
+        assertEquals(0, Charset.decode7Bituncompressed(new byte[0], 5, 0, false).length);
+    }
+}
@@ -0,0 +1,236 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The table-driven hex codec and the in-place BER-TLV reader must behave as the code they replaced.
+ * @details hex-tlv-vectors.txt was recorded from the String.format/parseInt hex codec and the stream-based TLV
+ * decoding, for inputs generated from a fixed seed: Hex strings with whitespace, signs, invalid and non-ASCII
+ * characters, byte slices (some out of range), and well-formed, random and truncated TLV sequences. One line per
+ * input, EXC where the call threw.
+ * The one intended change: Where a length ran past the end of the input (an empty TLV at the very end, a truncated
+ * one, random bytes), the stream decoding threw a NegativeArraySizeException. The reader returns what there is.
+ */
+public class HexTlvTest {
+    private static final int CASES = 500;
+    private static final String OVERRUN = "EXC NegativeArraySizeException"; //!< The old decoding, past the input end
+
+    private static String r(byte[] b) {
+        return b == null ? "null" : Utils.HEX.b2H(b);
+    }
+
+    private static String summary(byte[] b) {
+        return b.length <= 8 ? Utils.HEX.b2H(b) : Integer.toHexString(Arrays.hashCode(b)) + "/" + b.length;
+    }
+
+    private static String exc(Throwable ex) {
+        return "EXC " + ex.getClass().getSimpleName();
+    }
+
+    /**
+     * @return The inputs made by the generator, and what the codecs made of them, one line per input
+     */
+    private static List<String> vectors() throws Exception {
+        Random rnd = new Random(11);
+        String alpha = "0123456789abcdefABCDEF";
+        String weird = "0123456789abcdefABCDEF \t\n+-gZ\u00e9\u0130";
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < CASES; i++) {
+            StringBuilder sb = new StringBuilder();
+            String al = i % 5 == 0 ? weird : alpha;
+            StringBuilder h = new StringBuilder();
+            for (int j = rnd.nextInt(24); j > 0; j--)
+                h.append(al.charAt(rnd.nextInt(al.length())));
+            String hs = h.toString();
+            try {
+                sb.append(r(Utils.HEX.h2b(hs)));
+            } catch (Exception ex) {
+                sb.append(exc(ex));
+            }
+            try {
+                sb.append(' ').append(r(Utils.HEX.h2b(hs.getBytes(StandardCharsets.ISO_8859_1))));
+            } catch (Exception ex) {
+                sb.append(' ').append(exc(ex));
+            }
+            byte[] b = new byte[rnd.nextInt(16)];
+            rnd.nextBytes(b);
+            int off = rnd.nextInt(b.length + 2), len = rnd.nextInt(b.length + 3);
+            sb.append(' ').append(Utils.HEX.b2H(b));
+            try {
+                sb.append(' ').append(Utils.HEX.b2H(b, off, len));
+            } catch (Exception ex) {
+                sb.append(' ').append(exc(ex));
+            }
+
+            byte[] t;
+            if (i % 3 == 0) {
+                t = new byte[rnd.nextInt(20)];
+                rnd.nextBytes(t);
+            } else {
+                ByteArrayOutputStream os = new ByteArrayOutputStream();
+                for (int j = rnd.nextInt(4); j > 0; j--) {
+                    byte[] v = new byte[1 + rnd.nextInt(i % 10 == 0 ? 300 : 40)];
+                    rnd.nextBytes(v);
+                    Utils.BER.appendTLV(os, (short) (rnd.nextInt(255) + 1), v);
+                }
+                t = os.toByteArray();
+                if (i % 7 == 0 && t.length > 0)
+                    t = Arrays.copyOf(t, rnd.nextInt(t.length));
+            }
+            try {
+                Utils.Pair<Integer, byte[]> p = Utils.BER.decodeTLV(t);
+                sb.append(" T ").append(p.k).append(':').append(summary(p.l));
+            } catch (Throwable ex) {
+                sb.append(" T ").append(exc(ex));
+            }
+            try {
+                for (Utils.Pair<Integer, byte[]> p : Utils.BER.decodeTLVs(t))
+                    sb.append(" L ").append(p.k).append(':').append(summary(p.l));
+            } catch (Throwable ex) {
+                sb.append(" L ").append(exc(ex));
+            }
+            if (t.length >= 1)
+                sb.append(" I ").append(Utils.BER.decodeInt(t, Math.min(4, t.length)));
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+    @Test
+    public void matchesRecordedVectors() throws Exception {
+        List<String> expected = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                HexTlvTest.class.getResourceAsStream("hex-tlv-vectors.txt"), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                expected.add(line);
+        }
+        List<String> out = vectors();
+        assertEquals(expected.size(), out.size());
+        for (int i = 0; i < out.size(); i++) {
+            String[] x = fields(expected.get(i)), y = fields(out.get(i));
+            for (int j = 0; j < x.length; j++)
+                if (!x[j].endsWith(OVERRUN))
+                    assertEquals("Case " + i, x[j], y[j]);
+        }
+    }
+
+    /**
+     * @return A vector line cut into the hex results, decodeTLV() (T), decodeTLVs() (L) and decodeInt() (I)
+     */
+    private static String[] fields(String line) {
+        int t = line.indexOf(" T "), l = line.indexOf(" L ", t), i = line.indexOf(" I ", t);
+        if (i < 0)
+            i = line.length();
+        if (l < 0)
+            l = i;
+        return new String[]{line.substring(0, t), line.substring(t, l), line.substring(l, i), line.substring(i)};
+    }
+
+    @Test
+    public void hexRoundTrip() {
+        Random rnd = new Random(12);
+        for (int k = 0; k < 2000; k++) {
+            byte[] b = new byte[rnd.nextInt(64)];
+            rnd.nextBytes(b);
+            String s = Utils.HEX.b2H(b);
+            assertEquals(s.toLowerCase(), Utils.HEX.b2h(b));
+            assertArrayEquals(b, Utils.HEX.h2b(s));
+            assertArrayEquals(b, Utils.HEX.h2b(Utils.HEX.b2h(b)));
+
+            // Into and out of the middle of arrays
+            char[] c = new char[2 * b.length + 3];
+            assertEquals(2 * b.length, Utils.HEX.b2H(b, 0, b.length, c, 3));
+            assertEquals(s, new String(c, 3, 2 * b.length));
+            byte[] hex = ("xy" + s).getBytes(StandardCharsets.US_ASCII);
+            byte[] back = new byte[b.length + 1];
+            assertEquals(b.length, Utils.HEX.h2b(hex, 2, s.length(), back, 1));
+            assertArrayEquals(b, Arrays.copyOfRange(back, 1, back.length));
+        }
+    }
+
+    @Test
+    public void readerMatchesStreamDecoding() throws Exception {
+        Random rnd = new Random(13);
+        for (int k = 0; k < 2000; k++) {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            int n = rnd.nextInt(5);
+            for (int j = 0; j < n; j++) {
+                byte[] v = new byte[rnd.nextInt(k % 100 == 0 ? 70000 : 200)];
+                rnd.nextBytes(v);
+                Utils.BER.appendTLV(os, (short) (rnd.nextInt(255) + 1), v);
+            }
+            byte[] t = os.toByteArray();
+            List<Utils.Pair<Integer, byte[]>> l = Utils.BER.decodeTLVs(new ByteArrayInputStream(t));
+            assertEquals(n, l.size());
+
+            Utils.BER.TLVReader rd = new Utils.BER.TLVReader(t);
+            for (Utils.Pair<Integer, byte[]> p : l) {
+                assertTrue(rd.hasNext());
+                rd.next(false);
+                assertEquals((int) p.k, rd.tag);
+                assertArrayEquals(p.l, rd.value());
+
+                // Written again into a pre-sized buffer, from the same slice
+                ByteBuffer buf = ByteBuffer.allocate(Utils.BER.getTlvSize(1, rd.valueLength));
+                Utils.BER.appendTLV(buf, (short) rd.tag, t, rd.valueOffset, rd.valueLength);
+                assertFalse(buf.hasRemaining());
+                ByteArrayOutputStream one = new ByteArrayOutputStream();
+                Utils.BER.appendTLV(one, (short) (int) p.k, p.l);
+                assertArrayEquals(one.toByteArray(), buf.array());
+            }
+            assertFalse(rd.hasNext());
+            assertEquals(t.length, rd.position());
+        }
+    }
+
+    @Test
+    public void nestedAndEmptyTlvs() throws Exception {
+        byte[] t = Utils.HEX.h2b("A10780020102810100" + "0100");
+        Utils.BER.TLVReader rd = new Utils.BER.TLVReader(t).next(false);
+        assertEquals(0xA1, rd.tag);
+        Utils.BER.TLVReader c = rd.children();
+        assertEquals("0102", Utils.HEX.b2H(c.next(false).value()));
+        assertEquals(0x80, c.tag);
+        assertEquals("00", Utils.HEX.b2H(c.next(false).value()));
+        assertFalse(c.hasNext());
+
+        // An empty TLV at the very end: Used to throw, now an empty value, with both decoders
+        rd.next(false);
+        assertEquals(0x01, rd.tag);
+        assertEquals(0, rd.valueLength);
+        assertFalse(rd.hasNext());
+        List<Utils.Pair<Integer, byte[]>> l = Utils.BER.decodeTLVs(t);
+        assertEquals(2, l.size());
+        assertEquals(0, l.get(1).l.length);
+        Utils.Pair<Integer, byte[]> p = Utils.BER.decodeTLV(Utils.HEX.h2b("0100"));
+        assertEquals(1, (int) p.k);
+        assertEquals(0, p.l.length);
+        assertEquals(0, Utils.BER.decodeTLVs(new ByteArrayInputStream(Utils.HEX.h2b("0100"))).get(0).l.length);
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import org.junit.Test;
+
+import javax.ws.rs.core.Response.Status;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The incremental SCP81 admin HTTP parser: Messages must come out the same however the input is split up, and
+ * malformed input must only ever raise an IOException.
+ */
+public class HttpParserTest {
+    private static final int MAX_MESSAGE_LEN = 1 << 20;
+
+    // Pipelined requests: Content-Length, chunked with an extension and a trailer, no body, bare LF line ends, HTTP/1.0
+    private static final byte[] PIPELINE = bytes("\r\n" +
+            "POST /server/result/12?x=1 HTTP/1.1\r\nhost: a\r\nx-admin-script-status: ok\r\n" +
+            "X-ADMIN-FROM: //se-id/eid/1;//aa/bb\r\nDate: Mon, 01 Jan 2020 10:00:00 GMT\r\nContent-Length: 5\r\n\r\n" +
+            "hello" +
+            "POST /server/result/13 HTTP/1.1\r\nTransfer-Encoding: chunked\r\nTE: trailers\r\n\r\n" +
+            "3;ext=1\r\nabc\r\n10\r\n0123456789ABCDEF\r\n0\r\nX-Admin-Resume: true\r\n\r\n" +
+            "GET / HTTP/1.1\r\n\r\n" +
+            "POST /x HTTP/1.1\nTransfer-Encoding: chunked\n\n2\nhi\n0\n\n" +
+            "POST /server HTTP/1.0\r\n\r\n");
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param in
+     * @param rnd - Picks the size of each piece fed to the parser, or null to feed it all at once
+     * @return The requests parsed
+     */
+    private static List<Utils.Http.Request> parse(byte[] in, Random rnd) throws IOException {
+        Utils.Http.Parser<Utils.Http.Request> p = Utils.Http.Parser.forRequests(MAX_MESSAGE_LEN);
+        List<Utils.Http.Request> out = new ArrayList<>();
+        for (int i = 0; i < in.length; ) {
+            int n = rnd == null ? in.length : Math.min(in.length - i, 1 + rnd.nextInt(40));
+            p.feed(in, i, n);
+            i += n;
+            Utils.Http.Request q;
+            while ((q = p.next()) != null)
+                out.add(q);
+        }
+        return out;
+    }
+
+    private static String describe(Utils.Http.Request q) {
+        return q.method + " " + q.uri + " verb=" + q.uriVerb + " args=" + Arrays.toString(q.args) +
+                " v=" + q.version + " hdrs=" + new TreeMap<>(q.headers) +
+                " body=" + (q.body == null ? null : new String(q.body, StandardCharsets.ISO_8859_1)) +
+                " cgi=" + new TreeSet<>(q.cgiParams.keySet());
+    }
+
+    private static void assertRejected(String in) {
+        try {
+            parse(bytes(in), null);
+            fail("Accepted: " + in);
+        } catch (IOException ex) {
+        }
+    }
+
+    @Test
+    public void pipelinedRequests() throws Exception {
+        List<Utils.Http.Request> l = parse(PIPELINE, null);
+        assertEquals(5, l.size());
+        assertEquals("POST /server/result/12 verb=server args=[result, 12] v=1.1 " +
+                "hdrs={Date=Mon, 01 Jan 2020 10:00:00 GMT, Host=a, X-Admin-From=//se-id/eid/1;//aa/bb, " +
+                "X-Admin-Script-Status=ok} body=hello cgi=[x]", describe(l.get(0)));
+        assertEquals("POST /server/result/13 verb=server args=[result, 13] v=1.1 hdrs={X-Admin-Resume=true} " +
+                "body=abc0123456789ABCDEF cgi=[]", describe(l.get(1)));
+        assertEquals("GET / verb= args=[] v=1.1 hdrs={} body=null cgi=[]", describe(l.get(2)));
+        assertEquals("POST /x verb=x args=[] v=1.1 hdrs={} body=hi cgi=[]", describe(l.get(3)));
+        assertEquals("POST /server verb=server args=[] v=1.0 hdrs={} body= cgi=[]", describe(l.get(4)));
+    }
+
+    @Test
+    public void splitInvariance() throws Exception {
+        List<String> ref = new ArrayList<>();
+        for (Utils.Http.Request q : parse(PIPELINE, null))
+            ref.add(describe(q));
+
+        // A byte at a time, then in random pieces
+        Utils.Http.Parser<Utils.Http.Request> p = Utils.Http.Parser.forRequests(MAX_MESSAGE_LEN);
+        List<String> l = new ArrayList<>();
+        for (int i = 0; i < PIPELINE.length; i++) {
+            p.feed(PIPELINE, i, 1);
+            Utils.Http.Request q;
+            while ((q = p.next()) != null)
+                l.add(describe(q));
+        }
+        assertEquals(ref, l);
+        assertFalse(p.hasInput());
+
+        Random rnd = new Random(1);
+        for (int k = 0; k < 2000; k++) {
+            l.clear();
+            for (Utils.Http.Request q : parse(PIPELINE, rnd))
+                l.add(describe(q));
+            assertEquals(ref, l);
+        }
+    }
+
+    @Test
+    public void malformedInputIsRejected() {
+        assertRejected("GARBAGE\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nContent-Length: -1\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nContent-Length: 99999999999\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nzz\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\n2\r\nabXY");
+        assertRejected("POST /a HTTP/1.1\r\nTransfer-Encoding: chunked\r\n\r\nFFFFFFFFF\r\n");
+        assertRejected("POST /a HTTP/1.1\r\nnocolon\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\n folded: x\r\n\r\n");
+        assertRejected("POST /a HTTP/1.1\r\n: novalue\r\n\r\n");
+    }
+
+    @Test
+    public void oversizedInputIsRejected() {
+        assertRejected("POST /a HTTP/1.1\r\nContent-Length: " + (MAX_MESSAGE_LEN + 1) + "\r\n\r\n");
+
+        char[] longLine = new char[20000];
+        Arrays.fill(longLine, 'a');
+        assertRejected("GET /" + new String(longLine));
+
+        StringBuilder flood = new StringBuilder("GET / HTTP/1.1\r\n");
+        for (int i = 0; i < 200; i++)
+            flood.append("h").append(i).append(": v\r\n");
+        assertRejected(flood.toString());
+    }
+
+    @Test
+    public void mutatedInputOnlyRaisesIOException() {
+        Random rnd = new Random(2);
+        byte[] noise = bytes("\r\n:; 0Ff-");
+        for (int k = 0; k < 20000; k++) {
+            byte[] m = PIPELINE.clone();
+            for (int j = 1 + rnd.nextInt(8); j > 0; j--) {
+                int op = rnd.nextInt(3), at = rnd.nextInt(m.length);
+                if (op == 0)
+                    m[at] = (byte) rnd.nextInt(256);
+                else if (op == 1)
+                    m[at] = noise[rnd.nextInt(noise.length)];
+                else {
+                    byte[] n = new byte[m.length - 1];
+                    System.arraycopy(m, 0, n, 0, at);
+                    System.arraycopy(m, at + 1, n, at, n.length - at);
+                    m = n;
+                }
+            }
+            try {
+                parse(m, rnd);
+            } catch (IOException ex) {
+            }
+        }
+    }
+
+    @Test
+    public void responsesRoundTrip() throws Exception {
+        Utils.Http.Parser<Utils.Http.Response> p = Utils.Http.Parser.forResponses(MAX_MESSAGE_LEN);
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+
+        Utils.Http.Response r = new Utils.Http.Response(Status.OK,
+                Collections.singletonMap("X-Admin-Next-URI", "/server/result/1"),
+                "application/vnd.globalplatform.card-content-mgt;version=1.0", bytes("AAA"), false);
+        r.version = 1.1;
+        r.outputMessage(os);
+        byte[] out = os.toByteArray();
+        p.feed(out, 0, out.length);
+        Utils.Http.Response back = p.next();
+        assertEquals(Status.OK, back.status);
+        assertEquals("/server/result/1", back.headers.get("X-Admin-Next-URI"));
+        assertEquals("application/vnd.globalplatform.card-content-mgt;version=1.0", back.headers.get("Content-Type"));
+        assertArrayEquals(bytes("AAA"), back.body);
+        assertFalse(p.hasInput());
+
+        r = new Utils.Http.Response(Status.NO_CONTENT, null, null, null, false);
+        r.version = 1.1;
+        os.reset();
+        r.outputMessage(os);
+        out = os.toByteArray();
+        p.feed(out, 0, out.length);
+        back = p.next();
+        assertEquals(Status.NO_CONTENT, back.status);
+        assertNull(back.body);
+        assertFalse(p.hasInput());
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.common;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Utils.replace(), which patches profile parameters into a profile template: The first match is replaced,
+ * wherever it is, by a value of any length.
+ */
+public class UtilsReplaceTest {
+
+    private static String replace(String haystack, String needle, String replacement) {
+        byte[] r = Utils.replace(Utils.HEX.h2b(haystack), Utils.HEX.h2b(needle), Utils.HEX.h2b(replacement));
+        return r == null ? null : Utils.HEX.b2H(r);
+    }
+
+    @Test
+    public void matchAnywhere() {
+        assertEquals("AABB0304", replace("01020304", "0102", "AABB"));
+        assertEquals("01AABB04", replace("01020304", "0203", "AABB"));
+        assertEquals("0102AABB", replace("01020304", "0304", "AABB"));
+        assertEquals("AABB", replace("01020304", "01020304", "AABB"));
+    }
+
+    @Test
+    public void replacementOfAnotherLength() {
+        assertEquals("01AABBCCDD04", replace("01020304", "0203", "AABBCCDD"));
+        assertEquals("0104", replace("01020304", "0203", ""));
+        assertEquals("0102AABBCCDD", replace("01020304", "0304", "AABBCCDD"));
+        assertEquals("AA0304", replace("01020304", "0102", "AA"));
+    }
+
+    @Test
+    public void onlyTheFirstMatch() {
+        assertEquals("FF0203010203", replace("010203010203", "01", "FF"));
+        // A partial match just before the real one
+        assertEquals("010102AABB", replace("0101020304", "0304", "AABB"));
+        assertEquals("01AABB04", replace("0101020304", "010203", "AABB"));
+    }
+
+    @Test
+    public void noMatch() {
+        assertNull(replace("01020304", "0305", "AABB"));
+        assertNull(replace("01020304", "0405", "AABB")); // Runs past the end
+        assertNull(replace("0102", "010203", "AABB")); // Longer than the haystack
+        assertNull(replace("", "01", "AABB"));
+    }
+}
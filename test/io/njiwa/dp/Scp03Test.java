@@ -0,0 +1,257 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.dp;
+
+import io.njiwa.common.SDCommand;
+import io.njiwa.common.Utils;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Known answers for SCP03 as per GPC Amendment D: Session keys and cryptograms (Sec 6.2.1, 6.2.2), command
+ * encryption and C-MAC (Sec 6.2.5, 6.2.6), and response decryption and R-MAC (Sec 6.2.7), in C-APDU mode.
+ * @details Amendment D gives no numeric vectors, so the card side is worked out here, from the specification, on a
+ * plain AES cipher: AES-CMAC is checked against the RFC 4493 vectors, and the KDF, MAC chaining and counters are
+ * built on it. The recorded values pin the results for the fixed keys and challenges below.
+ */
+public class Scp03Test {
+    private static final byte[] KEY = h2b("404142434445464748494A4B4C4D4E4F"); //!< The static key, for all three
+    private static final byte[] HOST_CHALLENGE = h2b("0102030405060708");
+    private static final byte[] CARD_CHALLENGE = h2b("A1A2A3A4A5A6A7A8");
+    private static final byte[] CONTEXT = h2b("0102030405060708A1A2A3A4A5A6A7A8"); //!< Host, then card challenge
+    private static final int KEY_VERSION = 0x30;
+    private static final int SECURITY_LEVEL = 0x33;
+
+    private byte[] smac, senc, srmac;
+
+    private static byte[] h2b(String s) {
+        return Utils.HEX.h2b(s);
+    }
+
+    private static String hex(byte[] b) {
+        return Utils.HEX.b2H(b);
+    }
+
+    private static byte[] cat(byte[]... l) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (byte[] b : l)
+            os.write(b);
+        return os.toByteArray();
+    }
+
+    private static byte[] aes(int mode, byte[] key, byte[] iv, byte[] in) throws Exception {
+        Cipher c = Cipher.getInstance(iv == null ? "AES/ECB/NoPadding" : "AES/CBC/NoPadding");
+        if (iv == null)
+            c.init(mode, new SecretKeySpec(key, "AES"));
+        else
+            c.init(mode, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+        return c.doFinal(in);
+    }
+
+    private static byte[] shiftLeft(byte[] b) {
+        byte[] out = new byte[16];
+        for (int i = 0; i < 16; i++)
+            out[i] = (byte) ((b[i] << 1) | (i < 15 ? (b[i + 1] & 0xFF) >>> 7 : 0));
+        if ((b[0] & 0x80) != 0)
+            out[15] ^= (byte) 0x87;
+        return out;
+    }
+
+    /**
+     * @brief AES-CMAC as per RFC 4493
+     */
+    private static byte[] cmac(byte[] key, byte[] m) throws Exception {
+        byte[] k1 = shiftLeft(aes(Cipher.ENCRYPT_MODE, key, null, new byte[16])), k2 = shiftLeft(k1);
+        int n = Math.max(1, (m.length + 15) / 16);
+        boolean complete = m.length > 0 && m.length % 16 == 0;
+        byte[] last = Arrays.copyOfRange(m, (n - 1) * 16, n * 16); // Zero filled past the end
+        if (!complete)
+            last[m.length - (n - 1) * 16] = (byte) 0x80;
+        byte[] sub = complete ? k1 : k2;
+        for (int i = 0; i < 16; i++)
+            last[i] ^= sub[i];
+        byte[] x = new byte[16];
+        for (int i = 0; i < n; i++) {
+            byte[] blk = i == n - 1 ? last : Arrays.copyOfRange(m, i * 16, i * 16 + 16);
+            for (int j = 0; j < 16; j++)
+                x[j] ^= blk[j];
+            x = aes(Cipher.ENCRYPT_MODE, key, null, x);
+        }
+        return x;
+    }
+
+    /**
+     * @brief The KDF of Sec 4.1.5 of Amendment D: CMAC in counter mode, the counter between L and the context
+     */
+    private static byte[] kdf(byte[] key, int constant, byte[] context, int bits) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        for (int i = 1; os.size() < bits / 8; i++) {
+            byte[] label = new byte[12];
+            label[11] = (byte) constant;
+            os.write(cmac(key, cat(label, new byte[]{0, (byte) (bits >> 8), (byte) bits, (byte) i}, context)));
+        }
+        return Arrays.copyOf(os.toByteArray(), bits / 8);
+    }
+
+    private static byte[] pad80(byte[] in) {
+        byte[] out = Arrays.copyOf(in, (in.length / 16 + 1) * 16);
+        out[in.length] = (byte) 0x80;
+        return out;
+    }
+
+    private static byte[] counter(int n, boolean response) {
+        byte[] c = new byte[16];
+        c[15] = (byte) n;
+        if (response)
+            c[0] = (byte) 0x80;
+        return c;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        smac = kdf(KEY, 0x06, CONTEXT, 128);
+        senc = kdf(KEY, 0x04, CONTEXT, 128);
+        srmac = kdf(KEY, 0x07, CONTEXT, 128);
+    }
+
+    @Test
+    public void cmacMatchesRfc4493() throws Exception {
+        byte[] k = h2b("2B7E151628AED2A6ABF7158809CF4F3C");
+        byte[] m = h2b("6BC1BEE22E409F96E93D7E117393172AAE2D8A571E03AC9C9EB76FAC45AF8E51" +
+                "30C81C46A35CE411E5FBC1191A0A52EFF69F2445DF4F9B17AD2B417BE66C3710");
+        assertEquals("BB1D6929E95937287FA37D129B756746", hex(cmac(k, new byte[0])));
+        assertEquals("070A16B46B4D4144F79BDD9DD04A287C", hex(cmac(k, Arrays.copyOf(m, 16))));
+        assertEquals("DFA66747DE9AE63030CA32611497C827", hex(cmac(k, Arrays.copyOf(m, 40))));
+        assertEquals("51F0BEBF7E3B9D92FC49741779363CFE", hex(cmac(k, m)));
+    }
+
+    private byte[] cardCryptogram() throws Exception {
+        return kdf(smac, 0x00, CONTEXT, 64);
+    }
+
+    private byte[] initializeUpdateResponse(byte[] cryptogram) throws Exception {
+        return cat(h2b("00112233445566778899"), new byte[]{KEY_VERSION, 0x03, 0x70}, CARD_CHALLENGE, cryptogram,
+                h2b("000001"), h2b("9000"));
+    }
+
+    private Scp03.Session initialised() throws Exception {
+        Scp03.Session s = new Scp03.Session(Scp03.Session.Mode.CAPDU, KEY_VERSION, 0);
+        s.hostChallenge = HOST_CHALLENGE.clone();
+        SDCommand.APDU a = (SDCommand.APDU) s.scp03Command();
+        assertEquals(0x80, a.cla);
+        assertEquals(0x50, a.ins);
+        assertEquals(KEY_VERSION, a.p1);
+        assertArrayEquals(HOST_CHALLENGE, a.data);
+
+        assertNull(s.processResponse(initializeUpdateResponse(cardCryptogram()), (v, id) -> KEY.clone()));
+        assertEquals(Scp03.Session.State.AWAITING_AUTH, s.state);
+        return s;
+    }
+
+    @Test
+    public void sessionKeysAndCryptograms() throws Exception {
+        // The values worked out from the specification, recorded
+        assertEquals("1193D25E820A5D2B104A97B1F46FB413", hex(smac));
+        assertEquals("77AB873F813A0D647EAB50F7380B769B", hex(senc));
+        assertEquals("17F0BD4E1986E45A262D5E22B3086203", hex(srmac));
+
+        Scp03.Session s = initialised();
+        assertArrayEquals(smac, s.smac);
+        assertArrayEquals(senc, s.senc);
+        assertArrayEquals(srmac, s.srmac);
+        assertArrayEquals(kdf(smac, 0x01, CONTEXT, 64), s.hostCryptoGram);
+
+        // A card that does not know the key
+        Scp03.Session bad = new Scp03.Session(Scp03.Session.Mode.CAPDU, KEY_VERSION, 0);
+        bad.hostChallenge = HOST_CHALLENGE.clone();
+        bad.scp03Command();
+        byte[] wrong = cardCryptogram();
+        wrong[0] ^= 1;
+        assertNull(bad.processResponse(initializeUpdateResponse(wrong), (v, id) -> KEY.clone()));
+        assertEquals(Scp03.Session.State.DEAD, bad.state);
+    }
+
+    @Test
+    public void wrappedCommandsAndResponses() throws Exception {
+        Scp03.Session s = initialised();
+
+        // EXTERNAL AUTHENTICATE: MACed only, from a zero chaining value
+        byte[] hostCryptogram = kdf(smac, 0x01, CONTEXT, 64);
+        SDCommand.APDU a = (SDCommand.APDU) s.scp03Command();
+        byte[] chain = cmac(smac, cat(new byte[16], new byte[]{(byte) 0x84, (byte) 0x82, SECURITY_LEVEL, 0x00, 0x10},
+                hostCryptogram));
+        assertEquals(0x84, a.cla);
+        assertEquals(0x82, a.ins);
+        assertArrayEquals(cat(hostCryptogram, Arrays.copyOf(chain, 8)), a.data);
+        s.processResponse(h2b("9000"));
+        assertEquals(Scp03.Session.State.AUTHENTICATED, s.state);
+
+        // Commands: Counter 1, then 2. Data that fills a block gets a whole block of padding.
+        byte[][] data = {h2b("E30F4F07A0000005591010FFFFFFFF8900000D00"), h2b("00112233445566778899AABBCCDDEEFF")};
+        for (int n = 1; n <= data.length; n++) {
+            byte[] icv = aes(Cipher.ENCRYPT_MODE, senc, null, counter(n, false));
+            byte[] enc = aes(Cipher.ENCRYPT_MODE, senc, icv, pad80(data[n - 1]));
+            assertEquals(32, enc.length);
+            chain = cmac(smac, cat(chain, new byte[]{(byte) 0x84, (byte) 0xE2, (byte) 0x90, 0x00,
+                    (byte) (enc.length + 8)}, enc));
+
+            a = (SDCommand.APDU) s.scp03Command(new SDCommand.APDU(0x80, 0xE2, 0x90, 0x00, data[n - 1]));
+            assertEquals(0x84, a.cla);
+            assertArrayEquals(cat(enc, Arrays.copyOf(chain, 8)), a.data);
+            assertArrayEquals(chain, s.macChainingValue);
+
+            // The card answers, under the same counter with its first byte set
+            byte[] plain = h2b("4F10A0000005591010FFFFFFFF89000010" + String.format("%02X", n));
+            byte[] rIcv = aes(Cipher.ENCRYPT_MODE, senc, null, counter(n, true));
+            byte[] rEnc = aes(Cipher.ENCRYPT_MODE, senc, rIcv, pad80(plain));
+            byte[] rMac = Arrays.copyOf(cmac(srmac, cat(chain, rEnc, h2b("9000"))), 8);
+            assertArrayEquals(plain, s.processResponse(cat(rEnc, rMac, h2b("9000"))));
+            assertEquals(Scp03.Session.State.AUTHENTICATED, s.state);
+        }
+
+        // The recorded wrap of the last command, under the values worked out above
+        assertEquals("DE4E24F268DCE9097EC5545137076E3BE043E5A5CB98D4FBF0E47E9C16CF9F795AD8EFEB27D88B4E",
+                hex(a.data));
+
+        // A response with a bad R-MAC ends the session
+        a = (SDCommand.APDU) s.scp03Command(new SDCommand.APDU(0x80, 0xCA, 0x00, 0x66, new byte[0]));
+        assertEquals(8, a.data.length); // Nothing to encrypt, just the C-MAC
+        assertNull(s.processResponse(h2b("00112233445566779000")));
+        assertEquals(Scp03.Session.State.DEAD, s.state);
+    }
+
+    @Test
+    public void failedWrapThrows() throws Exception {
+        Scp03.Session s = initialised();
+        s.scp03Command();
+        s.processResponse(h2b("9000"));
+        s.senc = new byte[5]; // Not an AES key
+        SDCommand.APDU a = new SDCommand.APDU(0x80, 0xE2, 0x90, 0x00, h2b("0102"));
+        try {
+            s.scp03Command(a);
+            fail("Sent a command that could not be encrypted");
+        } catch (Exception ex) {
+        }
+        assertEquals(Scp03.Session.State.DEAD, s.state);
+        assertEquals(0x80, a.cla); // Never goes out in the clear looking wrapped
+        assertArrayEquals(h2b("0102"), a.data);
+    }
+}
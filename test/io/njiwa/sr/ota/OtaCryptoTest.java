@@ -0,0 +1,196 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.ota;
+
+import io.njiwa.common.Utils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Known answers for the SCP80 ciphers (Ota.Crypt) and the RC/CC (Ota.Checksum), which keep their cipher and
+ * CMAC engines from one call to the next.
+ * @details Published vectors pin down the algorithms. crypto-vectors.txt, recorded before the engines were cached and
+ * the JDK CRC32 used, pins down the exact outputs for random keys and data.
+ */
+public class OtaCryptoTest {
+    private static final int[][] MODES_AND_KEY_LENGTHS = {
+            {Ota.Crypt.DES_CBC, 8}, {Ota.Crypt.TRIBLE_DES_CBC2, 16}, {Ota.Crypt.TRIBLE_DES_CBC3, 24},
+            {Ota.Crypt.AES_CBC, 16}, {Ota.Crypt.AES_CBC, 24}
+    };
+    private static final int CASES = 120;
+    private static final int SPI1_RC = 0x01, SPI1_CC = 0x02;
+
+    private static byte[] h2b(String s) {
+        return Utils.HEX.h2b(s);
+    }
+
+    private static String hex(byte[] b) {
+        return Utils.HEX.b2H(b);
+    }
+
+    @Test
+    public void publishedCipherVectors() throws Exception {
+        // FIPS-197 Appendix C.1. A single block, so CBC with a zero IV is the bare cipher
+        assertEquals("69C4E0D86A7B0430D8CDB78070B4C55A", hex(Ota.Crypt.encrypt(
+                h2b("00112233445566778899AABBCCDDEEFF"), h2b("000102030405060708090A0B0C0D0E0F"), Ota.Crypt.AES_CBC)));
+        // The classic DES example. With K1 = K2, 2-key triple DES is single DES
+        assertEquals("85E813540F0AB405", hex(Ota.Crypt.encrypt(h2b("0123456789ABCDEF"), h2b("133457799BBCDFF1"),
+                Ota.Crypt.DES_CBC)));
+        assertEquals("85E813540F0AB405", hex(Ota.Crypt.encrypt(h2b("0123456789ABCDEF"),
+                h2b("133457799BBCDFF1133457799BBCDFF1"), Ota.Crypt.TRIBLE_DES_CBC2)));
+        assertEquals("0123456789ABCDEF", hex(Ota.Crypt.decrypt(h2b("85E813540F0AB405"), h2b("133457799BBCDFF1"),
+                Ota.Crypt.DES_CBC)));
+    }
+
+    @Test
+    public void publishedChecksumVectors() throws Exception {
+        byte[] key = h2b("2B7E151628AED2A6ABF7158809CF4F3C");
+        byte[] m = h2b("6BC1BEE22E409F96E93D7E117393172A");
+        // NIST SP 800-38B D.1 examples 1 and 2, cut to the 8 bytes of an SCP80 CC
+        assertEquals("BB1D6929E9593728", hex(Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, key, m, 0, 0, 0, 0)));
+        assertEquals("070A16B46B4D4144", hex(Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, key, m, 0, 16, 16, 0)));
+        // Over two ranges, skipping what is between them
+        byte[] gap = new byte[m.length + 4];
+        System.arraycopy(m, 0, gap, 0, 5);
+        System.arraycopy(m, 5, gap, 9, 11);
+        assertEquals("070A16B46B4D4144", hex(Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, key, gap, 0, 5, 9, 11)));
+
+        // The CRC-32 check value
+        byte[] digits = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals("CBF43926", hex(Ota.Checksum.get(SPI1_RC, 0, null, digits, 0, digits.length, 9, 0)));
+        assertEquals("CBF43926", hex(Ota.Checksum.get(SPI1_RC, 0, null, digits, 0, 4, 4, 5)));
+        assertEquals(0, Ota.Checksum.get(0, 0, null, digits, 0, 9, 9, 0).length);
+    }
+
+    @Test
+    public void cachedEnginesFollowKeyAndDirectionChanges() throws Exception {
+        byte[] k1 = h2b("000102030405060708090A0B0C0D0E0F"), k2 = h2b("0F0E0D0C0B0A09080706050403020100");
+        byte[] in = h2b("00112233445566778899AABBCCDDEEFF00112233445566778899AABBCCDDEEFF");
+        byte[] e1 = Ota.Crypt.encrypt(in, k1, Ota.Crypt.AES_CBC);
+        byte[] e2 = Ota.Crypt.encrypt(in, k2, Ota.Crypt.AES_CBC);
+        assertFalse(Arrays.equals(e1, e2));
+        assertArrayEquals(e1, Ota.Crypt.encrypt(in, k1, Ota.Crypt.AES_CBC));
+        assertArrayEquals(in, Ota.Crypt.decrypt(e1, k1, Ota.Crypt.AES_CBC));
+        assertArrayEquals(e2, Ota.Crypt.encrypt(in, k2, Ota.Crypt.AES_CBC));
+
+        // A key changed in place, after the call that used it, must not be mistaken for the cached one
+        byte[] k = k1.clone();
+        Ota.Crypt.encrypt(in, k, Ota.Crypt.AES_CBC);
+        System.arraycopy(k2, 0, k, 0, k.length);
+        assertArrayEquals(e2, Ota.Crypt.encrypt(in, k, Ota.Crypt.AES_CBC));
+
+        // A failed call leaves the engine usable
+        try {
+            Ota.Crypt.encrypt(new byte[7], k1, Ota.Crypt.AES_CBC);
+            fail("Accepted a partial block");
+        } catch (Exception ex) {
+        }
+        assertArrayEquals(e1, Ota.Crypt.encrypt(in, k1, Ota.Crypt.AES_CBC));
+
+        // Encrypting in place, part of a buffer
+        byte[] buf = new byte[in.length + 6];
+        System.arraycopy(in, 0, buf, 3, in.length);
+        Ota.Crypt.encrypt(buf, 3, in.length, k1, Ota.Crypt.AES_CBC);
+        assertArrayEquals(e1, Arrays.copyOfRange(buf, 3, 3 + in.length));
+
+        byte[] cc1 = Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, k1, in, 0, 20, 20, 12);
+        byte[] cc2 = Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, k2, in, 0, 20, 20, 12);
+        assertFalse(Arrays.equals(cc1, cc2));
+        assertArrayEquals(cc1, Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, k1, in, 0, 32, 32, 0));
+    }
+
+    @Test
+    public void clearedCacheAndConcurrentUse() throws Exception {
+        byte[] k1 = h2b("000102030405060708090A0B0C0D0E0F"), k2 = h2b("0F0E0D0C0B0A09080706050403020100");
+        byte[] in = h2b("00112233445566778899AABBCCDDEEFF00112233445566778899AABBCCDDEEFF");
+        byte[] e1 = Ota.Crypt.encrypt(in, k1, Ota.Crypt.AES_CBC), e2 = Ota.Crypt.encrypt(in, k2, Ota.Crypt.AES_CBC);
+        byte[] cc1 = Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, k1, in, 0, 32, 32, 0);
+
+        // Wiping the cached keys only costs a re-initialisation
+        Ota.clearCryptoCache();
+        assertArrayEquals(e1, Ota.Crypt.encrypt(in, k1, Ota.Crypt.AES_CBC));
+        assertArrayEquals(cc1, Ota.Checksum.get(SPI1_CC, Ota.Crypt.AES_CBC, k1, in, 0, 32, 32, 0));
+
+        // Threads share the pooled engines, but never one at the same time
+        ExecutorService ex = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Boolean>> l = new ArrayList<>();
+            for (int t = 0; t < 16; t++) {
+                boolean first = t % 2 == 0;
+                l.add(ex.submit(() -> {
+                    for (int i = 0; i < 500; i++)
+                        if (!Arrays.equals(first ? e1 : e2, Ota.Crypt.encrypt(in, first ? k1 : k2,
+                                Ota.Crypt.AES_CBC)))
+                            return false;
+                    return true;
+                }));
+            }
+            for (Future<Boolean> f : l)
+                assertTrue(f.get());
+        } finally {
+            ex.shutdownNow();
+        }
+    }
+
+    @Test
+    public void matchesRecordedVectors() throws Exception {
+        List<String> expected = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                OtaCryptoTest.class.getResourceAsStream("crypto-vectors.txt"), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                expected.add(line);
+        }
+
+        // Per case: the ciphertext, the CC and the RC
+        Random r = new Random(42);
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < CASES; i++) {
+            int mode = MODES_AND_KEY_LENGTHS[i % MODES_AND_KEY_LENGTHS.length][0];
+            byte[] key = new byte[MODES_AND_KEY_LENGTHS[i % MODES_AND_KEY_LENGTHS.length][1]];
+            r.nextBytes(key);
+            byte[] in = new byte[16 * (1 + r.nextInt(4))];
+            r.nextBytes(in);
+            byte[] enc = Ota.Crypt.encrypt(in, key, mode);
+            assertArrayEquals(in, Ota.Crypt.decrypt(enc, key, mode));
+            out.add(hex(enc));
+
+            byte[] header = new byte[r.nextInt(16)], counter = new byte[5], data = new byte[r.nextInt(300)];
+            r.nextBytes(header);
+            r.nextBytes(counter);
+            r.nextBytes(data);
+            Byte status = r.nextBoolean() ? (byte) r.nextInt(256) : null;
+            // (3)DES needs whole blocks
+            int pcntr = mode == Ota.Crypt.AES_CBC ? 0 :
+                    (8 - (header.length + counter.length + 1 + (status != null ? 1 : 0) + data.length) % 8) % 8;
+            byte[] padded = Arrays.copyOf(data, data.length + pcntr);
+            out.add(hex(Ota.Checksum.get(SPI1_CC, 0x10 | mode, key, header, counter, pcntr, status, padded)));
+            out.add(hex(Ota.Checksum.get(SPI1_RC, 0, key, header, counter, 0, status, data)));
+        }
+        assertEquals(expected.size(), out.size());
+        for (int i = 0; i < out.size(); i++)
+            assertEquals("Line " + (i + 1), expected.get(i), out.get(i));
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.ota;
+
+import io.njiwa.common.Utils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * @brief Golden vectors for SCP80 packet assembly: createSCP80Pkg() and mkOTAPkg() must produce, byte for byte, what
+ * they produced before packets were assembled in a single pre-sized buffer.
+ * @details The inputs are generated from fixed seeds, covering all SPI1/SPI2 bits, the DES, 3DES, AES and CRC
+ * modes, odd key, counter and data lengths (some rejected), with and without a CPI, and all script chaining types.
+ * The expected outputs, one per line, were recorded from the stream-based assembly. A case that threw is
+ * recorded as EXC.
+ */
+public class Scp80PackagingTest {
+    private static final int PKG_CASES = 600, OTA_PKG_CASES = 150;
+
+    private static String hex(byte[] b) {
+        return Utils.HEX.b2H(b);
+    }
+
+    private static List<String> expected(String name) throws Exception {
+        List<String> l = new ArrayList<>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(
+                Scp80PackagingTest.class.getResourceAsStream(name), StandardCharsets.US_ASCII))) {
+            String line;
+            while ((line = in.readLine()) != null)
+                l.add(line);
+        }
+        return l;
+    }
+
+    private static void assertVectors(List<String> expected, List<String> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++)
+            assertEquals("Case " + i, expected.get(i), actual.get(i));
+    }
+
+    @Test
+    public void createSCP80PkgMatchesGoldenVectors() throws Exception {
+        Random r = new Random(7);
+        int[] modes = {0, 1, 2, 5, 9, 3}; // CRC/DES modes, AES, and one reserved
+        int[] keyLens = {8, 16, 24};
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < PKG_CASES; i++) {
+            int spi1 = r.nextInt(256);
+            int kicMode = modes[r.nextInt(modes.length)], kidMode = modes[r.nextInt(modes.length)];
+            byte[] kic = new byte[kicMode == 2 ? 16 : keyLens[r.nextInt(keyLens.length)]];
+            byte[] kid = new byte[kidMode == 2 ? (r.nextBoolean() ? 16 : 24) : keyLens[r.nextInt(keyLens.length)]];
+            r.nextBytes(kic);
+            r.nextBytes(kid);
+            byte[] in = new byte[r.nextInt(i % 50 == 0 ? 300 : 80)];
+            r.nextBytes(in);
+            byte[] counter = new byte[i % 97 == 3 ? 4 : 5];
+            r.nextBytes(counter);
+            byte[] tar = new byte[3];
+            r.nextBytes(tar);
+            int cpi = r.nextInt(3) == 0 ? -1 : 0x02 + r.nextInt(0x70);
+            int spi2 = r.nextInt(256);
+            int kicByte = (r.nextInt(16) << 4) | kicMode, kidByte = (r.nextInt(16) << 4) | kidMode;
+            try {
+                out.add(hex(Ota.createSCP80Pkg(in, cpi, counter, kicByte, kidByte, spi1, spi2, kic, kid, tar)));
+            } catch (Exception ex) {
+                out.add("EXC");
+            }
+        }
+        assertVectors(expected("scp80-pkg-vectors.txt"), out);
+    }
+
+    @Test
+    public void mkOTAPkgMatchesGoldenVectors() throws Exception {
+        Random r = new Random(11);
+        List<String> out = new ArrayList<>();
+        for (int i = 0; i < OTA_PKG_CASES; i++) {
+            List<byte[]> l = new ArrayList<>();
+            for (int j = r.nextInt(8); j > 0; j--) {
+                byte[] apdu = new byte[2 + r.nextInt(i % 20 == 0 ? 300 : 40)];
+                r.nextBytes(apdu);
+                apdu[0] = 0x22;
+                l.add(apdu);
+            }
+            Ota.Params p = new Ota.Params();
+            p.spi1 = r.nextInt(256);
+            p.spi2 = r.nextInt(256);
+            p.forcedSpi1 = r.nextBoolean();
+            p.allowChaining = r.nextBoolean();
+            int limit = 20 + r.nextInt(400);
+            Ota.ScriptChaining chaining = Ota.ScriptChaining.values()[r.nextInt(Ota.ScriptChaining.values().length)];
+            int start = l.isEmpty() ? 0 : r.nextInt(l.size() + 1);
+            try {
+                Utils.Pair<byte[], Integer> res = Ota.mkOTAPkg(p, l, start, sz -> sz <= limit, chaining);
+                assertNotNull(res);
+                out.add(hex(res.k) + " " + res.l + " " + p.numApdus + " " + p.spi1 + " " + p.forceDLR + " " +
+                        p.allowChaining);
+            } catch (Exception ex) {
+                out.add("EXC");
+            }
+        }
+        assertVectors(expected("ota-pkg-vectors.txt"), out);
+    }
+}
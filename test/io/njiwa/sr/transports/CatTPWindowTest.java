@@ -0,0 +1,283 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.DatagramChannel;
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The CAT_TP send side under loss: The window bounds the PDUs in flight, ACKs (duplicate or not) release PDUs
+ * and move the window, EACKs release PDUs and resend the ones missing below them once, and the RTO follows the
+ * measured round trip.
+ * @details The connection classes are private to BipCatTP, so they are driven through reflection. A UDP socket stands
+ * in for the card and collects what the connection sends. Losses are simulated by acknowledging around them.
+ */
+public class CatTPWindowTest {
+    private static final String CAT_TP = "io.njiwa.sr.transports.BipCatTP$CatTP";
+    private static final int MAX_PDU = 60;
+    private static final int HEADER_LEN = 0x12;
+    private static final int SEG_PDU = 1 << 2;
+
+    private final Class<?> catTP, connClass, pktClass, timersClass;
+    private DatagramChannel server;
+    private DatagramSocket card;
+    private Object conn;
+
+    public CatTPWindowTest() throws Exception {
+        catTP = Class.forName(CAT_TP);
+        connClass = Class.forName(CAT_TP + "$Connection");
+        pktClass = Class.forName(CAT_TP + "$Packet");
+        timersClass = Class.forName(CAT_TP + "$Timers");
+    }
+
+    private static Field field(Class<?> c, String name) throws Exception {
+        Field f = c.getDeclaredField(name);
+        f.setAccessible(true);
+        return f;
+    }
+
+    private Object get(String name) throws Exception {
+        return field(connClass, name).get(conn);
+    }
+
+    private int getInt(String name) throws Exception {
+        return field(connClass, name).getInt(conn);
+    }
+
+    private void set(String name, Object value) throws Exception {
+        field(connClass, name).set(conn, value);
+    }
+
+    private Object call(String name, Class<?>[] types, Object... args) throws Exception {
+        Method m = connClass.getDeclaredMethod(name, types);
+        m.setAccessible(true);
+        return m.invoke(conn, args);
+    }
+
+    private void pump() throws Exception {
+        call("sendPacket", new Class<?>[]{pktClass}, (Object) null);
+    }
+
+    private void ack(int ackNumber, int winSize) throws Exception {
+        call("acknowledge", new Class<?>[]{int.class, int.class}, ackNumber, winSize);
+    }
+
+    private void eack(int... seqNums) throws Exception {
+        call("selectiveAcknowledge", new Class<?>[]{int[].class}, (Object) seqNums);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Set<Integer> unacked() throws Exception {
+        return new TreeSet<>(((Map<Integer, ?>) get("unacked")).keySet());
+    }
+
+    private long millis(String constant) throws Exception {
+        return field(catTP, constant).getInt(null) * 1000L;
+    }
+
+    /**
+     * @return The PDUs the card got, as {sequence number, data length, descriptor}, until nothing more arrives
+     */
+    private List<int[]> received() throws Exception {
+        List<int[]> l = new ArrayList<>();
+        Method parse = pktClass.getDeclaredMethod("parse", byte[].class);
+        parse.setAccessible(true);
+        byte[] buf = new byte[2048];
+        while (true) {
+            DatagramPacket p = new DatagramPacket(buf, buf.length);
+            try {
+                card.receive(p);
+            } catch (SocketTimeoutException ex) {
+                return l;
+            }
+            Object pkt = parse.invoke(null, (Object) Arrays.copyOf(p.getData(), p.getLength()));
+            l.add(new int[]{field(pktClass, "sequenceNumber").getInt(pkt), field(pktClass, "dataLen").getInt(pkt),
+                    field(pktClass, "descriptor").getInt(pkt)});
+        }
+    }
+
+    private List<Integer> receivedSeqs() throws Exception {
+        List<Integer> l = new ArrayList<>();
+        for (int[] p : received())
+            l.add(p[0]);
+        return l;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        server = DatagramChannel.open().bind(new InetSocketAddress(lo, 0));
+        field(catTP, "channels").set(null, new DatagramChannel[]{server});
+        card = new DatagramSocket(0, lo);
+        card.setSoTimeout(200);
+
+        Constructor<?> cons = connClass.getDeclaredConstructor(InetAddress.class, int.class, byte[].class, int.class,
+                int.class, int.class, int.class, int.class);
+        cons.setAccessible(true);
+        conn = cons.newInstance(lo, card.getLocalPort(), new byte[]{1, 2, 3}, 100, MAX_PDU, 1024, 9000, 9001);
+        set("snd_una_pdu_seq_nb", 1);
+        set("snd_nxt_seq_nb", 1);
+        set("rto", 60000L); // No retransmit timers fire during a test
+        // More than the PDUs sent in any test, so the SDU is never finished and nothing goes to the upper layer
+        byte[] sdu = new byte[5000];
+        new Random(1).nextBytes(sdu);
+        @SuppressWarnings("unchecked")
+        Queue<Utils.Pair<ByteArrayInputStream, Long>> q = (Queue<Utils.Pair<ByteArrayInputStream, Long>>)
+                get("outgoingSDUs");
+        q.add(new Utils.Pair<>(new ByteArrayInputStream(sdu), 1L));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Method m = timersClass.getDeclaredMethod("cancelAll", connClass);
+        m.setAccessible(true);
+        m.invoke(null, conn);
+        field(catTP, "channels").set(null, null);
+        server.close();
+        card.close();
+    }
+
+    @Test
+    public void windowBoundsPdusInFlight() throws Exception {
+        set("snd_win_size", 3);
+        pump();
+        List<int[]> l = received();
+        assertEquals(3, l.size());
+        for (int i = 0; i < l.size(); i++) {
+            assertEquals(i + 1, l.get(i)[0]);
+            assertEquals(MAX_PDU - HEADER_LEN, l.get(i)[1]); // Segments fill the card's maximum PDU
+            assertTrue((l.get(i)[2] & SEG_PDU) != 0);
+        }
+        assertEquals(new TreeSet<>(Arrays.asList(1, 2, 3)), unacked());
+
+        ack(1, 3);
+        pump();
+        assertEquals(Collections.singletonList(4), receivedSeqs());
+
+        // A duplicate ACK still moves the window
+        int sduMax = getInt("snd_sdu_size_max");
+        ack(1, 5);
+        assertEquals(5, getInt("snd_win_size"));
+        assertEquals(sduMax, getInt("snd_sdu_size_max"));
+        pump();
+        assertEquals(Arrays.asList(5, 6), receivedSeqs());
+
+        // A closed window still lets one PDU through
+        ack(6, 0);
+        assertEquals(1, getInt("snd_win_size"));
+        assertTrue(unacked().isEmpty());
+        pump();
+        assertEquals(Collections.singletonList(7), receivedSeqs());
+        pump();
+        assertTrue(received().isEmpty());
+    }
+
+    @Test
+    public void eackResendsMissingPdusOnce() throws Exception {
+        set("snd_win_size", 4);
+        pump();
+        assertEquals(Arrays.asList(1, 2, 3, 4), receivedSeqs());
+
+        // PDU 2 is lost: The card has 1 in sequence, and 3 and 4 out of sequence
+        ack(1, 4);
+        eack(3, 4);
+        assertEquals(Collections.singletonList(2), receivedSeqs());
+        assertEquals(Collections.singleton(2), unacked());
+
+        // The same EACK again, and one outside the window, resend nothing
+        eack(3, 4);
+        eack(0, 99);
+        assertTrue(received().isEmpty());
+        assertEquals(Collections.singleton(2), unacked());
+
+        // The resend arrives: Everything is acknowledged and the window opens again
+        ack(4, 4);
+        assertTrue(unacked().isEmpty());
+        assertEquals(5, getInt("snd_una_pdu_seq_nb"));
+        pump();
+        assertEquals(Arrays.asList(5, 6, 7, 8), receivedSeqs());
+    }
+
+    @Test
+    public void eackAfterSeveralLosses() throws Exception {
+        set("snd_win_size", 6);
+        pump();
+        assertEquals(Arrays.asList(1, 2, 3, 4, 5, 6), receivedSeqs());
+
+        // 1 and 3 lost. Then 4 is lost too, and 6 arrives later.
+        eack(2);
+        assertEquals(Collections.singletonList(1), receivedSeqs());
+        eack(5);
+        assertEquals(Arrays.asList(3, 4), receivedSeqs());
+        eack(6);
+        assertTrue(received().isEmpty());
+        assertEquals(new TreeSet<>(Arrays.asList(1, 3, 4)), unacked());
+
+        ack(1, 6);
+        assertEquals(new TreeSet<>(Arrays.asList(3, 4)), unacked());
+        ack(6, 6);
+        assertTrue(unacked().isEmpty());
+        pump();
+        assertEquals(Arrays.asList(7, 8, 9, 10, 11, 12), receivedSeqs());
+    }
+
+    @Test
+    public void rtoFollowsMeasuredRoundTrip() throws Exception {
+        set("rto", millis("CAT_TP_INITIAL_RTO"));
+        set("snd_win_size", 1);
+        pump();
+        assertEquals(1, received().size());
+        Thread.sleep(30);
+        ack(1, 3);
+        long srtt = (Long) get("srtt");
+        assertTrue("SRTT " + srtt, srtt >= 30 && srtt < 60000);
+        // A short round trip: The RTO drops to the minimum, in milliseconds
+        assertEquals(millis("CAT_TP_DEFAULT_MIN_RTT"), get("rto"));
+
+        // Karn's rule: PDU 2 is resent, so its acknowledgement says nothing about the round trip
+        pump();
+        assertEquals(Arrays.asList(2, 3, 4), receivedSeqs());
+        eack(3);
+        assertEquals(Collections.singletonList(2), receivedSeqs());
+        srtt = (Long) get("srtt");
+        long rttvar = (Long) get("rttvar");
+        Thread.sleep(100);
+        ack(2, 3);
+        assertEquals(srtt, get("srtt"));
+        assertEquals(rttvar, get("rttvar"));
+
+        // Timeouts double the RTO, up to the maximum
+        set("rto", 5000L);
+        call("backoff", new Class<?>[0]);
+        assertEquals(10000L, get("rto"));
+        for (int i = 0; i < 5; i++)
+            call("backoff", new Class<?>[0]);
+        assertEquals(millis("CAT_TP_DEFAULT_MAX_RTT"), get("rto"));
+    }
+}
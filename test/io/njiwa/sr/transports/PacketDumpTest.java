@@ -0,0 +1,58 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.ServerSettings;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.logging.Level;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief Packet dump sampling: With packet_dump_sampling = N, one in N packets of each eUICC is dumped, whatever the
+ * other eUICCs do.
+ */
+public class PacketDumpTest {
+    private static final int N = 3;
+
+    @After
+    public void tearDown() throws Exception {
+        ServerSettings.updateProp("packet_dump_sampling", "1");
+    }
+
+    private static int dumped(Object key, int packets) {
+        int n = 0;
+        for (int i = 0; i < packets; i++)
+            if (Transport.PacketDump.wanted(Level.SEVERE, key))
+                n++;
+        return n;
+    }
+
+    @Test
+    public void oneInNPerEuicc() throws Exception {
+        ServerSettings.updateProp("packet_dump_sampling", Integer.toString(N));
+        // "Aa" and "BB" have the same hash code: Each still gets its own count
+        assertEquals("Aa".hashCode(), "BB".hashCode());
+        for (int round = 0; round < 4; round++) {
+            assertEquals(1, dumped("Aa", N));
+            assertEquals(1, dumped("BB", N));
+            assertEquals(2, dumped("+254700000001", 2 * N));
+        }
+
+        ServerSettings.updateProp("packet_dump_sampling", "1");
+        assertEquals(5, dumped("Aa", 5));
+        assertFalse(Transport.PacketDump.wanted(Level.FINEST, "Aa")); // Not logged at that level anyway
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.PersistenceUtility;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.transaction.RollbackException;
+import javax.transaction.UserTransaction;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The short transactions of a RAM over HTTP admin session: A commit that fails, as it does when another thread
+ * or node updated the same versioned SmSrTransaction in the meantime, must be noticed and the step run again.
+ * @details PersistenceUtility runs against a stand-in JTA transaction, whose commit fails as often as a test asks.
+ */
+public class RamHttpTransactionTest {
+    private static final int MAX_ATTEMPTS = 3;
+
+    private PersistenceUtility po;
+    private int commitFailures; //!< How many of the coming commits fail
+    private final List<String> calls = new ArrayList<>(); //!< What the transaction was asked to do, in order
+
+    @SuppressWarnings("unchecked")
+    private static <T> T stub(Class<T> c, InvocationHandler h) {
+        return (T) Proxy.newProxyInstance(c.getClassLoader(), new Class<?>[]{c}, h);
+    }
+
+    private static void set(Object o, String name, Object value) throws Exception {
+        Field f = o.getClass().getDeclaredField(name);
+        f.setAccessible(true);
+        f.set(o, value);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        EntityManager em = stub(EntityManager.class, (p, m, a) -> null);
+        EntityManagerFactory factory = stub(EntityManagerFactory.class, (p, m, a) ->
+                m.getName().equals("createEntityManager") ? em : null);
+        UserTransaction tx = stub(UserTransaction.class, (p, m, a) -> {
+            calls.add(m.getName());
+            if (m.getName().equals("commit") && commitFailures > 0) {
+                commitFailures--;
+                throw new RollbackException("Row was updated or deleted by another transaction");
+            }
+            return null;
+        });
+        po = new PersistenceUtility();
+        set(po, "factory", factory);
+        set(po, "transaction", tx);
+    }
+
+    @Test
+    public void committedFirstTime() {
+        int[] runs = {0};
+        assertEquals("done", RamHttp.doShortTransaction(po, (xpo, em) -> {
+            runs[0]++;
+            return "done";
+        }));
+        assertEquals(1, runs[0]);
+        assertEquals(Arrays.asList("begin", "commit"), calls);
+    }
+
+    @Test
+    public void failedCommitIsRetriedOnFreshData() {
+        commitFailures = MAX_ATTEMPTS - 1;
+        int[] runs = {0};
+        // Each run sees what the last one left, so the result must come from the run whose commit went through
+        assertEquals(Integer.valueOf(MAX_ATTEMPTS), RamHttp.doShortTransaction(po, (xpo, em) -> ++runs[0]));
+        assertEquals(MAX_ATTEMPTS, runs[0]);
+        assertEquals(Arrays.asList("begin", "commit", "rollback", "begin", "commit", "rollback", "begin", "commit"),
+                calls);
+    }
+
+    @Test
+    public void givesUpAfterMaxAttempts() {
+        commitFailures = MAX_ATTEMPTS;
+        int[] runs = {0};
+        // The runner's result is not returned when its changes did not make it to the database
+        assertNull(RamHttp.doShortTransaction(po, (xpo, em) -> ++runs[0]));
+        assertEquals(MAX_ATTEMPTS, runs[0]);
+        assertEquals(0, commitFailures);
+    }
+
+    @Test
+    public void failedRunIsRolledBackAndRetried() {
+        int[] runs = {0};
+        assertEquals("ok", RamHttp.doShortTransaction(po, (xpo, em) -> {
+            if (++runs[0] == 1)
+                throw new IllegalStateException("Lost a race");
+            return "ok";
+        }));
+        assertEquals(2, runs[0]);
+        assertEquals(Arrays.asList("begin", "rollback", "begin", "commit"), calls);
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.ServerSettings;
+import io.njiwa.common.Utils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief The SMPP client: The PDU codec, submit_sm encoding and receipt parsing, and the submit/response path against
+ * the in-process simulator and against an SMSC that does not answer.
+ * @details No delivery reports are requested on the send path, so nothing goes to the database.
+ */
+public class SmppTest {
+    private static final String MSISDN = "+254700000001";
+    private static final long WAIT = 5000; //!< Milliseconds to wait for a bind or a response
+
+    private ExecutorService executor;
+    private Smpp.Simulator simulator;
+    private ServerSocket smsc;
+
+    @Before
+    public void setUp() throws Exception {
+        executor = Executors.newSingleThreadExecutor();
+        ServerSettings.updateProp("smpp_simulator_port", "0");
+        ServerSettings.updateProp("smpp_source_address", "NJIWA");
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Smpp.stop();
+        if (simulator != null)
+            simulator.stop();
+        if (smsc != null)
+            smsc.close();
+        executor.shutdownNow();
+    }
+
+    private static int freePort() throws Exception {
+        try (ServerSocket s = new ServerSocket(0)) {
+            return s.getLocalPort();
+        }
+    }
+
+    private void startBind(int port, int window) throws Exception {
+        ServerSettings.updateProp("smpp_window_size", Integer.toString(window));
+        ServerSettings.updateProp("smpp_binds", "127.0.0.1:" + port + ":njiwa:secret");
+        Smpp.start(null, executor);
+    }
+
+    private static SmsThrottle.Result send(byte[] text) {
+        return Smpp.sendSms(MSISDN, ByteBuffer.wrap(text), null, 0x7F, 0xF6, Transport.DLR_NONE, 1, "test", 1, 0);
+    }
+
+    /**
+     * @return The first result other than Failed, which is what a send gets until the session is bound
+     */
+    private static SmsThrottle.Result sendWhenBound(byte[] text) throws Exception {
+        long end = System.currentTimeMillis() + WAIT;
+        SmsThrottle.Result res;
+        while ((res = send(text)) == SmsThrottle.Result.Failed && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        return res;
+    }
+
+    private static Smpp.Pdu roundTrip(Smpp.Pdu pdu) throws Exception {
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        pdu.write(new DataOutputStream(os));
+        byte[] b = os.toByteArray();
+        assertEquals(16 + pdu.body.length, b.length);
+        assertEquals(b.length, ByteBuffer.wrap(b).getInt());
+        return Smpp.Pdu.read(new DataInputStream(new ByteArrayInputStream(b)));
+    }
+
+    @Test
+    public void pduRoundTrip() throws Exception {
+        Smpp.Pdu p = roundTrip(new Smpp.Pdu(Smpp.SUBMIT_SM_RESP, Smpp.ESME_RTHROTTLED, 0x7FFFFFFF,
+                "ABC\0".getBytes(StandardCharsets.ISO_8859_1)));
+        assertEquals(Smpp.SUBMIT_SM_RESP, p.commandId);
+        assertEquals(Smpp.ESME_RTHROTTLED, p.status);
+        assertEquals(0x7FFFFFFF, p.seq);
+        assertEquals("ABC", new Smpp.BodyReader(p.body).cString());
+        assertEquals(0, roundTrip(new Smpp.Pdu(Smpp.ENQUIRE_LINK, 0, 1, null)).body.length);
+
+        // A command length that is too short, or too long, is refused before anything is allocated
+        for (int len : new int[]{15, 0, -1, 64 * 1024 + 1})
+            try {
+                ByteBuffer b = ByteBuffer.allocate(16).putInt(len).putInt(Smpp.ENQUIRE_LINK);
+                Smpp.Pdu.read(new DataInputStream(new ByteArrayInputStream(b.array())));
+                fail("Accepted command length " + len);
+            } catch (IOException ex) {
+            }
+    }
+
+    @Test
+    public void submitSmEncoding() throws Exception {
+        byte[] udh = Utils.HEX.h2b("027000"), text = new byte[100];
+        Arrays.fill(text, (byte) 0xA5);
+        Smpp.ShortMessage m = new Smpp.ShortMessage(Smpp.makeSubmitSm(MSISDN, ByteBuffer.wrap(text),
+                ByteBuffer.wrap(udh), 0x7F, 0xF6, Transport.DLR_DELIVERED_TO_PHONE));
+        assertEquals("NJIWA", m.source);
+        assertEquals(MSISDN.substring(1), m.destination);
+        assertEquals(0x40, m.esmClass); // UDHI
+        assertEquals(0x7F, m.pid);
+        assertEquals(0xF6, m.dcs);
+        assertEquals(1, m.registeredDelivery);
+        assertEquals(Utils.HEX.b2H(udh) + Utils.HEX.b2H(text), Utils.HEX.b2H(m.sm));
+        assertTrue(m.tlvs.isEmpty());
+
+        // Too long for short_message: It goes in message_payload
+        text = new byte[300];
+        new Random(4).nextBytes(text);
+        m = new Smpp.ShortMessage(Smpp.makeSubmitSm(MSISDN, ByteBuffer.wrap(text), null, 0, 0x04,
+                Transport.DLR_DELIVERED_TO_SMSC));
+        assertEquals(0, m.esmClass);
+        assertEquals(0, m.registeredDelivery);
+        assertArrayEquals(text, m.sm);
+        assertArrayEquals(text, m.tlvs.get(Smpp.TLV_MESSAGE_PAYLOAD));
+
+        // Default alphabet text is translated to GSM 03.38
+        m = new Smpp.ShortMessage(Smpp.makeSubmitSm(MSISDN, ByteBuffer.wrap("@a".getBytes(StandardCharsets.UTF_8)),
+                null, 0, 0x00, 0));
+        assertEquals("0061", Utils.HEX.b2H(m.sm));
+    }
+
+    @Test
+    public void receiptParsing() throws Exception {
+        byte[] body = Smpp.makeSubmitSm(MSISDN, ByteBuffer.wrap(("id:1F2E sub:001 dlvrd:000 submit date:2001011200 " +
+                "done date:2001011201 stat:UNDELIV err:001 text:").getBytes(StandardCharsets.ISO_8859_1)), null, 0,
+                0x04, 0);
+        Utils.Pair<String, Integer> r = Smpp.parseReceipt(new Smpp.ShortMessage(body));
+        assertEquals("1F2E", r.k);
+        assertEquals(Smpp.STATE_UNDELIVERABLE, (int) r.l);
+
+        // The TLVs, if there, win over the text
+        ByteArrayOutputStream os = new ByteArrayOutputStream();
+        DataOutputStream ds = new DataOutputStream(os);
+        ds.write(body);
+        ds.writeShort(Smpp.TLV_RECEIPTED_MESSAGE_ID);
+        ds.writeShort(3);
+        ds.write("XY\0".getBytes(StandardCharsets.ISO_8859_1));
+        ds.writeShort(Smpp.TLV_MESSAGE_STATE);
+        ds.writeShort(1);
+        ds.writeByte(Smpp.STATE_DELIVERED);
+        r = Smpp.parseReceipt(new Smpp.ShortMessage(os.toByteArray()));
+        assertEquals("XY", r.k);
+        assertEquals(Smpp.STATE_DELIVERED, (int) r.l);
+    }
+
+    @Test
+    public void submitAgainstSimulator() throws Exception {
+        int port = freePort();
+        simulator = new Smpp.Simulator(port);
+        simulator.start();
+        startBind(port, 10);
+        assertTrue(Smpp.isActive());
+
+        byte[] text = "hello".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(SmsThrottle.Result.Sent, sendWhenBound(text));
+        for (int i = 0; i < 4; i++)
+            assertEquals(SmsThrottle.Result.Sent, send(text));
+        long end = System.currentTimeMillis() + WAIT;
+        while (simulator.submitCount() < 5 && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        assertEquals(5, simulator.submitCount());
+
+        // All acknowledged, so the whole window is free again
+        for (int i = 0; i < 10; i++)
+            assertEquals(SmsThrottle.Result.Sent, sendWhenFree(text));
+    }
+
+    private static SmsThrottle.Result sendWhenFree(byte[] text) throws Exception {
+        long end = System.currentTimeMillis() + WAIT;
+        SmsThrottle.Result res;
+        while ((res = send(text)) == SmsThrottle.Result.Throttled && System.currentTimeMillis() < end)
+            Thread.sleep(20);
+        return res;
+    }
+
+    @Test
+    public void fullWindowIsThrottledWithoutWaiting() throws Exception {
+        // An SMSC that binds, then only answers submit_sm when told to
+        smsc = new ServerSocket(0);
+        BlockingQueue<Smpp.Pdu> submits = new LinkedBlockingQueue<>();
+        DataOutputStream[] out = new DataOutputStream[1];
+        Thread t = new Thread(() -> {
+            try (Socket s = smsc.accept()) {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                synchronized (out) {
+                    out[0] = new DataOutputStream(new BufferedOutputStream(s.getOutputStream()));
+                }
+                Smpp.Pdu bind = Smpp.Pdu.read(in);
+                new Smpp.Pdu(Smpp.BIND_TRANSCEIVER_RESP, Smpp.ESME_ROK, bind.seq, "smsc\0".getBytes(
+                        StandardCharsets.ISO_8859_1)).write(out[0]);
+                while (true) {
+                    Smpp.Pdu p = Smpp.Pdu.read(in);
+                    if (p.commandId == Smpp.SUBMIT_SM)
+                        submits.add(p);
+                }
+            } catch (Exception ex) {
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+        startBind(smsc.getLocalPort(), 2);
+
+        byte[] text = "hello".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(SmsThrottle.Result.Sent, sendWhenBound(text));
+        assertEquals(SmsThrottle.Result.Sent, send(text));
+        long start = System.currentTimeMillis();
+        assertEquals(SmsThrottle.Result.Throttled, send(text));
+        assertEquals(SmsThrottle.Result.Throttled, send(text));
+        assertTrue(System.currentTimeMillis() - start < 1000);
+
+        // Answering one submit_sm frees one slot
+        Smpp.Pdu p = submits.poll(WAIT, TimeUnit.MILLISECONDS);
+        assertNotNull(p);
+        synchronized (out) {
+            new Smpp.Pdu(Smpp.SUBMIT_SM_RESP, Smpp.ESME_ROK, p.seq, "1\0".getBytes(StandardCharsets.ISO_8859_1))
+                    .write(out[0]);
+        }
+        assertEquals(SmsThrottle.Result.Sent, sendWhenFree(text));
+        assertEquals(SmsThrottle.Result.Throttled, send(text));
+        for (int i = 0; i < 2; i++)
+            assertNotNull(submits.poll(WAIT, TimeUnit.MILLISECONDS));
+        assertNull(submits.poll(100, TimeUnit.MILLISECONDS));
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Njiwa Open Source Embedded M2M UICC Remote Subscription Manager
+ *
+ *
+ * Copyright (C) 2019 - , Digital Solutions Ltd. - http://www.dsmagic.com
+ *
+ * Njiwa Dev <dev@njiwa.io>
+ *
+ * This program is free software, distributed under the terms of
+ * the GNU General Public License.
+ */
+
+package io.njiwa.sr.transports;
+
+import io.njiwa.common.Utils;
+import io.njiwa.sr.ota.Ota;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @brief SMS segmentation: Sms.Parts must cut a message into the same UDHs and texts as the per-part streams it
+ * replaced.
+ */
+public class SmsPartsTest {
+
+    /**
+     * @brief The old segmentation, part by part: The UDH, then the text. The concatenation reference depends on the
+     * time, so it is left as zero.
+     */
+    private static List<byte[][]> reference(byte[] msg, boolean no0348coding) {
+        List<byte[][]> l = new ArrayList<>();
+        int n = Ota.smsCount(msg.length);
+        if (n <= 1) {
+            l.add(new byte[][]{no0348coding ? new byte[0] : Utils.HEX.h2b("027000"), msg});
+            return l;
+        }
+        for (int i = 0, offset = 0; offset < msg.length; i++) {
+            ByteArrayOutputStream udh = new ByteArrayOutputStream();
+            if (!no0348coding) {
+                if (i == 0)
+                    udh.write(new byte[]{0x07, 0x70, 0x00}, 0, 3);
+                else
+                    udh.write(0x05);
+            }
+            udh.write(new byte[]{0x00, 0x03, 0x00, (byte) n, (byte) (i + 1)}, 0, 5);
+            int tSize = Math.min(Sms.MAX_SMS_OCTETS - udh.size(), msg.length - offset);
+            byte[] text = new byte[tSize];
+            System.arraycopy(msg, offset, text, 0, tSize);
+            offset += tSize;
+            l.add(new byte[][]{udh.toByteArray(), text});
+        }
+        return l;
+    }
+
+    @Test
+    public void partsMatchReference() {
+        Random r = new Random(5);
+        for (int k = 0; k < 3000; k++) {
+            byte[] msg = new byte[k < 800 ? k : r.nextInt(Sms.MAX_SMS_LEN)];
+            r.nextBytes(msg);
+            boolean no0348coding = r.nextBoolean();
+            Sms.Parts parts = new Sms.Parts(msg, no0348coding, r.nextLong());
+            List<byte[][]> expected = reference(msg, no0348coding);
+            assertEquals("Length " + msg.length, expected.size(), parts.count());
+
+            int ref = -1;
+            for (int i = 0; i < parts.count(); i++) {
+                byte[] udh = Sms.Parts.toBytes(parts.udh(i)), text = Sms.Parts.toBytes(parts.text(i));
+                assertTrue(udh.length + text.length <= Sms.MAX_SMS_OCTETS);
+                assertArrayEquals(expected.get(i)[1], text);
+                if (parts.count() == 1) {
+                    assertArrayEquals(expected.get(i)[0], udh);
+                    continue;
+                }
+                // All parts carry the same reference, just before the part count
+                int refAt = udh.length - 3;
+                if (ref < 0)
+                    ref = udh[refAt] & 0xFF;
+                assertEquals(ref, udh[refAt] & 0xFF);
+                udh[refAt] = 0;
+                assertArrayEquals(expected.get(i)[0], udh);
+            }
+        }
+    }
+
+    @Test
+    public void viewsAreIndependent() {
+        byte[] msg = new byte[400];
+        new Random(6).nextBytes(msg);
+        Sms.Parts parts = new Sms.Parts(msg, false, 1);
+        // Reading a view, or another view of the same part, must not move it
+        ByteBuffer text = parts.text(1);
+        int n = text.remaining();
+        assertEquals(n, Sms.Parts.toBytes(text).length);
+        assertEquals(n, Sms.Parts.toBytes(parts.text(1)).length);
+        assertEquals(n, text.remaining());
+        assertEquals(0x05, parts.udh(1).get(0));
+        assertEquals(0x07, parts.udh(0).get(0));
+    }
+}